@@ -0,0 +1,72 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Base58;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Measures {@link Base58} encoding and decoding of address sized payloads. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Base58Benchmark {
+    private byte[] payload;
+    private String encoded;
+    private String encodedChecked;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[20];
+        new Random(42).nextBytes(payload);
+        encoded = Base58.encode(payload);
+        encodedChecked = Base58.encodeChecked(0, payload);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base58.encode(payload);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Base58.decode(encoded);
+    }
+
+    @Benchmark
+    public String encodeChecked() {
+        return Base58.encodeChecked(0, payload);
+    }
+
+    @Benchmark
+    public byte[] decodeChecked() {
+        return Base58.decodeChecked(encodedChecked);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/** Measures parsing, serializing and hashing of blocks and block headers. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlockBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Param({ "1", "100", "1000" })
+    public int transactions;
+
+    private MessageSerializer serializer;
+    private byte[] blockBytes;
+    private byte[] headerBytes;
+    private Block block;
+
+    @Setup
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        serializer = PARAMS.getDefaultSerializer();
+        block = FakeData.createBlock(PARAMS, transactions);
+        blockBytes = block.bitcoinSerialize();
+        headerBytes = block.cloneAsHeader().bitcoinSerialize();
+    }
+
+    @Benchmark
+    public Block parse() {
+        return serializer.makeBlock(blockBytes);
+    }
+
+    @Benchmark
+    public byte[] parseAndReserialize() {
+        Block parsed = serializer.makeBlock(blockBytes);
+        // Touch a transaction so that the cached bytes are discarded and the block is serialized from its objects.
+        parsed.getTransactions().get(0).setLockTime(0);
+        return parsed.bitcoinSerialize();
+    }
+
+    @Benchmark
+    public Block parseHeader() {
+        return serializer.makeBlock(headerBytes);
+    }
+
+    @Benchmark
+    public Sha256Hash hashHeader() {
+        Block header = block.cloneAsHeader();
+        header.setNonce(header.getNonce() + 1);
+        return header.getHash();
+    }
+
+    @Benchmark
+    public void verifyTransactions() {
+        serializer.makeBlock(blockBytes).verifyTransactions(Block.BLOCK_HEIGHT_UNKNOWN,
+                EnumSet.noneOf(Block.VerifyFlag.class));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.BloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Measures {@link BloomFilter#insert(byte[])} and {@link BloomFilter#contains(byte[])}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int ELEMENTS = 1000;
+
+    @Param({ "0.0001", "0.001" })
+    public double falsePositiveRate;
+
+    private BloomFilter filter;
+    private byte[][] members;
+    private byte[][] nonMembers;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        filter = new BloomFilter(ELEMENTS, falsePositiveRate, random.nextLong());
+        members = new byte[ELEMENTS][20];
+        nonMembers = new byte[ELEMENTS][20];
+        for (int i = 0; i < ELEMENTS; i++) {
+            random.nextBytes(members[i]);
+            random.nextBytes(nonMembers[i]);
+            filter.insert(members[i]);
+        }
+    }
+
+    private int next() {
+        index = (index + 1) % ELEMENTS;
+        return index;
+    }
+
+    @Benchmark
+    public void insert() {
+        filter.insert(members[next()]);
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return filter.contains(members[next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return filter.contains(nonMembers[next()]);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Measures ECDSA signature verification and signing. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ECKeyBenchmark {
+    private ECKey key;
+    private byte[] pubKey;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature signature;
+    private byte[] derSignature;
+
+    @Setup
+    public void setUp() {
+        key = new ECKey();
+        pubKey = key.getPubKey();
+        hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        signature = key.sign(hash);
+        derSignature = signature.encodeToDER();
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return ECKey.verify(hash.getBytes(), signature, pubKey);
+    }
+
+    @Benchmark
+    public boolean verifyDER() {
+        return ECKey.verify(hash.getBytes(), derSignature, pubKey);
+    }
+
+    @Benchmark
+    public ECKey.ECDSASignature sign() {
+        return key.sign(hash);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builders for the synthetic transactions and blocks the benchmarks run against. The data is structurally realistic
+ * (P2PKH inputs and outputs with signature-sized script sigs) but not valid against any chain.
+ */
+class FakeData {
+    private static final Random random = new Random(42);
+
+    /** Returns a random, non-zero hash usable as a fake previous transaction id. */
+    static Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        bytes[0] |= 1;
+        return Sha256Hash.wrap(bytes);
+    }
+
+    /**
+     * Creates a transaction with the given number of inputs, each spending a random outpoint with a dummy signature,
+     * and two P2PKH outputs.
+     */
+    static Transaction createTransaction(NetworkParameters params, int numInputs, Address to) {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < numInputs; i++) {
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, i, randomHash());
+            TransactionInput input = new TransactionInput(params, tx,
+                    ScriptBuilder.createInputScript(TransactionSignature.dummy(), new ECKey()).getProgram(), outpoint);
+            tx.addInput(input);
+        }
+        tx.addOutput(Coin.COIN, to);
+        tx.addOutput(Coin.CENT, LegacyAddress.fromKey(params, new ECKey()));
+        return tx;
+    }
+
+    /** Creates a block on top of the genesis block containing a coinbase and the given number of transactions. */
+    static Block createBlock(NetworkParameters params, int numTransactions) {
+        Address to = LegacyAddress.fromKey(params, new ECKey());
+        List<Transaction> transactions = new ArrayList<>(numTransactions + 1);
+        Transaction coinbase = new Transaction(params);
+        coinbase.addInput(new TransactionInput(params, coinbase, new byte[] { 1, 2, 3, 4 }));
+        coinbase.addOutput(Coin.FIFTY_COINS, to);
+        transactions.add(coinbase);
+        for (int i = 0; i < numTransactions; i++)
+            transactions.add(createTransaction(params, 2, to));
+        Block genesis = params.getGenesisBlock();
+        Block block = new Block(params, Block.BLOCK_VERSION_BIP65, genesis.getHash(), null,
+                genesis.getTimeSeconds() + 600, genesis.getDifficultyTarget(), 0, transactions);
+        // A null merkle root is calculated from the transactions on serialization. Round trip the result so that
+        // the returned block looks as if it had been read from the wire.
+        return params.getDefaultSerializer().makeBlock(block.bitcoinSerialize());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SPVBlockStore#get(Sha256Hash)} and {@link SPVBlockStore#put(StoredBlock)} on a store that is filled
+ * to its default capacity. Lookups are split into recent blocks (served from the cache), old blocks (which miss the
+ * cache) and unknown hashes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SPVBlockStoreBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int BLOCKS = SPVBlockStore.DEFAULT_CAPACITY;
+
+    private File file;
+    private SPVBlockStore store;
+    private StoredBlock[] blocks;
+    private StoredBlock tip;
+    private Sha256Hash unknownHash;
+    private int index;
+
+    @Setup
+    public void setUp() throws IOException, BlockStoreException {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        store = new SPVBlockStore(PARAMS, file);
+        blocks = new StoredBlock[BLOCKS];
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < BLOCKS; i++) {
+            prev = nextHeader(prev);
+            store.put(prev);
+            blocks[i] = prev;
+        }
+        store.setChainHead(prev);
+        tip = prev;
+        unknownHash = FakeData.randomHash();
+    }
+
+    @TearDown
+    public void tearDown() throws BlockStoreException {
+        store.close();
+        file.delete();
+    }
+
+    private static StoredBlock nextHeader(StoredBlock prev) {
+        Block header = new Block(PARAMS, Block.BLOCK_VERSION_BIP65, prev.getHeader().getHash(),
+                FakeData.randomHash(), prev.getHeader().getTimeSeconds() + 600,
+                Block.EASIEST_DIFFICULTY_TARGET, 0, Collections.<Transaction>emptyList()).cloneAsHeader();
+        return new StoredBlock(header, prev.getChainWork().add(BigInteger.ONE), prev.getHeight() + 1);
+    }
+
+    @Benchmark
+    public StoredBlock getRecent() throws BlockStoreException {
+        index = (index + 1) % 100;
+        return store.get(blocks[BLOCKS - 1 - index].getHeader().getHash());
+    }
+
+    @Benchmark
+    public StoredBlock getOld() throws BlockStoreException {
+        index = (index + 1) % 100;
+        return store.get(blocks[index].getHeader().getHash());
+    }
+
+    @Benchmark
+    public StoredBlock getUnknown() throws BlockStoreException {
+        return store.get(unknownHash);
+    }
+
+    @Benchmark
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Benchmark
+    public void put() throws BlockStoreException {
+        tip = nextHeader(tip);
+        store.put(tip);
+    }
+}
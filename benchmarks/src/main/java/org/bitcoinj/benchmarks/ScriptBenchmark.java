@@ -0,0 +1,75 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Measures {@link Script#correctlySpends(Transaction, long, Script, java.util.Set)} for a signed P2PKH spend. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScriptBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Transaction spendingTx;
+    private Script scriptSig;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        ECKey key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, key));
+        spendingTx = new Transaction(PARAMS);
+        spendingTx.addOutput(Coin.COIN, LegacyAddress.fromKey(PARAMS, new ECKey()));
+        spendingTx.addSignedInput(new TransactionOutPoint(PARAMS, 0, FakeData.randomHash()), scriptPubKey, key);
+        scriptSig = spendingTx.getInput(0).getScriptSig();
+    }
+
+    @Benchmark
+    public void correctlySpendsP2PKH() {
+        scriptSig.correctlySpends(spendingTx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+    }
+
+    @Benchmark
+    public Script parse() {
+        return new Script(scriptSig.getProgram());
+    }
+}
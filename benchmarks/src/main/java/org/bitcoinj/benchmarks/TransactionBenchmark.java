@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Transaction#hashForSignature(int, byte[], byte)}. The {@code allInputs} benchmark hashes every
+ * input of the transaction, which is what signing or verifying the whole transaction costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransactionBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Param({ "1", "10", "100", "500" })
+    public int inputs;
+
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Setup
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        ECKey key = new ECKey();
+        tx = FakeData.createTransaction(PARAMS, inputs, LegacyAddress.fromKey(PARAMS, key));
+        connectedScript = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, key)).getProgram();
+    }
+
+    @Benchmark
+    public Sha256Hash singleInput() {
+        return tx.hashForSignature(inputs - 1, connectedScript, (byte) Transaction.SigHash.ALL.value);
+    }
+
+    @Benchmark
+    public void allInputs(Blackhole blackhole) {
+        for (int i = 0; i < inputs; i++)
+            blackhole.consume(tx.hashForSignature(i, connectedScript, (byte) Transaction.SigHash.ALL.value));
+    }
+
+    @Benchmark
+    public Sha256Hash txid() {
+        // Forces re-serialization, as happens after a transaction has been modified.
+        tx.setLockTime(0);
+        return tx.getHash();
+    }
+}
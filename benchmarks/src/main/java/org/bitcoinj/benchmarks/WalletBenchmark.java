@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Wallet#getBalance(Wallet.BalanceType)} and {@link Wallet#completeTx(SendRequest)} on wallets holding
+ * a large number of confirmed, unspent transactions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WalletBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int TRANSACTIONS_PER_ADDRESS = 100;
+
+    @Param({ "10000", "100000" })
+    public int transactions;
+
+    private Wallet wallet;
+    private Address destination;
+
+    @Setup
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        wallet = new Wallet(PARAMS);
+        Address to = null;
+        for (int i = 0; i < transactions; i++) {
+            if (i % TRANSACTIONS_PER_ADDRESS == 0)
+                to = wallet.freshReceiveAddress();
+            Transaction tx = FakeData.createTransaction(PARAMS, 1, to);
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setAppearedAtChainHeight(i / 10);
+            confidence.setDepthInBlocks(transactions / 10 - i / 10 + 1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        destination = LegacyAddress.fromKey(PARAMS, new ECKey());
+    }
+
+    @Benchmark
+    public Coin getBalanceAvailable() {
+        return wallet.getBalance(Wallet.BalanceType.AVAILABLE);
+    }
+
+    @Benchmark
+    public Coin getBalanceEstimated() {
+        return wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    @Benchmark
+    public SendRequest completeTx() throws InsufficientMoneyException {
+        SendRequest req = SendRequest.to(destination, Coin.COIN.multiply(3));
+        wallet.completeTx(req);
+        return req;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoin;
+
+import com.google.common.io.BaseEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.AccessControlException;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * <p>This class holds native methods to calculate SHA-256 hashes, using the SHA extensions or AVX2 instructions of the
+ * CPU where available. The library is looked up like the one for {@link NativeSecp256k1}: copy {@code libsha256.so}
+ * to your system library path or point the JVM to the folder containing it with -Djava.library.path.</p>
+ *
+ * <p>The SHA-256 implementation of Bitcoin Core, built with JNI bindings for the methods below, can be used for
+ * this. The library is only used if it hashes a test vector correctly. It isn't used by default, see
+ * {@link org.bitcoinj.core.NativeSha256Backend}.</p>
+ */
+public class NativeSha256 {
+    private static final Logger log = LoggerFactory.getLogger(NativeSha256.class);
+
+    private static final boolean enabled; // true if the library is loaded and passed the self test
+
+    static {
+        boolean isEnabled = true;
+        try {
+            System.loadLibrary("sha256");
+            // The library name is generic, so check that what was loaded has our entry points and computes SHA-256.
+            if (!selfTest()) {
+                log.warn("Library sha256 doesn't compute SHA-256, not using it");
+                isEnabled = false;
+            }
+        } catch (UnsatisfiedLinkError e) {
+            log.info(e.toString());
+            isEnabled = false;
+        } catch (AccessControlException e) {
+            log.debug(e.toString());
+            isEnabled = false;
+        }
+        enabled = isEnabled;
+    }
+
+    private static boolean selfTest() {
+        BaseEncoding hex = BaseEncoding.base16().lowerCase();
+        byte[] input = "abc".getBytes(StandardCharsets.US_ASCII);
+        byte[] output = new byte[32];
+        sha256(input, 0, input.length, output, 0);
+        if (!Arrays.equals(output, hex.decode("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad")))
+            return false;
+        byte[] expectedTwice = hex.decode("4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358");
+        sha256d(input, 0, input.length, output, 0);
+        if (!Arrays.equals(output, expectedTwice))
+            return false;
+        Arrays.fill(output, (byte) 0);
+        sha256d2(input, 0, 2, input, 2, 1, output, 0);
+        return Arrays.equals(output, expectedTwice);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Writes the SHA-256 of the given byte range to the output. Calling when enabled == false is undefined (probably
+     * library not loaded)
+     */
+    public static void hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        checkPositionIndexes(offset, offset + length, input.length);
+        checkPositionIndexes(outputOffset, outputOffset + 32, output.length);
+        sha256(input, offset, length, output, outputOffset);
+    }
+
+    /**
+     * Writes the SHA-256 of the SHA-256 of the given byte range to the output. Calling when enabled == false is
+     * undefined (probably library not loaded)
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        checkPositionIndexes(offset, offset + length, input.length);
+        checkPositionIndexes(outputOffset, outputOffset + 32, output.length);
+        sha256d(input, offset, length, output, outputOffset);
+    }
+
+    /**
+     * Writes the SHA-256 of the SHA-256 of the two given byte ranges, one after the other, to the output. Calling when
+     * enabled == false is undefined (probably library not loaded)
+     */
+    public static void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                                 byte[] output, int outputOffset) {
+        checkPositionIndexes(offset1, offset1 + length1, input1.length);
+        checkPositionIndexes(offset2, offset2 + length2, input2.length);
+        checkPositionIndexes(outputOffset, outputOffset + 32, output.length);
+        sha256d2(input1, offset1, length1, input2, offset2, length2, output, outputOffset);
+    }
+
+    private static native void sha256(byte[] input, int offset, int length, byte[] output, int outputOffset);
+
+    private static native void sha256d(byte[] input, int offset, int length, byte[] output, int outputOffset);
+
+    private static native void sha256d2(byte[] input1, int offset1, int length1, byte[] input2, int offset2,
+                                        int length2, byte[] output, int outputOffset);
+}
@@ -83,6 +83,8 @@ public abstract class AbstractBlockChain {
 
     /** Keeps a map of block hashes to StoredBlocks. */
     private final BlockStore blockStore;
+    /** Wraps the block store, to find ancestors of recent blocks without walking back one block at a time. */
+    private final SkipListBlockStore ancestors;
 
     /**
      * Tracks the top of the best known chain.<p>
@@ -147,7 +149,9 @@ public abstract class AbstractBlockChain {
     public AbstractBlockChain(Context context, List<? extends Wallet> wallets,
                               BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
+        this.ancestors = new SkipListBlockStore(blockStore);
         chainHead = blockStore.getChainHead();
+        ancestors.add(chainHead);
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = context.getParams();
 
@@ -486,7 +490,7 @@ public abstract class AbstractBlockChain {
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficultyTransitions(storedPrev, block, blockStore);
+                params.checkDifficultyTransitions(storedPrev, block, ancestors);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
@@ -540,7 +544,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, ancestors))
                 throw new VerificationException("Block's timestamp is too early");
 
             // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
@@ -562,6 +566,7 @@ public abstract class AbstractBlockChain {
                 txOutChanges = connectTransactions(storedPrev.getHeight() + 1, block);
             StoredBlock newStoredBlock = addToBlockStore(storedPrev,
                     block.transactions == null ? block : block.cloneAsHeader(), txOutChanges);
+            ancestors.add(newStoredBlock);
             versionTally.add(block.getVersion());
             setChainHead(newStoredBlock);
             log.debug("Chain is now {} blocks high, running listeners", newStoredBlock.getHeight());
@@ -576,7 +581,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head, ancestors);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -592,7 +597,7 @@ public abstract class AbstractBlockChain {
                     throw new VerificationException("Block forks the chain but splitPoint is null");
                 } else {
                     // We aren't actually spending any transactions (yet) because we are on a fork
-                    addToBlockStore(storedPrev, block);
+                    ancestors.add(addToBlockStore(storedPrev, block));
                     int splitPointHeight = splitPoint.getHeight();
                     String splitPointHash = splitPoint.getHeader().getHashAsString();
                     log.info("Block forks the chain at height {}/block {}, but it did not cause a reorganize:\n{}",
@@ -619,25 +624,23 @@ public abstract class AbstractBlockChain {
         // Notify the listeners of the new block, so the depth and workDone of stored transactions can be updated
         // (in the case of the listener being a wallet). Wallets need to know how deep each transaction is so
         // coinbases aren't used before maturity.
-        boolean first = true;
         Set<Sha256Hash> falsePositives = Sets.newHashSet();
         if (filteredTxHashList != null) falsePositives.addAll(filteredTxHashList);
+        informTransactionReceivedListeners(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock,
+                false, falsePositives);
 
-        for (final ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
+        for (final ListenerRegistration<NewBestBlockListener> registration : newBestBlockListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
-                informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
-                        newStoredBlock, first, registration.listener, falsePositives);
+                if (newBlockType == NewBlockType.BEST_CHAIN)
+                    registration.listener.notifyNewBestBlock(newStoredBlock);
             } else {
                 // Listener wants to be run on some other thread, so marshal it across here.
-                final boolean notFirst = !first;
                 registration.executor.execute(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            // We can't do false-positive handling when executing on another thread
-                            Set<Sha256Hash> ignoredFalsePositives = Sets.newHashSet();
-                            informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
-                                    newStoredBlock, notFirst, registration.listener, ignoredFalsePositives);
+                            if (newBlockType == NewBlockType.BEST_CHAIN)
+                                registration.listener.notifyNewBestBlock(newStoredBlock);
                         } catch (VerificationException e) {
                             log.error("Block chain listener threw exception: ", e);
                             // Don't attempt to relay this back to the original peer thread if this was an async
@@ -647,21 +650,33 @@ public abstract class AbstractBlockChain {
                     }
                 });
             }
-            first = false;
         }
 
-        for (final ListenerRegistration<NewBestBlockListener> registration : newBestBlockListeners) {
+        trackFalsePositives(falsePositives.size());
+    }
+
+    private void informTransactionReceivedListeners(final Block block, final NewBlockType newBlockType,
+                                                    @Nullable final List<Sha256Hash> filteredTxHashList,
+                                                    @Nullable final Map<Sha256Hash, Transaction> filteredTxn,
+                                                    final StoredBlock newStoredBlock, final boolean pastBlock,
+                                                    Set<Sha256Hash> falsePositives) throws VerificationException {
+        boolean first = true;
+        for (final ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
-                if (newBlockType == NewBlockType.BEST_CHAIN)
-                    registration.listener.notifyNewBestBlock(newStoredBlock);
+                informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
+                        newStoredBlock, pastBlock, first, registration.listener, falsePositives);
             } else {
                 // Listener wants to be run on some other thread, so marshal it across here.
+                final boolean notFirst = !first;
                 registration.executor.execute(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            if (newBlockType == NewBlockType.BEST_CHAIN)
-                                registration.listener.notifyNewBestBlock(newStoredBlock);
+                            // We can't do false-positive handling when executing on another thread
+                            Set<Sha256Hash> ignoredFalsePositives = Sets.newHashSet();
+                            informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
+                                    newStoredBlock, pastBlock, notFirst, registration.listener,
+                                    ignoredFalsePositives);
                         } catch (VerificationException e) {
                             log.error("Block chain listener threw exception: ", e);
                             // Don't attempt to relay this back to the original peer thread if this was an async
@@ -673,14 +688,29 @@ public abstract class AbstractBlockChain {
             }
             first = false;
         }
+    }
 
-        trackFalsePositives(falsePositives.size());
+    /**
+     * Gives the transactions of a block on the best chain, whose header was added before, to the
+     * {@link TransactionReceivedInBlockListener}s. Used when block filters showed the block to be relevant after its
+     * header was added, see {@link CompactFilterClient}.
+     */
+    void informListenersOfMatchedBlock(StoredBlock storedBlock, Block block) throws VerificationException {
+        lock.lock();
+        try {
+            // The listeners were already told about this block's successors, and won't get notifyNewBestBlock for it.
+            informTransactionReceivedListeners(block, NewBlockType.BEST_CHAIN, null, null, storedBlock, true,
+                    Sets.<Sha256Hash>newHashSet());
+        } finally {
+            lock.unlock();
+        }
     }
 
     private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
                                                          @Nullable List<Sha256Hash> filteredTxHashList,
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
-                                                         StoredBlock newStoredBlock, boolean first,
+                                                         StoredBlock newStoredBlock, boolean pastBlock,
+                                                         boolean first,
                                                          TransactionReceivedInBlockListener listener,
                                                          Set<Sha256Hash> falsePositives) throws VerificationException {
         if (block.transactions != null) {
@@ -689,7 +719,7 @@ public abstract class AbstractBlockChain {
             // is relevant to both of them, they don't end up accidentally sharing the same object (which can
             // result in temporary in-memory corruption during re-orgs). See bug 257. We only duplicate in
             // the case of multiple wallets to avoid an unnecessary efficiency hit in the common case.
-            sendTransactionsToListener(newStoredBlock, newBlockType, listener, 0, block.transactions,
+            sendTransactionsToListener(newStoredBlock, newBlockType, pastBlock, listener, 0, block.transactions,
                     !first, falsePositives);
         } else if (filteredTxHashList != null) {
             checkNotNull(filteredTxn);
@@ -700,7 +730,7 @@ public abstract class AbstractBlockChain {
             for (Sha256Hash hash : filteredTxHashList) {
                 Transaction tx = filteredTxn.get(hash);
                 if (tx != null) {
-                    sendTransactionsToListener(newStoredBlock, newBlockType, listener, relativityOffset,
+                    sendTransactionsToListener(newStoredBlock, newBlockType, pastBlock, listener, relativityOffset,
                             Collections.singletonList(tx), !first, falsePositives);
                 } else {
                     if (listener.notifyTransactionIsInBlock(hash, newStoredBlock, newBlockType, relativityOffset)) {
@@ -749,14 +779,14 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head, ancestors);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
         log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
         // Then build a list of all blocks in the old part of the chain and the new part.
-        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, blockStore);
-        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, blockStore);
+        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, ancestors);
+        final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, ancestors);
         // Disconnect each transaction in the previous main chain that is no longer in the new main chain
         StoredBlock storedNewHead = splitPoint;
         if (shouldVerifyTransactions()) {
@@ -776,7 +806,7 @@ public abstract class AbstractBlockChain {
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
                 Block cursorBlock = cursor.getHeader();
-                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(ancestors), ancestors))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -784,10 +814,12 @@ public abstract class AbstractBlockChain {
                 else
                     txOutChanges = connectTransactions(newChainHead.getHeight(), block);
                 storedNewHead = addToBlockStore(storedNewHead, cursorBlock.cloneAsHeader(), txOutChanges);
+                ancestors.add(storedNewHead);
             }
         } else {
             // (Finally) write block to block store
             storedNewHead = addToBlockStore(storedPrev, newChainHead.getHeader());
+            ancestors.add(storedNewHead);
         }
         // Now inform the listeners. This is necessary so the set of currently active transactions (that we can spend)
         // can be updated to take into account the re-organize. We might also have received new coins we didn't have
@@ -844,14 +876,20 @@ public abstract class AbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        //
+        // First bring both to the same height, which takes O(log n) lookups with a SkipListBlockStore, then walk
+        // back on both chains until they meet.
+        if (currentChainCursor.getHeight() > newChainCursor.getHeight())
+            currentChainCursor = currentChainCursor.getAncestor(newChainCursor.getHeight(), store);
+        else if (newChainCursor.getHeight() > currentChainCursor.getHeight())
+            newChainCursor = newChainCursor.getAncestor(currentChainCursor.getHeight(), store);
+        checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
+            currentChainCursor = currentChainCursor.getPrev(store);
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+            newChainCursor = newChainCursor.getPrev(store);
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         }
         return currentChainCursor;
     }
@@ -868,7 +906,7 @@ public abstract class AbstractBlockChain {
         SIDE_CHAIN
     }
 
-    private static void sendTransactionsToListener(StoredBlock block, NewBlockType blockType,
+    private static void sendTransactionsToListener(StoredBlock block, NewBlockType blockType, boolean pastBlock,
                                                    TransactionReceivedInBlockListener listener,
                                                    int relativityOffset,
                                                    List<Transaction> transactions,
@@ -879,7 +917,10 @@ public abstract class AbstractBlockChain {
                 falsePositives.remove(tx.getHash());
                 if (clone)
                     tx = tx.params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
-                listener.receiveFromBlock(tx, block, blockType, relativityOffset++);
+                if (pastBlock && listener instanceof Wallet)
+                    ((Wallet) listener).receiveFromPastBlock(tx, block, relativityOffset++);
+                else
+                    listener.receiveFromBlock(tx, block, blockType, relativityOffset++);
             } catch (ScriptException e) {
                 // We don't want scripts we don't understand to break the block chain so just note that this tx was
                 // not scanned here and continue.
@@ -984,9 +1025,19 @@ public abstract class AbstractBlockChain {
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
      * block. This is useful for turning transaction lock times into human readable times. Note that a height in
      * the past will still be estimated, even though the time of solving is actually known (we won't scan backwards
-     * through the chain to obtain the right answer).
+     * through the chain to obtain the right answer), unless the block store is a {@link HeightIndexedBlockStore}
+     * that holds the block.
      */
     public Date estimateBlockTime(int height) {
+        if (blockStore instanceof HeightIndexedBlockStore && height <= getBestChainHeight()) {
+            try {
+                StoredBlock block = ((HeightIndexedBlockStore) blockStore).getByHeight(height);
+                if (block != null)
+                    return block.getHeader().getTime();
+            } catch (BlockStoreException e) {
+                log.warn("Failed to look up block at height {}, estimating its time", height, e);
+            }
+        }
         synchronized (chainHeadLock) {
             long offset = height - chainHead.getHeight();
             long headTime = chainHead.getHeader().getTimeSeconds();
@@ -997,9 +1048,20 @@ public abstract class AbstractBlockChain {
 
     /**
      * Returns a future that completes when the block chain has reached the given height. Yields the
-     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread.
+     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread. If the
+     * height was already reached and the block store is a {@link HeightIndexedBlockStore}, the future is completed
+     * right away with the block at that height.
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
+        if (blockStore instanceof HeightIndexedBlockStore && height <= getBestChainHeight()) {
+            try {
+                StoredBlock block = ((HeightIndexedBlockStore) blockStore).getByHeight(height);
+                if (block != null)
+                    return Futures.immediateFuture(block);
+            } catch (BlockStoreException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
         final SettableFuture<StoredBlock> result = SettableFuture.create();
         addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
             @Override
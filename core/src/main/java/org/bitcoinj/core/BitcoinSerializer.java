@@ -28,6 +28,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -66,6 +67,7 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -73,6 +75,16 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
         names.put(SendHeadersMessage.class, "sendheaders");
+        names.put(SendCompactBlocksMessage.class, "sendcmpct");
+        names.put(CompactBlockMessage.class, "cmpctblock");
+        names.put(GetBlockTransactionsMessage.class, "getblocktxn");
+        names.put(BlockTransactionsMessage.class, "blocktxn");
+        names.put(GetCompactFiltersMessage.class, "getcfilters");
+        names.put(CompactFilterMessage.class, "cfilter");
+        names.put(GetCompactFilterHeadersMessage.class, "getcfheaders");
+        names.put(CompactFilterHeadersMessage.class, "cfheaders");
+        names.put(GetCompactFilterCheckpointsMessage.class, "getcfcheckpt");
+        names.put(CompactFilterCheckpointsMessage.class, "cfcheckpt");
     }
 
     /**
@@ -163,8 +175,22 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        // Check first, so we don't allocate the payload each time part of a large message arrives.
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes);
+    }
+
+    /**
+     * Deserialize payload only, from an array that holds exactly the payload. The array is parsed in place, so it
+     * must not be changed afterwards.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size, "Payload size %s doesn't match header size %s",
+                payloadBytes.length, header.size);
 
         // Verify the checksum.
         byte[] hash;
@@ -221,6 +247,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return makeAlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes, 0);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -233,6 +261,26 @@ public class BitcoinSerializer extends MessageSerializer {
             return new GetUTXOsMessage(params, payloadBytes);
         } else if (command.equals("sendheaders")) {
             return new SendHeadersMessage(params, payloadBytes);
+        } else if (command.equals("sendcmpct")) {
+            return new SendCompactBlocksMessage(params, payloadBytes);
+        } else if (command.equals("cmpctblock")) {
+            return new CompactBlockMessage(params, payloadBytes);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTransactionsMessage(params, payloadBytes);
+        } else if (command.equals("blocktxn")) {
+            return new BlockTransactionsMessage(params, payloadBytes);
+        } else if (command.equals("getcfilters")) {
+            return new GetCompactFiltersMessage(params, payloadBytes);
+        } else if (command.equals("cfilter")) {
+            return new CompactFilterMessage(params, payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCompactFilterHeadersMessage(params, payloadBytes);
+        } else if (command.equals("cfheaders")) {
+            return new CompactFilterHeadersMessage(params, payloadBytes);
+        } else if (command.equals("getcfcheckpt")) {
+            return new GetCompactFilterCheckpointsMessage(params, payloadBytes);
+        } else if (command.equals("cfcheckpt")) {
+            return new CompactFilterCheckpointsMessage(params, payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
@@ -55,6 +55,15 @@ public class Block extends Message {
 
     private static final Logger log = LoggerFactory.getLogger(Block.class);
 
+    // Headers are hashed for every block we see during chain sync, so each thread keeps its own buffers
+    // around to hash them without allocating anything but the resulting hash.
+    private static final ThreadLocal<HeaderHasher> headerHasher = new ThreadLocal<HeaderHasher>() {
+        @Override
+        protected HeaderHasher initialValue() {
+            return new HeaderHasher();
+        }
+    };
+
     /** How many bytes are required to represent a block header WITHOUT the trailing 00 length byte. */
     public static final int HEADER_SIZE = 80;
 
@@ -259,7 +268,7 @@ public class Block extends Message {
         time = readUint32();
         difficultyTarget = readUint32();
         nonce = readUint32();
-        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, cursor - offset));
+        hash = headerHasher.get().hash(payload, offset);
         headerBytesValid = serializer.isParseRetainMode();
 
         // transactions
@@ -397,16 +406,39 @@ public class Block extends Message {
     }
 
     /**
-     * Calculates the block hash by serializing the block and hashing the
-     * resulting bytes.
+     * Calculates the block hash by serializing the header and hashing the
+     * resulting bytes. Apart from the hash itself, this doesn't allocate.
      */
     private Sha256Hash calculateHash() {
-        try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen.
+        HeaderHasher hasher = headerHasher.get();
+        // Hash the original bytes if we still have them, like writeHeader() does.
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE)
+            return hasher.hash(payload, offset);
+        byte[] header = hasher.header;
+        Utils.uint32ToByteArrayLE(version, header, 0);
+        copyReversed(prevBlockHash, header, 4);
+        copyReversed(getMerkleRoot(), header, 4 + Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(time, header, 68);
+        Utils.uint32ToByteArrayLE(difficultyTarget, header, 72);
+        Utils.uint32ToByteArrayLE(nonce, header, 76);
+        return hasher.hash(header, 0);
+    }
+
+    private static void copyReversed(Sha256Hash hash, byte[] out, int offset) {
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < bytes.length; i++)
+            out[offset + i] = bytes[bytes.length - 1 - i];
+    }
+
+    /** Scratch space for hashing block headers, see {@link #headerHasher}. */
+    private static class HeaderHasher {
+        final byte[] header = new byte[HEADER_SIZE];
+        final byte[] hash = new byte[Sha256Hash.LENGTH];
+
+        /** Double-SHA256s the header at the given offset and returns it as a block hash. */
+        Sha256Hash hash(byte[] bytes, int offset) {
+            Sha256Hash.hashTwice(bytes, offset, HEADER_SIZE, hash, 0);
+            return Sha256Hash.wrapReversed(hash);
         }
     }
 
@@ -573,7 +605,7 @@ public class Block extends Message {
             throw new VerificationException("Block had too many Signature Operations");
     }
 
-    private void checkMerkleRoot() throws VerificationException {
+    void checkMerkleRoot() throws VerificationException {
         Sha256Hash calculatedRoot = calculateMerkleRoot();
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
@@ -582,62 +614,7 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //     root
-        //      / \
-        //   A      B
-        //  / \    / \
-        // t1 t2 t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concatenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //         root
-        //        /     \
-        //       1        5
-        //     /   \     / \
-        //    2     3    4  4
-        //  / \   / \   / \
-        // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleTree.rootOfTransactions(transactions);
     }
 
     /**
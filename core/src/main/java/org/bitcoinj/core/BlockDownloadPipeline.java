@@ -0,0 +1,561 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers-first, fetching the block bodies from all connected peers at once.</p>
+ *
+ * <p>The regular chain download in {@link Peer} asks a single peer for an inventory of blocks and then downloads
+ * them one getdata at a time from that same peer, so it's bounded by the latency and bandwidth of that one
+ * connection. Instead, this class asks the download peer for headers only. Their hashes are queued up in chain
+ * order and requested from whichever peers have the fewest requests outstanding, at most {@code window} blocks ahead
+ * of the last block connected to the chain. Blocks usually arrive out of order, so they are buffered until their
+ * parent has been connected and then added to the chain in order.</p>
+ *
+ * <p>Blocks holding up the chain are requested again from another peer once they have been outstanding for longer
+ * than {@link #STALL_TIMEOUT_MSEC}, see {@link #checkForStalls()}. Requests to peers that go away are handed to the
+ * remaining peers. A block a peer says it doesn't have is requested from another peer, but the peer is still asked for
+ * other blocks. If no peer has it, all peers are asked again after {@link #STALL_TIMEOUT_MSEC}.</p>
+ *
+ * <p>Full blocks are downloaded, so Bloom filtering and the fast catchup time don't apply. Once all headers the
+ * download peer knows about have been connected, chain download falls back to the regular mechanism for blocks
+ * announced from then on. Use {@link PeerGroup#enableParallelBlockDownload(int)} to enable this.</p>
+ */
+public class BlockDownloadPipeline {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadPipeline.class);
+
+    /** Maximum number of blocks that are requested from a single peer at a time. */
+    public static final int MAX_IN_FLIGHT_PER_PEER = 16;
+    /** How long the block that holds up the chain may be outstanding before it's requested from another peer. */
+    public static final long STALL_TIMEOUT_MSEC = 10000;
+
+    private final ReentrantLock lock = Threading.lock("blockdownloadpipeline");
+    // Held while adding blocks to the chain, so that they are added in order. Never acquired with lock held.
+    private final ReentrantLock connectLock = Threading.lock("blockdownloadpipeline-connect");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final int window;
+
+    // Peers that blocks can be requested from.
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<>();
+    // Hashes of all headers we received that are not connected to the chain yet, in chain order.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> unconnected = new ArrayDeque<>();
+    // Hashes from unconnected that aren't requested from any peer. These are the tail of unconnected, except for
+    // requests that had to be given up, which go to the front to be requested again first.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> unrequested = new ArrayDeque<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> inFlight = new HashMap<>();
+    // Blocks that arrived before their parent was connected.
+    @GuardedBy("lock") private final Map<Sha256Hash, Block> received = new HashMap<>();
+    // Blocks that peers told us they don't have. They aren't requested from these peers again until it times out.
+    @GuardedBy("lock") private final Map<Sha256Hash, NotFound> notFound = new HashMap<>();
+
+    @GuardedBy("lock") private boolean syncing;
+    // The peer we get headers from, usually the download peer.
+    @GuardedBy("lock") @Nullable private Peer headersPeer;
+    @GuardedBy("lock") private boolean headersInFlight;
+    // Set if the answer to the outstanding getheaders is to be thrown away, because we started over in the meantime.
+    @GuardedBy("lock") private boolean headersStale;
+    // Set once the headers peer has sent us less than a full headers message, i.e. we caught up with it.
+    @GuardedBy("lock") private boolean headersDone;
+    // Hash of the last header we received, or null if the next getheaders starts at the chain head.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastHeaderHash;
+
+    private static class Request {
+        final Peer peer;
+        final long timeMsec;
+
+        Request(Peer peer) {
+            this.peer = peer;
+            this.timeMsec = Utils.currentTimeMillis();
+        }
+    }
+
+    private static class NotFound {
+        final Set<Peer> peers = new HashSet<>();
+        long timeMsec;
+    }
+
+    /**
+     * @param chain the chain the downloaded blocks are added to
+     * @param window how many blocks may be requested ahead of the last block connected to the chain
+     */
+    public BlockDownloadPipeline(NetworkParameters params, AbstractBlockChain chain, int window) {
+        checkArgument(window > 0, "window must be positive");
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.window = window;
+    }
+
+    /** Returns how many blocks may be requested ahead of the last block connected to the chain. */
+    public int getWindow() {
+        return window;
+    }
+
+    /** Returns true between {@link #start(Peer)} and the time all headers we know about have been connected. */
+    public boolean isSyncing() {
+        lock.lock();
+        try {
+            return syncing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks that are currently requested from peers. */
+    public int getBlocksInFlight() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts or continues chain download, getting headers from the given peer. Blocks that were already requested
+     * from other peers stay requested.
+     */
+    public void start(Peer peer) {
+        lock.lock();
+        try {
+            addPeerLocked(peer);
+            if (headersPeer != peer) {
+                headersPeer = peer;
+                headersInFlight = false;
+                headersStale = false;
+            }
+            syncing = true;
+            headersDone = false;
+            log.info("{}: Starting pipelined chain download at height {} with {} blocks queued", peer,
+                    chain.getBestChainHeight(), unconnected.size());
+            maybeRequestHeadersLocked();
+            fillRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes blocks requestable from the given peer, if it serves the block chain. */
+    public void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            addPeerLocked(peer);
+            fillRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addPeerLocked(Peer peer) {
+        if (!peers.contains(peer) && peer.getPeerVersionMessage().hasBlockChain())
+            peers.add(peer);
+    }
+
+    /** Stops requesting blocks from the given peer, and asks other peers for the blocks it didn't send yet. */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            removePeerLocked(peer);
+            if (headersPeer == peer) {
+                // The PeerGroup will start us again with the new download peer.
+                headersPeer = null;
+                headersInFlight = false;
+                headersStale = false;
+            }
+            fillRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removePeerLocked(Peer peer) {
+        peers.remove(peer);
+        for (NotFound entry : notFound.values())
+            entry.peers.remove(peer);
+        Set<Sha256Hash> hashes = new HashSet<>();
+        for (Map.Entry<Sha256Hash, Request> entry : inFlight.entrySet())
+            if (entry.getValue().peer == peer)
+                hashes.add(entry.getKey());
+        requeueLocked(hashes);
+    }
+
+    // Gives up the requests for the given blocks, so they will be requested again first.
+    @GuardedBy("lock")
+    private void requeueLocked(Set<Sha256Hash> hashes) {
+        if (hashes.isEmpty())
+            return;
+        // Go backwards so that the requests end up at the front of unrequested in chain order.
+        Iterator<Sha256Hash> it = unconnected.descendingIterator();
+        while (it.hasNext()) {
+            Sha256Hash hash = it.next();
+            if (hashes.contains(hash)) {
+                inFlight.remove(hash);
+                unrequested.addFirst(hash);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link Peer} for every headers message. Returns false if the message isn't an answer to a getheaders
+     * sent by us, so the peer handles it as usual.
+     */
+    boolean onHeaders(Peer peer, HeadersMessage m) throws ProtocolException {
+        lock.lock();
+        try {
+            if (!syncing || peer != headersPeer || !headersInFlight)
+                return false;
+            headersInFlight = false;
+            if (headersStale) {
+                headersStale = false;
+                maybeRequestHeadersLocked();
+                return true;
+            }
+            List<Block> headers = m.getBlockHeaders();
+            BlockStore store = chain.getBlockStore();
+            for (Block header : headers) {
+                Sha256Hash prevHash = header.getPrevBlockHash();
+                // Each header must connect to the one before it. The first one may also connect to any block we
+                // already have in case the peer is on a different chain than our chain head.
+                boolean connects = lastHeaderHash != null ? prevHash.equals(lastHeaderHash) : store.get(prevHash) != null;
+                if (!connects)
+                    throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                header.verifyHeader();
+                lastHeaderHash = header.getHash();
+                unconnected.addLast(lastHeaderHash);
+                unrequested.addLast(lastHeaderHash);
+            }
+            // Peers send as many headers as they can, so a short message means we caught up.
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                headersDone = true;
+            maybeRequestHeadersLocked();
+            fillRequestsLocked();
+            maybeFinishLocked();
+            return true;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } catch (VerificationException e) {
+            throw new ProtocolException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by {@link Peer} for every block. Returns false if the block wasn't requested by us, so the peer handles
+     * it as usual.
+     */
+    boolean onBlock(Peer peer, Block block) {
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHash();
+            if (inFlight.remove(hash) == null)
+                return false;
+            received.put(hash, block);
+        } finally {
+            lock.unlock();
+        }
+        connectBlocks();
+        return true;
+    }
+
+    /**
+     * Called by {@link Peer} for every notfound message. Blocks the peer doesn't have are requested from other peers,
+     * other blocks may still be requested from it.
+     */
+    void onNotFound(Peer peer, NotFoundMessage m) {
+        lock.lock();
+        try {
+            Set<Sha256Hash> hashes = new HashSet<>();
+            for (InventoryItem item : m.getItems()) {
+                Request request = inFlight.get(item.hash);
+                if (request != null && request.peer == peer) {
+                    log.info("{}: Peer does not have block {}, requesting it from another peer", peer, item.hash);
+                    NotFound entry = notFound.get(item.hash);
+                    if (entry == null) {
+                        entry = new NotFound();
+                        notFound.put(item.hash, entry);
+                    }
+                    entry.peers.add(peer);
+                    entry.timeMsec = Utils.currentTimeMillis();
+                    hashes.add(item.hash);
+                }
+            }
+            requeueLocked(hashes);
+            fillRequestsLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by {@link Peer} when it gets a block announcement while we are syncing. Makes sure we ask for headers
+     * again in case that block was solved after our last getheaders.
+     */
+    void onBlockAnnounced() {
+        lock.lock();
+        try {
+            if (syncing && headersDone) {
+                headersDone = false;
+                maybeRequestHeadersLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Requests the block that holds up the chain from another peer if it has been outstanding for too long, and asks
+     * peers again for blocks they said they don't have a while ago. Called periodically by the {@link PeerGroup}.
+     */
+    public void checkForStalls() {
+        lock.lock();
+        try {
+            if (!syncing || unconnected.isEmpty())
+                return;
+            long now = Utils.currentTimeMillis();
+            Iterator<NotFound> notFoundIt = notFound.values().iterator();
+            boolean expired = false;
+            while (notFoundIt.hasNext()) {
+                if (now - notFoundIt.next().timeMsec >= STALL_TIMEOUT_MSEC) {
+                    notFoundIt.remove();
+                    expired = true;
+                }
+            }
+            if (expired)
+                fillRequestsLocked();
+            Sha256Hash hash = unconnected.peekFirst();
+            Request request = inFlight.get(hash);
+            if (request == null || now - request.timeMsec < STALL_TIMEOUT_MSEC)
+                return;
+            Set<Peer> exclude = new HashSet<>(excludedPeersLocked(hash));
+            exclude.add(request.peer);
+            Peer peer = leastLoadedPeerLocked(countRequestsLocked(), exclude);
+            if (peer == null)
+                return;
+            log.info("{}: Block {} stalled, requesting it from {}", request.peer, hash, peer);
+            // The stalled peer may still send the block. It's the same block, so whichever copy arrives first is
+            // accepted by onBlock(), and the other one is no longer in flight and is ignored by the peer while syncing.
+            inFlight.put(hash, new Request(peer));
+            GetDataMessage getdata = new GetDataMessage(params);
+            getdata.addBlock(hash);
+            peer.sendMessage(getdata);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds all blocks to the chain that can be added in order. Must be called without lock held, as adding blocks to
+    // the chain runs event listeners that may take arbitrary other locks.
+    private void connectBlocks() {
+        connectLock.lock();
+        try {
+            while (true) {
+                Block block;
+                Peer notifyPeer;
+                lock.lock();
+                try {
+                    if (unconnected.isEmpty())
+                        break;
+                    block = received.remove(unconnected.peekFirst());
+                    if (block == null)
+                        break;
+                    notFound.remove(unconnected.removeFirst());
+                    notifyPeer = headersPeer;
+                } finally {
+                    lock.unlock();
+                }
+                boolean connected;
+                try {
+                    connected = chain.add(block);
+                } catch (VerificationException e) {
+                    log.warn("Block verification failed", e);
+                    connected = false;
+                } catch (PrunedException e) {
+                    // We can't reorganize past the pruned part of the chain, there's no way to recover from this.
+                    throw new RuntimeException(e);
+                }
+                if (!connected) {
+                    // We only ask for blocks that connect, so something is wrong with the headers we got. Start over
+                    // from the chain head.
+                    log.warn("Could not connect block {}, restarting pipelined chain download", block.getHashAsString());
+                    lock.lock();
+                    try {
+                        resetLocked();
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                }
+                // Notify via the download peer, as that's where PeerGroup registers the chain download listener.
+                if (notifyPeer != null)
+                    notifyPeer.invokeOnBlocksDownloaded(block, null);
+            }
+        } finally {
+            connectLock.unlock();
+        }
+        lock.lock();
+        try {
+            maybeRequestHeadersLocked();
+            fillRequestsLocked();
+            maybeFinishLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void resetLocked() {
+        unconnected.clear();
+        unrequested.clear();
+        inFlight.clear();
+        received.clear();
+        notFound.clear();
+        lastHeaderHash = null;
+        headersDone = false;
+        if (headersInFlight)
+            headersStale = true;
+    }
+
+    @GuardedBy("lock")
+    private void maybeFinishLocked() {
+        if (syncing && headersDone && !headersInFlight && unconnected.isEmpty()) {
+            log.info("Pipelined chain download done at height {}", chain.getBestChainHeight());
+            syncing = false;
+            lastHeaderHash = null;
+        }
+    }
+
+    // Asks for more headers if we are running out of blocks to request.
+    @GuardedBy("lock")
+    private void maybeRequestHeadersLocked() {
+        if (!syncing || headersPeer == null || headersInFlight || headersDone)
+            return;
+        if (unrequested.size() >= HeadersMessage.MAX_HEADERS)
+            return;
+        BlockLocator locator = new BlockLocator();
+        if (lastHeaderHash != null)
+            locator = locator.add(lastHeaderHash);
+        // Same locator as Peer uses: the top 100 blocks of our chain, and the genesis block.
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        try {
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator = locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator = locator.add(params.getGenesisBlock().getHash());
+        headersInFlight = true;
+        headersPeer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    // Requests blocks from the least loaded peers until the window is full. Blocks that only peers which don't have
+    // them could take are skipped.
+    @GuardedBy("lock")
+    private void fillRequestsLocked() {
+        if (!syncing)
+            return;
+        Map<Peer, Integer> load = countRequestsLocked();
+        Map<Peer, GetDataMessage> getdatas = new HashMap<>();
+        Iterator<Sha256Hash> it = unrequested.iterator();
+        while (it.hasNext() && unconnected.size() - unrequested.size() < window) {
+            Sha256Hash hash = it.next();
+            Peer peer = leastLoadedPeerLocked(load, excludedPeersLocked(hash));
+            if (peer == null) {
+                if (leastLoadedPeerLocked(load, Collections.<Peer>emptySet()) == null)
+                    break;
+                continue;
+            }
+            it.remove();
+            inFlight.put(hash, new Request(peer));
+            load.put(peer, load.get(peer) + 1);
+            GetDataMessage getdata = getdatas.get(peer);
+            if (getdata == null) {
+                getdata = new GetDataMessage(params);
+                getdatas.put(peer, getdata);
+            }
+            getdata.addBlock(hash);
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet())
+            entry.getKey().sendMessage(entry.getValue());
+    }
+
+    @GuardedBy("lock")
+    private Map<Peer, Integer> countRequestsLocked() {
+        Map<Peer, Integer> load = new HashMap<>();
+        for (Peer peer : peers)
+            load.put(peer, 0);
+        for (Request request : inFlight.values()) {
+            Integer count = load.get(request.peer);
+            if (count != null)
+                load.put(request.peer, count + 1);
+        }
+        return load;
+    }
+
+    // Returns the peers that said they don't have the given block.
+    @GuardedBy("lock")
+    private Set<Peer> excludedPeersLocked(Sha256Hash hash) {
+        NotFound entry = notFound.get(hash);
+        return entry != null ? entry.peers : Collections.<Peer>emptySet();
+    }
+
+    // Returns the peer with the fewest requests that can take another one, preferring peers that connected earlier.
+    @GuardedBy("lock")
+    @Nullable
+    private Peer leastLoadedPeerLocked(Map<Peer, Integer> load, Set<Peer> exclude) {
+        Peer best = null;
+        int bestCount = MAX_IN_FLIGHT_PER_PEER;
+        for (Peer peer : peers) {
+            int count = load.get(peer);
+            if (!exclude.contains(peer) && count < bestCount) {
+                best = peer;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A "blocktxn" message, the answer to a {@link GetBlockTransactionsMessage}. It holds the requested transactions
+ * of a block, in the order they were asked for.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class BlockTransactionsMessage extends Message {
+    private Sha256Hash blockHash;
+    private List<Transaction> transactions;
+
+    public BlockTransactionsMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public BlockTransactionsMessage(NetworkParameters params, Sha256Hash blockHash, List<Transaction> transactions) {
+        super(params);
+        this.blockHash = blockHash;
+        this.transactions = new ArrayList<>(transactions);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long count = readVarInt();
+        if (count < 0 || count > CompactBlockMessage.MAX_TRANSACTIONS)
+            throw new ProtocolException("Too many transactions: " + count);
+        transactions = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
+            cursor += tx.getMessageSize();
+            transactions.add(tx);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(transactions.size()).encode());
+        for (Transaction tx : transactions)
+            tx.bitcoinSerializeToStream(stream, false);  // Version 1 compact blocks have no witnesses.
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(transactions);
+    }
+
+    @Override
+    public String toString() {
+        return "blocktxn: " + transactions.size() + " transactions of " + blockHash;
+    }
+}
@@ -20,6 +20,7 @@ package org.bitcoinj.core;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.utils.Threading;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
@@ -29,6 +30,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.*;
@@ -43,7 +45,8 @@ import static java.lang.Math.*;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are safe for use by multiple threads. Lookups don't take locks, and elements that are
+ * inserted concurrently are all kept.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -55,11 +58,18 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    // Replaced rather than modified when the filter is set to match everything. It's set last on construction, so
+    // the other fields are visible to threads that see it.
+    private volatile Bits bits;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
 
+    /** Blocks with at least this many transactions are tested on several threads, see {@link #applyAndUpdate(Block, boolean)}. */
+    public static final int PARALLEL_THRESHOLD = 256;
+    // The most transactions tested by one part of a block that is split between threads.
+    private static final int TRANSACTIONS_PER_PART = 64;
+
     // Same value as Bitcoin Core
     // A filter of 20,000 items and a false positive rate of 0.1% or one of 10,000 items and 0.0001% is just under 36,000 bytes
     private static final long MAX_FILTER_SIZE = 36000;
@@ -114,29 +124,29 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = (int)(-1  / (pow(log(2), 2)) * elements * log(falsePositiveRate));
         size = max(1, min(size, (int) MAX_FILTER_SIZE * 8) / 8);
-        data = new byte[size];
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = (int)(data.length * 8 / (double)elements * log(2));
+        hashFuncs = (int)(size * 8 / (double)elements * log(2));
         hashFuncs = max(1, min(hashFuncs, MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
+        bits = new Bits(new byte[size]);
     }
     
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (bits.numBytes * 8)), hashFuncs);
     }
 
     @Override
     public String toString() {
-        return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
+        return "Bloom Filter of size " + bits.numBytes + " with " + hashFuncs + " hash functions.";
     }
 
     @Override
     protected void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
         hashFuncs = readUint32();
@@ -145,6 +155,7 @@ public class BloomFilter extends Message {
         nTweak = readUint32();
         nFlags = readBytes(1)[0];
         length = cursor - offset;
+        bits = new Bits(data);
     }
     
     /**
@@ -152,6 +163,7 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        byte[] data = bits.toByteArray();
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
@@ -168,76 +180,100 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
-        final int c1 = 0xcc9e2d51;
-        final int c2 = 0x1b873593;
+        return murmurHash3(mixBlocks(object), object.length, nTweak, hashNum, data.length * 8);
+    }
 
-        int numBlocks = (object.length / 4) * 4;
-        // body
-        for(int i = 0; i < numBlocks; i += 4) {
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    // The first half of MurmurHash3: mixes the 4 byte blocks of the object, and its remaining bytes as the last
+    // element. This doesn't depend on the seed, so it's done in a single pass for all hash functions.
+    private static int[] mixBlocks(byte[] object) {
+        int numBlocks = object.length / 4;
+        int[] mixed = new int[numBlocks + 1];
+        for (int b = 0, i = 0; b < numBlocks; b++, i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
                   ((object[i+3] & 0xFF) << 24);
-            
-            k1 *= c1;
-            k1 = rotateLeft32(k1, 15);
-            k1 *= c2;
 
-            h1 ^= k1;
-            h1 = rotateLeft32(h1, 13);
-            h1 = h1*5+0xe6546b64;
+            k1 *= C1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= C2;
+            mixed[b] = k1;
         }
-        
+
+        int tail = numBlocks * 4;
         int k1 = 0;
         switch(object.length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                k1 ^= (object[tail] & 0xff);
+                k1 *= C1; k1 = rotateLeft32(k1, 15); k1 *= C2;
                 // Fall through.
             default:
                 // Do nothing.
                 break;
         }
+        mixed[numBlocks] = k1;
+        return mixed;
+    }
+
+    // The second half of MurmurHash3 for the given hash function, returning the index of its bit in the filter.
+    private static int murmurHash3(int[] mixed, int length, long nTweak, int hashNum, int numBits) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+
+        // body
+        int numBlocks = mixed.length - 1;
+        for (int b = 0; b < numBlocks; b++) {
+            h1 ^= mixed[b];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        // The remaining bytes, zero if there are none.
+        h1 ^= mixed[numBlocks];
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+
+        return (int)((h1&0xFFFFFFFFL) % numBits);
     }
     
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
-    public synchronized boolean contains(byte[] object) {
+    public boolean contains(byte[] object) {
+        Bits bits = this.bits;
+        int[] mixed = mixBlocks(object);
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+            if (!bits.get(murmurHash3(mixed, object.length, nTweak, i, bits.numBytes * 8)))
                 return false;
         }
         return true;
     }
     
     /** Insert the given arbitrary data into the filter */
-    public synchronized void insert(byte[] object) {
+    public void insert(byte[] object) {
+        Bits bits = this.bits;
+        int[] mixed = mixBlocks(object);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+            bits.set(murmurHash3(mixed, object.length, nTweak, i, bits.numBytes * 8));
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
-    public synchronized void insert(ECKey key) {
+    public void insert(ECKey key) {
         insert(key.getPubKey());
         insert(key.getPubKeyHash());
     }
@@ -249,23 +285,23 @@ public class BloomFilter extends Message {
      * Solved blocks will then be send just as Merkle trees of tx hashes, meaning a constant 32 bytes of data for each
      * transaction instead of 100-300 bytes as per usual.
      */
-    public synchronized void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+    public void setMatchAll() {
+        bits = new Bits(new byte[] {(byte) 0xff});
     }
 
     /**
      * Copies filter into this. Filter must have the same size, hash function count and nTweak or an
      * IllegalArgumentException will be thrown.
      */
-    public synchronized void merge(BloomFilter filter) {
+    public void merge(BloomFilter filter) {
+        Bits bits = this.bits, other = filter.bits;
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            checkArgument(other.numBytes == bits.numBytes &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            bits.or(other);
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            setMatchAll();
         }
     }
 
@@ -273,9 +309,10 @@ public class BloomFilter extends Message {
      * Returns true if this filter will match anything. See {@link BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
      */
-    public synchronized boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
+    public boolean matchesAll() {
+        Bits bits = this.bits;
+        for (int i = 0; i < bits.numBytes; i++)
+            if (bits.getByte(i) != (byte) 0xff)
                 return false;
         return true;
     }
@@ -284,7 +321,7 @@ public class BloomFilter extends Message {
      * The update flag controls how application of the filter to a block modifies the filter. See the enum javadocs
      * for information on what occurs and when.
      */
-    public synchronized BloomUpdate getUpdateFlag() {
+    public BloomUpdate getUpdateFlag() {
         if (nFlags == 0)
             return BloomUpdate.UPDATE_NONE;
         else if (nFlags == 1)
@@ -301,15 +338,44 @@ public class BloomFilter extends Message {
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
      */
-    public synchronized FilteredBlock applyAndUpdate(Block block) {
-        List<Transaction> txns = block.getTransactions();
+    public FilteredBlock applyAndUpdate(Block block) {
+        return applyAndUpdate(block, false);
+    }
+
+    /**
+     * Same as {@link #applyAndUpdate(Block)}, but if inParallel is true and the block has at least
+     * {@link #PARALLEL_THRESHOLD} transactions, they are first tested against the filter on several threads, which is
+     * useful when serving filtered blocks. The transactions are then applied in order, skipping those that didn't
+     * match until one updates the filter, so the result is the same.
+     */
+    public FilteredBlock applyAndUpdate(Block block, boolean inParallel) {
+        final List<Transaction> txns = block.getTransactions();
+        boolean[] candidates = null;
+        if (inParallel && txns.size() >= PARALLEL_THRESHOLD) {
+            // Test without updating the filter, so the parts don't change what the others match.
+            final boolean[] matches = new boolean[txns.size()];
+            Threading.forEachRange(0, txns.size(), TRANSACTIONS_PER_PART, new Threading.RangeTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++)
+                        matches[i] = apply(txns.get(i), false) != NOT_MATCHED;
+                }
+            });
+            candidates = matches;
+        }
         List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = Lists.newArrayList();
         byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
+        boolean updated = false;
         for (int i = 0; i < txns.size(); i++) {
             Transaction tx = txns.get(i);
             txHashes.add(tx.getHash());
-            if (applyAndUpdate(tx)) {
+            if (candidates != null && !candidates[i] && !updated)
+                continue;
+            int result = apply(tx, true);
+            if (result == MATCHED_AND_UPDATED)
+                updated = true;
+            if (result != NOT_MATCHED) {
                 Utils.setBitLE(bits, i);
                 matched.add(tx);
             }
@@ -321,10 +387,18 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
-    public synchronized boolean applyAndUpdate(Transaction tx) {
+    public boolean applyAndUpdate(Transaction tx) {
+        return apply(tx, true) != NOT_MATCHED;
+    }
+
+    private static final int NOT_MATCHED = 0, MATCHED = 1, MATCHED_AND_UPDATED = 2;
+
+    // Returns whether the transaction matches, and whether outpoints were inserted. If update is false nothing is
+    // inserted, so it returns whether the transaction matches the filter as it is.
+    private int apply(Transaction tx, boolean update) {
         if (contains(tx.getHash().getBytes()))
-            return true;
-        boolean found = false;
+            return MATCHED;
+        boolean found = false, inserted = false;
         BloomUpdate flag = getUpdateFlag();
         for (TransactionOutput output : tx.getOutputs()) {
             Script script = output.getScriptPubKey();
@@ -333,35 +407,95 @@ public class BloomFilter extends Message {
                     continue;
                 if (contains(chunk.data)) {
                     boolean isSendingToPubKeys = ScriptPattern.isPayToPubKey(script) || ScriptPattern.isSentToMultisig(script);
-                    if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))
+                    if (update && (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))) {
                         insert(output.getOutPointFor().unsafeBitcoinSerialize());
+                        inserted = true;
+                    }
                     found = true;
                 }
             }
         }
-        if (found) return true;
+        if (found) return inserted ? MATCHED_AND_UPDATED : MATCHED;
         for (TransactionInput input : tx.getInputs()) {
             if (contains(input.getOutpoint().unsafeBitcoinSerialize())) {
-                return true;
+                return MATCHED;
             }
             for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
                 if (chunk.isPushData() && contains(chunk.data))
-                    return true;
+                    return MATCHED;
             }
         }
-        return false;
+        return NOT_MATCHED;
     }
-    
+
     @Override
-    public synchronized boolean equals(Object o) {
+    public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BloomFilter other = (BloomFilter) o;
-        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(data, other.data);
+        return hashFuncs == other.hashFuncs && nTweak == other.nTweak
+                && Arrays.equals(bits.toByteArray(), other.bits.toByteArray());
     }
 
     @Override
-    public synchronized int hashCode() {
-        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
+    public int hashCode() {
+        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(bits.toByteArray()));
+    }
+
+    // The bits of a filter, in words of 32 bits that are updated atomically. Each word holds 4 bytes of the filter in
+    // little endian order, so bit n of the filter is bit n % 32 of word n / 32, like Utils.checkBitLE().
+    private static class Bits {
+        final int numBytes;
+        private final AtomicIntegerArray words;
+
+        Bits(byte[] data) {
+            numBytes = data.length;
+            int[] words = new int[(numBytes + 3) / 4];
+            for (int i = 0; i < numBytes; i++)
+                words[i >>> 2] |= (data[i] & 0xff) << ((i & 3) * 8);
+            this.words = new AtomicIntegerArray(words);
+        }
+
+        boolean get(int index) {
+            return (words.get(index >>> 5) & (1 << (index & 31))) != 0;
+        }
+
+        void set(int index) {
+            int i = index >>> 5;
+            int mask = 1 << (index & 31);
+            int word;
+            do {
+                word = words.get(i);
+                if ((word & mask) != 0)
+                    return;
+            } while (!words.compareAndSet(i, word, word | mask));
+        }
+
+        // Sets the bits that are set in the other bits, which must have the same size.
+        void or(Bits other) {
+            for (int i = 0; i < words.length(); i++) {
+                int mask = other.words.get(i);
+                int word;
+                do {
+                    word = words.get(i);
+                    if ((word | mask) == word)
+                        break;
+                } while (!words.compareAndSet(i, word, word | mask));
+            }
+        }
+
+        byte getByte(int index) {
+            return (byte) (words.get(index >>> 2) >>> ((index & 3) * 8));
+        }
+
+        byte[] toByteArray() {
+            byte[] data = new byte[numBytes];
+            for (int i = 0; i < numBytes; i += 4) {
+                int word = words.get(i >>> 2);
+                for (int j = i; j < min(i + 4, numBytes); j++, word >>>= 8)
+                    data[j] = (byte) word;
+            }
+            return data;
+        }
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A "cmpctblock" message. It holds a block header and identifies the transactions of the block by 6 byte short IDs,
+ * so the receiver can rebuild the block from transactions it already knows. Transactions the receiver is unlikely to
+ * know, like the coinbase, are included in full. Missing transactions can be requested with a
+ * {@link GetBlockTransactionsMessage}.</p>
+ *
+ * <p>Short IDs are the SipHash-2-4 of the transaction hash, keyed with the single SHA-256 of the header and a nonce.
+ * This class implements version 1, which uses the transaction hash without witness data. See
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactBlockMessage extends Message {
+    /** The compact block version implemented by this class. */
+    public static final long VERSION = 1;
+    /** Size of a short transaction ID in bytes. */
+    public static final int SHORT_ID_LENGTH = 6;
+    // A block can't hold more transactions than this, as every transaction is at least 60 bytes.
+    static final int MAX_TRANSACTIONS = Block.MAX_BLOCK_SIZE / 60;
+
+    /** A transaction that is sent in full, along with its position in the block. */
+    public static class PrefilledTransaction {
+        public final int index;
+        public final Transaction tx;
+
+        public PrefilledTransaction(int index, Transaction tx) {
+            this.index = index;
+            this.tx = tx;
+        }
+    }
+
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    private List<PrefilledTransaction> prefilledTransactions;
+
+    // Calculated from the header and nonce on first use.
+    private long k0, k1;
+    private boolean haveKey;
+
+    public CompactBlockMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Creates a compact version of the given block, which includes only the coinbase transaction in full. */
+    public CompactBlockMessage(NetworkParameters params, Block block, long nonce) {
+        super(params);
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+        this.header = block.cloneAsHeader();
+        this.nonce = nonce;
+        this.prefilledTransactions = Collections.singletonList(new PrefilledTransaction(0, transactions.get(0)));
+        this.shortIds = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++)
+            shortIds[i - 1] = getShortId(transactions.get(i).getHash());
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        header = params.getDefaultSerializer().makeBlock(readBytes(Block.HEADER_SIZE), 0, Block.HEADER_SIZE);
+        nonce = readInt64();
+        long numShortIds = readVarInt();
+        if (numShortIds < 0 || numShortIds > MAX_TRANSACTIONS)
+            throw new ProtocolException("Too many short IDs: " + numShortIds);
+        shortIds = new long[(int) numShortIds];
+        for (int i = 0; i < shortIds.length; i++) {
+            byte[] id = readBytes(SHORT_ID_LENGTH);
+            long value = 0;
+            for (int b = SHORT_ID_LENGTH - 1; b >= 0; b--)
+                value = (value << 8) | (id[b] & 0xff);
+            shortIds[i] = value;
+        }
+        long numPrefilled = readVarInt();
+        if (numPrefilled < 0 || numPrefilled + numShortIds > MAX_TRANSACTIONS)
+            throw new ProtocolException("Too many prefilled transactions: " + numPrefilled);
+        prefilledTransactions = new ArrayList<>((int) numPrefilled);
+        long index = -1;
+        for (int i = 0; i < numPrefilled; i++) {
+            // Indexes are sent as the difference to the previous index, minus one.
+            long diff = readVarInt();
+            if (diff < 0 || diff > MAX_TRANSACTIONS)
+                throw new ProtocolException("Prefilled transaction index out of range");
+            index += diff + 1;
+            if (index >= numShortIds + numPrefilled)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
+            cursor += tx.getMessageSize();
+            prefilledTransactions.add(new PrefilledTransaction((int) index, tx));
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        header.writeHeader(stream);
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        for (long id : shortIds)
+            for (int b = 0; b < SHORT_ID_LENGTH; b++)
+                stream.write((int) (id >>> (8 * b)));
+        stream.write(new VarInt(prefilledTransactions.size()).encode());
+        int previous = -1;
+        for (PrefilledTransaction prefilled : prefilledTransactions) {
+            stream.write(new VarInt(prefilled.index - previous - 1).encode());
+            prefilled.tx.bitcoinSerializeToStream(stream, false);  // Version 1 compact blocks have no witnesses.
+            previous = prefilled.index;
+        }
+    }
+
+    /** Returns the short ID a transaction with the given hash has in this compact block. */
+    public long getShortId(Sha256Hash txHash) {
+        if (!haveKey) {
+            MessageDigest digest = Sha256Hash.newDigest();
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(Block.HEADER_SIZE + 8);
+                header.writeHeader(bos);
+                Utils.int64ToByteStreamLE(nonce, bos);
+                digest.update(bos.toByteArray());
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+            byte[] key = digest.digest();
+            k0 = Utils.readInt64(key, 0);
+            k1 = Utils.readInt64(key, 8);
+            haveKey = true;
+        }
+        return SipHash.hash(k0, k1, txHash.getReversedBytes()) & 0xffffffffffffL;
+    }
+
+    /** Returns the header of the block, without transactions. */
+    public Block getHeader() {
+        return header;
+    }
+
+    @Override
+    public Sha256Hash getHash() {
+        return header.getHash();
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short IDs of the transactions that aren't prefilled, in block order. */
+    public long[] getShortIds() {
+        return shortIds.clone();
+    }
+
+    /** Returns the transactions that are sent in full, in block order. */
+    public List<PrefilledTransaction> getPrefilledTransactions() {
+        return Collections.unmodifiableList(prefilledTransactions);
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledTransactions.size();
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock: " + header.getHashAsString() + " with " + getTransactionCount() + " transactions, "
+                + prefilledTransactions.size() + " prefilled";
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Receives new blocks as compact blocks, see <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">
+ * BIP 152</a>. A compact block holds only short IDs for most transactions, and as peers relay transactions before they
+ * are mined, we usually know almost all of them already. The block is rebuilt from those, and the few that are
+ * missing are requested from the peer in one round trip. If we know all of them, there is no round trip at all.</p>
+ *
+ * <p>This class remembers the transactions recently relayed to us, up to a maximum number, for rebuilding blocks.
+ * Up to {@link #MAX_HIGH_BANDWIDTH_PEERS} peers are asked to send new blocks as compact blocks straight away (high
+ * bandwidth mode), the other peers announce them first and are asked for compact blocks when they do (low bandwidth
+ * mode).</p>
+ *
+ * <p>Compact blocks are only useful if we see most transactions relayed on the network, so they don't work together
+ * with Bloom filtering. Use {@link PeerGroup#enableCompactBlockRelay(int)} to enable this.</p>
+ */
+public class CompactBlockRelay {
+    private static final Logger log = LoggerFactory.getLogger(CompactBlockRelay.class);
+
+    /** Maximum number of peers that are asked to send new blocks without announcing them first. */
+    public static final int MAX_HIGH_BANDWIDTH_PEERS = 3;
+
+    private final ReentrantLock lock = Threading.lock("compactblockrelay");
+    private final NetworkParameters params;
+    private final Cache<Sha256Hash, Transaction> recentTransactions;
+
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<>();
+    @GuardedBy("lock") private final List<Peer> highBandwidthPeers = new ArrayList<>();
+
+    private final AtomicLong blocksWithoutRoundTrip = new AtomicLong();
+    private final AtomicLong blocksWithRoundTrip = new AtomicLong();
+    private final AtomicLong blocksFailed = new AtomicLong();
+
+    /** Creates a relay that remembers up to the given number of recently relayed transactions. */
+    public CompactBlockRelay(NetworkParameters params, int maxTransactions) {
+        checkArgument(maxTransactions > 0);
+        this.params = params;
+        this.recentTransactions = CacheBuilder.newBuilder().maximumSize(maxTransactions).build();
+    }
+
+    /** Remembers a transaction that was relayed to us, or that we sent, for rebuilding compact blocks. */
+    public void addTransaction(Transaction tx) {
+        recentTransactions.put(tx.getHash(), tx);
+    }
+
+    /** Returns the number of transactions that are remembered for rebuilding compact blocks. */
+    public long getTransactionCount() {
+        return recentTransactions.size();
+    }
+
+    /** Matches the short IDs of a compact block against the recently relayed transactions. */
+    PartiallyDownloadedBlock startReconstruction(CompactBlockMessage compactBlock) throws ProtocolException {
+        return new PartiallyDownloadedBlock(compactBlock, recentTransactions.asMap().values());
+    }
+
+    /**
+     * Called when a block was rebuilt. Its transactions are forgotten, as they won't be in another block.
+     *
+     * @param roundTrip whether some transactions had to be requested from the peer
+     */
+    void blockRebuilt(Block block, boolean roundTrip) {
+        (roundTrip ? blocksWithRoundTrip : blocksWithoutRoundTrip).incrementAndGet();
+        List<Sha256Hash> hashes = new ArrayList<>(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            hashes.add(tx.getHash());
+        recentTransactions.invalidateAll(hashes);
+    }
+
+    /** Called when a compact block couldn't be rebuilt, so the full block had to be downloaded. */
+    void blockFailed() {
+        blocksFailed.incrementAndGet();
+    }
+
+    /** Returns the number of blocks rebuilt from transactions we already had, without a round trip. */
+    public long getBlocksWithoutRoundTrip() {
+        return blocksWithoutRoundTrip.get();
+    }
+
+    /** Returns the number of blocks rebuilt after requesting the missing transactions from the peer. */
+    public long getBlocksWithRoundTrip() {
+        return blocksWithRoundTrip.get();
+    }
+
+    /** Returns the number of compact blocks that couldn't be rebuilt, so the full block was downloaded instead. */
+    public long getBlocksFailed() {
+        return blocksFailed.get();
+    }
+
+    /** Called by the {@link PeerGroup} when a peer connected. Tells the peer we want compact blocks. */
+    void addPeer(Peer peer) {
+        if (!peer.getPeerVersionMessage().isCompactBlocksSupported())
+            return;
+        boolean highBandwidth;
+        lock.lock();
+        try {
+            peers.add(peer);
+            highBandwidth = highBandwidthPeers.size() < MAX_HIGH_BANDWIDTH_PEERS;
+            if (highBandwidth)
+                highBandwidthPeers.add(peer);
+        } finally {
+            lock.unlock();
+        }
+        log.info("{}: Requesting compact blocks in {} bandwidth mode", peer, highBandwidth ? "high" : "low");
+        peer.sendMessage(new SendCompactBlocksMessage(params, highBandwidth, CompactBlockMessage.VERSION));
+    }
+
+    /** Called by the {@link PeerGroup} when a peer disconnected. Another peer takes its place in high bandwidth mode. */
+    void removePeer(Peer peer) {
+        Peer replacement = null;
+        lock.lock();
+        try {
+            peers.remove(peer);
+            if (highBandwidthPeers.remove(peer)) {
+                for (Peer candidate : peers) {
+                    if (!highBandwidthPeers.contains(candidate)) {
+                        replacement = candidate;
+                        highBandwidthPeers.add(candidate);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (replacement != null) {
+            log.info("{}: Switching to compact blocks in high bandwidth mode", replacement);
+            replacement.sendMessage(new SendCompactBlocksMessage(params, true, CompactBlockMessage.VERSION));
+        }
+    }
+
+    /** Returns true if the given peer was asked to send new blocks without announcing them first. */
+    public boolean isHighBandwidthPeer(Peer peer) {
+        lock.lock();
+        try {
+            return highBandwidthPeers.contains(peer);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
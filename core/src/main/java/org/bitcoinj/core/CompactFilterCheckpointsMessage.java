@@ -0,0 +1,93 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A "cfcheckpt" message, the answer to a {@link GetCompactFilterCheckpointsMessage}. It holds the filter headers
+ * of the blocks at heights {@link #INTERVAL}, 2 * {@link #INTERVAL} and so on, up to the stop hash.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactFilterCheckpointsMessage extends Message {
+    /** The distance between checkpoints, in blocks. */
+    public static final int INTERVAL = 1000;
+    // More than enough for any chain we will see.
+    private static final int MAX_CHECKPOINTS = 100000;
+
+    private int filterType;
+    private Sha256Hash stopHash;
+    private List<Sha256Hash> filterHeaders;
+
+    public CompactFilterCheckpointsMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public CompactFilterCheckpointsMessage(NetworkParameters params, int filterType, Sha256Hash stopHash,
+                                           List<Sha256Hash> filterHeaders) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.filterHeaders = new ArrayList<>(filterHeaders);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        stopHash = readHash();
+        long count = readVarInt();
+        if (count < 0 || count > MAX_CHECKPOINTS)
+            throw new ProtocolException("Too many checkpoints: " + count);
+        filterHeaders = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++)
+            filterHeaders.add(readHash());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(new VarInt(filterHeaders.size()).encode());
+        for (Sha256Hash header : filterHeaders)
+            stream.write(header.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter headers, the one at index i being the one of the block at height (i + 1) * INTERVAL. */
+    public List<Sha256Hash> getFilterHeaders() {
+        return Collections.unmodifiableList(filterHeaders);
+    }
+
+    @Override
+    public String toString() {
+        return "cfcheckpt: " + filterHeaders.size() + " checkpoints up to " + stopHash;
+    }
+}
@@ -0,0 +1,733 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FilterHeaderStore;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Finds the blocks relevant to the wallets with block filters, see
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a> and
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP 158</a>. This is an alternative to
+ * Bloom filtering: rather than giving each peer a filter of our keys and letting it find the relevant transactions,
+ * peers give us a filter of each block, which we match against the output scripts of our wallets ourselves. Only the
+ * matching blocks are downloaded, in full, from any peer. Peers learn nothing about our wallets except which blocks
+ * we download, and key changes don't require sending new filters to every peer.</p>
+ *
+ * <p>The chain is downloaded as headers only. For the blocks after the earliest key creation time of the wallets, the
+ * filter headers are downloaded from a peer and kept in a {@link FilterHeaderStore}. Each filter header commits to
+ * the filter of its block and all filters before it, so the filters can then be downloaded from any peers, several
+ * at once, and checked against the stored headers. Peers that send filters that don't match, or checkpoints that
+ * disagree with our filter headers, are disconnected. Matched blocks are given to the wallets in chain order. If that
+ * makes a wallet add keys, the filters after it are matched again.</p>
+ *
+ * <p>Requests that peers don't answer within {@link #STALL_TIMEOUT_MSEC}, and blocks that fail to download, are
+ * requested from other peers, see {@link #checkForStalls()}. Such peers are avoided for a while as long as there are
+ * others.</p>
+ *
+ * <p>The wallets don't learn about unconfirmed transactions from this. Use {@link PeerGroup#enableCompactFilters}
+ * to enable this. This class is thread safe.</p>
+ */
+public class CompactFilterClient {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterClient.class);
+
+    /** The number of filters that are downloaded ahead of the last block given to the wallets, at most. */
+    public static final int MAX_PENDING_FILTERS = 2000;
+    /** How long a peer may take to answer a request before it's requested from another peer. */
+    public static final long STALL_TIMEOUT_MSEC = 30000;
+    private static final int FILTERS_PER_REQUEST = 500;
+
+    private final ReentrantLock lock = Threading.lock("compactfilterclient");
+    // Held while a block is given to the wallets, so they get them in chain order. As that takes the lock of the block
+    // chain, this is taken before lock and never while holding it.
+    private final ReentrantLock deliveryLock = Threading.lock("compactfilterdelivery");
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final FilterHeaderStore store;
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<>();
+    // Incremented whenever the scripts of a wallet change, so filters that didn't match are matched again.
+    private final AtomicInteger scriptsVersion = new AtomicInteger();
+
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<>();
+    @GuardedBy("lock") private int nextPeer;
+    // Peers that failed or didn't answer a request in time, and when. They aren't asked for anything while other peers
+    // are available, until STALL_TIMEOUT_MSEC later.
+    @GuardedBy("lock") private final Map<Peer, Long> avoidedPeers = new HashMap<>();
+    // Peers we asked for checkpoints, to check they agree with our filter headers.
+    @GuardedBy("lock") private final Set<Peer> checkedPeers = new HashSet<>();
+    @GuardedBy("lock") @Nullable private HeadersRequest headersRequest;
+    @GuardedBy("lock") private final Map<Peer, FiltersRequest> filtersRequests = new HashMap<>();
+    // Ranges of filters that were requested from peers that disconnected.
+    @GuardedBy("lock") private final Deque<FiltersRequest> retryRequests = new ArrayDeque<>();
+    // The next height to request filters from, or -1 if that has to be found from the store.
+    @GuardedBy("lock") private int nextFilterHeight = -1;
+    // Blocks whose filters we have, but that were not given to the wallets yet, by height.
+    @GuardedBy("lock") private final TreeMap<Integer, PendingBlock> pendingBlocks = new TreeMap<>();
+    @GuardedBy("lock") private List<byte[]> scripts = Collections.emptyList();
+    @GuardedBy("lock") private int scriptsVersionUsed = -1;
+
+    private final AtomicLong filtersMatched = new AtomicLong();
+    private final AtomicLong filtersNotMatched = new AtomicLong();
+
+    private static class HeadersRequest {
+        final Peer peer;
+        final int startHeight;
+        final StoredBlock stopBlock;
+        final long timeMsec;
+
+        HeadersRequest(Peer peer, int startHeight, StoredBlock stopBlock) {
+            this.peer = peer;
+            this.startHeight = startHeight;
+            this.stopBlock = stopBlock;
+            this.timeMsec = Utils.currentTimeMillis();
+        }
+    }
+
+    private static class FiltersRequest {
+        int nextHeight;
+        final int stopHeight;
+        // When the request was sent, or the last filter of it was received.
+        long timeMsec;
+
+        FiltersRequest(int startHeight, int stopHeight) {
+            this.nextHeight = startHeight;
+            this.stopHeight = stopHeight;
+        }
+    }
+
+    private static class PendingBlock {
+        final Sha256Hash hash;
+        final GolombCodedSet filter;
+        int matchedVersion;
+        boolean matched;
+        @Nullable Peer requestedFrom;
+        long requestTimeMsec;
+        @Nullable Block block;
+
+        PendingBlock(Sha256Hash hash, GolombCodedSet filter) {
+            this.hash = hash;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Creates a client for the given chain, which must be a headers only chain. The filter headers are kept in the
+     * given store.
+     */
+    public CompactFilterClient(NetworkParameters params, AbstractBlockChain chain, FilterHeaderStore store) {
+        checkArgument(!chain.shouldVerifyTransactions(), "Block filters are for SPV chains");
+        this.params = params;
+        this.chain = chain;
+        this.store = store;
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                requestMore();
+            }
+        });
+        chain.addReorganizeListener(Threading.SAME_THREAD, new ReorganizeListener() {
+            @Override
+            public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+                CompactFilterClient.this.reorganize(splitPoint);
+            }
+        });
+    }
+
+    private final KeyChainEventListener keyListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            scriptsVersion.incrementAndGet();
+        }
+    };
+
+    private final ScriptsChangeEventListener scriptsListener = new ScriptsChangeEventListener() {
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            scriptsVersion.incrementAndGet();
+        }
+    };
+
+    /**
+     * Adds a wallet whose scripts the filters are matched against. Wallets must be added before the scan passes their
+     * earliest key creation time, blocks before that aren't scanned again.
+     */
+    public void addWallet(Wallet wallet) {
+        wallets.add(wallet);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, keyListener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, scriptsListener);
+        scriptsVersion.incrementAndGet();
+        requestMore();
+    }
+
+    public void removeWallet(Wallet wallet) {
+        wallets.remove(wallet);
+        wallet.removeKeyChainEventListener(keyListener);
+        wallet.removeScriptChangeEventListener(scriptsListener);
+        scriptsVersion.incrementAndGet();
+    }
+
+    /** Called by the {@link PeerGroup} when a peer connected. Peers that don't serve block filters are ignored. */
+    void addPeer(Peer peer) {
+        if (!peer.getPeerVersionMessage().isCompactFiltersSupported())
+            return;
+        lock.lock();
+        try {
+            peers.add(peer);
+            // Blocks that couldn't be requested while there were no peers.
+            for (Map.Entry<Integer, PendingBlock> entry : pendingBlocks.entrySet())
+                if (entry.getValue().matched && entry.getValue().requestedFrom == null)
+                    requestBlockLocked(entry.getKey(), entry.getValue());
+            requestFilterHeadersLocked();
+            requestFiltersLocked();
+            if (isHeadersSyncedLocked())
+                checkPeersLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the {@link PeerGroup} when a peer disconnected. What was requested from it is requested again. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.remove(peer))
+                return;
+            checkedPeers.remove(peer);
+            avoidedPeers.remove(peer);
+            if (headersRequest != null && headersRequest.peer == peer)
+                headersRequest = null;
+            FiltersRequest request = filtersRequests.remove(peer);
+            if (request != null)
+                retryRequests.add(request);
+            for (Map.Entry<Integer, PendingBlock> entry : pendingBlocks.entrySet()) {
+                PendingBlock pending = entry.getValue();
+                if (pending.requestedFrom == peer && pending.block == null) {
+                    pending.requestedFrom = null;
+                    requestBlockLocked(entry.getKey(), pending);
+                }
+            }
+            requestFilterHeadersLocked();
+            requestFiltersLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of filters that matched, so their blocks were downloaded. */
+    public long getFiltersMatched() {
+        return filtersMatched.get();
+    }
+
+    /** Returns the number of filters that didn't match, so their blocks were skipped. */
+    public long getFiltersNotMatched() {
+        return filtersNotMatched.get();
+    }
+
+    /**
+     * Requests filter headers, filters and blocks from other peers if they have been requested for longer than
+     * {@link #STALL_TIMEOUT_MSEC}, and blocks that failed to download from any peer. Called periodically by the
+     * {@link PeerGroup}.
+     */
+    public void checkForStalls() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Iterator<Long> it = avoidedPeers.values().iterator(); it.hasNext(); )
+                if (now - it.next() >= STALL_TIMEOUT_MSEC)
+                    it.remove();
+            if (headersRequest != null && now - headersRequest.timeMsec >= STALL_TIMEOUT_MSEC) {
+                log.info("{}: Filter headers request stalled, requesting them from another peer", headersRequest.peer);
+                avoidedPeers.put(headersRequest.peer, now);
+                headersRequest = null;
+            }
+            for (Iterator<Map.Entry<Peer, FiltersRequest>> it = filtersRequests.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Peer, FiltersRequest> entry = it.next();
+                FiltersRequest request = entry.getValue();
+                if (now - request.timeMsec >= STALL_TIMEOUT_MSEC) {
+                    log.info("{}: Filters request stalled at height {}, requesting them from another peer",
+                            entry.getKey(), request.nextHeight);
+                    avoidedPeers.put(entry.getKey(), now);
+                    retryRequests.addFirst(request);
+                    it.remove();
+                }
+            }
+            for (Map.Entry<Integer, PendingBlock> entry : pendingBlocks.entrySet()) {
+                PendingBlock pending = entry.getValue();
+                if (!pending.matched || pending.block != null)
+                    continue;
+                if (pending.requestedFrom != null) {
+                    if (now - pending.requestTimeMsec < STALL_TIMEOUT_MSEC)
+                        continue;
+                    log.info("{}: Block {} stalled, requesting it from another peer", pending.requestedFrom,
+                            pending.hash);
+                    avoidedPeers.put(pending.requestedFrom, now);
+                }
+                requestBlockLocked(entry.getKey(), pending);
+            }
+            requestFilterHeadersLocked();
+            requestFiltersLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void requestMore() {
+        lock.lock();
+        try {
+            requestFilterHeadersLocked();
+            requestFiltersLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestFilterHeadersLocked() throws BlockStoreException {
+        if (headersRequest != null || peers.isEmpty())
+            return;
+        StoredBlock head = chain.getChainHead();
+        int startHeight = store.isEmpty() ? findStartHeight(head) : store.getHeight() + 1;
+        if (startHeight < 0 || startHeight > head.getHeight())
+            return;
+        int stopHeight = Math.min(startHeight + GetCompactFilterHeadersMessage.MAX_HEADERS - 1, head.getHeight());
+        StoredBlock stopBlock = head;
+        while (stopBlock.getHeight() > stopHeight)
+            stopBlock = getPrev(stopBlock);
+        Peer peer = nextPeerLocked();
+        headersRequest = new HeadersRequest(peer, startHeight, stopBlock);
+        peer.sendMessage(new GetCompactFilterHeadersMessage(params, GetCompactFiltersMessage.BASIC_FILTER,
+                startHeight, stopBlock.getHeader().getHash()));
+    }
+
+    // Finds the first block after the earliest key creation time of the wallets, minus a week for clock skew. Returns
+    // -1 if there are no wallets yet.
+    private int findStartHeight(StoredBlock head) throws BlockStoreException {
+        if (wallets.isEmpty())
+            return -1;
+        long time = Long.MAX_VALUE;
+        for (Wallet wallet : wallets)
+            time = Math.min(time, wallet.getEarliestKeyCreationTime());
+        time -= 86400 * 7;
+        StoredBlock cursor = head;
+        while (cursor.getHeader().getTimeSeconds() >= time) {
+            StoredBlock prev = cursor.getPrev(chain.getBlockStore());
+            if (prev == null)
+                return cursor.getHeight();  // Start of the block store.
+            cursor = prev;
+        }
+        return cursor.getHeight() + 1;
+    }
+
+    /** Called by the {@link Peer} when it received filter headers. */
+    void processFilterHeaders(Peer peer, CompactFilterHeadersMessage m) {
+        lock.lock();
+        try {
+            HeadersRequest request = headersRequest;
+            if (request == null || request.peer != peer
+                    || !m.getStopHash().equals(request.stopBlock.getHeader().getHash())) {
+                log.debug("{}: Ignoring filter headers we did not ask for", peer);
+                return;
+            }
+            headersRequest = null;
+            int count = request.stopBlock.getHeight() - request.startHeight + 1;
+            if (m.getFilterType() != GetCompactFiltersMessage.BASIC_FILTER || m.getFilterHashes().size() != count) {
+                log.warn("{}: Got {} filter headers, expected {}, disconnecting", peer, m.getFilterHashes().size(),
+                        count);
+                peer.close();
+                return;
+            }
+            Sha256Hash[] blockHashes = new Sha256Hash[count];
+            StoredBlock cursor = request.stopBlock;
+            for (int i = count - 1; i > 0; i--) {
+                blockHashes[i] = cursor.getHeader().getHash();
+                cursor = getPrev(cursor);
+            }
+            blockHashes[0] = cursor.getHeader().getHash();
+            if (store.isEmpty()) {
+                if (request.startHeight == 0 && !m.getPreviousFilterHeader().equals(Sha256Hash.ZERO_HASH)) {
+                    log.warn("{}: Filter header before the genesis block isn't zero, disconnecting", peer);
+                    peer.close();
+                    return;
+                }
+                log.info("Starting block filter scan at height {}", request.startHeight);
+                store.initialize(request.startHeight - 1, cursor.getHeader().getPrevBlockHash(),
+                        m.getPreviousFilterHeader());
+            } else if (!m.getPreviousFilterHeader().equals(store.getFilterHeader(request.startHeight - 1))) {
+                log.warn("{}: Filter headers don't connect to ours, disconnecting", peer);
+                peer.close();
+                return;
+            }
+            List<Sha256Hash> filterHeaders = m.getFilterHeaders();
+            for (int i = 0; i < count; i++)
+                store.add(blockHashes[i], filterHeaders.get(i));
+            requestFilterHeadersLocked();
+            requestFiltersLocked();
+            if (isHeadersSyncedLocked())
+                checkPeersLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isHeadersSyncedLocked() {
+        return !store.isEmpty() && store.getHeight() >= chain.getBestChainHeight();
+    }
+
+    // Asks the peers we didn't ask yet for checkpoints, to compare them with our filter headers.
+    @GuardedBy("lock")
+    private void checkPeersLocked() throws BlockStoreException {
+        Sha256Hash stopHash = store.getBlockHash(store.getHeight());
+        for (Peer peer : peers) {
+            if (checkedPeers.add(peer))
+                peer.sendMessage(new GetCompactFilterCheckpointsMessage(params, GetCompactFiltersMessage.BASIC_FILTER,
+                        stopHash));
+        }
+    }
+
+    /** Called by the {@link Peer} when it received filter header checkpoints. */
+    void processCheckpoints(Peer peer, CompactFilterCheckpointsMessage m) {
+        lock.lock();
+        try {
+            if (store.isEmpty() || m.getFilterType() != GetCompactFiltersMessage.BASIC_FILTER)
+                return;
+            List<Sha256Hash> checkpoints = m.getFilterHeaders();
+            for (int i = 0; i < checkpoints.size(); i++) {
+                int height = (i + 1) * CompactFilterCheckpointsMessage.INTERVAL;
+                Sha256Hash ours = store.getFilterHeader(height);
+                if (ours != null && !ours.equals(checkpoints.get(i))) {
+                    log.warn("{}: Disagrees with our filter header at height {}, disconnecting", peer, height);
+                    peer.close();
+                    return;
+                }
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestFiltersLocked() throws BlockStoreException {
+        if (store.isEmpty())
+            return;
+        if (nextFilterHeight < 0)
+            nextFilterHeight = store.getScannedHeight() + 1;
+        for (Peer peer : usablePeersLocked()) {
+            if (filtersRequests.containsKey(peer))
+                continue;
+            FiltersRequest request = retryRequests.poll();
+            if (request == null) {
+                int stopHeight = Math.min(nextFilterHeight + FILTERS_PER_REQUEST - 1,
+                        Math.min(store.getHeight(), store.getScannedHeight() + MAX_PENDING_FILTERS));
+                if (stopHeight < nextFilterHeight)
+                    return;
+                request = new FiltersRequest(nextFilterHeight, stopHeight);
+                nextFilterHeight = stopHeight + 1;
+            }
+            request.timeMsec = Utils.currentTimeMillis();
+            filtersRequests.put(peer, request);
+            peer.sendMessage(new GetCompactFiltersMessage(params, GetCompactFiltersMessage.BASIC_FILTER,
+                    request.nextHeight, store.getBlockHash(request.stopHeight)));
+        }
+    }
+
+    /** Called by the {@link Peer} when it received a block filter. */
+    void processFilter(Peer peer, CompactFilterMessage m) {
+        lock.lock();
+        try {
+            FiltersRequest request = filtersRequests.get(peer);
+            int height = request != null ? request.nextHeight : -1;
+            Sha256Hash blockHash = request != null ? store.getBlockHash(height) : null;
+            if (blockHash == null || !blockHash.equals(m.getBlockHash())) {
+                // Can happen after a reorganize, when we asked for other filters.
+                log.debug("{}: Ignoring filter we did not ask for: {}", peer, m.getBlockHash());
+                return;
+            }
+            Sha256Hash filterHeader = GolombCodedSet.headerFor(m.getFilterHash(), store.getFilterHeader(height - 1));
+            GolombCodedSet filter;
+            try {
+                if (!filterHeader.equals(store.getFilterHeader(height)))
+                    throw new ProtocolException("Filter doesn't match its filter header");
+                filter = m.getFilter();
+            } catch (ProtocolException e) {
+                log.warn("{}: Bad filter for block {}, disconnecting: {}", peer, blockHash, e.getMessage());
+                peer.close();  // The rest of the request, from this filter on, is requested again.
+                return;
+            }
+            request.timeMsec = Utils.currentTimeMillis();
+            if (++request.nextHeight > request.stopHeight)
+                filtersRequests.remove(peer);
+            if (height > store.getScannedHeight() && !pendingBlocks.containsKey(height)) {
+                PendingBlock pending = new PendingBlock(blockHash, filter);
+                pendingBlocks.put(height, pending);
+                matchLocked(height, pending);
+            }
+            requestFiltersLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        deliverBlocks();
+    }
+
+    @GuardedBy("lock")
+    private void matchLocked(int height, PendingBlock pending) {
+        int version = scriptsVersion.get();
+        if (version != scriptsVersionUsed) {
+            List<byte[]> elements = new ArrayList<>();
+            for (Wallet wallet : wallets)
+                elements.addAll(wallet.getCompactFilterElements());
+            scripts = elements;
+            scriptsVersionUsed = version;
+        }
+        pending.matchedVersion = version;
+        try {
+            pending.matched = pending.filter.matchesAny(scripts);
+        } catch (IllegalArgumentException e) {
+            // The filter was committed to by the filter headers, so it's the block that's odd. Better have a look.
+            log.warn("Could not read filter of block {}: {}", pending.hash, e.getMessage());
+            pending.matched = true;
+        }
+        if (pending.matched)
+            requestBlockLocked(height, pending);
+    }
+
+    @GuardedBy("lock")
+    private void requestBlockLocked(final int height, PendingBlock pending) {
+        if (peers.isEmpty())
+            return;  // Requested when a peer connects.
+        final Peer peer = nextPeerLocked();
+        pending.requestedFrom = peer;
+        pending.requestTimeMsec = Utils.currentTimeMillis();
+        final Sha256Hash hash = pending.hash;
+        Futures.addCallback(peer.getBlock(hash), new FutureCallback<Block>() {
+            @Override
+            public void onSuccess(Block block) {
+                blockDownloaded(height, peer, block);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                blockFailed(height, peer, hash, t);
+            }
+        });
+    }
+
+    private void blockDownloaded(int height, Peer peer, Block block) {
+        lock.lock();
+        try {
+            PendingBlock pending = pendingBlocks.get(height);
+            if (pending == null || !pending.hash.equals(block.getHash()) || pending.block != null)
+                return;  // Reorganized meanwhile, or a peer we asked again was faster.
+            try {
+                block.checkMerkleRoot();
+            } catch (VerificationException e) {
+                log.warn("{}: Sent block {} with wrong transactions, disconnecting", peer, pending.hash);
+                peer.close();  // The block is requested again from another peer.
+                return;
+            }
+            pending.block = block;
+        } finally {
+            lock.unlock();
+        }
+        deliverBlocks();
+    }
+
+    // Called when the peer said it doesn't have the block, or disconnected before sending it.
+    private void blockFailed(int height, Peer peer, Sha256Hash hash, Throwable t) {
+        lock.lock();
+        try {
+            PendingBlock pending = pendingBlocks.get(height);
+            if (pending == null || !pending.hash.equals(hash) || pending.block != null || pending.requestedFrom != peer)
+                return;  // Reorganized or requested from another peer meanwhile.
+            log.info("{}: Failed to download block {}, requesting it from another peer", peer, hash, t);
+            avoidedPeers.put(peer, Utils.currentTimeMillis());
+            pending.requestedFrom = null;
+            // Don't ask the same peer again right away, checkForStalls() does if there is no other.
+            if (!reliablePeersLocked().isEmpty())
+                requestBlockLocked(height, pending);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives the blocks to the wallets in chain order, as far as we have their filters, and the blocks themselves for
+    // those that matched.
+    private void deliverBlocks() {
+        deliveryLock.lock();
+        try {
+            while (true) {
+                int height;
+                Block block;
+                StoredBlock storedBlock;
+                lock.lock();
+                try {
+                    if (store.isEmpty())
+                        return;
+                    height = store.getScannedHeight() + 1;
+                    PendingBlock pending = pendingBlocks.get(height);
+                    if (pending == null)
+                        break;
+                    // The wallets may have added keys since this filter was matched.
+                    if (!pending.matched && pending.matchedVersion != scriptsVersion.get())
+                        matchLocked(height, pending);
+                    if (pending.matched && pending.block == null)
+                        break;
+                    if (!pending.matched) {
+                        pendingBlocks.remove(height);
+                        store.setScannedHeight(height);
+                        filtersNotMatched.incrementAndGet();
+                        continue;
+                    }
+                    block = pending.block;
+                    storedBlock = chain.getBlockStore().get(pending.hash);
+                } finally {
+                    lock.unlock();
+                }
+                if (storedBlock != null) {
+                    try {
+                        chain.informListenersOfMatchedBlock(storedBlock, block);
+                    } catch (VerificationException e) {
+                        log.warn("Wallet rejected transactions of block {}", block.getHashAsString(), e);
+                    }
+                }
+                lock.lock();
+                try {
+                    // Unless a reorganize removed the block meanwhile.
+                    PendingBlock pending = pendingBlocks.get(height);
+                    if (pending != null && pending.block == block) {
+                        pendingBlocks.remove(height);
+                        store.setScannedHeight(height);
+                        filtersMatched.incrementAndGet();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            lock.lock();
+            try {
+                requestFiltersLocked();  // Room for more.
+            } finally {
+                lock.unlock();
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    private void reorganize(StoredBlock splitPoint) {
+        lock.lock();
+        try {
+            if (store.isEmpty())
+                return;
+            int height = splitPoint.getHeight();
+            if (height < store.getBaseHeight()) {
+                log.warn("Reorganize to height {}, below the start of the block filter scan", height);
+                height = store.getBaseHeight();
+            }
+            store.truncate(height);
+            pendingBlocks.tailMap(height, false).clear();
+            headersRequest = null;
+            filtersRequests.clear();
+            retryRequests.clear();
+            nextFilterHeight = store.getScannedHeight() + 1;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the peers that didn't fail a request recently.
+    @GuardedBy("lock")
+    private List<Peer> reliablePeersLocked() {
+        if (avoidedPeers.isEmpty())
+            return peers;
+        List<Peer> reliable = new ArrayList<>(peers.size());
+        for (Peer peer : peers)
+            if (!avoidedPeers.containsKey(peer))
+                reliable.add(peer);
+        return reliable;
+    }
+
+    // Returns the peers that didn't fail a request recently, or all peers if they all did.
+    @GuardedBy("lock")
+    private List<Peer> usablePeersLocked() {
+        List<Peer> reliable = reliablePeersLocked();
+        return reliable.isEmpty() ? peers : reliable;
+    }
+
+    @GuardedBy("lock")
+    private Peer nextPeerLocked() {
+        List<Peer> candidates = usablePeersLocked();
+        nextPeer = (nextPeer + 1) % candidates.size();
+        return candidates.get(nextPeer);
+    }
+
+    private StoredBlock getPrev(StoredBlock block) throws BlockStoreException {
+        StoredBlock prev = block.getPrev(chain.getBlockStore());
+        if (prev == null)
+            throw new BlockStoreException("Block before height " + block.getHeight() + " is not in the block store");
+        return prev;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A "cfheaders" message, the answer to a {@link GetCompactFilterHeadersMessage}. It holds the filter header of the
+ * block before the requested range, and the filter hashes of the blocks in the range, from which their filter headers
+ * are calculated, see {@link #getFilterHeaders()}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactFilterHeadersMessage extends Message {
+    private int filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private List<Sha256Hash> filterHashes;
+
+    public CompactFilterHeadersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public CompactFilterHeadersMessage(NetworkParameters params, int filterType, Sha256Hash stopHash,
+                                       Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = new ArrayList<>(filterHashes);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long count = readVarInt();
+        if (count < 0 || count > GetCompactFilterHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + count);
+        filterHashes = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++)
+            filterHashes.add(readHash());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter header of the block before the first one in the range. */
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    /** Returns the filter hashes of the blocks in the range, in chain order. */
+    public List<Sha256Hash> getFilterHashes() {
+        return Collections.unmodifiableList(filterHashes);
+    }
+
+    /** Calculates the filter headers of the blocks in the range, in chain order. */
+    public List<Sha256Hash> getFilterHeaders() {
+        List<Sha256Hash> headers = new ArrayList<>(filterHashes.size());
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes) {
+            header = GolombCodedSet.headerFor(filterHash, header);
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders: " + filterHashes.size() + " headers up to " + stopHash;
+    }
+}
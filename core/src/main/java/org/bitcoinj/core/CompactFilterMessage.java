@@ -0,0 +1,95 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>A "cfilter" message, which holds the filter of a block. Basic block filters are read with
+ * {@link #getFilter()}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactFilterMessage extends Message {
+    private int filterType;
+    private Sha256Hash blockHash;
+    private byte[] filterBytes;
+
+    public CompactFilterMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public CompactFilterMessage(NetworkParameters params, Sha256Hash blockHash, GolombCodedSet filter) {
+        super(params);
+        this.filterType = GetCompactFiltersMessage.BASIC_FILTER;
+        this.blockHash = blockHash;
+        this.filterBytes = filter.getEncoded();
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        blockHash = readHash();
+        filterBytes = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filterBytes.length).encode());
+        stream.write(filterBytes);
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the filter as sent. */
+    public byte[] getFilterBytes() {
+        return Arrays.copyOf(filterBytes, filterBytes.length);
+    }
+
+    /** Returns the double SHA-256 of the filter, which is committed to by the filter header. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterBytes));
+    }
+
+    /**
+     * Reads the filter as a basic block filter.
+     *
+     * @throws ProtocolException if this isn't a basic block filter, or it can't be read
+     */
+    public GolombCodedSet getFilter() throws ProtocolException {
+        if (filterType != GetCompactFiltersMessage.BASIC_FILTER)
+            throw new ProtocolException("Not a basic block filter: type " + filterType);
+        return new GolombCodedSet(blockHash, filterBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter: " + filterBytes.length + " bytes for " + blockHash;
+    }
+}
@@ -709,8 +709,15 @@ public class ECKey implements EncryptableItem {
             }
         }
 
+        return verify(data, signature, new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE));
+    }
+
+    /**
+     * Verifies the given ECDSA signature against the message bytes using an already decoded public key, with
+     * Bouncy Castle. This lets {@link SignatureCache} reuse decoded public keys.
+     */
+    static boolean verify(byte[] data, ECDSASignature signature, ECPublicKeyParameters params) {
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
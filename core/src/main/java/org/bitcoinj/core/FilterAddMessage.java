@@ -0,0 +1,72 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A "filteradd" message, which adds an element to the {@link BloomFilter} that was last loaded into a peer. Adding
+ * a few elements this way is much cheaper than loading a new filter, as long as the filter doesn't become too full.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0037.mediawiki">BIP 37</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes, int offset) throws ProtocolException {
+        super(params, payloadBytes, offset);
+    }
+
+    /** Creates a message that adds the given element, which must not be larger than a script element. */
+    public FilterAddMessage(NetworkParameters params, byte[] data) {
+        super(params);
+        checkArgument(data.length <= Script.MAX_SCRIPT_ELEMENT_SIZE, "Element too large: %s bytes", data.length);
+        this.data = data;
+        this.length = VarInt.sizeOf(data.length) + data.length;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            throw new ProtocolException("Element too large: " + data.length + " bytes");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the element to add to the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd: " + Utils.HEX.encode(data);
+    }
+}
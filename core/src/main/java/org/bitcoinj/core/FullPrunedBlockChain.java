@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptExecutionCache;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
@@ -33,7 +34,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -152,28 +152,37 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
             Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
 
+    /** Maximum number of inputs verified by a single job submitted to the script verification executor. */
+    private static final int VERIFY_BATCH_INPUTS = 16;
+
     /**
-     * A job submitted to the executor which verifies signatures.
+     * A job submitted to the executor which verifies signatures of a range of inputs of a transaction.
      */
     private static class Verifier implements Callable<VerificationException> {
         final Transaction tx;
         final List<Script> prevOutScripts;
         final Set<VerifyFlag> verifyFlags;
+        final int fromIndex, toIndex;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
+        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags,
+                        int fromIndex, int toIndex) {
             this.tx = tx;
             this.prevOutScripts = prevOutScripts;
             this.verifyFlags = verifyFlags;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
         }
 
         @Nullable
         @Override
         public VerificationException call() throws Exception {
             try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
-                }
+                // Inputs that were verified before, e.g. before a re-org or when the transaction was relayed to us,
+                // are not executed again.
+                ScriptExecutionCache cache = ScriptExecutionCache.get();
+                SigHashContext sigHashContext = new SigHashContext(tx);
+                for (int index = fromIndex; index < toIndex; index++)
+                    cache.correctlySpends(tx, index, prevOutScripts.get(index), verifyFlags, sigHashContext);
             } catch (VerificationException e) {
                 return e;
             }
@@ -181,6 +190,23 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    /**
+     * Submits the script verification of all inputs of the given transaction to the executor. Transactions with many
+     * inputs are split into several jobs, so that a single large transaction doesn't keep one thread busy while the
+     * others are idle.
+     */
+    private void submitVerifiers(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags,
+                                 List<Future<VerificationException>> results) {
+        int numInputs = tx.getInputs().size();
+        for (int fromIndex = 0; fromIndex < numInputs; fromIndex += VERIFY_BATCH_INPUTS) {
+            int toIndex = Math.min(fromIndex + VERIFY_BATCH_INPUTS, numInputs);
+            FutureTask<VerificationException> future = new FutureTask<>(
+                    new Verifier(tx, prevOutScripts, verifyFlags, fromIndex, toIndex));
+            scriptVerificationExecutor.execute(future);
+            results.add(future);
+        }
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -250,7 +276,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<>();
+                final List<Script> prevOutScripts = new ArrayList<>(tx.getInputs().size());
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
@@ -310,10 +336,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    // Scripts are verified on another thread, so this must come after we are done with tx
+                    submitVerifiers(tx, prevOutScripts, verifyFlags, listScriptVerificationResults);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
@@ -387,7 +411,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<>();
+                    final List<Script> prevOutScripts = new ArrayList<>(tx.getInputs().size());
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -441,10 +465,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
 
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        // Scripts are verified on another thread, so this must come after we are done with tx
+                        submitVerifiers(tx, prevOutScripts, verifyFlags, listScriptVerificationResults);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
@@ -0,0 +1,93 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A "getblocktxn" message, which asks for the transactions of a block that were missing when rebuilding it from a
+ * {@link CompactBlockMessage}. They are sent back in a {@link BlockTransactionsMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetBlockTransactionsMessage extends Message {
+    private Sha256Hash blockHash;
+    private List<Integer> indexes;
+
+    public GetBlockTransactionsMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /** Asks for the transactions at the given positions in the block, which must be in ascending order. */
+    public GetBlockTransactionsMessage(NetworkParameters params, Sha256Hash blockHash, List<Integer> indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = new ArrayList<>(indexes);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long count = readVarInt();
+        if (count < 0 || count > CompactBlockMessage.MAX_TRANSACTIONS)
+            throw new ProtocolException("Too many indexes: " + count);
+        indexes = new ArrayList<>((int) count);
+        long index = -1;
+        for (int i = 0; i < count; i++) {
+            // Indexes are sent as the difference to the previous index, minus one.
+            long diff = readVarInt();
+            if (diff < 0 || diff > CompactBlockMessage.MAX_TRANSACTIONS)
+                throw new ProtocolException("Index out of range");
+            index += diff + 1;
+            if (index >= CompactBlockMessage.MAX_TRANSACTIONS)
+                throw new ProtocolException("Index out of range: " + index);
+            indexes.add((int) index);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(indexes.size()).encode());
+        int previous = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - previous - 1).encode());
+            previous = index;
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the positions of the requested transactions in the block, in ascending order. */
+    public List<Integer> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    @Override
+    public String toString() {
+        return "getblocktxn: " + indexes.size() + " transactions of " + blockHash;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>A "getcfcheckpt" message, which asks for the filter headers of every
+ * {@link CompactFilterCheckpointsMessage#INTERVAL}th block, up to the block with the stop hash. It's used to check
+ * that peers agree on the filter headers, without downloading all of them.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCompactFilterCheckpointsMessage extends Message {
+    private int filterType;
+    private Sha256Hash stopHash;
+
+    public GetCompactFilterCheckpointsMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public GetCompactFilterCheckpointsMessage(NetworkParameters params, int filterType, Sha256Hash stopHash) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.length = 33;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public String toString() {
+        return "getcfcheckpt: up to " + stopHash;
+    }
+}
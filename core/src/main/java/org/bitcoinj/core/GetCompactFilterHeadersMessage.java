@@ -0,0 +1,43 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+/**
+ * <p>A "getcfheaders" message, which asks for the filter headers of a range of blocks, given like in a
+ * {@link GetCompactFiltersMessage}. The peer answers with a {@link CompactFilterHeadersMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCompactFilterHeadersMessage extends GetCompactFiltersMessage {
+    /** The maximum number of filter headers that can be requested at once. */
+    public static final int MAX_HEADERS = 2000;
+
+    public GetCompactFilterHeadersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes);
+    }
+
+    public GetCompactFilterHeadersMessage(NetworkParameters params, int filterType, long startHeight,
+                                          Sha256Hash stopHash) {
+        super(params, filterType, startHeight, stopHash);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfheaders: from height " + startHeight + " to " + stopHash;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A "getcfilters" message, which asks for the block filters of a range of blocks. The range ends at the block with
+ * the stop hash, and starts at the given height of the chain that block is part of. The peer answers with a
+ * {@link CompactFilterMessage} for each block, in order.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCompactFiltersMessage extends Message {
+    /** The filter type of basic block filters, see {@link GolombCodedSet}. */
+    public static final int BASIC_FILTER = 0;
+    /** The maximum number of filters that can be requested at once. */
+    public static final int MAX_FILTERS = 1000;
+
+    protected int filterType;
+    protected long startHeight;
+    protected Sha256Hash stopHash;
+
+    public GetCompactFiltersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public GetCompactFiltersMessage(NetworkParameters params, int filterType, long startHeight, Sha256Hash stopHash) {
+        super(params);
+        checkArgument(startHeight >= 0);
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+        this.length = 37;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0] & 0xff;
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public String toString() {
+        return "getcfilters: from height " + startHeight + " to " + stopHash;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>A Golomb-coded set, the compact probabilistic set used for the block filters of
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP 158</a>. Each item is hashed with
+ * SipHash-2-4, keyed by the block hash, to a number below {@code N * M}. The sorted numbers are stored as Golomb-Rice
+ * coded differences, which take about {@code P + 2} bits per item. Looking up an item gives a false positive with
+ * probability {@code 1 / M}.</p>
+ *
+ * <p>The set can only be read sequentially, so it's cheapest to look up many items at once, see
+ * {@link #matchesAny(Collection)}. Instances of this class are immutable.</p>
+ */
+public class GolombCodedSet {
+    /** The number of bits of the remainder, for basic block filters. */
+    public static final int P = 19;
+    /** The inverse of the false positive rate, for basic block filters. */
+    public static final long M = 784931;
+
+    private final long k0, k1;
+    private final byte[] encoded;
+    private final int n;
+    private final int dataOffset;
+
+    /**
+     * Reads a basic block filter, as sent in a {@link CompactFilterMessage}.
+     *
+     * @throws ProtocolException if the number of items can't be read
+     */
+    public GolombCodedSet(Sha256Hash blockHash, byte[] encoded) throws ProtocolException {
+        byte[] key = blockHash.getReversedBytes();
+        this.k0 = Utils.readInt64(key, 0);
+        this.k1 = Utils.readInt64(key, 8);
+        this.encoded = encoded;
+        try {
+            VarInt count = new VarInt(encoded, 0);
+            if (count.value < 0 || count.value > Integer.MAX_VALUE)
+                throw new ProtocolException("Too many items in filter: " + count.value);
+            this.n = (int) count.value;
+            this.dataOffset = count.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException("Filter is truncated");
+        }
+    }
+
+    /** Builds a basic block filter from the given items, which are typically output scripts. */
+    public static GolombCodedSet build(Sha256Hash blockHash, Collection<byte[]> items) {
+        byte[] key = blockHash.getReversedBytes();
+        long k0 = Utils.readInt64(key, 0), k1 = Utils.readInt64(key, 8);
+        long[] values = hashedValues(k0, k1, items, items.size() * M);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] count = new VarInt(values.length).encode();
+        bos.write(count, 0, count.length);
+        BitWriter writer = new BitWriter(bos);
+        long previous = 0;
+        for (long value : values) {
+            long delta = value - previous;
+            previous = value;
+            for (long q = delta >>> P; q > 0; q--)
+                writer.write(1, 1);
+            writer.write(0, 1);
+            writer.write(delta, P);
+        }
+        writer.flush();
+        try {
+            return new GolombCodedSet(blockHash, bos.toByteArray());
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /** Returns the number of items in the set. */
+    public int size() {
+        return n;
+    }
+
+    /** Returns the encoded set, as sent over the network. */
+    public byte[] getEncoded() {
+        return Arrays.copyOf(encoded, encoded.length);
+    }
+
+    /** Returns the double SHA-256 of the encoded set, which is committed to by the filter header. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(encoded));
+    }
+
+    /** Returns the filter header of this filter, given the filter header of the previous block. */
+    public Sha256Hash getHeader(Sha256Hash previousHeader) {
+        return headerFor(getFilterHash(), previousHeader);
+    }
+
+    /** Calculates a filter header from the hash of a filter and the filter header of the previous block. */
+    public static Sha256Hash headerFor(Sha256Hash filterHash, Sha256Hash previousHeader) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHash.getReversedBytes(), 0, 32,
+                previousHeader.getReversedBytes(), 0, 32));
+    }
+
+    /** Returns true if the given item may be in the set. */
+    public boolean matches(byte[] item) {
+        return matchesAny(Arrays.asList(item));
+    }
+
+    /**
+     * Returns true if any of the given items may be in the set. All items are hashed and sorted first, so the set is
+     * read only once, however many items are given.
+     *
+     * @throws IllegalArgumentException if the encoded set is malformed
+     */
+    public boolean matchesAny(Collection<byte[]> items) {
+        if (n == 0 || items.isEmpty())
+            return false;
+        long[] values = hashedValues(k0, k1, items, n * M);
+        BitReader reader = new BitReader(encoded, dataOffset);
+        long value = 0;
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+            long q = 0;
+            while (reader.read(1) == 1)
+                q++;
+            value += (q << P) | reader.read(P);
+            while (values[next] < value) {
+                if (++next == values.length)
+                    return false;
+            }
+            if (values[next] == value)
+                return true;
+        }
+        return false;
+    }
+
+    // Hashes the items to the range [0, range), and returns them sorted.
+    private static long[] hashedValues(long k0, long k1, Collection<byte[]> items, long range) {
+        long[] values = new long[items.size()];
+        int i = 0;
+        // Taking the upper half of hash * range maps the hash uniformly to [0, range) without a division.
+        for (byte[] item : items)
+            values[i++] = Utils.multiplyHighUnsigned(SipHash.hash(k0, k1, item), range);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream stream;
+        private int buffer, bits;
+
+        BitWriter(ByteArrayOutputStream stream) {
+            this.stream = stream;
+        }
+
+        // Writes the lowest count bits of value, most significant bit first.
+        void write(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                buffer = (buffer << 1) | (int) ((value >>> i) & 1);
+                if (++bits == 8) {
+                    stream.write(buffer);
+                    buffer = 0;
+                    bits = 0;
+                }
+            }
+        }
+
+        void flush() {
+            if (bits > 0)
+                stream.write(buffer << (8 - bits));
+            buffer = 0;
+            bits = 0;
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private int bytePosition, bitPosition;
+
+        BitReader(byte[] data, int offset) {
+            this.data = data;
+            this.bytePosition = offset;
+        }
+
+        long read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                if (bytePosition >= data.length)
+                    throw new IllegalArgumentException("Filter is truncated");
+                value = (value << 1) | ((data[bytePosition] >>> (7 - bitPosition)) & 1);
+                if (++bitPosition == 8) {
+                    bitPosition = 0;
+                    bytePosition++;
+                }
+            }
+            return value;
+        }
+    }
+}
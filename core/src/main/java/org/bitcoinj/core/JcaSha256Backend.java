@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * A {@link Sha256Backend} using the SHA-256 {@link MessageDigest} of the Java platform, which many JVMs implement with
+ * the SHA instructions of the CPU. Each thread reuses its own digest.
+ */
+public class JcaSha256Backend extends Sha256Backend {
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Sha256Hash.newDigest();
+        }
+    };
+
+    @Override
+    public void hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = digests.get();
+        try {
+            digest.update(input, offset, length);
+            digest(digest, output, outputOffset);
+        } catch (RuntimeException e) {
+            digest.reset();
+            throw e;
+        }
+    }
+
+    @Override
+    public void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = digests.get();
+        try {
+            digest.update(input, offset, length);
+            digest(digest, output, outputOffset);
+            digest.update(output, outputOffset, Sha256Hash.LENGTH);
+            digest(digest, output, outputOffset);
+        } catch (RuntimeException e) {
+            digest.reset();
+            throw e;
+        }
+    }
+
+    @Override
+    public void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                          byte[] output, int outputOffset) {
+        MessageDigest digest = digests.get();
+        try {
+            digest.update(input1, offset1, length1);
+            digest.update(input2, offset2, length2);
+            digest(digest, output, outputOffset);
+            digest.update(output, outputOffset, Sha256Hash.LENGTH);
+            digest(digest, output, outputOffset);
+        } catch (RuntimeException e) {
+            // The digest is reused by this thread, so it must not keep the input it got before the failure.
+            digest.reset();
+            throw e;
+        }
+    }
+
+    private static void digest(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, Sha256Hash.LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Not enough room in the output.
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates Merkle roots. The Merkle root of a block is based on a tree of hashes calculated from its
+ * transactions:</p>
+ *
+ * <pre>
+ *     root
+ *      / \
+ *   A      B
+ *  / \    / \
+ * t1 t2 t3 t4
+ * </pre>
+ *
+ * <p>The hashing algorithm is double SHA-256. The leaves are the hashes of the transactions, the interior nodes are
+ * hashes of the concatenation of the two child hashes. If a level has an odd number of nodes, the last one is paired
+ * with itself. A tree with 5 transactions looks like this:</p>
+ *
+ * <pre>
+ *         root
+ *        /     \
+ *       1        5
+ *     /   \     / \
+ *    2     3    4  4
+ *  / \   / \   / \
+ * t1 t2 t3 t4 t5 t5
+ * </pre>
+ *
+ * <p>Levels are hashed into one preallocated buffer, with no allocations per node. Levels with at least
+ * {@link #PARALLEL_THRESHOLD} nodes, and the transaction hashes of blocks with that many transactions, are hashed on
+ * all cores.</p>
+ */
+public final class MerkleTree {
+    /** Levels with at least this many nodes are hashed on several threads. */
+    public static final int PARALLEL_THRESHOLD = 1024;
+    // The most nodes hashed by one part of a level that is split between threads.
+    private static final int NODES_PER_PART = 256;
+    private static final int HASH_LENGTH = 32;
+
+    private MerkleTree() {
+    }
+
+    /** Returns the Merkle root of the given transactions, using their cached hashes where available. */
+    public static Sha256Hash rootOfTransactions(final List<Transaction> transactions) {
+        int width = transactions.size();
+        checkArgument(width > 0, "No transactions");
+        final byte[] level = new byte[width * HASH_LENGTH];
+        if (width >= PARALLEL_THRESHOLD) {
+            // Transactions that weren't hashed yet are serialized and hashed here, so spread that too.
+            Threading.forEachRange(0, width, NODES_PER_PART, new Threading.RangeTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++)
+                        putReversed(transactions.get(i).getHash(), level, i * HASH_LENGTH);
+                }
+            });
+        } else {
+            for (int i = 0; i < width; i++)
+                putReversed(transactions.get(i).getHash(), level, i * HASH_LENGTH);
+        }
+        return reduce(level, width, 0);
+    }
+
+    /** Returns the Merkle root of a tree with the given leaves. */
+    public static Sha256Hash rootOfHashes(List<Sha256Hash> leaves) {
+        checkArgument(!leaves.isEmpty(), "No leaves");
+        return reduce(toLevel(leaves, 0, leaves.size()), leaves.size(), 0);
+    }
+
+    /**
+     * Returns the root of the subtree with the given height over the leaves from {@code from} (inclusive) to
+     * {@code to} (exclusive). If the leaves don't fill the subtree, the top node is paired with itself up to that
+     * height, as happens at the right edge of a tree.
+     */
+    public static Sha256Hash rootOfHashes(List<Sha256Hash> leaves, int from, int to, int height) {
+        int width = to - from;
+        checkArgument(width > 0 && height < 31 && width <= 1 << height, "%s leaves don't fit height %s", width, height);
+        return reduce(toLevel(leaves, from, to), width, height);
+    }
+
+    private static byte[] toLevel(List<Sha256Hash> leaves, int from, int to) {
+        byte[] level = new byte[(to - from) * HASH_LENGTH];
+        for (int i = from; i < to; i++)
+            putReversed(leaves.get(i), level, (i - from) * HASH_LENGTH);
+        return level;
+    }
+
+    /** Returns the parent of the two given nodes. */
+    public static Sha256Hash combine(Sha256Hash left, Sha256Hash right) {
+        byte[] pair = new byte[2 * HASH_LENGTH];
+        putReversed(left, pair, 0);
+        putReversed(right, pair, HASH_LENGTH);
+        hashPair(pair, 0, HASH_LENGTH, pair, 0);
+        return Sha256Hash.wrapReversed(Arrays.copyOf(pair, HASH_LENGTH));
+    }
+
+    // Hashes the nodes of the level pairwise until one is left, and then with itself up to the given height.
+    private static Sha256Hash reduce(byte[] level, int width, int height) {
+        byte[] next = null;
+        int levels = 0;
+        for (; width > 1; width = (width + 1) / 2, levels++) {
+            int nextWidth = (width + 1) / 2;
+            if (width >= PARALLEL_THRESHOLD) {
+                // Tasks run in any order, so they can't overwrite the level they read from.
+                if (next == null)
+                    next = new byte[nextWidth * HASH_LENGTH];
+                final byte[] source = level, target = next;
+                final int sourceWidth = width;
+                Threading.forEachRange(0, nextWidth, NODES_PER_PART, new Threading.RangeTask() {
+                    @Override
+                    public void run(int from, int to) {
+                        hashLevel(source, sourceWidth, target, from, to);
+                    }
+                });
+                next = level;
+                level = target;
+            } else {
+                // Node i is written after nodes 2i and 2i + 1 were read, and no later node reads it.
+                hashLevel(level, width, level, 0, nextWidth);
+            }
+        }
+        for (; levels < height; levels++)
+            hashPair(level, 0, 0, level, 0);
+        byte[] root = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++)
+            root[i] = level[HASH_LENGTH - 1 - i];
+        return Sha256Hash.wrap(root);
+    }
+
+    // Hashes nodes from to to of the next level, the last node of an odd level is paired with itself.
+    private static void hashLevel(byte[] level, int width, byte[] next, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int left = 2 * i;
+            int right = Math.min(left + 1, width - 1);
+            hashPair(level, left * HASH_LENGTH, right * HASH_LENGTH, next, i * HASH_LENGTH);
+        }
+    }
+
+    // Writes the double SHA-256 of the two nodes to target, which may overlap them.
+    private static void hashPair(byte[] source, int left, int right, byte[] target, int offset) {
+        Sha256Hash.hashTwice(source, left, HASH_LENGTH, source, right, HASH_LENGTH, target, offset);
+    }
+
+    // Nodes are hashed in internal byte order, which is the reverse of how hashes are displayed.
+    private static void putReversed(Sha256Hash hash, byte[] target, int offset) {
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < HASH_LENGTH; i++)
+            target[offset + i] = bytes[HASH_LENGTH - 1 - i];
+    }
+}
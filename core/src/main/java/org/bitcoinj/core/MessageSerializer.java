@@ -46,6 +46,14 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize payload only, from an array that holds exactly the payload. Implementations may parse the array in
+     * place rather than copying it, so it must not be changed afterwards.
+     */
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payloadBytes));
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
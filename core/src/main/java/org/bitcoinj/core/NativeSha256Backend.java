@@ -0,0 +1,52 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoin.NativeSha256;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A {@link Sha256Backend} using the native library of {@link NativeSha256}, which must have been loaded. It isn't
+ * used unless set with {@link Sha256Hash#setBackend(Sha256Backend)}, for example:
+ *
+ * <pre>
+ * if (NativeSha256.isEnabled())
+ *     Sha256Hash.setBackend(new NativeSha256Backend());
+ * </pre>
+ */
+public class NativeSha256Backend extends Sha256Backend {
+    public NativeSha256Backend() {
+        checkState(NativeSha256.isEnabled(), "Native SHA-256 library is not loaded");
+    }
+
+    @Override
+    public void hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        NativeSha256.hash(input, offset, length, output, outputOffset);
+    }
+
+    @Override
+    public void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        NativeSha256.hashTwice(input, offset, length, output, outputOffset);
+    }
+
+    @Override
+    public void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                          byte[] output, int outputOffset) {
+        NativeSha256.hashTwice(input1, offset1, length1, input2, offset2, length2, output, outputOffset);
+    }
+}
@@ -518,6 +518,7 @@ public abstract class NetworkParameters {
         PONG(60001),
         BLOOM_FILTER(70000),
         WITNESS_VERSION(70012),
+        COMPACT_BLOCKS(70014),
         CURRENT(80000);
 
         private final int bitcoinProtocol;
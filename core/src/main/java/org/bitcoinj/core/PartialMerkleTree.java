@@ -159,17 +159,10 @@ public class PartialMerkleTree extends Message {
             // Hash at height 0 is just the regular tx hash itself.
             return hashes.get(pos);
         }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
-        }
-        return combineLeftRight(left.getBytes(), right.getBytes());
+        // The subtree is hashed level by level from its leaves, copying the last hash of a level if it has no pair.
+        int from = pos << height;
+        int to = Math.min((pos + 1) << height, hashes.size());
+        return MerkleTree.rootOfHashes(hashes, from, to, height);
     }
 
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
@@ -201,25 +194,19 @@ public class PartialMerkleTree extends Message {
             return hash;
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes).getBytes(), right;
+            Sha256Hash left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes), right;
             if (pos * 2 + 1 < getTreeWidth(transactionCount, height-1)) {
-                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes).getBytes();
-                if (Arrays.equals(right, left))
+                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes);
+                if (right.equals(left))
                     throw new VerificationException("Invalid merkle tree with duplicated left/right branches");
             } else {
                 right = left;
             }
             // and combine them before returning
-            return combineLeftRight(left, right);
+            return MerkleTree.combine(left, right);
         }
     }
 
-    private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
-            reverseBytes(left), 0, 32,
-            reverseBytes(right), 0, 32));
-    }
-
     /**
      * Extracts tx hashes that are in this merkle tree
      * and returns the merkle root of this tree.
@@ -0,0 +1,130 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A block that is being rebuilt from a {@link CompactBlockMessage}. The transactions we already know are matched to
+ * the short IDs of the compact block, the others have to be requested with a {@link GetBlockTransactionsMessage} and
+ * filled in with {@link #fill(List)}.
+ */
+class PartiallyDownloadedBlock {
+    private final CompactBlockMessage compactBlock;
+    private final Transaction[] transactions;
+    private final List<Integer> missing;
+
+    /**
+     * Matches the given transactions against the short IDs of the compact block.
+     *
+     * @throws ProtocolException if the compact block has duplicate short IDs, so it can't be rebuilt
+     */
+    PartiallyDownloadedBlock(CompactBlockMessage compactBlock, Iterable<Transaction> knownTransactions)
+            throws ProtocolException {
+        this.compactBlock = compactBlock;
+        int count = compactBlock.getTransactionCount();
+        transactions = new Transaction[count];
+        for (CompactBlockMessage.PrefilledTransaction prefilled : compactBlock.getPrefilledTransactions())
+            transactions[prefilled.index] = prefilled.tx;
+        // The short IDs fill the positions that aren't prefilled, in order.
+        long[] shortIds = compactBlock.getShortIds();
+        Map<Long, Integer> positions = new HashMap<>(shortIds.length * 2);
+        int position = 0;
+        for (long shortId : shortIds) {
+            while (transactions[position] != null)
+                position++;
+            if (positions.put(shortId, position) != null)
+                throw new ProtocolException("Duplicate short ID in compact block " + compactBlock.getHash());
+            position++;
+        }
+        if (!positions.isEmpty()) {
+            // Two known transactions with the same short ID are left for the peer to tell apart.
+            boolean[] ambiguous = new boolean[count];
+            for (Transaction tx : knownTransactions) {
+                Integer index = positions.get(compactBlock.getShortId(tx.getHash()));
+                if (index == null || ambiguous[index])
+                    continue;
+                if (transactions[index] == null) {
+                    transactions[index] = tx;
+                } else if (!transactions[index].getHash().equals(tx.getHash())) {
+                    transactions[index] = null;
+                    ambiguous[index] = true;
+                }
+            }
+        }
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            if (transactions[i] == null)
+                missing.add(i);
+        this.missing = Collections.unmodifiableList(missing);
+    }
+
+    /** Returns the positions of the transactions we don't have, in ascending order. */
+    List<Integer> getMissingIndexes() {
+        return missing;
+    }
+
+    boolean isComplete() {
+        return missing.isEmpty();
+    }
+
+    /**
+     * Fills in the missing transactions, as sent by the peer in a {@link BlockTransactionsMessage}, and returns the
+     * block.
+     *
+     * @throws ProtocolException if the transactions don't fit, see {@link #getBlock()}
+     */
+    Block fill(List<Transaction> missingTransactions) throws ProtocolException {
+        if (missingTransactions.size() != missing.size())
+            throw new ProtocolException("Expected " + missing.size() + " transactions for compact block "
+                    + compactBlock.getHash() + " but got " + missingTransactions.size());
+        for (int i = 0; i < missing.size(); i++)
+            transactions[missing.get(i)] = missingTransactions.get(i);
+        return build();
+    }
+
+    /**
+     * Returns the rebuilt block, which must be complete.
+     *
+     * @throws ProtocolException if the Merkle root doesn't match. This can happen if a known transaction has the same
+     * short ID as one in the block, in which case the full block has to be downloaded.
+     */
+    Block getBlock() throws ProtocolException {
+        checkState(isComplete(), "Block is not complete");
+        return build();
+    }
+
+    private Block build() throws ProtocolException {
+        Block header = compactBlock.getHeader();
+        Block block = new Block(header.getParams(), header.getVersion(), header.getPrevBlockHash(),
+                header.getMerkleRoot(), header.getTimeSeconds(), header.getDifficultyTarget(), header.getNonce(),
+                Arrays.asList(transactions));
+        try {
+            block.checkMerkleRoot();
+        } catch (VerificationException e) {
+            throw new ProtocolException(e);
+        }
+        return block;
+    }
+}
@@ -128,6 +128,26 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<>();
+    // If set, chain download is done by the pipeline, which downloads blocks from all peers of a PeerGroup at once.
+    @Nullable private volatile BlockDownloadPipeline vBlockDownloadPipeline;
+    // If set, new blocks are requested and received as compact blocks, see BIP 152.
+    @Nullable private volatile CompactBlockRelay vCompactBlockRelay;
+    // If set, only headers are downloaded and the client finds the blocks the wallets need with block filters.
+    @Nullable private volatile CompactFilterClient vCompactFilterClient;
+    // The compact block version the peer said it can send us, or 0 if it didn't.
+    private volatile long vPeerCompactBlockVersion;
+    // Compact blocks we are waiting for the missing transactions of.
+    @GuardedBy("lock") private final Map<Sha256Hash, PendingCompactBlock> pendingCompactBlocks = new HashMap<>();
+    // How long the peer has to send the missing transactions of a compact block before we download the full block.
+    private static final long COMPACT_BLOCK_TRANSACTIONS_TIMEOUT_MSEC = 10 * 1000;
+    private static class PendingCompactBlock {
+        public PendingCompactBlock(PartiallyDownloadedBlock partial, long deadlineMsec) {
+            this.partial = partial;
+            this.deadlineMsec = deadlineMsec;
+        }
+        final PartiallyDownloadedBlock partial;
+        final long deadlineMsec;
+    }
     // Keep references to TransactionConfidence objects for transactions that were announced by a remote peer, but
     // which we haven't downloaded yet. These objects are de-duplicated by the TxConfidenceTable class.
     // Once the tx is downloaded (by some peer), the Transaction object that is created will have a reference to
@@ -505,7 +525,9 @@ public class Peer extends PeerSocketHandler {
             // properly explore the network.
             processAddressMessage((AddressMessage) m);
         } else if (m instanceof HeadersMessage) {
-            processHeaders((HeadersMessage) m);
+            BlockDownloadPipeline pipeline = vBlockDownloadPipeline;
+            if (pipeline == null || !pipeline.onHeaders(this, (HeadersMessage) m))
+                processHeaders((HeadersMessage) m);
         } else if (m instanceof AlertMessage) {
             processAlert((AlertMessage) m);
         } else if (m instanceof VersionMessage) {
@@ -514,6 +536,18 @@ public class Peer extends PeerSocketHandler {
             processVersionAck((VersionAck) m);
         } else if (m instanceof UTXOsMessage) {
             processUTXOMessage((UTXOsMessage) m);
+        } else if (m instanceof SendCompactBlocksMessage) {
+            processSendCompactBlocks((SendCompactBlocksMessage) m);
+        } else if (m instanceof CompactBlockMessage) {
+            processCompactBlock((CompactBlockMessage) m);
+        } else if (m instanceof BlockTransactionsMessage) {
+            processBlockTransactions((BlockTransactionsMessage) m);
+        } else if (m instanceof CompactFilterMessage) {
+            processCompactFilter((CompactFilterMessage) m);
+        } else if (m instanceof CompactFilterHeadersMessage) {
+            processCompactFilterHeaders((CompactFilterHeadersMessage) m);
+        } else if (m instanceof CompactFilterCheckpointsMessage) {
+            processCompactFilterCheckpoints((CompactFilterCheckpointsMessage) m);
         } else if (m instanceof RejectMessage) {
             log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
         } else {
@@ -639,6 +673,26 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        BlockDownloadPipeline pipeline = vBlockDownloadPipeline;
+        if (pipeline != null)
+            pipeline.onNotFound(this, m);
+        // The peer may also tell us it doesn't have the transactions of a compact block any more.
+        CompactBlockRelay relay = vCompactBlockRelay;
+        if (relay != null) {
+            for (InventoryItem item : m.getItems()) {
+                boolean pending;
+                lock.lock();
+                try {
+                    pending = pendingCompactBlocks.remove(item.hash) != null;
+                } finally {
+                    lock.unlock();
+                }
+                if (pending) {
+                    log.info("{}: Peer doesn't have the transactions of compact block {}", getAddress(), item.hash);
+                    requestFullBlock(relay, item.hash);
+                }
+            }
+        }
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -698,7 +752,8 @@ public class Peer extends PeerSocketHandler {
                 // fast catchup mode (in which we ignore new blocks).
                 boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
                 boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
+                // With block filters, blocks are only downloaded when their filter matches.
+                if (vCompactFilterClient != null || (!passedTime && !reachedTop)) {
                     if (!vDownloadData) {
                         // Not download peer anymore, some other peer probably became better.
                         log.info("Lost download peer status, throwing away downloaded headers.");
@@ -769,6 +824,9 @@ public class Peer extends PeerSocketHandler {
     protected void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        CompactBlockRelay relay = vCompactBlockRelay;
+        if (relay != null)
+            relay.addTransaction(tx);
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
@@ -989,6 +1047,16 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested by the download pipeline? Any other block would be out of order while it's syncing.
+        BlockDownloadPipeline pipeline = vBlockDownloadPipeline;
+        if (pipeline != null) {
+            if (pipeline.onBlock(this, m))
+                return;
+            if (pipeline.isSyncing()) {
+                log.debug("{}: Ignoring block during pipelined chain download: {}", getAddress(), m.getHashAsString());
+                return;
+            }
+        }
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1040,6 +1108,194 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    protected void processCompactFilter(CompactFilterMessage m) {
+        CompactFilterClient client = vCompactFilterClient;
+        if (client != null)
+            client.processFilter(this, m);
+    }
+
+    protected void processCompactFilterHeaders(CompactFilterHeadersMessage m) {
+        CompactFilterClient client = vCompactFilterClient;
+        if (client != null)
+            client.processFilterHeaders(this, m);
+    }
+
+    protected void processCompactFilterCheckpoints(CompactFilterCheckpointsMessage m) {
+        CompactFilterClient client = vCompactFilterClient;
+        if (client != null)
+            client.processCheckpoints(this, m);
+    }
+
+    protected void processSendCompactBlocks(SendCompactBlocksMessage m) {
+        // Peers may offer several versions, we only understand one.
+        if (m.getVersion() == CompactBlockMessage.VERSION)
+            vPeerCompactBlockVersion = m.getVersion();
+    }
+
+    // Compact blocks only save bandwidth for new blocks at the tip of the chain, whose transactions were relayed to us.
+    private boolean shouldRequestCompactBlock(int blocksInInv) {
+        return vCompactBlockRelay != null && isCompactBlocksSupported()
+                && blocksInInv == 1 && blockChain.getBestChainHeight() >= getBestHeight() - 1;
+    }
+
+    protected void processCompactBlock(CompactBlockMessage m) {
+        final Sha256Hash hash = m.getHash();
+        if (log.isDebugEnabled())
+            log.debug("{}: Received compact block {}", getAddress(), hash);
+        CompactBlockRelay relay = vCompactBlockRelay;
+        if (relay == null || blockChain == null) {
+            log.debug("{}: Received compact block but compact block relay is not enabled", getAddress());
+            return;
+        }
+        expirePendingCompactBlocks();
+        lock.lock();
+        try {
+            pendingBlockDownloads.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+        if (!m.getHeader().getPrevBlockHash().equals(blockChain.getChainHead().getHeader().getHash())) {
+            // Either we have it already, for instance because several high bandwidth peers sent it, or we are behind.
+            // In the latter case the download peer fetches the full block, so it's handled like any other orphan.
+            boolean known;
+            try {
+                known = blockChain.getBlockStore().get(hash) != null;
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            if (!known && vDownloadData) {
+                GetDataMessage getdata = new GetDataMessage(params);
+                getdata.addBlock(hash);
+                lock.lock();
+                try {
+                    pendingBlockDownloads.add(hash);
+                } finally {
+                    lock.unlock();
+                }
+                sendMessage(getdata);
+            }
+            return;
+        }
+        try {
+            m.getHeader().verifyHeader();
+        } catch (VerificationException e) {
+            log.warn("{}: Compact block header failed verification", getAddress(), e);
+            return;
+        }
+        PartiallyDownloadedBlock partial;
+        try {
+            partial = relay.startReconstruction(m);
+        } catch (ProtocolException e) {
+            log.info("{}: Could not rebuild compact block {}: {}", getAddress(), hash, e.getMessage());
+            requestFullBlock(relay, hash);
+            return;
+        }
+        if (partial.isComplete()) {
+            connectRebuiltBlock(relay, hash, partial, null);
+        } else {
+            log.debug("{}: Requesting {} missing transactions of compact block {}", getAddress(),
+                    partial.getMissingIndexes().size(), hash);
+            lock.lock();
+            try {
+                pendingCompactBlocks.put(hash, new PendingCompactBlock(partial,
+                        Utils.currentTimeMillis() + COMPACT_BLOCK_TRANSACTIONS_TIMEOUT_MSEC));
+            } finally {
+                lock.unlock();
+            }
+            sendMessage(new GetBlockTransactionsMessage(params, hash, partial.getMissingIndexes()));
+        }
+    }
+
+    protected void processBlockTransactions(BlockTransactionsMessage m) {
+        CompactBlockRelay relay = vCompactBlockRelay;
+        PendingCompactBlock pending;
+        lock.lock();
+        try {
+            pending = pendingCompactBlocks.remove(m.getBlockHash());
+        } finally {
+            lock.unlock();
+        }
+        if (relay == null || pending == null) {
+            log.debug("{}: Received transactions of a block we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        connectRebuiltBlock(relay, m.getBlockHash(), pending.partial, m.getTransactions());
+    }
+
+    /**
+     * Downloads the full blocks of the compact blocks whose missing transactions the peer didn't send in time. Runs
+     * when the next compact block or inv arrives, and when the peer is pinged.
+     */
+    private void expirePendingCompactBlocks() {
+        CompactBlockRelay relay = vCompactBlockRelay;
+        if (relay == null)
+            return;
+        List<Sha256Hash> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            Iterator<Map.Entry<Sha256Hash, PendingCompactBlock>> it = pendingCompactBlocks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, PendingCompactBlock> entry = it.next();
+                if (entry.getValue().deadlineMsec <= now) {
+                    expired.add(entry.getKey());
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Sha256Hash hash : expired) {
+            log.info("{}: Timed out waiting for the transactions of compact block {}", getAddress(), hash);
+            requestFullBlock(relay, hash);
+        }
+    }
+
+    private void connectRebuiltBlock(CompactBlockRelay relay, Sha256Hash hash, PartiallyDownloadedBlock partial,
+                                     @Nullable List<Transaction> missingTransactions) {
+        Block block;
+        try {
+            block = missingTransactions == null ? partial.getBlock() : partial.fill(missingTransactions);
+        } catch (ProtocolException e) {
+            log.info("{}: Could not rebuild compact block {}: {}", getAddress(), hash, e.getMessage());
+            requestFullBlock(relay, hash);
+            return;
+        }
+        relay.blockRebuilt(block, missingTransactions != null);
+        addRelayedBlock(block);
+    }
+
+    private void requestFullBlock(CompactBlockRelay relay, final Sha256Hash hash) {
+        relay.blockFailed();
+        Futures.addCallback(getBlock(hash), new FutureCallback<Block>() {
+            @Override
+            public void onSuccess(Block block) {
+                addRelayedBlock(block);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.info("{}: Failed to download block {}", getAddress(), hash, t);
+            }
+        });
+    }
+
+    // Adds a new block at the tip of the chain, whether we are downloading the chain from this peer or not.
+    private void addRelayedBlock(Block block) {
+        try {
+            if (blockChain.add(block))
+                invokeOnBlocksDownloaded(block, null);
+            else
+                log.debug("{}: Relayed block {} is an orphan", getAddress(), block.getHashAsString());
+        } catch (VerificationException e) {
+            // We don't want verification failures to kill the thread.
+            log.warn("{}: Block verification failed", getAddress(), e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
     // TODO: Fix this duplication.
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
@@ -1161,7 +1417,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1177,6 +1433,7 @@ public class Peer extends PeerSocketHandler {
     }
 
     protected void processInv(InventoryMessage inv) {
+        expirePendingCompactBlocks();
         List<InventoryItem> items = inv.getItems();
 
         // Separate out the blocks and transactions, we'll handle them differently
@@ -1197,6 +1454,11 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        // While the download pipeline is syncing, it decides which blocks to get from which peer.
+        final BlockDownloadPipeline pipeline = vBlockDownloadPipeline;
+        final boolean pipelineSyncing = pipeline != null && pipeline.isSyncing();
+        if (pipelineSyncing && blocks.size() > 0)
+            pipeline.onBlockAnnounced();
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -1246,7 +1508,10 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadData && blockChain != null && vCompactFilterClient != null) {
+                // Fetch the headers up to the last announced block, the filter client decides about the blocks.
+                blockChainDownloadLocked(blocks.get(blocks.size() - 1).hash);
+            } else if (blocks.size() > 0 && downloadData && blockChain != null && !pipelineSyncing) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1273,6 +1538,8 @@ public class Peer extends PeerSocketHandler {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
+                            } else if (shouldRequestCompactBlock(blocks.size())) {
+                                getdata.addCompactBlock(item.hash);
                             } else {
                                 getdata.addItem(item);
                             }
@@ -1376,6 +1643,8 @@ public class Peer extends PeerSocketHandler {
                 if (blockChain != null && fastCatchupTimeSecs > blockChain.getChainHead().getHeader().getTimeSeconds())
                     downloadBlockBodies = false;
             }
+            if (vCompactFilterClient != null)
+                downloadBlockBodies = false;
             this.useFilteredBlocks = useFilteredBlocks;
         } finally {
             lock.unlock();
@@ -1506,6 +1775,11 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            BlockDownloadPipeline pipeline = vBlockDownloadPipeline;
+            if (pipeline != null) {
+                pipeline.start(this);
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1516,6 +1790,42 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Sets the pipeline that downloads the chain from this and other peers. Called by the {@link PeerGroup} if
+     * parallel block download is enabled.
+     */
+    void setBlockDownloadPipeline(@Nullable BlockDownloadPipeline pipeline) {
+        this.vBlockDownloadPipeline = pipeline;
+    }
+
+    /**
+     * Sets the relay that new blocks are rebuilt from compact blocks with. Called by the {@link PeerGroup} if compact
+     * block relay is enabled.
+     */
+    void setCompactBlockRelay(@Nullable CompactBlockRelay relay) {
+        this.vCompactBlockRelay = relay;
+    }
+
+    /**
+     * Sets the client that finds the blocks relevant to the wallets with block filters. The chain is downloaded as
+     * headers only from then on. Called by the {@link PeerGroup} if block filters are enabled.
+     */
+    void setCompactFilterClient(@Nullable CompactFilterClient client) {
+        lock.lock();
+        try {
+            this.vCompactFilterClient = client;
+            if (client != null)
+                downloadBlockBodies = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the peer said it can send us compact blocks of the version we understand. */
+    public boolean isCompactBlocksSupported() {
+        return vPeerCompactBlockVersion == CompactBlockMessage.VERSION;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1574,6 +1884,8 @@ public class Peer extends PeerSocketHandler {
         final VersionMessage ver = vPeerVersionMessage;
         if (!ver.isPingPongSupported())
             throw new ProtocolException("Peer version is too low for measurable pings: " + ver);
+        // PeerGroup pings its peers regularly, which makes this a good time to look for compact blocks that stalled.
+        expirePendingCompactBlocks();
         PendingPing pendingPing = new PendingPing(nonce);
         pendingPings.add(pendingPing);
         sendMessage(new Ping(pendingPing.nonce));
@@ -1745,6 +2057,29 @@ public class Peer extends PeerSocketHandler {
         maybeRestartChainDownload();
     }
 
+    /**
+     * <p>Adds the given elements to the Bloom filter of this connection by sending a "filteradd" message for each of
+     * them, instead of loading the whole filter again. The filter given must be the filter last set on this connection
+     * with the elements added, it's kept as the filter of this connection.</p>
+     *
+     * <p>Like {@link #setBloomFilter(BloomFilter, boolean)}, this is called for you if your app uses a
+     * {@link PeerGroup}.</p>
+     */
+    public void addToBloomFilter(BloomFilter filter, List<byte[]> elements, boolean andQueryMemPool) {
+        checkNotNull(filter);
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported())
+            return;
+        vBloomFilter = filter;
+        log.debug("{}: Adding {} elements to Bloom filter{}", this, elements.size(),
+                andQueryMemPool ? " and querying mempool" : "");
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(params, element));
+        if (andQueryMemPool)
+            sendMessage(new MemoryPoolMessage());
+        maybeRestartChainDownload();
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
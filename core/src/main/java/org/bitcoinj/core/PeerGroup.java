@@ -27,6 +27,7 @@ import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.net.*;
 import org.bitcoinj.net.discovery.*;
 import org.bitcoinj.script.*;
+import org.bitcoinj.store.FilterHeaderStore;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
@@ -113,6 +114,10 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
+    // If set, blocks are downloaded from all peers at once, see enableParallelBlockDownload().
+    @Nullable @GuardedBy("lock") private BlockDownloadPipeline blockDownloadPipeline;
+    @Nullable @GuardedBy("lock") private CompactBlockRelay compactBlockRelay;
+    @Nullable @GuardedBy("lock") private CompactFilterClient compactFilterClient;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -167,8 +172,19 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     };
 
+    // Elements of keys added since the filter was last calculated. If they are all that changed, peers are sent just
+    // these elements instead of the whole filter.
+    @GuardedBy("pendingFilterElements") private final List<byte[]> pendingFilterElements = new ArrayList<>();
+
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
+            synchronized (pendingFilterElements) {
+                for (ECKey key : keys) {
+                    // The same elements as BloomFilter.insert(ECKey).
+                    pendingFilterElements.add(key.getPubKey());
+                    pendingFilterElements.add(key.getPubKeyHash());
+                }
+            }
             recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
         }
     };
@@ -666,11 +682,15 @@ public class PeerGroup implements TransactionBroadcaster {
      * @see Peer#addBlocksDownloadedEventListener(Executor, BlocksDownloadedEventListener)
      */
     public void addBlocksDownloadedEventListener(Executor executor, BlocksDownloadedEventListener listener) {
-        peersBlocksDownloadedEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<BlocksDownloadedEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peersBlocksDownloadedEventListeners.add(registration);
+        // The peers get the executor of the registration, so that the listener has one listener queue rather than one
+        // per peer, and gets its events one at a time.
         for (Peer peer : getConnectedPeers())
-            peer.addBlocksDownloadedEventListener(executor, listener);
+            peer.addBlocksDownloadedEventListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addBlocksDownloadedEventListener(executor, listener);
+            peer.addBlocksDownloadedEventListener(registration.executor, listener);
     }
 
     /** See {@link Peer#addBlocksDownloadedEventListener(BlocksDownloadedEventListener)} */
@@ -683,11 +703,13 @@ public class PeerGroup implements TransactionBroadcaster {
      * chain download starts.</p>
      */
     public void addChainDownloadStartedEventListener(Executor executor, ChainDownloadStartedEventListener listener) {
-        peersChainDownloadStartedEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<ChainDownloadStartedEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peersChainDownloadStartedEventListeners.add(registration);
         for (Peer peer : getConnectedPeers())
-            peer.addChainDownloadStartedEventListener(executor, listener);
+            peer.addChainDownloadStartedEventListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addChainDownloadStartedEventListener(executor, listener);
+            peer.addChainDownloadStartedEventListener(registration.executor, listener);
     }
 
     /** See {@link Peer#addConnectedEventListener(PeerConnectedEventListener)} */
@@ -700,11 +722,13 @@ public class PeerGroup implements TransactionBroadcaster {
      * new peers are connected to.</p>
      */
     public void addConnectedEventListener(Executor executor, PeerConnectedEventListener listener) {
-        peerConnectedEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<PeerConnectedEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peerConnectedEventListeners.add(registration);
         for (Peer peer : getConnectedPeers())
-            peer.addConnectedEventListener(executor, listener);
+            peer.addConnectedEventListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addConnectedEventListener(executor, listener);
+            peer.addConnectedEventListener(registration.executor, listener);
     }
 
     /** See {@link Peer#addDisconnectedEventListener(PeerDisconnectedEventListener)} */
@@ -717,11 +741,13 @@ public class PeerGroup implements TransactionBroadcaster {
      * peers are disconnected from.</p>
      */
     public void addDisconnectedEventListener(Executor executor, PeerDisconnectedEventListener listener) {
-        peerDisconnectedEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<PeerDisconnectedEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peerDisconnectedEventListeners.add(registration);
         for (Peer peer : getConnectedPeers())
-            peer.addDisconnectedEventListener(executor, listener);
+            peer.addDisconnectedEventListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addDisconnectedEventListener(executor, listener);
+            peer.addDisconnectedEventListener(registration.executor, listener);
     }
 
     /** See {@link PeerGroup#addDiscoveredEventListener(Executor, PeerDiscoveredEventListener)} */
@@ -744,11 +770,13 @@ public class PeerGroup implements TransactionBroadcaster {
 
     /** See {@link Peer#addGetDataEventListener(Executor, GetDataEventListener)} */
     public void addGetDataEventListener(final Executor executor, final GetDataEventListener listener) {
-        peerGetDataEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<GetDataEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peerGetDataEventListeners.add(registration);
         for (Peer peer : getConnectedPeers())
-            peer.addGetDataEventListener(executor, listener);
+            peer.addGetDataEventListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addGetDataEventListener(executor, listener);
+            peer.addGetDataEventListener(registration.executor, listener);
     }
 
     /** See {@link Peer#addOnTransactionBroadcastListener(OnTransactionBroadcastListener)} */
@@ -758,11 +786,13 @@ public class PeerGroup implements TransactionBroadcaster {
 
     /** See {@link Peer#addOnTransactionBroadcastListener(OnTransactionBroadcastListener)} */
     public void addOnTransactionBroadcastListener(Executor executor, OnTransactionBroadcastListener listener) {
-        peersTransactionBroadastEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<OnTransactionBroadcastListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peersTransactionBroadastEventListeners.add(registration);
         for (Peer peer : getConnectedPeers())
-            peer.addOnTransactionBroadcastListener(executor, listener);
+            peer.addOnTransactionBroadcastListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addOnTransactionBroadcastListener(executor, listener);
+            peer.addOnTransactionBroadcastListener(registration.executor, listener);
     }
 
     /** See {@link Peer#addPreMessageReceivedEventListener(PreMessageReceivedEventListener)} */
@@ -772,11 +802,13 @@ public class PeerGroup implements TransactionBroadcaster {
 
     /** See {@link Peer#addPreMessageReceivedEventListener(Executor, PreMessageReceivedEventListener)} */
     public void addPreMessageReceivedEventListener(Executor executor, PreMessageReceivedEventListener listener) {
-        peersPreMessageReceivedEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+        ListenerRegistration<PreMessageReceivedEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), executor);
+        peersPreMessageReceivedEventListeners.add(registration);
         for (Peer peer : getConnectedPeers())
-            peer.addPreMessageReceivedEventListener(executor, listener);
+            peer.addPreMessageReceivedEventListener(registration.executor, listener);
         for (Peer peer : getPendingPeers())
-            peer.addPreMessageReceivedEventListener(executor, listener);
+            peer.addPreMessageReceivedEventListener(registration.executor, listener);
     }
 
     /** Use the more specific listener methods instead */
@@ -1143,6 +1175,8 @@ public class PeerGroup implements TransactionBroadcaster {
             for (Peer peer : peers) {
                 peer.addWallet(wallet);
             }
+            if (compactFilterClient != null)
+                compactFilterClient.addWallet(wallet);
         } finally {
             lock.unlock();
         }
@@ -1215,6 +1249,9 @@ public class PeerGroup implements TransactionBroadcaster {
         for (Peer peer : peers) {
             peer.removeWallet(wallet);
         }        
+        CompactFilterClient client = getCompactFilterClient();
+        if (client != null)
+            client.removeWallet(wallet);
     }
 
     public enum FilterRecalculateMode {
@@ -1252,11 +1289,18 @@ public class PeerGroup implements TransactionBroadcaster {
 
             public void go() {
                 checkState(!lock.isHeldByCurrentThread());
+                List<byte[]> addedElements;
+                synchronized (pendingFilterElements) {
+                    addedElements = new ArrayList<>(pendingFilterElements);
+                    pendingFilterElements.clear();
+                }
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
                 if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
                     return;
                 // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
-                FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */));
+                BloomFilter previousFilter = bloomFilterMerger.getLastFilter();
+                FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */),
+                        addedElements);
                 boolean send;
                 switch (mode) {
                     case SEND_IF_CHANGED:
@@ -1272,7 +1316,15 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new UnsupportedOperationException();
                 }
                 if (send) {
+                    // Peers that have the previous filter are sent just the added keys, as long as the filter stays
+                    // within its size budget. The remote false positive rate then grows a little, until it exceeds
+                    // the threshold in onBlocksDownloaded() and a fresh filter is sent.
+                    boolean incremental = mode == FilterRecalculateMode.SEND_IF_CHANGED && result.addedElements != null;
                     for (Peer peer : peers /* COW */) {
+                        if (incremental && peer.getBloomFilter() == previousFilter) {
+                            peer.addToBloomFilter(result.filter, result.addedElements, true);
+                            continue;
+                        }
                         // Only query the mempool if this recalculation request is not in order to lower the observed FP
                         // rate. There's no point querying the mempool when doing this because the FP rate can only go
                         // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
@@ -1280,7 +1332,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     }
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
-                    if (chain != null)
+                    if (chain != null && !incremental)
                         chain.resetFalsePositiveEstimate();
                 }
                 // Do this last so that bloomFilter is already set when it gets called.
@@ -1510,6 +1562,18 @@ public class PeerGroup implements TransactionBroadcaster {
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            if (blockDownloadPipeline != null) {
+                peer.setBlockDownloadPipeline(blockDownloadPipeline);
+                blockDownloadPipeline.addPeer(peer);
+            }
+            if (compactBlockRelay != null) {
+                peer.setCompactBlockRelay(compactBlockRelay);
+                compactBlockRelay.addPeer(peer);
+            }
+            if (compactFilterClient != null) {
+                peer.setCompactFilterClient(compactFilterClient);
+                compactFilterClient.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1636,6 +1700,135 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Makes chain download fetch headers from the download peer first, and then the blocks from all connected peers
+     * at once, with up to {@code window} blocks requested ahead of the chain head. This way chain download isn't
+     * limited by the latency and bandwidth of a single peer, which mostly matters for the initial download of a
+     * fully verifying chain. See {@link BlockDownloadPipeline} for details.</p>
+     *
+     * <p>Full blocks are downloaded, so Bloom filtering and the fast catchup time don't apply to blocks downloaded
+     * this way. Call this before connecting to any peers.</p>
+     */
+    public void enableParallelBlockDownload(int window) {
+        lock.lock();
+        try {
+            checkState(chain != null, "Parallel block download needs a block chain");
+            checkState(blockDownloadPipeline == null, "Parallel block download is already enabled");
+            checkState(compactFilterClient == null, "Not available together with block filters");
+            checkState(chain.shouldVerifyTransactions() || !vBloomFilteringEnabled,
+                    "Not available together with Bloom filtering");
+            checkState(peers.isEmpty() && pendingPeers.isEmpty(), "Call this before connecting to any peers");
+            final BlockDownloadPipeline pipeline = new BlockDownloadPipeline(params, chain, window);
+            blockDownloadPipeline = pipeline;
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pipeline.checkForStalls();
+                    } catch (Throwable e) {
+                        log.error("Exception in block download stall check", e);  // The executor swallows exceptions :(
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the pipeline used for parallel block download, or null if it isn't enabled. */
+    @Nullable
+    public BlockDownloadPipeline getBlockDownloadPipeline() {
+        lock.lock();
+        try {
+            return blockDownloadPipeline;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Makes new blocks at the tip of the chain arrive as compact blocks, which are rebuilt from the transactions
+     * peers relayed to us before, up to {@code maxTransactions} of them. See {@link CompactBlockRelay} for details.</p>
+     *
+     * <p>This is meant for fully verifying nodes that don't use Bloom filtering, as it relies on seeing most
+     * transactions on the network. An SPV chain must turn Bloom filtering off with
+     * {@link #setBloomFilteringEnabled(boolean)} first, and leave it off. Call this before connecting to any peers.</p>
+     *
+     * @throws IllegalStateException if the group uses Bloom filtering
+     */
+    public void enableCompactBlockRelay(int maxTransactions) {
+        lock.lock();
+        try {
+            checkState(chain != null, "Compact block relay needs a block chain");
+            checkState(compactBlockRelay == null, "Compact block relay is already enabled");
+            checkState(compactFilterClient == null, "Not available together with block filters");
+            checkState(chain.shouldVerifyTransactions() || !vBloomFilteringEnabled,
+                    "Not available together with Bloom filtering");
+            checkState(peers.isEmpty() && pendingPeers.isEmpty(), "Call this before connecting to any peers");
+            compactBlockRelay = new CompactBlockRelay(params, maxTransactions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the relay used for receiving compact blocks, or null if it isn't enabled. */
+    @Nullable
+    public CompactBlockRelay getCompactBlockRelay() {
+        lock.lock();
+        try {
+            return compactBlockRelay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Finds the blocks relevant to the wallets with block filters instead of Bloom filters, keeping the filter
+     * headers in the given store. The chain is downloaded as headers only, and only the blocks whose filter matches
+     * the scripts of the wallets are downloaded. See {@link CompactFilterClient} for details.</p>
+     *
+     * <p>This is meant for SPV wallets, and disables Bloom filtering. As a consequence, peers relay all unconfirmed
+     * transactions to us. Call this before connecting to any peers.</p>
+     */
+    public void enableCompactFilters(FilterHeaderStore store) {
+        lock.lock();
+        try {
+            checkState(chain != null && !chain.shouldVerifyTransactions(), "Block filters need an SPV block chain");
+            checkState(compactFilterClient == null, "Block filters are already enabled");
+            checkState(blockDownloadPipeline == null && compactBlockRelay == null,
+                    "Block filters don't work together with parallel block download or compact block relay");
+            checkState(peers.isEmpty() && pendingPeers.isEmpty(), "Call this before connecting to any peers");
+            setBloomFilteringEnabled(false);
+            final CompactFilterClient client = new CompactFilterClient(params, chain, store);
+            compactFilterClient = client;
+            for (Wallet wallet : wallets)
+                client.addWallet(wallet);
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.checkForStalls();
+                    } catch (Throwable e) {
+                        log.error("Exception in block filter stall check", e);  // The executor swallows exceptions :(
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the client that finds relevant blocks with block filters, or null if it isn't enabled. */
+    @Nullable
+    public CompactFilterClient getCompactFilterClient() {
+        lock.lock();
+        try {
+            return compactFilterClient;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the current fast catchup time. The contents of blocks before this time won't be downloaded as they
      * cannot contain any interesting transactions. If you use {@link PeerGroup#addWallet(Wallet)} this just returns
@@ -1665,6 +1858,12 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (blockDownloadPipeline != null)
+                blockDownloadPipeline.removePeer(peer);
+            if (compactBlockRelay != null)
+                compactBlockRelay.removePeer(peer);
+            if (compactFilterClient != null)
+                compactFilterClient.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -2061,6 +2260,9 @@ public class PeerGroup implements TransactionBroadcaster {
             log.info("Transaction source unknown, setting to SELF: {}", tx.getHashAsString());
             tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
         }
+        CompactBlockRelay relay = getCompactBlockRelay();
+        if (relay != null)
+            relay.addTransaction(tx);
         final TransactionBroadcast broadcast = new TransactionBroadcast(this, tx);
         broadcast.setMinConnections(minConnections);
         // Send the TX to the wallet once we have a successful broadcast.
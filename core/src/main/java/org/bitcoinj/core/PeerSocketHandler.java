@@ -53,7 +53,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It's sized
+    // from the header to hold exactly the payload, and handed to the parser as is, so it's the only copy we make.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
@@ -141,7 +142,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        processMessage(serializer.deserializePayload(header, largeReadBuffer));
                         largeReadBuffer = null;
                         header = null;
                         firstMessage = false;
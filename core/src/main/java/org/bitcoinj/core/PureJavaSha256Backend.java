@@ -0,0 +1,244 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+/**
+ * <p>A {@link Sha256Backend} implemented in Java, with the rounds unrolled and no allocations. Each thread reuses its
+ * own state.</p>
+ *
+ * <p>Double hashes of 64 and 80 bytes are special cased. The padding block that follows a 64 byte input is the same
+ * every time, so its message schedule is calculated once. The second hash of a double hash works on the words of the
+ * first one directly, without converting them to bytes and back.</p>
+ *
+ * <p>This is mostly useful on JVMs that don't accelerate {@link java.security.MessageDigest}, and where creating
+ * digests is expensive.</p>
+ */
+public class PureJavaSha256Backend extends Sha256Backend {
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    private static final int[] INITIAL_HASH = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    // The message schedule of the padding block after a 64 byte input, with the round constants added.
+    private static final int[] PADDING_64_SCHEDULE = new int[64];
+
+    static {
+        int[] words = new int[64];
+        words[0] = 0x80000000;
+        words[15] = 64 * 8;
+        expand(words, PADDING_64_SCHEDULE);
+    }
+
+    private static class State {
+        final int[] hash = new int[8];
+        final int[] words = new int[64];
+        final int[] schedule = new int[64];
+        final byte[] block = new byte[64];
+    }
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    @Override
+    public void hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        State state = states.get();
+        hashBytes(state, input, offset, length);
+        writeHash(state.hash, output, outputOffset);
+    }
+
+    @Override
+    public void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        State state = states.get();
+        int[] hash = state.hash;
+        int[] words = state.words;
+        if (length == 64) {
+            System.arraycopy(INITIAL_HASH, 0, hash, 0, 8);
+            readBlock(input, offset, words);
+            compress(hash, words, state.schedule);
+            compressScheduled(hash, PADDING_64_SCHEDULE);
+        } else if (length == 80) {
+            System.arraycopy(INITIAL_HASH, 0, hash, 0, 8);
+            readBlock(input, offset, words);
+            compress(hash, words, state.schedule);
+            for (int i = 0; i < 4; i++)
+                words[i] = readInt(input, offset + 64 + 4 * i);
+            words[4] = 0x80000000;
+            for (int i = 5; i < 15; i++)
+                words[i] = 0;
+            words[15] = 80 * 8;
+            compress(hash, words, state.schedule);
+        } else {
+            hashBytes(state, input, offset, length);
+        }
+        // The second hash is of the 32 bytes of the first, which fit in one block with their padding.
+        System.arraycopy(hash, 0, words, 0, 8);
+        words[8] = 0x80000000;
+        for (int i = 9; i < 15; i++)
+            words[i] = 0;
+        words[15] = 32 * 8;
+        System.arraycopy(INITIAL_HASH, 0, hash, 0, 8);
+        compress(hash, words, state.schedule);
+        writeHash(hash, output, outputOffset);
+    }
+
+    @Override
+    public void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                          byte[] output, int outputOffset) {
+        if (length1 + length2 > 64) {
+            super.hashTwice(input1, offset1, length1, input2, offset2, length2, output, outputOffset);
+            return;
+        }
+        // Like the two children of a Merkle tree node, which are hashed without allocating.
+        byte[] block = states.get().block;
+        System.arraycopy(input1, offset1, block, 0, length1);
+        System.arraycopy(input2, offset2, block, length1, length2);
+        hashTwice(block, 0, length1 + length2, output, outputOffset);
+    }
+
+    private static void hashBytes(State state, byte[] input, int offset, int length) {
+        int[] hash = state.hash;
+        System.arraycopy(INITIAL_HASH, 0, hash, 0, 8);
+        int end = offset + length;
+        int position = offset;
+        for (; end - position >= 64; position += 64) {
+            readBlock(input, position, state.words);
+            compress(hash, state.words, state.schedule);
+        }
+        // The remaining bytes, followed by a one bit, zeros, and the length in bits.
+        byte[] block = state.block;
+        int remaining = end - position;
+        System.arraycopy(input, position, block, 0, remaining);
+        block[remaining] = (byte) 0x80;
+        for (int i = remaining + 1; i < 64; i++)
+            block[i] = 0;
+        if (remaining >= 56) {
+            readBlock(block, 0, state.words);
+            compress(hash, state.words, state.schedule);
+            for (int i = 0; i < 56; i++)
+                block[i] = 0;
+        }
+        long bits = (long) length * 8;
+        for (int i = 0; i < 8; i++)
+            block[56 + i] = (byte) (bits >>> (56 - 8 * i));
+        readBlock(block, 0, state.words);
+        compress(hash, state.words, state.schedule);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void readBlock(byte[] bytes, int offset, int[] words) {
+        for (int i = 0; i < 16; i++)
+            words[i] = readInt(bytes, offset + 4 * i);
+    }
+
+    private static void writeHash(int[] hash, byte[] output, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int word = hash[i];
+            output[offset + 4 * i] = (byte) (word >>> 24);
+            output[offset + 4 * i + 1] = (byte) (word >>> 16);
+            output[offset + 4 * i + 2] = (byte) (word >>> 8);
+            output[offset + 4 * i + 3] = (byte) word;
+        }
+    }
+
+    // Expands the 16 words of a block to the 64 words of its message schedule, and adds the round constants.
+    private static void expand(int[] words, int[] schedule) {
+        for (int i = 16; i < 64; i++) {
+            int w15 = words[i - 15], w2 = words[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            words[i] = words[i - 16] + s0 + words[i - 7] + s1;
+        }
+        for (int i = 0; i < 64; i++)
+            schedule[i] = words[i] + K[i];
+    }
+
+    private static void compress(int[] hash, int[] words, int[] schedule) {
+        expand(words, schedule);
+        compressScheduled(hash, schedule);
+    }
+
+    // Runs the 64 rounds, eight at a time with the variables changing roles instead of being shifted.
+    private static void compressScheduled(int[] hash, int[] schedule) {
+        int a = hash[0], b = hash[1], c = hash[2], d = hash[3], e = hash[4], f = hash[5], g = hash[6], h = hash[7];
+        for (int i = 0; i < 64; i += 8) {
+            h += sigma1(e) + choose(e, f, g) + schedule[i];
+            d += h;
+            h += sigma0(a) + majority(a, b, c);
+            g += sigma1(d) + choose(d, e, f) + schedule[i + 1];
+            c += g;
+            g += sigma0(h) + majority(h, a, b);
+            f += sigma1(c) + choose(c, d, e) + schedule[i + 2];
+            b += f;
+            f += sigma0(g) + majority(g, h, a);
+            e += sigma1(b) + choose(b, c, d) + schedule[i + 3];
+            a += e;
+            e += sigma0(f) + majority(f, g, h);
+            d += sigma1(a) + choose(a, b, c) + schedule[i + 4];
+            h += d;
+            d += sigma0(e) + majority(e, f, g);
+            c += sigma1(h) + choose(h, a, b) + schedule[i + 5];
+            g += c;
+            c += sigma0(d) + majority(d, e, f);
+            b += sigma1(g) + choose(g, h, a) + schedule[i + 6];
+            f += b;
+            b += sigma0(c) + majority(c, d, e);
+            a += sigma1(f) + choose(f, g, h) + schedule[i + 7];
+            e += a;
+            a += sigma0(b) + majority(b, c, d);
+        }
+        hash[0] += a;
+        hash[1] += b;
+        hash[2] += c;
+        hash[3] += d;
+        hash[4] += e;
+        hash[5] += f;
+        hash[6] += g;
+        hash[7] += h;
+    }
+
+    private static int sigma0(int x) {
+        return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+    }
+
+    private static int sigma1(int x) {
+        return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+    }
+
+    private static int choose(int x, int y, int z) {
+        return z ^ (x & (y ^ z));
+    }
+
+    private static int majority(int x, int y, int z) {
+        return (x & y) | (z & (x | y));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>A "sendcmpct" message, which tells a peer that we understand compact blocks of the given version. If high
+ * bandwidth mode is requested, the peer may send new blocks as a {@link CompactBlockMessage} right away, without
+ * announcing them first.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SendCompactBlocksMessage extends Message {
+    private boolean highBandwidth;
+    private long version;
+
+    public SendCompactBlocksMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public SendCompactBlocksMessage(NetworkParameters params, boolean highBandwidth, long version) {
+        super(params);
+        this.highBandwidth = highBandwidth;
+        this.version = version;
+        this.length = 9;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        highBandwidth = readBytes(1)[0] != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(highBandwidth ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    /** Returns true if the sender wants new blocks to be sent as compact blocks without announcing them first. */
+    public boolean isHighBandwidth() {
+        return highBandwidth;
+    }
+
+    /** Returns the compact block version the sender understands. */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: " + (highBandwidth ? "high" : "low") + " bandwidth, version " + version;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+/**
+ * <p>Calculates SHA-256 hashes for {@link Sha256Hash}. Implementations must be thread safe. The output may overlap the
+ * input, implementations read all input before writing any output.</p>
+ *
+ * <p>The default backend is the {@link JcaSha256Backend}. A different one, such as the {@link NativeSha256Backend},
+ * can be set with {@link Sha256Hash#setBackend(Sha256Backend)}.</p>
+ */
+public abstract class Sha256Backend {
+    /** Writes the SHA-256 of the given byte range to the output at the given offset. */
+    public abstract void hash(byte[] input, int offset, int length, byte[] output, int outputOffset);
+
+    /**
+     * Writes the SHA-256 of the SHA-256 of the given byte range to the output at the given offset. Implementations
+     * should make this fast for 64 byte inputs, as used for Merkle trees, and 80 byte inputs, as used for block
+     * headers.
+     */
+    public void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        hash(input, offset, length, output, outputOffset);
+        hash(output, outputOffset, Sha256Hash.LENGTH, output, outputOffset);
+    }
+
+    /**
+     * Writes the SHA-256 of the SHA-256 of the concatenated byte ranges to the output at the given offset.
+     */
+    public void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                          byte[] output, int outputOffset) {
+        byte[] input = new byte[length1 + length2];
+        System.arraycopy(input1, offset1, input, 0, length1);
+        System.arraycopy(input2, offset2, input, length1, length2);
+        hashTwice(input, 0, input.length, output, outputOffset);
+    }
+}
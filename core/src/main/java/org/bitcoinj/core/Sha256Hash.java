@@ -30,6 +30,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * A Sha256Hash just wraps a byte[] so that equals and hashcode work correctly, allowing it to be used as keys in a
@@ -39,6 +40,8 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    private static volatile Sha256Backend backend = new JcaSha256Backend();
+
     private final byte[] bytes;
 
     /**
@@ -161,6 +164,19 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    /** Returns the backend that calculates the hashes of this class. */
+    public static Sha256Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets the backend that calculates the hashes of this class, for example a {@link PureJavaSha256Backend} on
+     * platforms where {@link MessageDigest} is slow. This affects all threads.
+     */
+    public static void setBackend(Sha256Backend backend) {
+        Sha256Hash.backend = checkNotNull(backend);
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes.
      *
@@ -180,9 +196,9 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
-        digest.update(input, offset, length);
-        return digest.digest();
+        byte[] output = new byte[LENGTH];
+        backend.hash(input, offset, length, output, 0);
+        return output;
     }
 
     /**
@@ -206,9 +222,23 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
-        digest.update(input, offset, length);
-        return digest.digest(digest.digest());
+        byte[] output = new byte[LENGTH];
+        backend.hashTwice(input, offset, length, output, 0);
+        return output;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again. The result is
+     * written to the given array, so nothing is allocated.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash to (in big-endian order)
+     * @param outputOffset the offset within the output array to write the double-hash to
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        backend.hashTwice(input, offset, length, output, outputOffset);
     }
 
     /**
@@ -217,10 +247,18 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
-        digest.update(input1, offset1, length1);
-        digest.update(input2, offset2, length2);
-        return digest.digest(digest.digest());
+        byte[] output = new byte[LENGTH];
+        backend.hashTwice(input1, offset1, length1, input2, offset2, length2, output, 0);
+        return output;
+    }
+
+    /**
+     * Calculates the hash of hash on the given byte ranges, like {@link #hashTwice(byte[], int, int, byte[], int, int)},
+     * and writes it to the given array.
+     */
+    public static void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                                 byte[] output, int outputOffset) {
+        backend.hashTwice(input1, offset1, length1, input2, offset2, length2, output, outputOffset);
     }
 
     @Override
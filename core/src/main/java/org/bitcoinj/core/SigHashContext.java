@@ -0,0 +1,283 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Calculates signature hashes for the inputs of a single transaction without copying the transaction.</p>
+ *
+ * <p>{@link Transaction#hashForSignature(int, byte[], byte)} has to hash a modified serialization of the whole
+ * transaction for every input. This class serializes the parts of the transaction that are covered by signatures
+ * (the outpoints and sequence numbers of the inputs, the outputs, version and lock time) once, the first time a hash
+ * is requested, and then streams the modified serialization for each input straight into the digest. For
+ * {@link SigHash#ALL} it also keeps the digest state of the common prefix, so hashing the inputs of a transaction in
+ * order only hashes the inputs before the current one once.</p>
+ *
+ * <p>Input scripts are not covered by signature hashes, so a context stays valid while the input scripts of its
+ * transaction are being filled in. It must not be used any more once any other part of the transaction has been
+ * changed. Use one context when signing or verifying several inputs of the same transaction.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SigHashContext {
+    /** Serialized size of an outpoint followed by a sequence number. */
+    private static final int INPUT_DATA_SIZE = 36 + 4;
+
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final Transaction tx;
+
+    // Snapshot of the signed parts of the transaction, taken lazily.
+    private long version;
+    private long lockTime;
+    private int numInputs;
+    private byte[] inputData; // Outpoint and sequence number for each input, INPUT_DATA_SIZE bytes each.
+    private byte[] outputData; // All outputs, serialized.
+    private int[] outputOffsets; // Offset of each output in outputData, plus the end offset.
+
+    // Digest of the serialization for SIGHASH_ALL up to (not including) input prefixInputs.
+    @Nullable private MessageDigest prefixDigest;
+    private int prefixInputs;
+
+    private final byte[] scratch = new byte[9];
+
+    public SigHashContext(Transaction tx) {
+        this.tx = checkNotNull(tx);
+    }
+
+    /** Returns the transaction this context calculates signature hashes for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Calculates a signature hash, see {@link Transaction#hashForSignature(int, byte[], SigHash, boolean)}.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, SigHash type, boolean anyoneCanPay) {
+        return hashForSignature(inputIndex, connectedScript, (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay));
+    }
+
+    /**
+     * Calculates a signature hash, see {@link Transaction#hashForSignature(int, byte[], byte)}. This is required for
+     * signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
+        // the purposes of the code in this method:
+        //
+        //   https://en.bitcoin.it/wiki/Contracts
+        maybeSnapshot();
+        checkElementIndex(inputIndex, numInputs, "inputIndex");
+
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        if (mode == SigHash.SINGLE.value && inputIndex >= outputOffsets.length - 1) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return SIGHASH_SINGLE_BUG;
+        }
+        // SIGHASH_NONE and SIGHASH_SINGLE zero the sequence numbers of the other inputs, so the signature isn't
+        // broken by new versions of the transaction issued by other parties.
+        boolean zeroOtherSequences = mode == SigHash.NONE.value || mode == SigHash.SINGLE.value;
+
+        MessageDigest digest;
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            digest = Sha256Hash.newDigest();
+            updateUint32(digest, version);
+            updateVarInt(digest, 1);
+            updateInput(digest, inputIndex, connectedScript, false);
+        } else {
+            if (zeroOtherSequences) {
+                digest = Sha256Hash.newDigest();
+                updateUint32(digest, version);
+                updateVarInt(digest, numInputs);
+                for (int i = 0; i < inputIndex; i++)
+                    updateInput(digest, i, null, true);
+            } else {
+                digest = prefixDigest(inputIndex);
+            }
+            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
+            // the signature covers the hash of the prevout transaction which obviously includes the output script
+            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
+            updateInput(digest, inputIndex, connectedScript, false);
+            // All other input scripts are cleared.
+            for (int i = inputIndex + 1; i < numInputs; i++)
+                updateInput(digest, i, null, zeroOtherSequences);
+        }
+
+        int numOutputs = outputOffsets.length - 1;
+        if (mode == SigHash.NONE.value) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            updateVarInt(digest, 0);
+        } else if (mode == SigHash.SINGLE.value) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+            // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+            // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+            updateVarInt(digest, inputIndex + 1);
+            for (int i = 0; i < inputIndex; i++) {
+                updateInt64(digest, -1);
+                updateVarInt(digest, 0);
+            }
+            digest.update(outputData, outputOffsets[inputIndex],
+                    outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+        } else {
+            updateVarInt(digest, numOutputs);
+            digest.update(outputData, 0, outputOffsets[numOutputs]);
+        }
+        updateUint32(digest, lockTime);
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        updateUint32(digest, 0x000000ff & sigHashType);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        byte[] first = digest.digest();
+        return Sha256Hash.wrap(Sha256Hash.hash(first));
+    }
+
+    private void maybeSnapshot() {
+        if (inputData != null)
+            return;
+        version = tx.getVersion();
+        lockTime = tx.getLockTime();
+        List<TransactionInput> inputs = tx.getInputs();
+        numInputs = inputs.size();
+        inputData = new byte[numInputs * INPUT_DATA_SIZE];
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = inputs.get(i);
+            TransactionOutPoint outpoint = input.getOutpoint();
+            int offset = i * INPUT_DATA_SIZE;
+            System.arraycopy(outpoint.getHash().getReversedBytes(), 0, inputData, offset, 32);
+            Utils.uint32ToByteArrayLE(outpoint.getIndex(), inputData, offset + 32);
+            Utils.uint32ToByteArrayLE(input.getSequenceNumber(), inputData, offset + 36);
+        }
+        List<TransactionOutput> outputs = tx.getOutputs();
+        outputOffsets = new int[outputs.size() + 1];
+        UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(outputs.size() * 34);
+        try {
+            for (int i = 0; i < outputs.size(); i++) {
+                outputOffsets[i] = stream.size();
+                TransactionOutput output = outputs.get(i);
+                byte[] scriptBytes = output.getScriptBytes();
+                Utils.int64ToByteStreamLE(output.getValue().getValue(), stream);
+                stream.write(new VarInt(scriptBytes.length).encode());
+                stream.write(scriptBytes);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        outputOffsets[outputs.size()] = stream.size();
+        outputData = stream.toByteArray();
+    }
+
+    /**
+     * Returns a digest that has consumed the SIGHASH_ALL serialization up to, but not including, the given input. The
+     * common prefix is kept so that hashing the inputs in order does not hash the same prefix over and over again.
+     */
+    private MessageDigest prefixDigest(int inputIndex) {
+        if (prefixDigest == null || prefixInputs > inputIndex) {
+            prefixDigest = Sha256Hash.newDigest();
+            updateUint32(prefixDigest, version);
+            updateVarInt(prefixDigest, numInputs);
+            prefixInputs = 0;
+        }
+        for (; prefixInputs < inputIndex; prefixInputs++)
+            updateInput(prefixDigest, prefixInputs, null, false);
+        try {
+            return (MessageDigest) prefixDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            // The digest implementation can't save its state, fall back to hashing the prefix from scratch.
+            MessageDigest digest = Sha256Hash.newDigest();
+            updateUint32(digest, version);
+            updateVarInt(digest, numInputs);
+            for (int i = 0; i < inputIndex; i++)
+                updateInput(digest, i, null, false);
+            prefixDigest = null;
+            return digest;
+        }
+    }
+
+    private void updateInput(MessageDigest digest, int index, @Nullable byte[] script, boolean zeroSequence) {
+        int offset = index * INPUT_DATA_SIZE;
+        digest.update(inputData, offset, 36);
+        if (script == null) {
+            updateVarInt(digest, 0);
+        } else {
+            updateVarInt(digest, script.length);
+            digest.update(script);
+        }
+        if (zeroSequence)
+            updateUint32(digest, 0);
+        else
+            digest.update(inputData, offset + 36, 4);
+    }
+
+    private void updateUint32(MessageDigest digest, long val) {
+        Utils.uint32ToByteArrayLE(val, scratch, 0);
+        digest.update(scratch, 0, 4);
+    }
+
+    private void updateInt64(MessageDigest digest, long val) {
+        Utils.int64ToByteArrayLE(val, scratch, 0);
+        digest.update(scratch, 0, 8);
+    }
+
+    private void updateVarInt(MessageDigest digest, long val) {
+        int size = VarInt.sizeOf(val);
+        if (size == 1) {
+            scratch[0] = (byte) val;
+        } else if (size == 3) {
+            scratch[0] = (byte) 253;
+            Utils.uint16ToByteArrayLE((int) val, scratch, 1);
+        } else if (size == 5) {
+            scratch[0] = (byte) 254;
+            Utils.uint32ToByteArrayLE(val, scratch, 1);
+        } else {
+            scratch[0] = (byte) 255;
+            Utils.int64ToByteArrayLE(val, scratch, 1);
+        }
+        digest.update(scratch, 0, size);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey.ECDSASignature;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Verifies ECDSA signatures, remembering the ones that were found to be valid.</p>
+ *
+ * <p>The same signatures are usually checked more than once: when a transaction is first seen, again when it is
+ * included in a block, and again if that block is re-organized away and back. A signature that verified once against
+ * a signature hash and public key will always verify, so the script interpreter asks this cache first, and only runs
+ * the expensive elliptic curve maths for signatures it hasn't seen before. Only valid signatures are stored. This
+ * mirrors the signature cache of Bitcoin Core.</p>
+ *
+ * <p>When the native secp256k1 library is not available, signatures are verified with Bouncy Castle. Decoding a
+ * public key point from its encoding needs a modular square root, and Bouncy Castle keeps its precomputed
+ * multiplication tables on the point object, so decoded public keys are cached too.</p>
+ *
+ * <p>Entries are identified by a salted hash of their contents, so the cache can't be filled with colliding
+ * entries on purpose. Instances of this class are safe for use by multiple threads.</p>
+ */
+public class SignatureCache {
+    /** Maximum number of valid signatures remembered by the default cache. */
+    public static final int DEFAULT_MAX_SIGNATURES = 50000;
+    /** Maximum number of decoded public keys remembered by the default cache. */
+    public static final int DEFAULT_MAX_PUBKEYS = 10000;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_SIGNATURES, DEFAULT_MAX_PUBKEYS);
+
+    private final byte[] salt = new byte[32];
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final Cache<ByteBuffer, ECPublicKeyParameters> pubKeys;
+
+    public SignatureCache(int maxSignatures, int maxPubKeys) {
+        checkArgument(maxSignatures >= 0 && maxPubKeys >= 0);
+        new SecureRandom().nextBytes(salt);
+        validSignatures = CacheBuilder.newBuilder().maximumSize(maxSignatures).build();
+        pubKeys = CacheBuilder.newBuilder().maximumSize(maxPubKeys).build();
+    }
+
+    /** Returns the cache used by the script interpreter. */
+    public static SignatureCache get() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by the script interpreter, for instance to change its size. */
+    public static void setDefault(SignatureCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Verifies the given ECDSA signature against a hash using the public key bytes, see
+     * {@link ECKey#verify(byte[], ECDSASignature, byte[])}.
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature The signature.
+     * @param pub       The public key bytes to use.
+     */
+    public boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
+        if (ECKey.FAKE_SIGNATURES)
+            return true;
+        Sha256Hash entry = entryFor(data, signature, pub);
+        if (validSignatures.getIfPresent(entry) != null)
+            return true;
+        boolean valid;
+        if (Secp256k1Context.isEnabled())
+            valid = ECKey.verify(data, signature, pub);
+        else
+            valid = ECKey.verify(data, signature, decodePubKey(pub));
+        if (valid)
+            validSignatures.put(entry, Boolean.TRUE);
+        return valid;
+    }
+
+    /** Returns the number of valid signatures currently remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all signatures and public keys. */
+    public void clear() {
+        validSignatures.invalidateAll();
+        pubKeys.invalidateAll();
+    }
+
+    private ECPublicKeyParameters decodePubKey(byte[] pub) {
+        ByteBuffer key = ByteBuffer.wrap(pub);
+        ECPublicKeyParameters params = pubKeys.getIfPresent(key);
+        if (params == null) {
+            params = new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pub), ECKey.CURVE);
+            pubKeys.put(ByteBuffer.wrap(pub.clone()), params);
+        }
+        return params;
+    }
+
+    private Sha256Hash entryFor(byte[] data, ECDSASignature signature, byte[] pub) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        // Everything but the last field is length prefixed, so different entries can't serialize to the same bytes.
+        update(digest, data);
+        update(digest, signature.r.toByteArray());
+        update(digest, signature.s.toByteArray());
+        digest.update(pub);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] field) {
+        digest.update(new VarInt(field.length).encode());
+        digest.update(field);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+/**
+ * SipHash-2-4, a keyed hash function that is fast on short inputs. It's used for the short transaction IDs of compact
+ * blocks, see <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP 152</a>.
+ */
+public final class SipHash {
+    private SipHash() {
+    }
+
+    /** Returns the SipHash-2-4 of the given bytes, with the 128 bit key given as two little endian halves. */
+    public static long hash(long k0, long k1, byte[] data) {
+        long[] v = {
+                0x736f6d6570736575L ^ k0,
+                0x646f72616e646f6dL ^ k1,
+                0x6c7967656e657261L ^ k0,
+                0x7465646279746573L ^ k1
+        };
+        int end = data.length - data.length % 8;
+        for (int i = 0; i < end; i += 8) {
+            long m = Utils.readInt64(data, i);
+            v[3] ^= m;
+            sipRound(v);
+            sipRound(v);
+            v[0] ^= m;
+        }
+        // The last block holds the remaining bytes and the length of the data in its top byte.
+        long m = ((long) data.length) << 56;
+        for (int i = end; i < data.length; i++)
+            m |= (data[i] & 0xffL) << (8 * (i - end));
+        v[3] ^= m;
+        sipRound(v);
+        sipRound(v);
+        v[0] ^= m;
+        v[2] ^= 0xff;
+        sipRound(v);
+        sipRound(v);
+        sipRound(v);
+        sipRound(v);
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    private static void sipRound(long[] v) {
+        long v0 = v[0], v1 = v[1], v2 = v[2], v3 = v[3];
+        v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+        v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+        v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+        v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        v[0] = v0; v[1] = v1; v[2] = v2; v[3] = v3;
+    }
+}
@@ -18,12 +18,15 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.HeightIndexedBlockStore;
+import org.bitcoinj.store.SkipListBlockStore;
 import com.google.common.base.Objects;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.Locale;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -115,6 +118,32 @@ public class StoredBlock {
         return store.get(getHeader().getPrevBlockHash());
     }
 
+    /**
+     * Given a block store, looks up the ancestor of this block at the given height, or this block if that is its
+     * height. For blocks of the best chain of a {@link HeightIndexedBlockStore} this is a single lookup. With a
+     * {@link SkipListBlockStore} it takes O(log n) lookups in memory for recent blocks, otherwise the chain is walked
+     * back one block at a time.
+     *
+     * @return the ancestor at the given height or null if it was not found in the store.
+     */
+    public StoredBlock getAncestor(int height, BlockStore store) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= this.height, "Bad height: %s", height);
+        BlockStore underlying = store instanceof SkipListBlockStore ? ((SkipListBlockStore) store).getStore() : store;
+        if (underlying instanceof HeightIndexedBlockStore) {
+            HeightIndexedBlockStore heightIndexed = (HeightIndexedBlockStore) underlying;
+            // Only works if this block is part of the best chain.
+            StoredBlock ancestor = heightIndexed.getByHeight(height);
+            if (ancestor != null && equals(heightIndexed.getByHeight(this.height)))
+                return ancestor;
+        }
+        if (store instanceof SkipListBlockStore)
+            return ((SkipListBlockStore) store).getAncestor(this, height);
+        StoredBlock cursor = this;
+        while (cursor != null && cursor.getHeight() > height)
+            cursor = cursor.getPrev(store);
+        return cursor;
+    }
+
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
         byte[] chainWorkBytes = getChainWork().toByteArray();
@@ -458,7 +458,8 @@ public class TransactionConfidence {
      */
     public void queueListeners(final Listener.ChangeReason reason) {
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            // The listener sees the latest confidence, so the same change needn't be queued twice.
+            registration.executor.execute(new ListenerQueue.CoalescingRunnable(registration.listener, this, reason) {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
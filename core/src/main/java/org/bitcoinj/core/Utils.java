@@ -469,6 +469,15 @@ public class Utils {
         data[index >>> 3] |= bitMask[7 & index];
     }
 
+    /** Returns the upper 64 bits of the 128 bit product of two longs, both taken as unsigned. */
+    public static long multiplyHighUnsigned(long x, long y) {
+        long x1 = x >>> 32, x0 = x & 0xFFFFFFFFL;
+        long y1 = y >>> 32, y0 = y & 0xFFFFFFFFL;
+        long t = x1 * y0 + ((x0 * y0) >>> 32);
+        long w1 = (t & 0xFFFFFFFFL) + x0 * y1;
+        return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+    }
+
     /** Sleep for a span of time, or mock sleep if enabled */
     public static void sleep(long millis) {
         if (mockSleepQueue == null) {
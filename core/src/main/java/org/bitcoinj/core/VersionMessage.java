@@ -53,6 +53,8 @@ public class VersionMessage extends Message {
     public static final int NODE_WITNESS = 1 << 3;
     /** A service bit used by Bitcoin-ABC to announce Bitcoin Cash nodes. */
     public static final int NODE_BITCOIN_CASH = 1 << 5;
+    /** Indicates that a node serves block filters, see {@link CompactFilterMessage}. */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
 
     /**
      * The version number of the protocol spoken.
@@ -287,6 +289,11 @@ public class VersionMessage extends Message {
         return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.BLOOM_FILTER);
     }
 
+    /** Returns true if the peer understands compact blocks, see {@link CompactBlockMessage}. */
+    public boolean isCompactBlocksSupported() {
+        return clientVersion >= params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS);
+    }
+
     /** Returns true if the protocol version and service bits both indicate support for the getutxos message. */
     public boolean isGetUTXOsSupported() {
         return clientVersion >= GetUTXOsMessage.MIN_PROTOCOL_VERSION &&
@@ -297,4 +304,9 @@ public class VersionMessage extends Message {
     public boolean isWitnessSupported() {
         return (localServices & NODE_WITNESS) == NODE_WITNESS;
     }
+
+    /** Returns true if a peer can be asked for block filters and filter headers. */
+    public boolean isCompactFiltersSupported() {
+        return (localServices & NODE_COMPACT_FILTERS) == NODE_COMPACT_FILTERS;
+    }
 }
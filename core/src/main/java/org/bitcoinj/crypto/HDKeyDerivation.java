@@ -18,6 +18,8 @@ package org.bitcoinj.crypto;
 
 import com.google.common.collect.*;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
+import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.math.ec.*;
 
 import java.math.*;
@@ -51,6 +53,11 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    /** Batches of at least this many children are derived on several threads, see {@link #deriveChildKeys}. */
+    public static final int PARALLEL_THRESHOLD = 64;
+    // The most children derived by one part of a batch that is split between threads.
+    private static final int CHILDREN_PER_PART = 16;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -156,6 +163,86 @@ public final class HDKeyDerivation {
         }
     }
 
+    /**
+     * Derives the given number of non-hardened children of the given parent, with consecutive child numbers starting
+     * with {@code firstChildNumber}. The keys are the same as those of
+     * {@link #deriveChildKey(DeterministicKey, ChildNumber)}, but the public keys of a batch are normalized together
+     * with a single field inversion, and batches of at least {@link #PARALLEL_THRESHOLD} children are derived on all
+     * cores. If a child can't be derived, which is extremely unlikely, the returned list ends before it.
+     */
+    public static List<DeterministicKey> deriveChildKeys(final DeterministicKey parent, final int firstChildNumber,
+                                                         int count) {
+        checkArgument(count >= 0, count);
+        checkArgument(firstChildNumber >= 0 && (long) firstChildNumber + count <= 1L << 31,
+                "Can't derive hardened children: %s + %s", firstChildNumber, count);
+        final DeterministicKey[] keys = new DeterministicKey[count];
+        if (count >= PARALLEL_THRESHOLD) {
+            Threading.forEachRange(0, count, CHILDREN_PER_PART, new Threading.RangeTask() {
+                @Override
+                public void run(int from, int to) {
+                    deriveChildKeyRange(parent, firstChildNumber, keys, from, to);
+                }
+            });
+        } else {
+            deriveChildKeyRange(parent, firstChildNumber, keys, 0, count);
+        }
+        List<DeterministicKey> result = new ArrayList<>(count);
+        for (DeterministicKey key : keys) {
+            if (key == null)
+                break;
+            result.add(key);
+        }
+        return result;
+    }
+
+    // Derives the children from from to to into keys, like deriveChildKeyBytesFromPrivate() and
+    // deriveChildKeyBytesFromPublic() but the public keys are left unnormalized until all of them are derived.
+    // Children that can't be derived are left null.
+    private static void deriveChildKeyRange(DeterministicKey parent, int firstChildNumber, DeterministicKey[] keys,
+                                            int from, int to) {
+        int count = to - from;
+        ECPoint parentPoint = parent.getPubKeyPoint();
+        byte[] parentPublicKey = parentPoint.getEncoded(true);
+        checkState(parentPublicKey.length == 33, "Parent pubkey must be 33 bytes, but is " + parentPublicKey.length);
+        BigInteger parentPriv = parent.hasPrivKey() ? parent.getPrivKey() : null;
+        HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+        ByteBuffer data = ByteBuffer.allocate(37);
+        ECPoint[] points = new ECPoint[count];
+        BigInteger[] privs = new BigInteger[count];
+        byte[][] chainCodes = new byte[count][];
+        for (int j = 0; j < count; j++) {
+            data.clear();
+            data.put(parentPublicKey);
+            data.putInt(firstChildNumber + from + j);
+            byte[] i = HDUtils.hmacSha512(hmac, data.array());
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+            try {
+                assertLessThanN(ilInt, "Illegal derived key: I_L >= n");
+                if (parentPriv != null) {
+                    BigInteger ki = parentPriv.add(ilInt).mod(ECKey.CURVE.getN());
+                    assertNonZero(ki, "Illegal derived key: derived private key equals 0.");
+                    privs[j] = ki;
+                    points[j] = ECKey.publicPointFromPrivate(ki);
+                } else {
+                    ECPoint Ki = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+                    assertNonInfinity(Ki, "Illegal derived key: derived public key equals infinity.");
+                    points[j] = Ki;
+                }
+                chainCodes[j] = Arrays.copyOfRange(i, 32, 64);
+            } catch (HDDerivationException e) {
+                points[j] = null;
+            }
+        }
+        ECKey.CURVE.getCurve().normalizeAll(points);
+        for (int j = 0; j < count; j++) {
+            if (points[j] == null)
+                continue;
+            ChildNumber childNumber = new ChildNumber(firstChildNumber + from + j);
+            keys[from + j] = new DeterministicKey(HDUtils.append(parent.getPath(), childNumber), chainCodes[j],
+                    points[j], privs[j], parent);
+        }
+    }
+
     public static RawKeyBytes deriveChildKeyBytesFromPrivate(DeterministicKey parent,
                                                               ChildNumber childNumber) throws HDDerivationException {
         checkArgument(parent.hasPrivKey(), "Parent key must have private key bytes for this method.");
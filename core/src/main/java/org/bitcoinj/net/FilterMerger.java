@@ -22,7 +22,10 @@ import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 import org.bitcoinj.core.PeerGroup;
 
+import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -45,6 +48,9 @@ public class FilterMerger {
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    private int lastFilterElementCount;
+    private double lastFPRate;
+    private BloomFilter.BloomUpdate lastBloomFlags;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
@@ -54,9 +60,23 @@ public class FilterMerger {
         public BloomFilter filter;
         public long earliestKeyTimeSecs;
         public boolean changed;
+        /**
+         * If not null, the filter is the previous filter with these elements added, so peers that have the previous
+         * filter can be sent just these elements instead of the whole filter.
+         */
+        @Nullable public List<byte[]> addedElements;
     }
 
     public Result calculate(ImmutableList<PeerFilterProvider> providers) {
+        return calculate(providers, Collections.<byte[]>emptyList());
+    }
+
+    /**
+     * Calculates the merged filter like {@link #calculate(ImmutableList)}. If the filter changed only because the given
+     * elements were added, and it still has the size, false positive rate and flags of the previous filter, they are
+     * returned as {@link Result#addedElements}.
+     */
+    public Result calculate(ImmutableList<PeerFilterProvider> providers, List<byte[]> candidateElements) {
         LinkedList<PeerFilterProvider> begunProviders = Lists.newLinkedList();
         try {
             // All providers must be in a consistent, unchanging state because the filter is a merged one that's
@@ -91,6 +111,21 @@ public class FilterMerger {
                     filter.merge(p.getBloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak));
 
                 result.changed = !filter.equals(lastFilter);
+                if (result.changed && !candidateElements.isEmpty() && lastFilter != null
+                        && lastBloomFilterElementCount == lastFilterElementCount && fpRate == lastFPRate
+                        && bloomFlags == lastBloomFlags) {
+                    // The new filter is still within the size budget of the previous one. If adding the elements to
+                    // the previous filter gives the new filter, peers can be sent just the elements.
+                    BloomFilter updated = new BloomFilter(lastBloomFilterElementCount, fpRate, bloomFilterTweak, bloomFlags);
+                    updated.merge(lastFilter);
+                    for (byte[] element : candidateElements)
+                        updated.insert(element);
+                    if (updated.equals(filter))
+                        result.addedElements = candidateElements;
+                }
+                lastFilterElementCount = lastBloomFilterElementCount;
+                lastFPRate = fpRate;
+                lastBloomFlags = bloomFlags;
                 result.filter = lastFilter = filter;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
@@ -25,7 +25,6 @@ import java.util.concurrent.TimeUnit;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
-import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
@@ -92,22 +91,16 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         }
 
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // two weeks after the initial block chain download. The block chain passes a store that finds it quickly.
         final Stopwatch watch = Stopwatch.createStarted();
-        Sha256Hash hash = prev.getHash();
-        StoredBlock cursor = null;
         final int interval = this.getInterval();
-        for (int i = 0; i < interval; i++) {
-            cursor = blockStore.get(hash);
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
-            }
-            hash = cursor.getHeader().getPrevBlockHash();
+        final StoredBlock cursor = storedPrev.getAncestor(storedPrev.getHeight() - (interval - 1), blockStore);
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the last transition point.");
         }
-        checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
-                "Didn't arrive at a transition point.");
+        checkState(isDifficultyTransitionPoint(cursor.getHeight() - 1), "Didn't arrive at a transition point.");
         watch.stop();
         if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
             log.info("Difficulty transition traversal took {}", watch);
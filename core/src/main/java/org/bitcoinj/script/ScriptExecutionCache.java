@@ -0,0 +1,135 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SigHashContext;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script.VerifyFlag;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers which transaction inputs were found to correctly spend their connected outputs, so their scripts don't
+ * have to be executed again.</p>
+ *
+ * <p>The scripts of a transaction are typically executed when it is first relayed to us, again when it is included
+ * in a block, and again if that block is re-organized away and back. The outcome of script execution only depends on
+ * the transaction, the input, the connected scriptPubKey and the verification flags, so a successful execution can
+ * be remembered and skipped the next time. An entry covers the transaction hash, the input index, the input's
+ * scriptSig and witness (the witness is not covered by the transaction hash), the connected scriptPubKey and the
+ * flags. Failures are not remembered.</p>
+ *
+ * <p>Entries are identified by a salted hash of their contents and evicted least recently used first. Instances of
+ * this class are safe for use by multiple threads.</p>
+ */
+public class ScriptExecutionCache {
+    /** Maximum number of inputs remembered by the default cache. */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static volatile ScriptExecutionCache defaultCache = new ScriptExecutionCache(DEFAULT_MAX_ENTRIES);
+
+    private final byte[] salt = new byte[32];
+    private final Cache<Sha256Hash, Boolean> validInputs;
+
+    public ScriptExecutionCache(int maxEntries) {
+        checkArgument(maxEntries >= 0);
+        new SecureRandom().nextBytes(salt);
+        validInputs = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /** Returns the cache used by the full verification block chain. */
+    public static ScriptExecutionCache get() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by the full verification block chain, for instance to change its size. */
+    public static void setDefault(ScriptExecutionCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Verifies that the given input correctly spends the given scriptPubKey, like
+     * {@link Script#correctlySpends(Transaction, long, Script, Set, SigHashContext)}, unless it was verified with the
+     * same flags before.
+     *
+     * @throws ScriptException if the input does not correctly spend the scriptPubKey
+     */
+    public void correctlySpends(Transaction tx, int inputIndex, Script scriptPubKey, Set<VerifyFlag> verifyFlags,
+                                SigHashContext sigHashContext) throws ScriptException {
+        Sha256Hash entry = entryFor(tx, inputIndex, scriptPubKey, verifyFlags);
+        if (validInputs.getIfPresent(entry) != null)
+            return;
+        tx.getInput(inputIndex).getScriptSig().correctlySpends(tx, inputIndex, scriptPubKey, verifyFlags,
+                sigHashContext);
+        validInputs.put(entry, Boolean.TRUE);
+    }
+
+    /** Returns true if the given input was found to correctly spend the given scriptPubKey with the given flags. */
+    public boolean contains(Transaction tx, int inputIndex, Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+        return validInputs.getIfPresent(entryFor(tx, inputIndex, scriptPubKey, verifyFlags)) != null;
+    }
+
+    /** Returns the number of inputs currently remembered. */
+    public long size() {
+        return validInputs.size();
+    }
+
+    /** Forgets all inputs. */
+    public void clear() {
+        validInputs.invalidateAll();
+    }
+
+    private Sha256Hash entryFor(Transaction tx, int inputIndex, Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+        TransactionInput input = tx.getInput(inputIndex);
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(tx.getHash().getBytes());
+        byte[] scratch = new byte[8];
+        Utils.uint32ToByteArrayLE(inputIndex, scratch, 0);
+        digest.update(scratch, 0, 4);
+        long flags = 0;
+        for (VerifyFlag flag : verifyFlags)
+            flags |= 1L << flag.ordinal();
+        Utils.int64ToByteArrayLE(flags, scratch, 0);
+        digest.update(scratch, 0, 8);
+        // Variable length fields are length prefixed, so different entries can't serialize to the same bytes.
+        update(digest, scriptPubKey.getProgram());
+        update(digest, input.getScriptBytes());
+        TransactionWitness witness = input.getWitness();
+        digest.update(new VarInt(witness.getPushCount()).encode());
+        for (int i = 0; i < witness.getPushCount(); i++)
+            update(digest, witness.getPush(i));
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] field) {
+        digest.update(new VarInt(field.length).encode());
+        digest.update(field);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Stores the filter headers of a contiguous range of the best chain, for the client side block filtering of
+ * {@link org.bitcoinj.core.CompactFilterClient}. Each entry holds the hash of a block and its filter header. The
+ * first entry, at the base height, is the one the range was started from. It also remembers up to which height the
+ * filters were matched against the wallets, so a scan can continue where it stopped.</p>
+ *
+ * <p>The entries are kept in a file, and only read when needed. This class is thread safe.</p>
+ */
+public class FilterHeaderStore {
+    public static final String HEADER_MAGIC = "CFHS";
+    private static final int FILE_HEADER_SIZE = 12;  // Magic, base height and scanned height.
+    private static final int RECORD_SIZE = 64;  // Block hash and filter header.
+
+    private final ReentrantLock lock = Threading.lock("FilterHeaderStore");
+    @GuardedBy("lock") private final RandomAccessFile file;
+    @GuardedBy("lock") private int baseHeight;
+    @GuardedBy("lock") private int scannedHeight;
+    @GuardedBy("lock") private int count;
+
+    /** Opens the store in the given file, which is created if it doesn't exist. */
+    public FilterHeaderStore(File file) throws BlockStoreException {
+        try {
+            this.file = new RandomAccessFile(file, "rw");
+            if (this.file.length() == 0) {
+                this.file.write(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+                this.file.writeInt(0);
+                this.file.writeInt(0);
+            } else {
+                byte[] magic = new byte[4];
+                this.file.readFully(magic);
+                if (!Arrays.equals(magic, HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII)))
+                    throw new BlockStoreException("Not a filter header store: " + file);
+                baseHeight = this.file.readInt();
+                scannedHeight = this.file.readInt();
+                count = (int) ((this.file.length() - FILE_HEADER_SIZE) / RECORD_SIZE);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns true if no entry was stored yet. */
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the first entry. The range starts at the given height, which is -1 if the first filter header is the
+     * one before the genesis block, which is all zeros.
+     */
+    public void initialize(int height, Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException {
+        checkArgument(height >= -1);
+        lock.lock();
+        try {
+            checkState(count == 0, "Store is already initialized");
+            baseHeight = height;
+            scannedHeight = height;
+            writeFileHeader();
+            writeRecord(0, blockHash, filterHeader);
+            count = 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the first entry. */
+    public int getBaseHeight() {
+        lock.lock();
+        try {
+            checkState(count > 0, "Store is empty");
+            return baseHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the last entry. */
+    public int getHeight() {
+        lock.lock();
+        try {
+            checkState(count > 0, "Store is empty");
+            return baseHeight + count - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stores the entry of the block after the last one. */
+    public void add(Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkState(count > 0, "Store is empty");
+            writeRecord(count, blockHash, filterHeader);
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the hash of the block at the given height, or null if it's out of the stored range. */
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        return read(height, 0);
+    }
+
+    /** Returns the filter header of the block at the given height, or null if it's out of the stored range. */
+    @Nullable
+    public Sha256Hash getFilterHeader(int height) throws BlockStoreException {
+        return read(height, 32);
+    }
+
+    /** Removes the entries above the given height, after a reorganize. The base entry can't be removed. */
+    public void truncate(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkArgument(count > 0 && height >= baseHeight, "Can't remove the base entry");
+            if (height >= baseHeight + count - 1)
+                return;
+            count = height - baseHeight + 1;
+            file.setLength(FILE_HEADER_SIZE + (long) count * RECORD_SIZE);
+            if (scannedHeight > height) {
+                scannedHeight = height;
+                writeFileHeader();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height up to which the filters were matched against the wallets. */
+    public int getScannedHeight() {
+        lock.lock();
+        try {
+            return scannedHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remembers the height up to which the filters were matched against the wallets. */
+    public void setScannedHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkArgument(count > 0 && height >= baseHeight && height < baseHeight + count);
+            scannedHeight = height;
+            writeFileHeader();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Sha256Hash read(int height, int offset) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (count == 0 || height < baseHeight || height >= baseHeight + count)
+                return null;
+            byte[] bytes = new byte[32];
+            file.seek(FILE_HEADER_SIZE + (long) (height - baseHeight) * RECORD_SIZE + offset);
+            file.readFully(bytes);
+            return Sha256Hash.wrap(bytes);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeRecord(int index, Sha256Hash blockHash, Sha256Hash filterHeader) throws BlockStoreException {
+        try {
+            file.seek(FILE_HEADER_SIZE + (long) index * RECORD_SIZE);
+            file.write(blockHash.getBytes());
+            file.write(filterHeader.getBytes());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeFileHeader() throws BlockStoreException {
+        try {
+            file.seek(4);
+            file.writeInt(baseHeight);
+            file.writeInt(scannedHeight);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
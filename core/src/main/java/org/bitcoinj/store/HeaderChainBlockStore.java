@@ -0,0 +1,378 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Holds the headers of the best chain in a memory mapped file, one fixed size record per height, so the block at
+ * any height is found with a single read. Blocks are found by hash through an index from hash to height, which is
+ * built from the hashes in the records when the store is opened. That takes no hashing, and the index needs only a few
+ * bytes per block, so the whole header chain can be kept and the store is ready right away.</p>
+ *
+ * <p>Blocks that are not part of the best chain, either because they are on a fork or because a re-org replaced them,
+ * are kept in memory only, up to {@link #MAX_SIDE_BLOCKS}. So like with an {@link SPVBlockStore}, very deep re-orgs
+ * can't be followed, and after a restart this store only knows the best chain.</p>
+ *
+ * <p>While the store holds a single block, as a new store does, a chain head may be set that doesn't connect to it,
+ * like a checkpoint. The stored chain then starts from that block. Once the store holds more, a chain head that
+ * doesn't connect is refused. Lookups may run concurrently from many threads, only writes are exclusive.</p>
+ */
+public class HeaderChainBlockStore implements HeightIndexedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(HeaderChainBlockStore.class);
+
+    public static final String HEADER_MAGIC = "HDRC";
+    /** The number of blocks that are not part of the best chain that are kept in memory. */
+    public static final int MAX_SIDE_BLOCKS = 5000;
+
+    // The file is grown by at least this many records at a time, as it has to be mapped again.
+    private static final int GROWTH_RECORDS = 1 << 14;
+
+    private final NetworkParameters params;
+    private final ReentrantReadWriteLock lock = Threading.readWriteLock("HeaderChainBlockStore");
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileLock fileLock;
+    @GuardedBy("lock") private MappedByteBuffer buffer;
+    @GuardedBy("lock") private int capacity;  // In records.
+    @GuardedBy("lock") private int baseHeight;
+    @GuardedBy("lock") private int headHeight;
+
+    // An open addressing hash table from the hash code of a block to its height minus the base height plus one, or
+    // zero for an empty slot. Hash codes can collide, so the hash is checked against the record. Entries of records
+    // that were overwritten by a re-org stay behind until the table is rebuilt, which is harmless for that reason.
+    @GuardedBy("lock") private int[] heightIndex;
+    @GuardedBy("lock") private int heightIndexEntries;
+
+    private final Cache<Sha256Hash, StoredBlock> sideBlocks = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIDE_BLOCKS).build();
+
+    private volatile StoredBlock chainHead;
+
+    /**
+     * Opens the store in the given file, or creates it if it's missing, with the genesis block of the given network
+     * as its chain head. This operation will block on disk.
+     */
+    public HeaderChainBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        boolean exists = file.exists();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if (exists && (randomAccessFile.length() < FILE_PROLOGUE_BYTES
+                    || (randomAccessFile.length() - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0))
+                throw new BlockStoreException("File size on disk indicates this is not a block store: "
+                        + randomAccessFile.length());
+            fileLock = randomAccessFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            this.randomAccessFile = randomAccessFile;
+            lock.writeLock().lock();
+            try {
+                if (exists) {
+                    map((int) ((randomAccessFile.length() - FILE_PROLOGUE_BYTES) / RECORD_SIZE));
+                    byte[] header = new byte[4];
+                    buffer.duplicate().get(header);
+                    if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+                        throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                    baseHeight = buffer.getInt(4);
+                    headHeight = buffer.getInt(8);
+                    if (headHeight < baseHeight || headHeight - baseHeight >= capacity)
+                        throw new BlockStoreException("Corrupted block store: bad heights " + baseHeight + " to "
+                                + headHeight);
+                    rebuildHeightIndex();
+                    chainHead = readRecord(headHeight);
+                    log.info("Opened header chain from height {} to {}", baseHeight, headHeight);
+                } else {
+                    log.info("Creating new header chain file {}", file);
+                    randomAccessFile.setLength(FILE_PROLOGUE_BYTES);
+                    map(0);
+                    buffer.duplicate().put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+                    heightIndex = new int[16];
+                    Block genesis = params.getGenesisBlock().cloneAsHeader();
+                    StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                    headHeight = -1;
+                    put(storedGenesis);
+                    setChainHead(storedGenesis);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (Exception e) {
+            try {
+                if (randomAccessFile != null) randomAccessFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        // Blocks become part of the stored chain when they are set as the chain head, or one of its ancestors.
+        if (get(block.getHeader().getHash()) == null)
+            sideBlocks.put(block.getHeader().getHash(), block);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock sideBlock = sideBlocks.getIfPresent(hash);
+        if (sideBlock != null)
+            return sideBlock;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int height = findHeight(hash);
+            return height < 0 ? null : readRecord(height);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            if (height < baseHeight || height > headHeight)
+                return null;
+            return readRecord(height);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        StoredBlock chainHead = this.chainHead;
+        if (chainHead == null)
+            throw new BlockStoreException("Store closed");
+        return chainHead;
+    }
+
+    /**
+     * Makes the chain that ends in the given block the stored chain. The block and the ancestors that aren't stored
+     * yet must have been put before.
+     */
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            // Collect the blocks back to where the new chain joins the stored one, usually just the new head.
+            List<StoredBlock> newBlocks = new ArrayList<>();
+            StoredBlock cursor = chainHead;
+            while (cursor != null && findHeight(cursor.getHeader().getHash()) != cursor.getHeight()) {
+                newBlocks.add(cursor);
+                cursor = cursor.getHeight() > baseHeight ? get(cursor.getHeader().getPrevBlockHash()) : null;
+            }
+            if (cursor == null) {
+                // Doesn't connect. That's expected when a new store is started at a checkpoint, so start over from the
+                // lowest block we have. Otherwise an ancestor is missing, for instance because it was evicted from the
+                // side blocks, and starting over would throw away the stored chain.
+                if (headHeight > baseHeight)
+                    throw new BlockStoreException("Chain head " + chainHead.getHeader().getHash()
+                            + " doesn't connect to the stored chain");
+                baseHeight = newBlocks.get(newBlocks.size() - 1).getHeight();
+                headHeight = baseHeight - 1;
+                heightIndex = new int[16];
+                heightIndexEntries = 0;
+                log.info("Starting header chain at height {}", baseHeight);
+            } else {
+                // Keep the blocks that are no longer part of the chain around, in case it's re-organized back.
+                for (int height = cursor.getHeight() + 1; height <= headHeight; height++)
+                    sideBlocks.put(readHash(height), readRecord(height));
+            }
+            ensureCapacity(chainHead.getHeight() - baseHeight + 1);
+            for (StoredBlock block : newBlocks) {
+                Sha256Hash hash = block.getHeader().getHash();
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset(block.getHeight()));
+                record.put(hash.getBytes());
+                block.serializeCompact(record);
+                sideBlocks.invalidate(hash);
+            }
+            headHeight = chainHead.getHeight();
+            if (2 * (heightIndexEntries + newBlocks.size()) > heightIndex.length) {
+                rebuildHeightIndex();
+            } else {
+                for (StoredBlock block : newBlocks)
+                    addToHeightIndex(block.getHeader().getHash().hashCode(), block.getHeight());
+            }
+            // Written last, so the records are complete when it's read.
+            buffer.putInt(4, baseHeight);
+            buffer.putInt(8, headHeight);
+            this.chainHead = chainHead;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (buffer == null)
+                return;
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            chainHead = null;
+            heightIndex = null;
+            sideBlocks.invalidateAll();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    // File format:
+    //   4 header bytes = "HDRC"
+    //   4 bytes for the height of the first record
+    //   4 bytes for the height of the chain head, which is the last valid record
+    //
+    // For each height from the first record onwards (128 bytes)
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    static final int FILE_PROLOGUE_BYTES = 1024;
+    static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    private void checkOpen() throws BlockStoreException {
+        if (buffer == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private int offset(int height) {
+        return FILE_PROLOGUE_BYTES + (height - baseHeight) * RECORD_SIZE;
+    }
+
+    private Sha256Hash readHash(int height) {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset(height));
+        record.get(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    private StoredBlock readRecord(int height) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset(height) + Sha256Hash.LENGTH);
+        try {
+            return StoredBlock.deserializeCompact(params, record);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    // Returns the height of the block with the given hash in the stored chain, or -1 if it isn't there.
+    private int findHeight(Sha256Hash hash) {
+        int mask = heightIndex.length - 1;
+        byte[] bytes = hash.getBytes();
+        for (int slot = hash.hashCode() & mask; heightIndex[slot] != 0; slot = (slot + 1) & mask) {
+            int height = baseHeight + heightIndex[slot] - 1;
+            if (height > headHeight)
+                continue;
+            int offset = offset(height);
+            boolean equal = true;
+            for (int i = 0; i < Sha256Hash.LENGTH && equal; i++)
+                equal = buffer.get(offset + i) == bytes[i];
+            if (equal)
+                return height;
+        }
+        return -1;
+    }
+
+    private void addToHeightIndex(int hashCode, int height) {
+        int mask = heightIndex.length - 1;
+        int slot = hashCode & mask;
+        while (heightIndex[slot] != 0)
+            slot = (slot + 1) & mask;
+        heightIndex[slot] = height - baseHeight + 1;
+        heightIndexEntries++;
+    }
+
+    // Indexes the records up to the chain head in a table that is a quarter full, so it takes a while to fill up.
+    private void rebuildHeightIndex() {
+        int size = 16;
+        while (size < 4 * (headHeight - baseHeight + 1))
+            size <<= 1;
+        heightIndex = new int[size];
+        heightIndexEntries = 0;
+        for (int height = baseHeight; height <= headHeight; height++) {
+            // The hash code of a Sha256Hash is its last four bytes.
+            addToHeightIndex(buffer.getInt(offset(height) + Sha256Hash.LENGTH - 4), height);
+        }
+    }
+
+    private void ensureCapacity(int records) throws BlockStoreException {
+        if (records <= capacity)
+            return;
+        try {
+            int newCapacity = Math.max(records, capacity + Math.max(capacity / 2, GROWTH_RECORDS));
+            randomAccessFile.setLength(FILE_PROLOGUE_BYTES + (long) newCapacity * RECORD_SIZE);
+            map(newCapacity);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Maps the file with room for the given number of records. A previous mapping goes away when it's GCd.
+    private void map(int records) throws IOException {
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                FILE_PROLOGUE_BYTES + (long) records * RECORD_SIZE);
+        capacity = records;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BlockStore} that can also look up the blocks of the best chain by height, that is the chain that ends in
+ * the block last passed to {@link #setChainHead(StoredBlock)}.
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block of the best chain at the given height, or null if the store doesn't hold it, for example
+     * because the height is above the chain head or below the checkpoint the store started from.
+     */
+    @Nullable
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+}
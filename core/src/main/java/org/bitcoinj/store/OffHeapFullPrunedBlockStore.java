@@ -0,0 +1,918 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptPattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps the set of unspent transaction outputs outside of the Java heap. With
+ * millions of outputs, the boxed objects of the {@link MemoryFullPrunedBlockStore} and the caches of the
+ * {@link LevelDBFullPrunedBlockStore} keep the garbage collector very busy. Here the outputs live in an open
+ * addressing hash table in direct memory, keyed by the 36 byte outpoint, with compactly encoded values. Block headers
+ * are kept on the heap, undo blocks stay on disk until they are needed.</p>
+ *
+ * <p>Everything is persisted to a single append-only log file. Each {@link #commitDatabaseBatchWrite()} appends one
+ * checksummed frame with all changes of the batch and forces it to disk before returning, so a committed batch
+ * survives a crash and a batch is either completely on disk or not at all. When the store is opened the log is
+ * replayed, and a torn frame at the end (e.g. after a crash) is discarded. Once most of the log consists of spent
+ * outputs and pruned undo blocks, it is compacted by writing a snapshot of the live state to a new file that replaces
+ * the log.</p>
+ *
+ * <p>Like the other stores, changes made between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} are visible to reads, and are thrown away by
+ * {@link #abortDatabaseBatchWrite()}. Changes made outside of a batch are committed right away.</p>
+ */
+public class OffHeapFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapFullPrunedBlockStore.class);
+
+    public static final String HEADER_MAGIC = "UTXL";
+    private static final int VERSION = 1;
+    private static final int FILE_PROLOGUE_BYTES = 8;  // magic and version
+    private static final int FRAME_HEADER_BYTES = 8;  // length and checksum
+    // The log isn't compacted before it reaches this size, even if it's mostly garbage.
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024 * 1024;
+    private static final int SNAPSHOT_FRAME_SIZE = 1024 * 1024;
+
+    // Record types. Each record starts with its type byte.
+    private static final byte RECORD_BLOCK = 1;  // compact stored block, was undoable flag
+    private static final byte RECORD_UNDO_BLOCK = 2;  // hash, height, length, serialized undo block
+    private static final byte RECORD_PRUNE_UNDO_BLOCK = 3;  // hash
+    private static final byte RECORD_ADD_OUTPUT = 4;  // outpoint, length, encoded value
+    private static final byte RECORD_REMOVE_OUTPUT = 5;  // outpoint
+    private static final byte RECORD_CHAIN_HEAD = 6;  // hash
+    private static final byte RECORD_VERIFIED_CHAIN_HEAD = 7;  // hash
+
+    private static final int UNDO_BLOCK_RECORD_OVERHEAD = 1 + 32 + 4 + 4;
+    private static final int ADD_OUTPUT_RECORD_OVERHEAD = 1 + OffHeapUTXOSet.KEY_SIZE + 4;
+    private static final int REMOVE_OUTPUT_RECORD_SIZE = 1 + OffHeapUTXOSet.KEY_SIZE;
+    private static final int HASH_RECORD_SIZE = 1 + 32;
+
+    private static class BlockEntry {
+        final StoredBlock block;
+        final boolean wasUndoable;
+
+        BlockEntry(StoredBlock block, boolean wasUndoable) {
+            this.block = block;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    // Where an undo block is in the log, or its serialized form while it is part of the current batch.
+    private static class UndoEntry {
+        final int height;
+        final long offset;
+        final int length;
+        @Nullable final byte[] data;
+
+        UndoEntry(int height, long offset, int length, @Nullable byte[] data) {
+            this.height = height;
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    private final int fullStoreDepth;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    // Used to stop other applications/processes from opening the store.
+    private FileLock fileLock;
+    private long logSize;
+    // Estimate of the bytes in the log that are superseded by later records.
+    private long garbageSize;
+
+    private final Map<Sha256Hash, BlockEntry> blocks = new HashMap<>();
+    private final Map<Sha256Hash, UndoEntry> undoBlocks = new HashMap<>();
+    private final TreeMap<Integer, Set<Sha256Hash>> undoBlocksByHeight = new TreeMap<>();
+    private final OffHeapUTXOSet outputs;
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // The current batch: its records, and its changes for reads to see until it is committed.
+    private boolean inBatch;
+    private ByteArrayOutputStream batchBytes = new ByteArrayOutputStream();
+    private DataOutputStream batch = new DataOutputStream(batchBytes);
+    private final Map<Sha256Hash, BlockEntry> batchBlocks = new HashMap<>();
+    private final Map<Sha256Hash, UndoEntry> batchUndoBlocks = new HashMap<>();
+    private final Set<Sha256Hash> batchPrunedUndoBlocks = new HashSet<>();
+    // A null value means the output was removed.
+    private final Map<StoredTransactionOutPoint, byte[]> batchOutputs = new HashMap<>();
+    @Nullable private StoredBlock batchChainHead;
+    @Nullable private StoredBlock batchVerifiedChainHead;
+
+    /**
+     * Opens the block store in the given file, or creates a new one if the file doesn't exist.
+     *
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param file The log file of the store
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, File file, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, file, fullStoreDepth, 0);
+    }
+
+    /**
+     * Opens the block store in the given file, or creates a new one if the file doesn't exist.
+     *
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param file The log file of the store
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param expectedOutputs The number of unspent outputs to size the hash table for, to avoid growing it
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, File file, int fullStoreDepth, long expectedOutputs)
+            throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        checkArgument(expectedOutputs >= 0);
+        this.outputs = new OffHeapUTXOSet(expectedOutputs);
+        try {
+            boolean exists = file.exists();
+            openFile();
+            if (exists) {
+                replay();
+            } else {
+                log.info("Creating new block store file " + file);
+                ByteBuffer prologue = ByteBuffer.allocate(FILE_PROLOGUE_BYTES);
+                prologue.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+                prologue.putInt(VERSION);
+                prologue.flip();
+                writeFully(prologue, 0);
+                logSize = FILE_PROLOGUE_BYTES;
+                initNewStore();
+            }
+        } catch (BlockStoreException e) {
+            closeFile();
+            throw e;
+        } catch (IOException e) {
+            closeFile();
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void openFile() throws IOException, BlockStoreException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        fileLock = channel.tryLock();
+        if (fileLock == null)
+            throw new ChainFileLockedException("Store file is already locked by another process");
+    }
+
+    private void reopenFile() throws BlockStoreException {
+        try {
+            openFile();
+        } catch (IOException e) {
+            closeFile();
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void closeFile() {
+        try {
+            if (randomAccessFile != null)
+                randomAccessFile.close();  // Also releases the lock.
+        } catch (IOException e) {
+            log.warn("Failed to close " + file, e);
+        }
+        randomAccessFile = null;
+        channel = null;
+        fileLock = null;
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        // The coinbase in the genesis block is not spendable
+        List<Transaction> genesisTransactions = new LinkedList<>();
+        StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                genesisTransactions);
+        beginDatabaseBatchWrite();
+        put(storedGenesisHeader, storedGenesis);
+        setChainHead(storedGenesisHeader);
+        setVerifiedChainHead(storedGenesisHeader);
+        commitDatabaseBatchWrite();
+    }
+
+    private void replay() throws IOException, BlockStoreException {
+        long fileSize = channel.size();
+        ByteBuffer prologue = ByteBuffer.allocate(FILE_PROLOGUE_BYTES);
+        if (fileSize < FILE_PROLOGUE_BYTES)
+            throw new BlockStoreException("File is too short to be a block store: " + fileSize);
+        readFully(prologue, 0);
+        byte[] magic = new byte[4];
+        prologue.get(magic);
+        if (!new String(magic, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+            throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+        int version = prologue.getInt();
+        if (version != VERSION)
+            throw new BlockStoreException("Unsupported block store version: " + version);
+
+        long position = FILE_PROLOGUE_BYTES;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        while (position + FRAME_HEADER_BYTES <= fileSize) {
+            frameHeader.clear();
+            readFully(frameHeader, position);
+            int length = frameHeader.getInt();
+            int checksum = frameHeader.getInt();
+            if (length < 0 || position + FRAME_HEADER_BYTES + length > fileSize)
+                break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + FRAME_HEADER_BYTES);
+            if (checksum(payload.array()) != checksum)
+                break;
+            applyFrame(payload, position + FRAME_HEADER_BYTES);
+            position += FRAME_HEADER_BYTES + length;
+        }
+        if (position != fileSize) {
+            // The last batch was only partially written, most likely because we crashed. It was never committed.
+            log.warn("Discarding {} bytes of incomplete writes at the end of {}", fileSize - position, file);
+            channel.truncate(position);
+        }
+        logSize = position;
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head");
+        log.info("Loaded {} block headers and {} unspent outputs from {}", blocks.size(), outputs.size(), file);
+    }
+
+    /**
+     * Applies the records of a frame, when it is committed or replayed.
+     *
+     * @param payloadOffset where the payload of the frame starts in the log
+     */
+    private void applyFrame(ByteBuffer payload, long payloadOffset) throws BlockStoreException {
+        try {
+            while (payload.hasRemaining()) {
+                byte type = payload.get();
+                switch (type) {
+                    case RECORD_BLOCK: {
+                        StoredBlock block = StoredBlock.deserializeCompact(params, payload);
+                        boolean wasUndoable = payload.get() != 0;
+                        blocks.put(block.getHeader().getHash(), new BlockEntry(block, wasUndoable));
+                        break;
+                    }
+                    case RECORD_UNDO_BLOCK: {
+                        Sha256Hash hash = readHash(payload);
+                        int height = payload.getInt();
+                        int length = payload.getInt();
+                        long offset = payloadOffset + payload.position();
+                        payload.position(payload.position() + length);
+                        removeUndoBlock(hash);
+                        undoBlocks.put(hash, new UndoEntry(height, offset, length, null));
+                        Set<Sha256Hash> atHeight = undoBlocksByHeight.get(height);
+                        if (atHeight == null) {
+                            atHeight = new HashSet<>();
+                            undoBlocksByHeight.put(height, atHeight);
+                        }
+                        atHeight.add(hash);
+                        break;
+                    }
+                    case RECORD_PRUNE_UNDO_BLOCK: {
+                        removeUndoBlock(readHash(payload));
+                        garbageSize += HASH_RECORD_SIZE;
+                        break;
+                    }
+                    case RECORD_ADD_OUTPUT: {
+                        Sha256Hash hash = readHash(payload);
+                        long index = payload.getInt() & 0xFFFFFFFFL;
+                        byte[] value = new byte[payload.getInt()];
+                        payload.get(value);
+                        if (!outputs.put(hash, index, value))
+                            garbageSize += ADD_OUTPUT_RECORD_OVERHEAD + value.length;  // Roughly the replaced record.
+                        break;
+                    }
+                    case RECORD_REMOVE_OUTPUT: {
+                        Sha256Hash hash = readHash(payload);
+                        long index = payload.getInt() & 0xFFFFFFFFL;
+                        int removed = outputs.remove(hash, index);
+                        if (removed >= 0)
+                            garbageSize += ADD_OUTPUT_RECORD_OVERHEAD + removed;
+                        garbageSize += REMOVE_OUTPUT_RECORD_SIZE;
+                        break;
+                    }
+                    case RECORD_CHAIN_HEAD: {
+                        if (chainHead != null)
+                            garbageSize += HASH_RECORD_SIZE;
+                        chainHead = getCommittedBlock(readHash(payload));
+                        break;
+                    }
+                    case RECORD_VERIFIED_CHAIN_HEAD: {
+                        if (verifiedChainHead != null)
+                            garbageSize += HASH_RECORD_SIZE;
+                        verifiedChainHead = getCommittedBlock(readHash(payload));
+                        break;
+                    }
+                    default:
+                        throw new BlockStoreException("Corrupted block store: unknown record type " + type);
+                }
+            }
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void removeUndoBlock(Sha256Hash hash) {
+        UndoEntry removed = undoBlocks.remove(hash);
+        if (removed == null)
+            return;
+        garbageSize += UNDO_BLOCK_RECORD_OVERHEAD + removed.length;
+        Set<Sha256Hash> atHeight = undoBlocksByHeight.get(removed.height);
+        atHeight.remove(hash);
+        if (atHeight.isEmpty())
+            undoBlocksByHeight.remove(removed.height);
+    }
+
+    private StoredBlock getCommittedBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = blocks.get(hash);
+        if (entry == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        return entry.block;
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buffer) {
+        byte[] hash = new byte[32];
+        buffer.get(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of " + file);
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (channel == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    /** Starts an implicit batch for a change made outside of a batch. Returns true if the caller must commit it. */
+    private boolean beginChange() throws BlockStoreException {
+        checkOpen();
+        if (inBatch)
+            return false;
+        inBatch = true;
+        return true;
+    }
+
+    private void endChange(boolean autoCommit) throws BlockStoreException {
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        boolean autoCommit = beginChange();
+        writeBlockRecord(block, false);
+        endChange(autoCommit);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        boolean autoCommit = beginChange();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        byte[] data = serializeUndoBlock(undoableBlock);
+        try {
+            batch.writeByte(RECORD_UNDO_BLOCK);
+            batch.write(hash.getBytes());
+            batch.writeInt(storedBlock.getHeight());
+            batch.writeInt(data.length);
+            batch.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        batchUndoBlocks.put(hash, new UndoEntry(storedBlock.getHeight(), -1, data.length, data));
+        batchPrunedUndoBlocks.remove(hash);
+        writeBlockRecord(storedBlock, true);
+        endChange(autoCommit);
+    }
+
+    private void writeBlockRecord(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(compact);
+        try {
+            batch.writeByte(RECORD_BLOCK);
+            batch.write(compact.array());
+            batch.writeByte(wasUndoable ? 1 : 0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        batchBlocks.put(block.getHeader().getHash(), new BlockEntry(block, wasUndoable));
+    }
+
+    @Nullable
+    private BlockEntry getBlockEntry(Sha256Hash hash) {
+        BlockEntry entry = batchBlocks.get(hash);
+        return entry != null ? entry : blocks.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        BlockEntry entry = getBlockEntry(hash);
+        return entry == null ? null : entry.block;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        BlockEntry entry = getBlockEntry(hash);
+        return (entry != null && entry.wasUndoable) ? entry.block : null;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        if (batchPrunedUndoBlocks.contains(hash))
+            return null;
+        UndoEntry entry = batchUndoBlocks.get(hash);
+        if (entry == null)
+            entry = undoBlocks.get(hash);
+        if (entry == null)
+            return null;
+        byte[] data = entry.data;
+        if (data == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            try {
+                readFully(buffer, entry.offset);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+            data = buffer.array();
+        }
+        return deserializeUndoBlock(hash, data);
+    }
+
+    // Same format as the LevelDBFullPrunedBlockStore, prefixed by a byte saying which of the two kinds it is.
+    private static byte[] serializeUndoBlock(StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private StoredUndoableBlock deserializeUndoBlock(Sha256Hash hash, byte[] data) throws BlockStoreException {
+        try {
+            if (data[0] == 0) {
+                TransactionOutputChanges txOutChanges = new TransactionOutputChanges(
+                        new ByteArrayInputStream(data, 1, data.length - 1));
+                return new StoredUndoableBlock(hash, txOutChanges);
+            }
+            int numTxn = (int) Utils.readUint32(data, 1);
+            int offset = 5;
+            List<Transaction> transactionList = new LinkedList<>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, data, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException | ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return batchChainHead != null ? batchChainHead : chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        boolean autoCommit = beginChange();
+        writeHashRecord(RECORD_CHAIN_HEAD, chainHead.getHeader().getHash());
+        batchChainHead = chainHead;
+        endChange(autoCommit);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return batchVerifiedChainHead != null ? batchVerifiedChainHead : verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        boolean autoCommit = beginChange();
+        writeHashRecord(RECORD_VERIFIED_CHAIN_HEAD, chainHead.getHeader().getHash());
+        batchVerifiedChainHead = chainHead;
+        if (getChainHead() == null || getChainHead().getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Prune the undo blocks that are too deep to be needed for a re-org.
+        int pruneBelow = chainHead.getHeight() - fullStoreDepth;
+        for (Set<Sha256Hash> atHeight : undoBlocksByHeight.headMap(pruneBelow).values())
+            for (Sha256Hash hash : atHeight)
+                pruneUndoBlock(hash);
+        for (Iterator<Map.Entry<Sha256Hash, UndoEntry>> it = batchUndoBlocks.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Sha256Hash, UndoEntry> entry = it.next();
+            if (entry.getValue().height < pruneBelow) {
+                it.remove();
+                pruneUndoBlock(entry.getKey());
+            }
+        }
+        endChange(autoCommit);
+    }
+
+    private void pruneUndoBlock(Sha256Hash hash) {
+        if (batchPrunedUndoBlocks.add(hash))
+            writeHashRecord(RECORD_PRUNE_UNDO_BLOCK, hash);
+    }
+
+    private void writeHashRecord(byte type, Sha256Hash hash) {
+        try {
+            batch.writeByte(type);
+            batch.write(hash.getBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        if (batchOutputs.containsKey(outPoint)) {
+            byte[] value = batchOutputs.get(outPoint);
+            return value == null ? null : OffHeapUTXOSet.decodeValue(hash, index, value);
+        }
+        return outputs.get(hash, index);
+    }
+
+    private boolean containsOutput(Sha256Hash hash, long index) {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        if (batchOutputs.containsKey(outPoint))
+            return batchOutputs.get(outPoint) != null;
+        return outputs.contains(hash, index);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        boolean autoCommit = beginChange();
+        byte[] value = OffHeapUTXOSet.encodeValue(out);
+        try {
+            batch.writeByte(RECORD_ADD_OUTPUT);
+            batch.write(out.getHash().getBytes());
+            batch.writeInt((int) out.getIndex());
+            batch.writeInt(value.length);
+            batch.write(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        batchOutputs.put(new StoredTransactionOutPoint(out), value);
+        endChange(autoCommit);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        if (!containsOutput(out.getHash(), out.getIndex()))
+            throw new BlockStoreException("Tried to remove a UTXO from OffHeapFullPrunedBlockStore that it didn't have!");
+        boolean autoCommit = beginChange();
+        try {
+            batch.writeByte(RECORD_REMOVE_OUTPUT);
+            batch.write(out.getHash().getBytes());
+            batch.writeInt((int) out.getIndex());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        batchOutputs.put(new StoredTransactionOutPoint(out), null);
+        endChange(autoCommit);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        for (int i = 0; i < numOutputs; i++)
+            if (containsOutput(hash, i))
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        byte[] payload = batchBytes.toByteArray();
+        clearBatch();
+        if (payload.length == 0)
+            return;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt(checksum(payload));
+        frame.put(payload);
+        frame.flip();
+        try {
+            writeFully(frame, logSize);
+            // A committed batch must survive a crash. The file length changes too, which force(false) still writes.
+            channel.force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        applyFrame(ByteBuffer.wrap(payload), logSize + FRAME_HEADER_BYTES);
+        logSize += frame.capacity();
+        if (logSize > MIN_COMPACTION_SIZE && garbageSize > logSize / 2)
+            compact();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        clearBatch();
+    }
+
+    private void clearBatch() {
+        inBatch = false;
+        batchBytes = new ByteArrayOutputStream();
+        batch = new DataOutputStream(batchBytes);
+        batchBlocks.clear();
+        batchUndoBlocks.clear();
+        batchPrunedUndoBlocks.clear();
+        batchOutputs.clear();
+        batchChainHead = null;
+        batchVerifiedChainHead = null;
+    }
+
+    /**
+     * Replaces the log with a snapshot of the current state, dropping all spent outputs, pruned undo blocks and old
+     * chain heads. This happens automatically once most of the log is garbage. Must not be called during a batch.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        if (inBatch)
+            throw new IllegalStateException("Cannot compact during a batch write");
+        File snapshotFile = new File(file.getPath() + ".tmp");
+        Map<Sha256Hash, UndoEntry> movedUndoBlocks = new HashMap<>();
+        long snapshotSize;
+        try (RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "rw")) {
+            snapshot.setLength(0);
+            SnapshotWriter writer = new SnapshotWriter(snapshot.getChannel());
+            for (BlockEntry entry : blocks.values()) {
+                ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+                entry.block.serializeCompact(compact);
+                writer.out.writeByte(RECORD_BLOCK);
+                writer.out.write(compact.array());
+                writer.out.writeByte(entry.wasUndoable ? 1 : 0);
+                writer.endRecord();
+            }
+            for (Map.Entry<Sha256Hash, UndoEntry> entry : undoBlocks.entrySet()) {
+                UndoEntry undo = entry.getValue();
+                ByteBuffer data = ByteBuffer.allocate(undo.length);
+                readFully(data, undo.offset);
+                writer.out.writeByte(RECORD_UNDO_BLOCK);
+                writer.out.write(entry.getKey().getBytes());
+                writer.out.writeInt(undo.height);
+                writer.out.writeInt(undo.length);
+                long offset = writer.position();
+                writer.out.write(data.array());
+                movedUndoBlocks.put(entry.getKey(), new UndoEntry(undo.height, offset, undo.length, null));
+                writer.endRecord();
+            }
+            for (Iterator<UTXO> it = outputs.iterator(); it.hasNext(); ) {
+                UTXO out = it.next();
+                byte[] value = OffHeapUTXOSet.encodeValue(out);
+                writer.out.writeByte(RECORD_ADD_OUTPUT);
+                writer.out.write(out.getHash().getBytes());
+                writer.out.writeInt((int) out.getIndex());
+                writer.out.writeInt(value.length);
+                writer.out.write(value);
+                writer.endRecord();
+            }
+            writer.out.writeByte(RECORD_CHAIN_HEAD);
+            writer.out.write(chainHead.getHeader().getHash().getBytes());
+            writer.out.writeByte(RECORD_VERIFIED_CHAIN_HEAD);
+            writer.out.write(verifiedChainHead.getHeader().getHash().getBytes());
+            writer.flushFrame();
+            snapshot.getChannel().force(true);
+            snapshotSize = writer.fileSize;
+        } catch (IOException e) {
+            snapshotFile.delete();
+            throw new BlockStoreException(e);
+        }
+        closeFile();
+        try {
+            Files.move(snapshotFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Keep going with the old log.
+            snapshotFile.delete();
+            reopenFile();
+            throw new BlockStoreException(e);
+        }
+        reopenFile();
+        log.info("Compacted {} from {} to {} bytes", file, logSize, snapshotSize);
+        undoBlocks.putAll(movedUndoBlocks);
+        logSize = snapshotSize;
+        garbageSize = 0;
+    }
+
+    // Writes records to a new log, in frames of about SNAPSHOT_FRAME_SIZE bytes.
+    private static class SnapshotWriter {
+        final FileChannel channel;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        long fileSize;
+
+        SnapshotWriter(FileChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer prologue = ByteBuffer.allocate(FILE_PROLOGUE_BYTES);
+            prologue.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            prologue.putInt(VERSION);
+            prologue.flip();
+            write(prologue);
+        }
+
+        /** Returns the position in the file that the next byte written to {@link #out} will end up at. */
+        long position() {
+            return fileSize + FRAME_HEADER_BYTES + bytes.size();
+        }
+
+        void endRecord() throws IOException {
+            if (bytes.size() >= SNAPSHOT_FRAME_SIZE)
+                flushFrame();
+        }
+
+        void flushFrame() throws IOException {
+            byte[] payload = bytes.toByteArray();
+            bytes.reset();
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length);
+            frame.putInt(payload.length);
+            frame.putInt(checksum(payload));
+            frame.put(payload);
+            frame.flip();
+            write(frame);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining())
+                fileSize += channel.write(buffer, fileSize);
+        }
+    }
+
+    /** Returns the number of unspent outputs in the store, not counting the current batch. */
+    public synchronized long getUnspentOutputCount() {
+        return outputs.size();
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (channel == null)
+            return;
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            closeFile();
+            clearBatch();
+            outputs.clear();
+            blocks.clear();
+            undoBlocks.clear();
+            undoBlocksByHeight.clear();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        // Like the MemoryFullPrunedBlockStore, this goes through all outputs. The set has no index by address.
+        // Outputs are matched by pubKeyHash, so native segwit outputs of the keys are found too.
+        Map<ByteBuffer, ECKey> keysByPubKeyHash = new HashMap<>();
+        for (ECKey key : keys)
+            keysByPubKeyHash.put(ByteBuffer.wrap(key.getPubKeyHash()), key);
+        List<UTXO> foundOutputs = new ArrayList<>();
+        for (Iterator<UTXO> it = outputs.iterator(); it.hasNext(); ) {
+            UTXO output = it.next();
+            Script script = output.getScript();
+            byte[] pubKeyHash;
+            boolean segwit = false;
+            if (ScriptPattern.isPayToPubKeyHash(script)) {
+                pubKeyHash = ScriptPattern.extractHashFromPayToPubKeyHash(script);
+            } else if (ScriptPattern.isPayToWitnessPubKeyHash(script)) {
+                pubKeyHash = ScriptPattern.extractHashFromPayToWitnessHash(script);
+                segwit = true;
+            } else if (ScriptPattern.isPayToPubKey(script)) {
+                pubKeyHash = Utils.sha256hash160(ScriptPattern.extractKeyFromPayToPubKey(script));
+            } else {
+                continue;
+            }
+            ECKey key = keysByPubKeyHash.get(ByteBuffer.wrap(pubKeyHash));
+            if (key == null)
+                continue;
+            Address address = segwit ? SegwitAddress.fromKey(params, key) : LegacyAddress.fromKey(params, key);
+            foundOutputs.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                    output.isCoinbase(), script, address.toString()));
+        }
+        return foundOutputs;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.collect.AbstractIterator;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>A set of {@link UTXO}s kept outside of the Java heap, in an open addressing hash table keyed by the 36 byte
+ * outpoint (transaction hash and output index).</p>
+ *
+ * <p>Each slot of the table is 48 bytes: the key, the length of the value and a reference to the value. Values are
+ * encoded compactly (see {@link #encodeValue(UTXO)}) and appended to an arena. Collisions are resolved by linear
+ * probing and removals shift the following entries back, so there are no tombstones. The space of removed values is
+ * reclaimed by copying the live ones to a fresh arena once there is more garbage than live data.</p>
+ *
+ * <p>Both the table and the arena are made of direct buffers, so apart from the objects handed out by
+ * {@link #iterator()} nothing is allocated on the heap per entry and the garbage collector never has to trace the
+ * set, no matter how large it gets. This class is not thread-safe.</p>
+ */
+class OffHeapUTXOSet {
+    static final int KEY_SIZE = 32 + 4;
+
+    private static final int SLOT_SIZE = 48;
+    private static final int LENGTH_OFFSET = KEY_SIZE;
+    private static final int REF_OFFSET = LENGTH_OFFSET + 4;
+    // The table is split into pages, so it isn't limited by the maximum size of a single buffer.
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SLOTS = 1 << PAGE_BITS;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int ARENA_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // Randomizes the position of entries in the table, so nobody can create transactions that all probe the same
+    // slots.
+    private final long seed = new SecureRandom().nextLong();
+
+    private ByteBuffer[] pages;
+    private long capacity;
+    private long size;
+
+    private List<ByteBuffer> arena;
+    private ByteBuffer arenaTail;
+    private long liveBytes;
+    private long garbageBytes;
+
+    OffHeapUTXOSet(long expectedSize) {
+        checkArgument(expectedSize >= 0);
+        long capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity <<= 1;
+        pages = allocatePages(capacity);
+        this.capacity = capacity;
+        arena = new ArrayList<>();
+    }
+
+    /** Returns the number of outputs in the set. */
+    long size() {
+        return size;
+    }
+
+    /** Returns the number of bytes of direct memory used by the set. */
+    long getMemoryUsage() {
+        long usage = capacity * SLOT_SIZE;
+        for (ByteBuffer chunk : arena)
+            usage += chunk.capacity();
+        return usage;
+    }
+
+    /** Returns the encoded value of the given output, or null if it isn't in the set. */
+    @Nullable
+    byte[] getValue(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), index);
+        if (slot < 0)
+            return null;
+        ByteBuffer page = pages[page(slot)];
+        int base = offset(slot);
+        return readArena(page.getLong(base + REF_OFFSET), page.getInt(base + LENGTH_OFFSET));
+    }
+
+    /** Returns the given output, or null if it isn't in the set. */
+    @Nullable
+    UTXO get(Sha256Hash hash, long index) {
+        byte[] value = getValue(hash, index);
+        return value == null ? null : decodeValue(hash, index, value);
+    }
+
+    boolean contains(Sha256Hash hash, long index) {
+        return find(hash.getBytes(), index) >= 0;
+    }
+
+    /**
+     * Adds an output with the given encoded value, replacing the value if the output is already in the set.
+     *
+     * @return true if the output was not in the set before
+     */
+    boolean put(Sha256Hash hash, long index, byte[] value) {
+        checkArgument(value.length > 0);
+        byte[] txid = hash.getBytes();
+        long slot = find(txid, index);
+        if (slot >= 0) {
+            ByteBuffer page = pages[page(slot)];
+            int base = offset(slot);
+            release(page.getInt(base + LENGTH_OFFSET));
+            page.putInt(base + LENGTH_OFFSET, value.length);
+            page.putLong(base + REF_OFFSET, appendArena(value));
+            compactArenaIfNeeded();
+            return false;
+        }
+        if ((size + 1) * 4 > capacity * 3)
+            resize(capacity * 2);
+        slot = home(Utils.readInt64(txid, 0), index);
+        while (!isEmpty(slot))
+            slot = next(slot);
+        ByteBuffer page = pages[page(slot)];
+        int base = offset(slot);
+        page.putLong(base, Utils.readInt64(txid, 0));
+        page.putLong(base + 8, Utils.readInt64(txid, 8));
+        page.putLong(base + 16, Utils.readInt64(txid, 16));
+        page.putLong(base + 24, Utils.readInt64(txid, 24));
+        page.putInt(base + 32, (int) index);
+        page.putInt(base + LENGTH_OFFSET, value.length);
+        page.putLong(base + REF_OFFSET, appendArena(value));
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes the given output from the set.
+     *
+     * @return the length of the encoded value that was removed, or -1 if the output was not in the set
+     */
+    int remove(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), index);
+        if (slot < 0)
+            return -1;
+        int length = pages[page(slot)].getInt(offset(slot) + LENGTH_OFFSET);
+        release(length);
+        // Move back any following entries that can't be found anymore when this slot becomes empty, i.e. the ones
+        // whose home slot is not cyclically between the hole and their current slot.
+        long hole = slot;
+        long current = next(slot);
+        while (!isEmpty(current)) {
+            long home = home(pages[page(current)].getLong(offset(current)),
+                    pages[page(current)].getInt(offset(current) + 32) & 0xFFFFFFFFL);
+            if (((current - home) & (capacity - 1)) >= ((current - hole) & (capacity - 1))) {
+                copySlot(pages, current, pages, hole);
+                hole = current;
+            }
+            current = next(current);
+        }
+        pages[page(hole)].putInt(offset(hole) + LENGTH_OFFSET, 0);
+        size--;
+        compactArenaIfNeeded();
+        return length;
+    }
+
+    /** Removes all outputs and releases the memory used for them. */
+    void clear() {
+        pages = allocatePages(MIN_CAPACITY);
+        capacity = MIN_CAPACITY;
+        size = 0;
+        arena = new ArrayList<>();
+        arenaTail = null;
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    /** Iterates over all outputs in the set, in no particular order. The set must not be modified meanwhile. */
+    Iterator<UTXO> iterator() {
+        return new AbstractIterator<UTXO>() {
+            private long slot = 0;
+
+            @Override
+            protected UTXO computeNext() {
+                while (slot < capacity) {
+                    long current = slot++;
+                    if (isEmpty(current))
+                        continue;
+                    ByteBuffer page = pages[page(current)];
+                    int base = offset(current);
+                    byte[] txid = new byte[32];
+                    for (int i = 0; i < 4; i++)
+                        Utils.int64ToByteArrayLE(page.getLong(base + i * 8), txid, i * 8);
+                    long index = page.getInt(base + 32) & 0xFFFFFFFFL;
+                    byte[] value = readArena(page.getLong(base + REF_OFFSET), page.getInt(base + LENGTH_OFFSET));
+                    return decodeValue(Sha256Hash.wrap(txid), index, value);
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private long find(byte[] txid, long index) {
+        long k0 = Utils.readInt64(txid, 0);
+        long k1 = Utils.readInt64(txid, 8);
+        long k2 = Utils.readInt64(txid, 16);
+        long k3 = Utils.readInt64(txid, 24);
+        for (long slot = home(k0, index); !isEmpty(slot); slot = next(slot)) {
+            ByteBuffer page = pages[page(slot)];
+            int base = offset(slot);
+            if (page.getLong(base) == k0 && page.getLong(base + 8) == k1 && page.getLong(base + 16) == k2
+                    && page.getLong(base + 24) == k3 && page.getInt(base + 32) == (int) index)
+                return slot;
+        }
+        return -1;
+    }
+
+    private long home(long k0, long index) {
+        // The transaction hash is already uniformly distributed, but the same transaction has many outputs, so the
+        // index is mixed in with the finalizer of MurmurHash3.
+        long h = k0 ^ seed ^ ((index & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h & (capacity - 1);
+    }
+
+    private long next(long slot) {
+        return (slot + 1) & (capacity - 1);
+    }
+
+    private boolean isEmpty(long slot) {
+        return pages[page(slot)].getInt(offset(slot) + LENGTH_OFFSET) == 0;
+    }
+
+    private static int page(long slot) {
+        return (int) (slot >>> PAGE_BITS);
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    private static ByteBuffer[] allocatePages(long capacity) {
+        int pageSlots = (int) Math.min(capacity, PAGE_SLOTS);
+        ByteBuffer[] pages = new ByteBuffer[(int) (capacity / pageSlots)];
+        // Direct buffers are zeroed, which makes every slot empty.
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = ByteBuffer.allocateDirect(pageSlots * SLOT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        return pages;
+    }
+
+    private static void copySlot(ByteBuffer[] fromPages, long from, ByteBuffer[] toPages, long to) {
+        ByteBuffer fromPage = fromPages[page(from)];
+        ByteBuffer toPage = toPages[page(to)];
+        int fromBase = offset(from);
+        int toBase = offset(to);
+        for (int i = 0; i < SLOT_SIZE; i += 8)
+            toPage.putLong(toBase + i, fromPage.getLong(fromBase + i));
+    }
+
+    private void resize(long newCapacity) {
+        ByteBuffer[] oldPages = pages;
+        long oldCapacity = capacity;
+        pages = allocatePages(newCapacity);
+        capacity = newCapacity;
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer page = oldPages[page(slot)];
+            int base = offset(slot);
+            if (page.getInt(base + LENGTH_OFFSET) == 0)
+                continue;
+            long target = home(page.getLong(base), page.getInt(base + 32) & 0xFFFFFFFFL);
+            while (!isEmpty(target))
+                target = next(target);
+            copySlot(oldPages, slot, pages, target);
+        }
+    }
+
+    private long appendArena(byte[] value) {
+        if (arenaTail == null || arenaTail.remaining() < value.length) {
+            arenaTail = ByteBuffer.allocateDirect(Math.max(ARENA_CHUNK_SIZE, value.length));
+            arena.add(arenaTail);
+        }
+        long ref = ((long) (arena.size() - 1) << 32) | arenaTail.position();
+        arenaTail.put(value);
+        liveBytes += value.length;
+        return ref;
+    }
+
+    private byte[] readArena(long ref, int length) {
+        ByteBuffer chunk = arena.get((int) (ref >>> 32)).duplicate();
+        chunk.position((int) ref);
+        byte[] value = new byte[length];
+        chunk.get(value);
+        return value;
+    }
+
+    private void release(int length) {
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    private void compactArenaIfNeeded() {
+        if (garbageBytes <= liveBytes || garbageBytes < ARENA_CHUNK_SIZE)
+            return;
+        List<ByteBuffer> oldArena = arena;
+        arena = new ArrayList<>();
+        arenaTail = null;
+        liveBytes = 0;
+        garbageBytes = 0;
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer page = pages[page(slot)];
+            int base = offset(slot);
+            int length = page.getInt(base + LENGTH_OFFSET);
+            if (length == 0)
+                continue;
+            long ref = page.getLong(base + REF_OFFSET);
+            ByteBuffer chunk = oldArena.get((int) (ref >>> 32)).duplicate();
+            chunk.position((int) ref);
+            byte[] value = new byte[length];
+            chunk.get(value);
+            page.putLong(base + REF_OFFSET, appendArena(value));
+        }
+    }
+
+    /**
+     * Encodes the value, height, coinbase flag and script of an output. Amounts and heights are variable length
+     * integers, and the two most common script templates, pay to pubkey hash and pay to script hash, are reduced
+     * to their hash.
+     */
+    static byte[] encodeValue(UTXO utxo) {
+        byte[] program = utxo.getScript().getProgram();
+        byte[] amount = new VarInt(utxo.getValue().value).encode();
+        byte[] heightAndCoinbase = new VarInt(((long) utxo.getHeight() << 1) | (utxo.isCoinbase() ? 1 : 0)).encode();
+        int scriptType;
+        int scriptOffset;
+        int scriptLength;
+        if (isPayToPubKeyHash(program)) {
+            scriptType = 0;
+            scriptOffset = 3;
+            scriptLength = 20;
+        } else if (isPayToScriptHash(program)) {
+            scriptType = 1;
+            scriptOffset = 2;
+            scriptLength = 20;
+        } else {
+            scriptType = program.length + 2;
+            scriptOffset = 0;
+            scriptLength = program.length;
+        }
+        byte[] type = new VarInt(scriptType).encode();
+        byte[] value = new byte[amount.length + heightAndCoinbase.length + type.length + scriptLength];
+        int cursor = 0;
+        System.arraycopy(amount, 0, value, cursor, amount.length);
+        cursor += amount.length;
+        System.arraycopy(heightAndCoinbase, 0, value, cursor, heightAndCoinbase.length);
+        cursor += heightAndCoinbase.length;
+        System.arraycopy(type, 0, value, cursor, type.length);
+        cursor += type.length;
+        System.arraycopy(program, scriptOffset, value, cursor, scriptLength);
+        return value;
+    }
+
+    /** Decodes an output encoded by {@link #encodeValue(UTXO)}. */
+    static UTXO decodeValue(Sha256Hash hash, long index, byte[] value) {
+        VarInt amount = new VarInt(value, 0);
+        int cursor = amount.getOriginalSizeInBytes();
+        VarInt heightAndCoinbase = new VarInt(value, cursor);
+        cursor += heightAndCoinbase.getOriginalSizeInBytes();
+        VarInt type = new VarInt(value, cursor);
+        cursor += type.getOriginalSizeInBytes();
+        byte[] program;
+        if (type.value == 0) {
+            program = new byte[25];
+            program[0] = (byte) OP_DUP;
+            program[1] = (byte) OP_HASH160;
+            program[2] = 20;
+            System.arraycopy(value, cursor, program, 3, 20);
+            program[23] = (byte) OP_EQUALVERIFY;
+            program[24] = (byte) OP_CHECKSIG;
+        } else if (type.value == 1) {
+            program = new byte[23];
+            program[0] = (byte) OP_HASH160;
+            program[1] = 20;
+            System.arraycopy(value, cursor, program, 2, 20);
+            program[22] = (byte) OP_EQUAL;
+        } else {
+            program = new byte[(int) type.value - 2];
+            System.arraycopy(value, cursor, program, 0, program.length);
+        }
+        return new UTXO(hash, index, Coin.valueOf(amount.value), (int) (heightAndCoinbase.value >>> 1),
+                (heightAndCoinbase.value & 1) == 1, new Script(program));
+    }
+
+    private static boolean isPayToPubKeyHash(byte[] program) {
+        return program.length == 25 && (program[0] & 0xff) == OP_DUP && (program[1] & 0xff) == OP_HASH160
+                && program[2] == 20 && (program[23] & 0xff) == OP_EQUALVERIFY && (program[24] & 0xff) == OP_CHECKSIG;
+    }
+
+    private static boolean isPayToScriptHash(byte[] program) {
+        return program.length == 23 && (program[0] & 0xff) == OP_HASH160 && program[1] == 20
+                && (program[22] & 0xff) == OP_EQUAL;
+    }
+}
@@ -16,6 +16,9 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import net.jcip.annotations.GuardedBy;
 import org.bitcoinj.core.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
@@ -36,6 +39,10 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Lookups may run concurrently from many threads: recently used headers are served from a concurrent cache without
+ * locking, and everything else is found through an index from block hash to ring buffer slot while holding a shared
+ * read lock. Only writes to the ring buffer are exclusive.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -47,6 +54,17 @@ public class SPVBlockStore implements BlockStore {
     protected volatile MappedByteBuffer buffer;
     protected final NetworkParameters params;
 
+    // Readers never move the position of the shared buffer, they work on duplicates of it instead. This means any
+    // number of them can hold the read lock at the same time. Writers hold the write lock, and also
+    // the old exclusive lock below so subclasses that still use it see a consistent store.
+    private final ReentrantReadWriteLock readWriteLock = Threading.readWriteLock("SPVBlockStore");
+
+    /**
+     * Held by every write to the buffer, together with the write lock. Holding it keeps the store from changing, but
+     * doesn't stop other threads from reading it.
+     * @deprecated Reads no longer take an exclusive lock. Kept so subclasses that lock it keep working.
+     */
+    @Deprecated
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
@@ -56,25 +74,38 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    //
+    // The cache is concurrent, so hits don't need to take the lock at all.
+    private final Cache<Sha256Hash, StoredBlock> headerCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
+    /**
+     * The most recently stored headers, guarded by {@link #lock}.
+     * @deprecated The store no longer reads this map, it's only filled on {@link #put(StoredBlock)} for subclasses.
+     */
+    @Deprecated
     protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
             return size() > 2050;  // Slightly more than the difficulty transition period.
         }
     };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
-    //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    private static final Object NOT_FOUND_MARKER = new Object();
+    /**
+     * Guarded by {@link #lock}. Headers are removed from it when they are stored.
+     * @deprecated The store no longer uses this map, unknown blocks are found through the slot index instead.
+     */
+    @Deprecated
     protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
             return size() > 100;  // This was chosen arbitrarily.
         }
     };
+    // Maps the hash of every header in the ring buffer to the offset of its record, so a cache miss doesn't have to
+    // scan the ring. It also answers lookups for unknown blocks, e.g. the unconnected block during chain download that
+    // each new block asks for, without touching the buffer. Built when the store is opened and updated on each put().
+    @GuardedBy("readWriteLock")
+    private final Map<Sha256Hash, Integer> slotIndex = new HashMap<>();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -145,6 +176,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                buildSlotIndex();
             } else {
                 initNewStore(params);
             }
@@ -163,11 +195,11 @@ public class SPVBlockStore implements BlockStore {
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            readWriteLock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -180,26 +212,65 @@ public class SPVBlockStore implements BlockStore {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    // Walks the ring from the newest record to the oldest, so if a header was stored more than once, its most recent
+    // record wins. Slots that were never written to are all zeros and skipped.
+    private void buildSlotIndex() {
+        readWriteLock.writeLock().lock();
+        try {
+            int records = (fileLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            int cursor = getRingCursor(buffer);
+            byte[] scratch = new byte[32];
+            for (int i = 0; i < records; i++) {
+                cursor -= RECORD_SIZE;
+                if (cursor < FILE_PROLOGUE_BYTES) {
+                    // We hit the start, so wrap around.
+                    cursor = fileLength - RECORD_SIZE;
+                }
+                buffer.position(cursor);
+                buffer.get(scratch);
+                Sha256Hash hash = Sha256Hash.wrap(scratch);
+                if (!hash.equals(Sha256Hash.ZERO_HASH) && !slotIndex.containsKey(hash))
+                    slotIndex.put(hash, cursor);
+            }
+            log.info("Indexed {} block headers", slotIndex.size());
+        } finally { readWriteLock.writeLock().unlock(); }
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == fileLength) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // Forget the record we are about to overwrite, unless the same header was stored again since.
+            byte[] scratch = new byte[32];
+            buffer.position(cursor);
+            buffer.get(scratch);
+            Sha256Hash overwritten = Sha256Hash.wrap(scratch);
+            Integer overwrittenSlot = slotIndex.get(overwritten);
+            if (overwrittenSlot != null && overwrittenSlot == cursor)
+                slotIndex.remove(overwritten);
+
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            slotIndex.put(hash, cursor);
+            headerCache.put(hash, block);
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            notFoundCache.remove(hash);
+        } finally {
+            readWriteLock.writeLock().unlock();
+            lock.unlock();
+        }
     }
 
     @Override
@@ -208,57 +279,42 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock cacheHit = headerCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+
+        readWriteLock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            Integer slot = slotIndex.get(hash);
+            if (slot == null)
                 return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            ByteBuffer record = buffer.duplicate();
+            record.position(slot + 32);  // Skip the hash.
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, record);
+            headerCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
+        readWriteLock.readLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                ByteBuffer prologue = buffer.duplicate();
+                prologue.position(8);
+                prologue.get(headHash);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -266,7 +322,7 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
     @Override
@@ -275,12 +331,16 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally {
+            readWriteLock.writeLock().unlock();
+            lock.unlock();
+        }
     }
 
     @Override
@@ -289,7 +349,17 @@ public class SPVBlockStore implements BlockStore {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
-            blockCache.clear();
+            headerCache.invalidateAll();
+            lock.lock();
+            readWriteLock.writeLock().lock();
+            try {
+                slotIndex.clear();
+                blockCache.clear();
+                notFoundCache.clear();
+            } finally {
+                readWriteLock.writeLock().unlock();
+                lock.unlock();
+            }
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
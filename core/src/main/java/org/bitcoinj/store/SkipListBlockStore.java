@@ -0,0 +1,194 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Wraps another {@link BlockStore} and keeps the recently stored blocks in memory, each linked to its previous block
+ * and to an ancestor further back. The ancestors are picked like the skip pointers of the block index of Bitcoin
+ * Core, so that any ancestor of an indexed block can be found in O(log n) steps without reading from the underlying
+ * store. {@link StoredBlock#getAncestor(int, BlockStore)} uses them when given this store.</p>
+ *
+ * <p>Blocks are indexed when they are put, or with {@link #add(StoredBlock)}. A block is only linked if its previous
+ * block is indexed, so after startup the links grow from the chain head onwards. Lookups of blocks that aren't
+ * indexed, or that were evicted to stay within the maximum number of blocks, fall back to the underlying store.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class SkipListBlockStore implements BlockStore {
+    /** The default number of blocks kept in memory, which covers several difficulty intervals of Bitcoin. */
+    public static final int DEFAULT_MAX_BLOCKS = 5000;
+
+    private static class Node {
+        final StoredBlock block;
+        @Nullable final StoredBlock prev;
+        @Nullable final StoredBlock skip;
+
+        Node(StoredBlock block, @Nullable StoredBlock prev, @Nullable StoredBlock skip) {
+            this.block = block;
+            this.prev = prev;
+            this.skip = skip;
+        }
+    }
+
+    private final BlockStore store;
+    private final Cache<Sha256Hash, Node> nodes;
+
+    public SkipListBlockStore(BlockStore store) {
+        this(store, DEFAULT_MAX_BLOCKS);
+    }
+
+    /** Wraps the given store, keeping up to the given number of blocks in memory. */
+    public SkipListBlockStore(BlockStore store, int maxBlocks) {
+        checkArgument(maxBlocks > 0);
+        this.store = store;
+        this.nodes = CacheBuilder.newBuilder().maximumSize(maxBlocks).build();
+    }
+
+    /** Returns the store this one wraps. */
+    public BlockStore getStore() {
+        return store;
+    }
+
+    /**
+     * Indexes a block that was stored in the underlying store, linking it to its previous block and to its skip
+     * ancestor if the previous block is indexed.
+     */
+    public void add(StoredBlock block) {
+        Sha256Hash hash = block.getHeader().getHash();
+        if (nodes.getIfPresent(hash) != null)
+            return;
+        Node prevNode = nodes.getIfPresent(block.getHeader().getPrevBlockHash());
+        if (prevNode == null || prevNode.block.getHeight() != block.getHeight() - 1) {
+            nodes.put(hash, new Node(block, null, null));
+            return;
+        }
+        StoredBlock prev = prevNode.block;
+        // Only follow links that are in memory. Until the index reaches back far enough, the skip ancestor is the
+        // furthest one we can get to, which still speeds up the lookups.
+        StoredBlock skip = walk(prev, getSkipHeight(block.getHeight()));
+        nodes.put(hash, new Node(block, prev, skip == prev ? null : skip));
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if that is its height. Returns
+     * null if the store doesn't hold the ancestor.
+     */
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = block;
+        while (cursor.getHeight() > height) {
+            StoredBlock next = step(cursor, height);
+            if (next == null) {
+                next = store.get(cursor.getHeader().getPrevBlockHash());
+                if (next == null)
+                    return null;
+            }
+            cursor = next;
+        }
+        return cursor;
+    }
+
+    // Like getAncestor(), but only follows the links in memory. Stops early at the first block that isn't linked.
+    private StoredBlock walk(StoredBlock block, int height) {
+        StoredBlock cursor = block;
+        while (cursor.getHeight() > height) {
+            StoredBlock next = step(cursor, height);
+            if (next == null)
+                return cursor;
+            cursor = next;
+        }
+        return cursor;
+    }
+
+    // Returns the next block on the way back to the given height, taking the skip link where it doesn't overshoot.
+    // Returns null if the block isn't linked.
+    @Nullable
+    private StoredBlock step(StoredBlock block, int height) {
+        Node node = nodes.getIfPresent(block.getHeader().getHash());
+        if (node == null)
+            return null;
+        if (node.skip != null) {
+            int skipHeight = node.skip.getHeight();
+            // Like Bitcoin Core, don't take the skip if the skip of the previous block gets us closer.
+            int prevSkipHeight = getSkipHeight(block.getHeight() - 1);
+            if (skipHeight == height
+                    || (skipHeight > height && !(prevSkipHeight < skipHeight - 2 && prevSkipHeight >= height)))
+                return node.skip;
+        }
+        return node.prev;
+    }
+
+    /**
+     * Returns the height of the skip ancestor of a block at the given height, as in Bitcoin Core. Blocks at about
+     * every height link back by a different power of two.
+     */
+    static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Determine which height to jump back to. Any number strictly lower than height is acceptable, but the
+        // following expression seems to perform well in simulations (max 110 steps to go back up to 2**18 blocks).
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+        add(block);
+    }
+
+    @Override
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Node node = nodes.getIfPresent(hash);
+        return node != null ? node.block : store.get(hash);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        nodes.invalidateAll();
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+}
@@ -21,17 +21,29 @@ import static com.google.common.base.Preconditions.checkArgument;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>This class reads block files stored in the Bitcoin Core format. This is simply a way to concatenate
@@ -49,8 +61,19 @@ import java.util.NoSuchElementException;
  * try { chain.add(block); } catch (Exception e) { }
  * }
  * }</p>
+ *
+ * <p>The files are memory mapped and read one after the other. If created with a number of parser threads, blocks
+ * are parsed and hashed by those threads ahead of the caller, while still being returned in file order. As the
+ * {@link org.bitcoinj.core.FullPrunedBlockChain} verifies scripts on threads of its own, an import then only leaves
+ * updating the block store to the thread adding the blocks to the chain.</p>
+ *
+ * <p>The parser threads exit and the mapped file is released once all blocks were returned. A caller that stops
+ * earlier should {@link #close()} the loader, for instance with try-with-resources.</p>
  */
-public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
+public class BlockFileLoader implements Iterable<Block>, Iterator<Block>, Closeable {
+    // The number of blocks each parser thread works ahead of the caller, at most.
+    private static final int BLOCKS_PER_THREAD = 4;
+
     /**
      * Gets the list of files which contain blocks from Bitcoin Core.
      */
@@ -86,22 +109,40 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
 
     private Iterator<File> fileIt;
     private File file = null;
-    private FileInputStream currentFileStream = null;
+    private ByteBuffer currentBuffer = null;
     private Block nextBlock = null;
     private NetworkParameters params;
+    // Only set when parsing on separate threads.
+    private final ExecutorService executor;
+    private final Deque<Future<Block>> parsing = new ArrayDeque<>();
+    private final int maxParsing;
+    private boolean closed;
 
     public BlockFileLoader(NetworkParameters params, File blocksDir) {
         this(params, getReferenceClientBlockFileList(blocksDir));
     }
 
     public BlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, 0);
+    }
+
+    /**
+     * Creates a loader that parses blocks on the given number of threads ahead of the caller. With zero threads, blocks
+     * are parsed by the thread calling {@link #next()}. The threads exit once all files were read, or when the loader is
+     * closed.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int parserThreads) {
+        checkArgument(parserThreads >= 0);
         fileIt = files.iterator();
         this.params = params;
+        this.executor = parserThreads > 0 ? Executors.newFixedThreadPool(parserThreads,
+                new ContextPropagatingThreadFactory("block file parser")) : null;
+        this.maxParsing = parserThreads * BLOCKS_PER_THREAD;
     }
     
     @Override
     public boolean hasNext() {
-        if (nextBlock == null)
+        if (nextBlock == null && !closed)
             loadNextBlock();
         return nextBlock != null;
     }
@@ -116,73 +157,139 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
+        if (executor == null) {
+            byte[] bytes;
+            while ((bytes = nextBlockBytes()) != null) {
+                nextBlock = parse(bytes, file);
+                if (nextBlock != null)
+                    return;
+            }
+            return;
+        }
         while (true) {
+            // Keep the parser threads busy.
+            byte[] bytes = null;
+            while (parsing.size() < maxParsing && (bytes = nextBlockBytes()) != null) {
+                final byte[] blockBytes = bytes;
+                final File blockFile = file;
+                parsing.add(executor.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() {
+                        Block block = parse(blockBytes, blockFile);
+                        if (block != null) {
+                            // Hashes are cached, so the chain won't have to calculate them again.
+                            block.getHash();
+                            for (Transaction tx : block.getTransactions())
+                                tx.getHash();
+                        }
+                        return block;
+                    }
+                }));
+            }
+            Future<Block> future = parsing.poll();
+            if (future == null) {
+                executor.shutdown();
+                return;
+            }
             try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
-                    break;
+                nextBlock = future.get();
+            } catch (InterruptedException e) {
+                close();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                close();
+                throw new RuntimeException(e.getCause());
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
+            if (nextBlock != null)
+                return;
+        }
+    }
+
+    // Returns the bytes of the next block in the files, or null if there are none left.
+    private byte[] nextBlockBytes() {
+        while (true) {
+            while (currentBuffer == null || !currentBuffer.hasRemaining()) {
                 if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
+                    currentBuffer = null;
+                    return null;
                 }
                 file = fileIt.next();
-                try {
-                    currentFileStream = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    // The mapping stays valid after the file is closed.
+                    currentBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                    currentBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                } catch (IOException e) {
+                    currentBuffer = null;
                 }
             }
-            try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = params.getDefaultSerializer().makeBlock(bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                } catch (Exception e) {
-                    throw new RuntimeException("unexpected problem with block in " + file, e);
-                }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            if (!seekPastMagicBytes(currentBuffer) || currentBuffer.remaining() < 4) {
+                currentBuffer = null;
+                continue;
+            }
+            long size = currentBuffer.getInt() & 0xffffffffL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
                 continue;
+            if (size > currentBuffer.remaining()) {
+                // Truncated, like the last block of a file Bitcoin Core was writing to.
+                currentBuffer = null;
+                continue;
+            }
+            byte[] bytes = new byte[(int) size];
+            currentBuffer.get(bytes);
+            return bytes;
+        }
+    }
+
+    // Positions the buffer after the next packet magic. Returns false if there is none.
+    private boolean seekPastMagicBytes(ByteBuffer buffer) {
+        long magic = params.getPacketMagic();
+        int magicCursor = 3;  // Which byte of the magic we're looking for currently.
+        while (buffer.hasRemaining()) {
+            byte expectedByte = (byte) (magic >>> (magicCursor * 8));
+            byte b = buffer.get();
+            if (b == expectedByte) {
+                if (--magicCursor < 0)
+                    return true;
+            } else if (magicCursor != 3) {
+                // A partial magic, the byte may still start a new one.
+                magicCursor = 3;
+                if (b == (byte) (magic >>> 24))
+                    magicCursor = 2;
             }
         }
+        return false;
+    }
+
+    // Returns null if the bytes are not a valid block.
+    private Block parse(byte[] bytes, File blockFile) {
+        try {
+            return params.getDefaultSerializer().makeBlock(bytes);
+        } catch (ProtocolException e) {
+            return null;
+        } catch (Exception e) {
+            throw new RuntimeException("unexpected problem with block in " + blockFile, e);
+        }
+    }
+
+    /**
+     * Stops the parser threads and releases the mapped file, so no more blocks are returned. Only needed if not all
+     * blocks were read. The mapping itself goes away once it's garbage collected, Java can't unmap it sooner.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (executor != null) {
+            for (Future<Block> future : parsing)
+                future.cancel(true);
+            parsing.clear();
+            executor.shutdownNow();
+        }
+        fileIt = Collections.<File>emptyList().iterator();
+        currentBuffer = null;
+        nextBlock = null;
     }
 
     @Override
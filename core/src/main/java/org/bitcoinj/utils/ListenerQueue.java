@@ -0,0 +1,174 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An executor that runs the events of one listener in order, one at a time, on another executor, which can be a
+ * thread pool. Each listener gets its own queue, see {@link Threading#useListenerQueues(Executor, int)}, so a slow
+ * listener only delays its own events.</p>
+ *
+ * <p>Events that are a {@link CoalescingRunnable} are dropped if the same event is still waiting in the queue, as the
+ * listener will see the latest state when that one runs. Events are never otherwise dropped, and queueing them never
+ * blocks, because they are usually queued while locks are held that the listener may need. If the queue holds more
+ * than its capacity, a warning is logged and {@link #getOverflowCount()} is increased instead.</p>
+ */
+public class ListenerQueue implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(ListenerQueue.class);
+    // The number of events run before the queue gives up its thread to other work of the executor.
+    private static final int EVENTS_PER_RUN = 64;
+
+    /** An event that doesn't need to be run again while an equal event, by its key, is still waiting in the queue. */
+    public abstract static class CoalescingRunnable implements Runnable {
+        private final Object key;
+
+        /** Events with equal key parts are coalesced. They should include the listener. */
+        protected CoalescingRunnable(Object... keyParts) {
+            this.key = Arrays.asList(keyParts);
+        }
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    @GuardedBy("tasks") private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    @GuardedBy("tasks") private final Set<Object> pendingKeys = new HashSet<>();
+    @GuardedBy("tasks") private boolean scheduled;
+    @GuardedBy("tasks") private int maxDepth;
+    @GuardedBy("tasks") private long coalescedCount, overflowCount;
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            runEvents();
+        }
+    };
+
+    /** Creates a queue that runs events on the given executor, and warns if it holds more than capacity events. */
+    public ListenerQueue(Executor executor, int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+        this.executor = checkNotNull(executor);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        synchronized (tasks) {
+            if (command instanceof CoalescingRunnable && !pendingKeys.add(((CoalescingRunnable) command).key)) {
+                coalescedCount++;
+                return;
+            }
+            tasks.add(command);
+            int depth = tasks.size();
+            maxDepth = Math.max(maxDepth, depth);
+            if (depth > capacity) {
+                overflowCount++;
+                if (depth == capacity + 1)
+                    log.warn("Listener queue has {} pending events, check for deadlocked or slow event listeners.", depth);
+            }
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(runner);
+        } catch (RejectedExecutionException e) {
+            synchronized (tasks) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    private void runEvents() {
+        for (int i = 0; i < EVENTS_PER_RUN; i++) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    scheduled = false;
+                    return;
+                }
+                // An equal event queued from now on runs again, as it may see a newer state.
+                if (task instanceof CoalescingRunnable)
+                    pendingKeys.remove(((CoalescingRunnable) task).key);
+            }
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                log.warn("Exception in listener", throwable);
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    handler.uncaughtException(Thread.currentThread(), throwable);
+            }
+        }
+        // Let other work of the executor run, and continue afterwards.
+        schedule();
+    }
+
+    /** Returns the number of events waiting to be run. */
+    public int getDepth() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    /** Returns the largest number of events that were waiting at the same time. */
+    public int getMaxDepth() {
+        synchronized (tasks) {
+            return maxDepth;
+        }
+    }
+
+    /** Returns the number of events that weren't queued because an equal event was already waiting. */
+    public long getCoalescedCount() {
+        synchronized (tasks) {
+            return coalescedCount;
+        }
+    }
+
+    /** Returns the number of events that were queued while the queue held more than its capacity. */
+    public long getOverflowCount() {
+        synchronized (tasks) {
+            return overflowCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (tasks) {
+            return "ListenerQueue of " + tasks.size() + " events, at most " + maxDepth + ", " + coalescedCount
+                    + " coalesced, " + overflowCount + " over capacity " + capacity;
+        }
+    }
+}
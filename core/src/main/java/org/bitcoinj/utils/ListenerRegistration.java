@@ -22,7 +22,8 @@ import java.util.concurrent.Executor;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
-* A simple wrapper around a listener and an executor, with some utility methods.
+* A simple wrapper around a listener and an executor, with some utility methods. The executor is the one given, unless
+* listeners get their own queue, see {@link Threading#useListenerQueues(Executor, int)}.
 */
 public class ListenerRegistration<T> {
     public final T listener;
@@ -30,7 +31,7 @@ public class ListenerRegistration<T> {
 
     public ListenerRegistration(T listener, Executor executor) {
         this.listener = checkNotNull(listener);
-        this.executor = checkNotNull(executor);
+        this.executor = Threading.listenerExecutor(checkNotNull(executor));
     }
 
     /** Returns true if the listener was removed, else false. */
@@ -20,14 +20,24 @@ import com.google.common.util.concurrent.CycleDetectingLockFactory;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Uninterruptibles;
+import net.jcip.annotations.GuardedBy;
 import org.bitcoinj.core.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Various threading related utilities. Provides a wrapper around explicit lock creation that lets you control whether
@@ -63,15 +73,69 @@ public class Threading {
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
-        final CountDownLatch latch = new CountDownLatch(1);
-        USER_THREAD.execute(new Runnable() {
+        List<ListenerQueue> queues = getListenerQueues();
+        final CountDownLatch latch = new CountDownLatch(1 + queues.size());
+        Runnable countDown = new Runnable() {
             @Override public void run() {
                 latch.countDown();
             }
-        });
+        };
+        USER_THREAD.execute(countDown);
+        for (ListenerQueue queue : queues)
+            queue.execute(countDown);
         Uninterruptibles.awaitUninterruptibly(latch);
     }
 
+    @Nullable private static volatile Executor listenerExecutor;
+    private static volatile int listenerQueueCapacity;
+    @GuardedBy("listenerQueues") private static final Set<ListenerQueue> listenerQueues =
+            Collections.newSetFromMap(new WeakHashMap<ListenerQueue, Boolean>());
+
+    /**
+     * <p>Makes listeners that are registered to run on {@link #USER_THREAD} from now on run on the given executor
+     * instead, each with its own {@link ListenerQueue}. A slow listener then only delays its own events rather than
+     * those of all listeners, and repeated confidence and wallet change events are coalesced while they wait.</p>
+     *
+     * <p>The executor can be a thread pool, or one that starts a new (virtual) thread for each task. Note that
+     * listeners may then run at the same time as each other, unlike on the user thread. Each listener still gets its
+     * events in order and one at a time. Like the lock policy, this should be set before any bitcoinj objects are
+     * created.</p>
+     *
+     * @param capacity the number of pending events of a listener above which warnings are logged
+     */
+    public static void useListenerQueues(Executor executor, int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+        listenerQueueCapacity = capacity;
+        listenerExecutor = checkNotNull(executor);
+    }
+
+    /** Makes listeners that are registered from now on run on {@link #USER_THREAD} again, which is the default. */
+    public static void useUserThreadForListeners() {
+        listenerExecutor = null;
+    }
+
+    /**
+     * Returns the executor a listener registered with the given executor runs on: its own {@link ListenerQueue} if
+     * it's the {@link #USER_THREAD} and {@link #useListenerQueues(Executor, int)} was called, else the given executor.
+     */
+    public static Executor listenerExecutor(Executor executor) {
+        Executor listenerExecutor = Threading.listenerExecutor;
+        if (executor != USER_THREAD || listenerExecutor == null)
+            return executor;
+        ListenerQueue queue = new ListenerQueue(listenerExecutor, listenerQueueCapacity);
+        synchronized (listenerQueues) {
+            listenerQueues.add(queue);
+        }
+        return queue;
+    }
+
+    /** Returns the queues of the listeners that are still registered, to look at their queue depth. */
+    public static List<ListenerQueue> getListenerQueues() {
+        synchronized (listenerQueues) {
+            return new ArrayList<>(listenerQueues);
+        }
+    }
+
     /**
      * An exception handler that will be invoked for any exceptions that occur in the user thread, and
      * any unhandled exceptions that are caught whilst the framework is processing network traffic or doing other
@@ -124,6 +188,11 @@ public class Threading {
             }
             Uninterruptibles.putUninterruptibly(tasks, command);
         }
+
+        /** Returns the number of tasks waiting to be run. */
+        public int getQueueDepth() {
+            return tasks.size();
+        }
     }
 
     static {
@@ -157,6 +226,13 @@ public class Threading {
             return factory.newReentrantLock(name);
     }
 
+    public static ReentrantReadWriteLock readWriteLock(String name) {
+        if (Utils.isAndroidRuntime())
+            return new ReentrantReadWriteLock(true);
+        else
+            return factory.newReentrantReadWriteLock(name);
+    }
+
     public static void warnOnLockCycles() {
         setPolicy(CycleDetectingLockFactory.Policies.WARN);
     }
@@ -196,4 +272,50 @@ public class Threading {
                 }
             })
     );
+
+    /**
+     * A fork/join pool that CPU bound work, like hashing a merkle tree, is split up on. It's shared so that such work
+     * running at the same time doesn't start more threads than there are cores. Its threads are daemon threads, which
+     * are only started when needed.
+     */
+    public static final ForkJoinPool FORK_JOIN_POOL = new ForkJoinPool();
+
+    /** Work over a range of indexes, which {@link #forEachRange(int, int, int, RangeTask)} splits between threads. */
+    public interface RangeTask {
+        /** Does the work for the indexes from {@code from} (inclusive) to {@code to} (exclusive). */
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the task over the indexes from {@code from} (inclusive) to {@code to} (exclusive) on the
+     * {@link #FORK_JOIN_POOL}, halving the range until the parts have at most {@code partSize} indexes. Returns when
+     * all parts are done. The task must be safe to run on several parts at the same time.
+     */
+    public static void forEachRange(int from, int to, int partSize, RangeTask task) {
+        checkArgument(partSize > 0, "partSize must be positive: %s", partSize);
+        if (from < to)
+            FORK_JOIN_POOL.invoke(new RangeAction(from, to, partSize, checkNotNull(task)));
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private final int from, to, partSize;
+        private final RangeTask task;
+
+        RangeAction(int from, int to, int partSize, RangeTask task) {
+            this.from = from;
+            this.to = to;
+            this.partSize = partSize;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= partSize) {
+                task.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeAction(from, middle, partSize, task), new RangeAction(middle, to, partSize, task));
+            }
+        }
+    }
 }
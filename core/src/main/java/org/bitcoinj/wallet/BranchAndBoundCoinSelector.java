@@ -0,0 +1,290 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that tries to avoid creating change, modelled after the coin selection of Bitcoin Core.
+ * Which transactions are usable is decided like in the {@link DefaultCoinSelector}, and can be customized the same way
+ * by overriding {@link #shouldSelect(Transaction)}.</p>
+ *
+ * <p>First a branch and bound search looks for a set of outputs that adds up to the target, or exceeds it by less
+ * than the cost of creating and later spending a change output. If there is none, the selector falls back to a
+ * knapsack solver, which either picks the smallest single output that covers the target plus {@link #MIN_CHANGE}, or
+ * approximates the best subset of the smaller outputs.</p>
+ *
+ * <p>Both work on the candidates ordered by value, largest first. The {@link Wallet} keeps its spend candidates in
+ * that order as they come and go, so no sorting is needed when they are passed straight from
+ * {@link Wallet#calculateAllSpendCandidates(boolean, boolean)}. Otherwise, the candidates are sorted first.</p>
+ */
+public class BranchAndBoundCoinSelector extends DefaultCoinSelector {
+    /** The change the knapsack solver aims for, so we don't end up with tiny change outputs. */
+    public static final Coin MIN_CHANGE = Coin.CENT;
+    /** The number of branches the search visits at most, before falling back to the knapsack solver. */
+    public static final int MAX_TRIES = 100000;
+    private static final int KNAPSACK_ITERATIONS = 1000;
+
+    /**
+     * Orders outputs by value, largest first. Outputs of the same value are ordered by the hash of their parent
+     * transaction and their index.
+     */
+    public static final Comparator<TransactionOutput> LARGEST_FIRST = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            if (a == b)
+                return 0;
+            int c = compareValueAndParent(a, b);
+            if (c != 0 || a.getParentTransaction() == null)
+                return c;
+            return Integer.compare(indexOf(a), indexOf(b));
+        }
+    };
+
+    // Compares outputs like LARGEST_FIRST, except for their index.
+    static int compareValueAndParent(TransactionOutput a, TransactionOutput b) {
+        int c = Long.compare(b.getValue().value, a.getValue().value);
+        if (c != 0)
+            return c;
+        Transaction aTx = a.getParentTransaction(), bTx = b.getParentTransaction();
+        if (aTx == bTx)
+            return 0;
+        if (aTx == null || bTx == null)
+            return aTx == null ? -1 : 1;
+        byte[] aHash = aTx.getHash().getBytes(), bHash = bTx.getHash().getBytes();
+        for (int i = 0; i < aHash.length; i++) {
+            c = Integer.compare(aHash[i] & 0xff, bHash[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    // Like TransactionOutput.getIndex(), but doesn't throw for outputs that are not part of their parent yet.
+    static int indexOf(TransactionOutput output) {
+        Transaction tx = output.getParentTransaction();
+        if (tx == null)
+            return -1;
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++)
+            if (outputs.get(i) == output)
+                return i;
+        return -1;
+    }
+
+    private static BranchAndBoundCoinSelector instance;
+
+    private final long costOfChange;
+    private final Random random = new Random();
+
+    /** Creates a selector that accepts exceeding the target by less than {@link Transaction#MIN_NONDUST_OUTPUT}. */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT);
+    }
+
+    /**
+     * Creates a selector that accepts exceeding the target by less than the given amount, which should be the fee for
+     * a change output plus the fee for spending it later.
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange) {
+        checkArgument(costOfChange.signum() >= 0);
+        this.costOfChange = costOfChange.value;
+    }
+
+    /** Returns a global static instance of the selector. */
+    public static BranchAndBoundCoinSelector get() {
+        // This doesn't have to be thread safe, discarded duplicates are harmless.
+        if (instance == null)
+            instance = new BranchAndBoundCoinSelector();
+        return instance;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        List<TransactionOutput> pool = new ArrayList<>(candidates.size());
+        boolean sorted = true;
+        TransactionOutput previous = null;
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output.getParentTransaction()))
+                continue;
+            if (previous != null && sorted && LARGEST_FIRST.compare(previous, output) > 0)
+                sorted = false;
+            pool.add(output);
+            previous = output;
+        }
+        if (!sorted)
+            Collections.sort(pool, LARGEST_FIRST);
+        int n = pool.size();
+        long[] values = new long[n];
+        long available = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = pool.get(i).getValue().value;
+            available += values[i];
+        }
+        if (available <= target.value)
+            return selection(pool, values, null);  // All or nothing, the caller will find out if it's enough.
+        boolean[] chosen = searchExact(values, target.value, available);
+        if (chosen == null)
+            chosen = knapsack(values, target.value);
+        return selection(pool, values, chosen);
+    }
+
+    // Depth first search over the outputs, trying to include each one before excluding it. Returns the selection that
+    // exceeds the target the least, or null if nothing was found within the window of target plus cost of change.
+    private boolean[] searchExact(long[] values, long target, long available) {
+        boolean[] current = new boolean[values.length];
+        boolean[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+        long selected = 0;
+        long remaining = available;  // The sum of the values we didn't decide about yet, from depth onwards.
+        int depth = 0;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            boolean backtrack = false;
+            if (selected + remaining < target || selected > target + costOfChange) {
+                backtrack = true;  // Can't reach the target any more, or overshot the window.
+            } else if (selected >= target) {
+                long waste = selected - target;
+                if (waste < bestWaste) {
+                    best = current.clone();
+                    bestWaste = waste;
+                    if (waste == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                // Walk back to the last included output and exclude it instead.
+                while (depth > 0 && !current[depth - 1]) {
+                    depth--;
+                    remaining += values[depth];
+                }
+                if (depth == 0)
+                    break;  // Searched everything.
+                current[depth - 1] = false;
+                selected -= values[depth - 1];
+            } else {
+                // Here selected < target <= selected + remaining, so there is a next output to include.
+                current[depth] = true;
+                selected += values[depth];
+                remaining -= values[depth];
+                depth++;
+            }
+        }
+        return best;
+    }
+
+    // Uses the smallest output that covers target plus MIN_CHANGE, unless a subset of the smaller outputs comes closer.
+    private boolean[] knapsack(long[] values, long target) {
+        int n = values.length;
+        long goal = target + MIN_CHANGE.value;
+        // Values are ordered largest first, so the smaller outputs are at the end.
+        int firstSmaller = n;
+        long smallerTotal = 0;
+        for (int i = n - 1; i >= 0 && values[i] < goal; i--) {
+            firstSmaller = i;
+            smallerTotal += values[i];
+        }
+        int lowestLarger = firstSmaller - 1;  // -1 if there is none.
+        boolean[] chosen = new boolean[n];
+        if (smallerTotal == target || (smallerTotal < target && lowestLarger < 0)) {
+            for (int i = firstSmaller; i < n; i++)
+                chosen[i] = true;
+            return chosen;
+        }
+        if (smallerTotal < target) {
+            chosen[lowestLarger] = true;
+            return chosen;
+        }
+        boolean[] subset = approximateBestSubset(values, firstSmaller, target);
+        long subsetTotal = total(values, subset);
+        if (subsetTotal != target && smallerTotal >= goal) {
+            subset = approximateBestSubset(values, firstSmaller, goal);
+            subsetTotal = total(values, subset);
+        }
+        // The larger output wins if we found no subset without tiny change, or if it is closer to the target.
+        if (lowestLarger >= 0 && ((subsetTotal != target && subsetTotal < goal) || values[lowestLarger] <= subsetTotal)) {
+            Arrays.fill(chosen, false);
+            chosen[lowestLarger] = true;
+            return chosen;
+        }
+        return subset;
+    }
+
+    // Randomized search for the subset of values[from..] that reaches the goal with the smallest total.
+    private boolean[] approximateBestSubset(long[] values, int from, long goal) {
+        int n = values.length;
+        boolean[] best = new boolean[n];
+        Arrays.fill(best, from, n, true);
+        long bestTotal = total(values, best);
+        boolean[] included = new boolean[n];
+        for (int rep = 0; rep < KNAPSACK_ITERATIONS && bestTotal != goal; rep++) {
+            Arrays.fill(included, false);
+            long total = 0;
+            boolean reachedGoal = false;
+            // The first pass includes outputs at random, the second one adds the others until the goal is reached.
+            for (int pass = 0; pass < 2 && !reachedGoal; pass++) {
+                for (int i = from; i < n; i++) {
+                    if (pass == 0 ? !random.nextBoolean() : included[i])
+                        continue;
+                    total += values[i];
+                    included[i] = true;
+                    if (total >= goal) {
+                        reachedGoal = true;
+                        if (total < bestTotal) {
+                            bestTotal = total;
+                            best = included.clone();
+                        }
+                        total -= values[i];
+                        included[i] = false;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static long total(long[] values, boolean[] chosen) {
+        long total = 0;
+        for (int i = 0; i < values.length; i++)
+            if (chosen[i])
+                total += values[i];
+        return total;
+    }
+
+    private static CoinSelection selection(List<TransactionOutput> pool, long[] values, boolean[] chosen) {
+        List<TransactionOutput> gathered = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (chosen != null && !chosen[i])
+                continue;
+            gathered.add(pool.get(i));
+            total += values[i];
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+}
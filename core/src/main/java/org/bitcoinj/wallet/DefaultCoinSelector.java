@@ -21,9 +21,9 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.math.BigInteger;
 import java.util.*;
 
 /**
@@ -35,13 +35,17 @@ public class DefaultCoinSelector implements CoinSelector {
     @Override
     public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
         ArrayList<TransactionOutput> selected = new ArrayList<>();
-        // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
-        ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates);
+        // Only pick chain-included transactions, or transactions that are ours and pending. Filtering them out before
+        // sorting means we don't sort what we'd skip anyway.
+        ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates.size());
+        for (TransactionOutput output : candidates)
+            if (shouldSelect(output.getParentTransaction()))
+                sortedOutputs.add(output);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
         // TODO: Take in network parameters when instanatiated, and then test against the current network. Or just have a boolean parameter for "give me everything"
         if (!target.equals(NetworkParameters.MAX_MONEY)) {
+            // Sort the inputs by age*value so we get the highest "coindays" spent.
             sortOutputs(sortedOutputs);
         }
         // Now iterate over the sorted outputs until we have got as close to the target as possible or a little
@@ -49,8 +53,6 @@ public class DefaultCoinSelector implements CoinSelector {
         long total = 0;
         for (TransactionOutput output : sortedOutputs) {
             if (total >= target.value) break;
-            // Only pick chain-included transactions, or transactions that are ours and pending.
-            if (!shouldSelect(output.getParentTransaction())) continue;
             selected.add(output);
             total += output.getValue().value;
         }
@@ -59,27 +61,67 @@ public class DefaultCoinSelector implements CoinSelector {
         return new CoinSelection(Coin.valueOf(total), selected);
     }
 
+    // The sort key of an output, calculated once per sort rather than in every comparison.
+    private static class SortKey {
+        final TransactionOutput output;
+        final long value;
+        // value * depth can exceed 64 bits, so it is kept as a signed 128 bit number. Pending outputs have a depth of
+        // -1, which makes it negative so they sort last.
+        final long coinDepthHigh, coinDepthLow;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+            long depth = output.getParentTransactionDepthInBlocks();
+            long absDepth = Math.abs(depth);
+            long high = Utils.multiplyHighUnsigned(value, absDepth);
+            long low = value * absDepth;
+            if (depth < 0) {
+                // Two's complement negation of the 128 bit number.
+                high = ~high + (low == 0 ? 1 : 0);
+                low = -low;
+            }
+            this.coinDepthHigh = high;
+            this.coinDepthLow = low;
+        }
+    }
+
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
+        SortKey[] keys = new SortKey[outputs.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new SortKey(outputs.get(i));
+        Arrays.sort(keys, new Comparator<SortKey>() {
             @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
+            public int compare(SortKey a, SortKey b) {
+                int c1 = Long.compare(b.coinDepthHigh, a.coinDepthHigh);
+                if (c1 == 0)
+                    c1 = Long.compare(b.coinDepthLow + Long.MIN_VALUE, a.coinDepthLow + Long.MIN_VALUE);
                 if (c1 != 0) return c1;
                 // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
+                int c2 = Long.compare(b.value, a.value);
                 if (c2 != 0) return c2;
                 // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
+                byte[] aHash = a.output.getParentTransactionHash().getBytes();
+                byte[] bHash = b.output.getParentTransactionHash().getBytes();
+                for (int i = 0; i < aHash.length; i++) {
+                    int c3 = Integer.compare(aHash[i] & 0xff, bHash[i] & 0xff);
+                    if (c3 != 0) return c3;
+                }
+                return 0;
             }
         });
+        for (int i = 0; i < keys.length; i++)
+            outputs.set(i, keys[i].output);
+    }
+
+    /**
+     * Returns true if selecting {@link NetworkParameters#MAX_MONEY} gathers every candidate whose parent transaction
+     * is {@link #isSelectable(Transaction)}, so the value gathered is just their sum. The wallet then keeps its available
+     * balance as a running total instead of calling {@link #select(Coin, List)} each time. Sub-classes that change
+     * what gets selected return false, unless they override this too.
+     */
+    public boolean selectsAllSelectable() {
+        return getClass() == DefaultCoinSelector.class;
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
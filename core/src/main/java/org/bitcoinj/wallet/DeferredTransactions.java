@@ -0,0 +1,354 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Spent and dead transactions of a wallet that weren't read yet, see
+ * {@link WalletProtobufSerializer#setLazyLoading(boolean)}. They're kept as protocol buffers until they are first
+ * used, then read and connected to the transactions that they spend and that spend them. A transaction is read
+ * together with the transactions it's connected to, so it's fully connected when it's used.</p>
+ *
+ * <p>The spent and dead pools of the wallet are {@link TransactionMap}s, which read deferred transactions when they are
+ * looked up, and read all of them when they are iterated. The outpoints that deferred transactions spend are indexed,
+ * so that looking for double spends only reads the transactions that are one. Methods that don't read transactions
+ * must be called with the wallet lock held.</p>
+ */
+class DeferredTransactions {
+    private static final Logger log = LoggerFactory.getLogger(DeferredTransactions.class);
+
+    private final Wallet wallet;
+    // Insertion ordered, so the wallet file keeps its order when saved.
+    private final Map<Sha256Hash, Deferred> deferred = new LinkedHashMap<>();
+    // Connections that couldn't be made yet because one side is deferred, by the hashes of both sides.
+    private final Map<Sha256Hash, List<Connection>> connections = new HashMap<>();
+    // The outpoints that the inputs of deferred transactions spend, and the transactions spending them.
+    private final SetMultimap<TransactionOutPoint, Sha256Hash> spenders = HashMultimap.create();
+    private int spentCount, deadCount;
+
+    private static class Deferred {
+        final Pool pool;
+        Protos.Transaction proto;
+
+        Deferred(Pool pool, Protos.Transaction proto) {
+            this.pool = pool;
+            this.proto = proto;
+        }
+    }
+
+    // The output of the parent transaction is spent by the input of the spending transaction.
+    private static class Connection {
+        final Sha256Hash parent;
+        final int outputIndex;
+        final Sha256Hash spender;
+        final int inputIndex;
+
+        Connection(Sha256Hash parent, int outputIndex, Sha256Hash spender, int inputIndex) {
+            this.parent = parent;
+            this.outputIndex = outputIndex;
+            this.spender = spender;
+            this.inputIndex = inputIndex;
+        }
+    }
+
+    DeferredTransactions(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    /** Defers reading the given spent or dead transaction until it is used. */
+    void add(Pool pool, Protos.Transaction proto) {
+        checkArgument(pool == Pool.SPENT || pool == Pool.DEAD, pool);
+        Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(proto.getHash());
+        checkState(deferred.put(hash, new Deferred(pool, proto)) == null, hash);
+        for (TransactionOutPoint outpoint : outpointsOf(proto))
+            spenders.put(outpoint, hash);
+        if (pool == Pool.SPENT)
+            spentCount++;
+        else
+            deadCount++;
+    }
+
+    private List<TransactionOutPoint> outpointsOf(Protos.Transaction proto) {
+        List<TransactionOutPoint> outpoints = new ArrayList<>(proto.getTransactionInputCount());
+        for (Protos.TransactionInput input : proto.getTransactionInputList())
+            outpoints.add(new TransactionOutPoint(wallet.getParams(), input.getTransactionOutPointIndex() & 0xFFFFFFFFL,
+                    WalletProtobufSerializer.byteStringToHash(input.getTransactionOutPointHash())));
+        return outpoints;
+    }
+
+    /** Remembers that the given output is spent by the given input, where one of the transactions is deferred. */
+    void addConnection(Sha256Hash parent, int outputIndex, Sha256Hash spender, int inputIndex) {
+        Connection connection = new Connection(parent, outputIndex, spender, inputIndex);
+        addConnection(parent, connection);
+        addConnection(spender, connection);
+    }
+
+    private void addConnection(Sha256Hash hash, Connection connection) {
+        List<Connection> list = connections.get(hash);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            connections.put(hash, list);
+        }
+        list.add(connection);
+    }
+
+    /** Returns true if the given transaction is deferred, and in the given pool if not null. */
+    boolean contains(Object hash, @Nullable Pool pool) {
+        Deferred d = deferred.get(hash);
+        return d != null && (pool == null || d.pool == pool);
+    }
+
+    /** Returns the number of deferred transactions in the given pool, or in all pools if null. */
+    int size(@Nullable Pool pool) {
+        if (pool == null)
+            return deferred.size();
+        return pool == Pool.SPENT ? spentCount : pool == Pool.DEAD ? deadCount : 0;
+    }
+
+    /** Returns true if the given transaction is connected to a deferred transaction, so it's not fully connected. */
+    boolean isConnectedToDeferred(Sha256Hash hash) {
+        return connections.containsKey(hash);
+    }
+
+    /**
+     * Reads the given transaction if it's deferred, along with the deferred transactions it's connected to, and adds
+     * them to the wallet. Returns the transaction, or null if it wasn't deferred.
+     */
+    @Nullable
+    Transaction read(Object hash) {
+        wallet.lock.lock();
+        try {
+            if (!deferred.containsKey(hash))
+                return null;
+            Sha256Hash txHash = (Sha256Hash) hash;
+            Transaction tx = readOne(txHash);
+            readConnected(txHash);
+            return tx;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Reads the deferred transactions that the given transaction is connected to, so it's fully connected. */
+    void readConnected(Sha256Hash hash) {
+        List<Connection> list = connections.get(hash);
+        if (list == null)
+            return;
+        for (Connection connection : new ArrayList<>(list))
+            readOne(connection.parent.equals(hash) ? connection.spender : connection.parent);
+    }
+
+    /** Reads all deferred transactions. */
+    void readAll() {
+        if (deferred.isEmpty())
+            return;
+        wallet.lock.lock();
+        try {
+            Stopwatch watch = Stopwatch.createStarted();
+            int count = deferred.size();
+            while (!deferred.isEmpty())
+                readOne(deferred.keySet().iterator().next());
+            log.info("Read {} deferred transactions in {}", count, watch);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Transaction readOne(Sha256Hash hash) {
+        Deferred d = deferred.remove(hash);
+        if (d == null)
+            return null;
+        for (TransactionOutPoint outpoint : outpointsOf(d.proto))
+            spenders.remove(outpoint, hash);
+        if (d.pool == Pool.SPENT)
+            spentCount--;
+        else
+            deadCount--;
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Transaction tx;
+        try {
+            tx = serializer.readDeferredTransaction(wallet.getParams(), d.proto);
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not read deferred transaction " + hash, e);
+        }
+        wallet.addDeferredTransaction(d.pool, tx);
+        List<Connection> list = connections.remove(hash);
+        if (list != null) {
+            for (Connection connection : list) {
+                Sha256Hash other = connection.parent.equals(hash) ? connection.spender : connection.parent;
+                if (deferred.containsKey(other))
+                    continue;  // Connected when the other one is read.
+                List<Connection> otherList = connections.get(other);
+                if (otherList != null) {
+                    otherList.remove(connection);
+                    if (otherList.isEmpty())
+                        connections.remove(other);
+                }
+                Transaction otherTx = wallet.getTransaction(other);
+                if (otherTx == null)
+                    continue;  // Removed from the wallet in the meantime.
+                Transaction parent = connection.parent.equals(hash) ? tx : otherTx;
+                Transaction spender = connection.parent.equals(hash) ? otherTx : tx;
+                spender.getInput(connection.inputIndex).connect(parent.getOutput(connection.outputIndex));
+            }
+        }
+        try {
+            serializer.readDeferredConfidence(wallet, tx, d.proto);
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not read confidence of deferred transaction " + hash, e);
+        }
+        // The depth isn't updated while the transaction is deferred.
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                && d.proto.getConfidence().hasAppearedAtHeight() && wallet.getLastBlockSeenHeight() >= 0)
+            confidence.setDepthInBlocks(wallet.getLastBlockSeenHeight() - confidence.getAppearedAtChainHeight() + 1);
+        return tx;
+    }
+
+    /** Adds the deferred transactions to the given wallet protocol buffer, with their depth updated. */
+    void writeTo(Protos.Wallet.Builder walletBuilder, int lastBlockSeenHeight) {
+        for (Deferred d : deferred.values()) {
+            Protos.TransactionConfidence confidence = d.proto.getConfidence();
+            if (lastBlockSeenHeight >= 0 && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && confidence.hasAppearedAtHeight()) {
+                int depth = lastBlockSeenHeight - confidence.getAppearedAtHeight() + 1;
+                if (depth != confidence.getDepth())
+                    d.proto = d.proto.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+            }
+            walletBuilder.addTransaction(d.proto);
+        }
+    }
+
+    /** Returns a map of the transactions in the given pool, or of all transactions if null. */
+    TransactionMap newMap(@Nullable Pool pool) {
+        return new TransactionMap(pool);
+    }
+
+    void clear() {
+        deferred.clear();
+        connections.clear();
+        spenders.clear();
+        spentCount = deadCount = 0;
+    }
+
+    /**
+     * A map of wallet transactions, which includes deferred transactions. They are read when looked up, or when the
+     * map is iterated.
+     */
+    class TransactionMap extends AbstractMap<Sha256Hash, Transaction> {
+        private final HashMap<Sha256Hash, Transaction> map = new HashMap<>();
+        @Nullable private final Pool pool;
+
+        private TransactionMap(@Nullable Pool pool) {
+            this.pool = pool;
+        }
+
+        /** Returns the transactions that were read, without reading deferred ones. */
+        Map<Sha256Hash, Transaction> getRead() {
+            return map;
+        }
+
+        /**
+         * Returns the transactions that were read, along with the deferred ones that spend any of the given outpoints,
+         * which are read. Other deferred transactions aren't read.
+         */
+        Collection<Transaction> valuesSpending(Set<TransactionOutPoint> outpoints) {
+            for (TransactionOutPoint outpoint : outpoints)
+                for (Sha256Hash hash : new ArrayList<>(spenders.get(outpoint)))
+                    get(hash);
+            return map.values();
+        }
+
+        @Override
+        public Transaction get(Object key) {
+            Transaction tx = map.get(key);
+            if (tx == null && contains(key, pool)) {
+                read(key);
+                tx = map.get(key);
+            }
+            return tx;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key) || contains(key, pool);
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            return map.put(key, value);
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            get(key);
+            return map.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return map.size() + DeferredTransactions.this.size(pool);
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+
+        @Override
+        public Set<Sha256Hash> keySet() {
+            readAll();
+            return map.keySet();
+        }
+
+        @Override
+        public Collection<Transaction> values() {
+            readAll();
+            return map.values();
+        }
+
+        @Override
+        public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+            readAll();
+            return map.entrySet();
+        }
+    }
+}
@@ -1236,12 +1236,17 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
         int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
-            hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
+        while (result.size() < needed) {
+            // Derive the keys in one batch. The batch ends early at a child that can't be derived, which is skipped.
+            List<DeterministicKey> batch = HDKeyDerivation.deriveChildKeys(parent, nextChild, needed - result.size());
+            if (batch.isEmpty())
+                batch = Collections.singletonList(HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild));
+            for (DeterministicKey key : batch) {
+                key = key.dropPrivateBytes();
+                hierarchy.putKey(key);
+                result.add(key);
+                nextChild = key.getChildNumber().num() + 1;
+            }
         }
         watch.stop();
         log.info("Took {}", watch);
@@ -1435,4 +1440,13 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
         return null;
     }
+
+    /**
+     * Returns the redeem scripts generated by this keychain by their hashes, for the index of the
+     * {@link KeyChainGroup}. Subclasses that override {@link #findRedeemDataByScriptHash(ByteString)} must override
+     * this too.
+     */
+    Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.emptyMap();
+    }
 }
@@ -25,6 +25,7 @@ import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.script.*;
@@ -38,6 +39,7 @@ import javax.annotation.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -81,6 +83,17 @@ public class KeyChainGroup implements KeyBag {
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
+    // Finds keys and redeem data without asking each chain in turn. It's rebuilt when the version changes, which
+    // happens when keys are added or removed.
+    private volatile KeyIndex keyIndex;
+    private final AtomicInteger keyIndexVersion = new AtomicInteger();
+    private final KeyChainEventListener keyIndexInvalidator = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            invalidateKeyIndex();
+        }
+    };
+
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
         this(params, null, new ArrayList<DeterministicKeyChain>(1), null, null);
@@ -126,6 +139,7 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<>(KeyChain.KeyPurpose.class);
+        addKeyIndexInvalidator();
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -141,6 +155,30 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains) {
             chain.maybeLookAheadScripts();
         }
+        invalidateKeyIndex();
+    }
+
+    // Chains added later get the listener from the basic chain, see addAndActivateHDChain().
+    private void addKeyIndexInvalidator() {
+        basic.addEventListener(keyIndexInvalidator, Threading.SAME_THREAD);
+        for (DeterministicKeyChain chain : chains)
+            chain.addEventListener(keyIndexInvalidator, Threading.SAME_THREAD);
+        invalidateKeyIndex();
+    }
+
+    private void invalidateKeyIndex() {
+        keyIndexVersion.incrementAndGet();
+    }
+
+    private KeyIndex getKeyIndex() {
+        KeyIndex index = keyIndex;
+        int version = keyIndexVersion.get();
+        if (index == null || index.version != version) {
+            // If keys are added while the index is built, the version changes again and it's rebuilt next time.
+            index = KeyIndex.build(basic, chains, version);
+            keyIndex = index;
+        }
+        return index;
     }
 
     /** Adds a new HD chain to the chains list, and make it the default chain (from which keys are issued). */
@@ -163,6 +201,7 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        invalidateKeyIndex();
     }
 
     /**
@@ -362,14 +401,7 @@ public class KeyChainGroup implements KeyBag {
     @Override
     @Nullable
     public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
-        // Iterate in reverse order, since the active keychain is the one most likely to have the hit
-        for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
-            DeterministicKeyChain chain = iter.next();
-            RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
-            if (redeemData != null)
-                return redeemData;
-        }
-        return null;
+        return getKeyIndex().findRedeemDataByScriptHash(scriptHash);
     }
 
     public void markP2SHAddressAsUsed(LegacyAddress address) {
@@ -390,14 +422,8 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        KeyIndex.Entry entry = getKeyIndex().findByPubKeyHash(pubkeyHash);
+        return entry != null ? entry.key : null;
     }
 
     /**
@@ -405,13 +431,12 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyHashAsUsed(byte[] pubkeyHash) {
-        for (DeterministicKeyChain chain : chains) {
-            DeterministicKey key;
-            if ((key = chain.markPubHashAsUsed(pubkeyHash)) != null) {
-                maybeMarkCurrentKeyAsUsed(key);
-                return;
-            }
-        }
+        KeyIndex.Entry entry = getKeyIndex().findByPubKeyHash(pubkeyHash);
+        if (entry == null || entry.chain == null)
+            return;
+        DeterministicKey key = entry.chain.markPubHashAsUsed(pubkeyHash);
+        if (key != null)
+            maybeMarkCurrentKeyAsUsed(key);
     }
 
     /** If the given P2SH address is "current", advance it to a new one. */
@@ -440,25 +465,14 @@ public class KeyChainGroup implements KeyBag {
     }
 
     public boolean hasKey(ECKey key) {
-        if (basic.hasKey(key))
-            return true;
-        for (DeterministicKeyChain chain : chains)
-            if (chain.hasKey(key))
-                return true;
-        return false;
+        return getKeyIndex().findByPubKey(key.getPubKey()) != null;
     }
 
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
-        }
-        return null;
+        KeyIndex.Entry entry = getKeyIndex().findByPubKey(pubkey);
+        return entry != null ? entry.key : null;
     }
 
     /**
@@ -466,13 +480,12 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyAsUsed(byte[] pubkey) {
-        for (DeterministicKeyChain chain : chains) {
-            DeterministicKey key;
-            if ((key = chain.markPubKeyAsUsed(pubkey)) != null) {
-                maybeMarkCurrentKeyAsUsed(key);
-                return;
-            }
-        }
+        KeyIndex.Entry entry = getKeyIndex().findByPubKey(pubkey);
+        if (entry == null || entry.chain == null)
+            return;
+        DeterministicKey key = entry.chain.markPubKeyAsUsed(pubkey);
+        if (key != null)
+            maybeMarkCurrentKeyAsUsed(key);
     }
 
     /** Returns the number of keys managed by this group, including the lookahead buffers. */
@@ -490,7 +503,9 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        boolean removed = basic.removeKey(key);
+        invalidateKeyIndex();
+        return removed;
     }
 
     /**
@@ -527,6 +542,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        addKeyIndexInvalidator();
     }
 
     /**
@@ -547,6 +563,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        addKeyIndexInvalidator();
     }
 
     /** Returns true if the group is encrypted. */
@@ -622,6 +639,34 @@ public class KeyChainGroup implements KeyBag {
         throw new UnsupportedOperationException();   // Unused.
     }
 
+    /**
+     * Returns the output scripts that pay to the keys of this group, lookahead keys included, for matching against
+     * block filters. For each key that's a pay to pubkey, a pay to pubkey hash and, if the key is compressed, a pay to
+     * witness pubkey hash script. Married chains give the P2SH scripts of their redeem scripts instead.
+     */
+    public List<byte[]> getCompactFilterElements() {
+        List<byte[]> elements = new ArrayList<>();
+        for (ECKey key : basic.getKeys())
+            addCompactFilterElements(elements, key);
+        for (DeterministicKeyChain chain : chains) {
+            chain.maybeLookAhead();
+            for (DeterministicKey key : chain.getLeafKeys()) {
+                if (chain.isMarried())
+                    elements.add(makeP2SHOutputScript(key, chain).getProgram());
+                else
+                    addCompactFilterElements(elements, key);
+            }
+        }
+        return elements;
+    }
+
+    private void addCompactFilterElements(List<byte[]> elements, ECKey key) {
+        elements.add(ScriptBuilder.createOutputScript(key).getProgram());
+        elements.add(ScriptBuilder.createOutputScript(LegacyAddress.fromKey(params, key)).getProgram());
+        if (key.isCompressed())
+            elements.add(ScriptBuilder.createOutputScript(SegwitAddress.fromKey(params, key)).getProgram());
+    }
+
     private Script makeP2SHOutputScript(DeterministicKey followedKey, DeterministicKeyChain chain) {
         return ScriptBuilder.createP2SHOutputScript(chain.getRedeemData(followedKey).redeemScript);
     }
@@ -633,11 +678,13 @@ public class KeyChainGroup implements KeyBag {
 
     /** Adds a listener for events that are run when keys are added, on the given executor. */
     public void addEventListener(KeyChainEventListener listener, Executor executor) {
-        checkNotNull(listener);
-        checkNotNull(executor);
-        basic.addEventListener(listener, executor);
+        ListenerRegistration<KeyChainEventListener> registration =
+                new ListenerRegistration<>(checkNotNull(listener), checkNotNull(executor));
+        // The chains get the executor of the registration, so that the listener has one listener queue rather than one
+        // per chain, and gets its events one at a time. Chains added later copy it from the basic chain.
+        basic.addEventListener(listener, registration.executor);
         for (DeterministicKeyChain chain : chains)
-            chain.addEventListener(listener, executor);
+            chain.addEventListener(listener, registration.executor);
     }
 
     /** Removes a listener for events that are run when keys are added. */
@@ -757,7 +804,9 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        chain.addEventListener(keyIndexInvalidator, Threading.SAME_THREAD);
         chains.add(chain);
+        invalidateKeyIndex();
         return chain;
     }
 
@@ -0,0 +1,189 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An index of the keys of a {@link KeyChainGroup} by public key hash and by public key, and of the redeem data of
+ * its married chains by script hash. The wallet looks up the keys of every output it sees while syncing. Rather than
+ * asking every chain in turn, each taking its lock and wrapping the bytes in a new {@link ByteString}, the group looks
+ * them up here without locks or allocations.</p>
+ *
+ * <p>An index is immutable once it's built, so it can be read by any thread. The group builds a new one after keys
+ * were added or removed.</p>
+ */
+final class KeyIndex {
+    /** The version of the key chain group this index was built from. */
+    final int version;
+    private final Table<Entry> byPubKeyHash;
+    private final Table<Entry> byPubKey;
+    private final Table<RedeemData> byScriptHash;
+
+    /** A key, and the first deterministic chain that has it, if any. */
+    static final class Entry {
+        /** The key found by the group, the one of the basic chain if it has it. */
+        final ECKey key;
+        @Nullable final DeterministicKeyChain chain;
+
+        Entry(ECKey key, @Nullable DeterministicKeyChain chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+    }
+
+    private KeyIndex(int version, Table<Entry> byPubKeyHash, Table<Entry> byPubKey, Table<RedeemData> byScriptHash) {
+        this.version = version;
+        this.byPubKeyHash = byPubKeyHash;
+        this.byPubKey = byPubKey;
+        this.byScriptHash = byScriptHash;
+    }
+
+    /**
+     * Builds an index of the given chains. Keys are found in the basic chain first and then in the deterministic chains
+     * in order, redeem data in the deterministic chains in reverse order, like the lookups of {@link KeyChainGroup}.
+     */
+    static KeyIndex build(BasicKeyChain basic, List<DeterministicKeyChain> chains, int version) {
+        List<ECKey> basicKeys = basic.getKeys();
+        List<List<ECKey>> chainKeys = new ArrayList<>(chains.size());
+        int numKeys = basicKeys.size();
+        for (DeterministicKeyChain chain : chains) {
+            List<ECKey> keys = chain.getKeys(true, true);
+            chainKeys.add(keys);
+            numKeys += keys.size();
+        }
+        Table<Entry> byPubKeyHash = new Table<>(numKeys);
+        Table<Entry> byPubKey = new Table<>(numKeys);
+        for (ECKey key : basicKeys) {
+            Entry entry = new Entry(key, null);
+            byPubKeyHash.put(key.getPubKeyHash(), entry);
+            byPubKey.put(key.getPubKey(), entry);
+        }
+        for (int i = 0; i < chains.size(); i++) {
+            DeterministicKeyChain chain = chains.get(i);
+            for (ECKey key : chainKeys.get(i)) {
+                add(byPubKeyHash, key.getPubKeyHash(), key, chain);
+                add(byPubKey, key.getPubKey(), key, chain);
+            }
+        }
+
+        Table<RedeemData> byScriptHash = new Table<>(0);
+        for (int i = chains.size() - 1; i >= 0; i--) {
+            for (Map.Entry<ByteString, RedeemData> entry : chains.get(i).getRedeemDataByScriptHash().entrySet()) {
+                byte[] scriptHash = entry.getKey().toByteArray();
+                if (byScriptHash.get(scriptHash) == null)
+                    byScriptHash.put(scriptHash, entry.getValue());
+            }
+        }
+        return new KeyIndex(version, byPubKeyHash, byPubKey, byScriptHash);
+    }
+
+    private static void add(Table<Entry> table, byte[] bytes, ECKey key, DeterministicKeyChain chain) {
+        Entry entry = table.get(bytes);
+        if (entry == null)
+            table.put(bytes, new Entry(key, chain));
+        else if (entry.chain == null)
+            // The basic chain has the key too. It's found there, but marked as used in this chain.
+            table.put(bytes, new Entry(entry.key, chain));
+    }
+
+    @Nullable
+    Entry findByPubKeyHash(byte[] pubKeyHash) {
+        return byPubKeyHash.get(pubKeyHash);
+    }
+
+    @Nullable
+    Entry findByPubKey(byte[] pubKey) {
+        return byPubKey.get(pubKey);
+    }
+
+    @Nullable
+    RedeemData findRedeemDataByScriptHash(byte[] scriptHash) {
+        return byScriptHash.get(scriptHash);
+    }
+
+    // An open addressing hash table keyed on byte arrays, with linear probing. It's only modified while it's built.
+    private static final class Table<V> {
+        private byte[][] keys;
+        private Object[] values;
+        private int size;
+
+        Table(int expectedSize) {
+            int capacity = 16;
+            while (capacity < expectedSize * 2)
+                capacity <<= 1;
+            keys = new byte[capacity][];
+            values = new Object[capacity];
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        V get(byte[] key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                byte[] k = keys[i];
+                if (k == null)
+                    return null;
+                if (Arrays.equals(k, key))
+                    return (V) values[i];
+            }
+        }
+
+        void put(byte[] key, V value) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != null && !Arrays.equals(keys[i], key))
+                i = (i + 1) & mask;
+            if (keys[i] == null) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+            // Keep the table at most half full, so probe sequences stay short.
+            if (size * 2 > keys.length)
+                grow();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void grow() {
+            byte[][] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new Object[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldKeys[i] != null)
+                    put(oldKeys[i], (V) oldValues[i]);
+        }
+
+        // The keys are hashes and public keys, so their bytes are evenly distributed already. Public keys start with
+        // a prefix byte, so the last bytes are used.
+        private static int hash(byte[] key) {
+            int n = key.length;
+            if (n < 4)
+                return Arrays.hashCode(key);
+            return (key[n - 4] & 0xff) | (key[n - 3] & 0xff) << 8 | (key[n - 2] & 0xff) << 16 | key[n - 1] << 24;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>Tracks the outputs a {@link Wallet} could spend, so that balances don't have to be recalculated from scratch
+ * every time they are asked for.</p>
+ *
+ * <p>For each output the index remembers whether the wallet can sign for it, so that checking the keys is done once
+ * per output rather than once per balance query or spend. Running totals of all outputs give the estimated balances.
+ * The available balance of the {@link DefaultCoinSelector} depends on the confidence of transactions, which changes
+ * over time. Outputs of mature transactions that are in the best chain stay selectable until the wallet changes their
+ * confidence type, so these are counted as <i>settled</i> in running totals too. Only the remaining outputs, of
+ * pending transactions and immature coinbases, are looked at again for each query, which is usually a handful.</p>
+ *
+ * <p>The outputs are also kept ordered by {@link BranchAndBoundCoinSelector#LARGEST_FIRST}, so coin selectors that
+ * want them in that order don't have to sort them for every transaction.</p>
+ *
+ * <p>The wallet keeps this index in sync with its set of unspent outputs and tells it about confidence changes. Except
+ * for {@link #keysAdded()}, {@link #keysRemoved()} and {@link #confidenceTypeChanged(Sha256Hash)}, all methods must be
+ * called while holding the wallet lock.</p>
+ */
+class SpendCandidateIndex {
+    private static class Entry {
+        final TransactionOutput output;
+        final int index;
+        // Tells apart outputs that LARGEST_FIRST can't, like those without a parent or of copies of a transaction.
+        final long sequence;
+        boolean signable;
+        boolean settled;
+
+        Entry(TransactionOutput output, long sequence) {
+            this.output = output;
+            this.index = BranchAndBoundCoinSelector.indexOf(output);
+            this.sequence = sequence;
+        }
+    }
+
+    // Same order as BranchAndBoundCoinSelector.LARGEST_FIRST, but using the index looked up when the output was added
+    // and never considering two entries the same.
+    private static final Comparator<Entry> LARGEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = BranchAndBoundCoinSelector.compareValueAndParent(a.output, b.output);
+            if (c == 0)
+                c = Integer.compare(a.index, b.index);
+            if (c == 0)
+                c = Long.compare(a.sequence, b.sequence);
+            return c;
+        }
+    };
+
+    private final Wallet wallet;
+    private final Map<TransactionOutput, Entry> outputs = new LinkedHashMap<>();
+    private final Set<TransactionOutput> unsettled = new LinkedHashSet<>();
+    private final TreeSet<Entry> byValue = new TreeSet<>(LARGEST_FIRST);
+    private long nextSequence;
+
+    private Coin estimated = Coin.ZERO;
+    private Coin estimatedSpendable = Coin.ZERO;
+    private Coin settled = Coin.ZERO;
+    private Coin settledSpendable = Coin.ZERO;
+
+    // Set by key chain listeners, which run without the wallet lock. Checked before every query.
+    private volatile boolean keysAdded;
+    private volatile boolean keysRemoved;
+    // Filled by confidence listeners, which may run without the wallet lock. Drained before every query.
+    private final Queue<Sha256Hash> changedTransactions = new ConcurrentLinkedQueue<>();
+
+    SpendCandidateIndex(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    int size() {
+        return outputs.size();
+    }
+
+    void add(TransactionOutput output) {
+        remove(output);
+        Entry entry = new Entry(output, nextSequence++);
+        entry.signable = wallet.canSignFor(output.getScriptPubKey());
+        entry.settled = isSettled(output);
+        outputs.put(output, entry);
+        byValue.add(entry);
+        if (!entry.settled)
+            unsettled.add(output);
+        count(output, entry, true);
+    }
+
+    void remove(TransactionOutput output) {
+        Entry entry = outputs.remove(output);
+        if (entry == null)
+            return;
+        unsettled.remove(output);
+        byValue.remove(entry);
+        count(output, entry, false);
+    }
+
+    void clear() {
+        outputs.clear();
+        unsettled.clear();
+        byValue.clear();
+        estimated = estimatedSpendable = settled = settledSpendable = Coin.ZERO;
+    }
+
+    /** Rebuilds the index from scratch. */
+    void reset(Collection<TransactionOutput> unspents) {
+        clear();
+        keysAdded = keysRemoved = false;
+        changedTransactions.clear();
+        for (TransactionOutput output : unspents)
+            add(output);
+    }
+
+    /** Called when keys were added to the wallet, which may allow us to sign for outputs we couldn't sign for. */
+    void keysAdded() {
+        keysAdded = true;
+    }
+
+    /** Called when keys were removed from the wallet. */
+    void keysRemoved() {
+        keysRemoved = true;
+    }
+
+    /** Called when the confidence type of a transaction changed. The change is picked up by the next query. */
+    void confidenceTypeChanged(Sha256Hash txHash) {
+        changedTransactions.add(txHash);
+    }
+
+    /** Looks at the outputs of the given transaction again, after its confidence changed. */
+    void confidenceChanged(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            Entry entry = outputs.get(output);
+            if (entry == null)
+                continue;
+            boolean settledNow = isSettled(output);
+            if (settledNow == entry.settled)
+                continue;
+            count(output, entry, false);
+            entry.settled = settledNow;
+            count(output, entry, true);
+            if (settledNow)
+                unsettled.remove(output);
+            else
+                unsettled.add(output);
+        }
+    }
+
+    /** Returns the sum of all outputs, or only of those we can sign for. */
+    Coin getEstimatedBalance(boolean spendableOnly) {
+        update();
+        return spendableOnly ? estimatedSpendable : estimated;
+    }
+
+    /** Returns what the {@link DefaultCoinSelector} would select from the mature outputs. */
+    Coin getAvailableBalance(boolean spendableOnly) {
+        update();
+        // Outputs that settled since the last query, e.g. because a coinbase matured, move to the running totals.
+        for (Iterator<TransactionOutput> it = unsettled.iterator(); it.hasNext(); ) {
+            TransactionOutput output = it.next();
+            if (isSettled(output)) {
+                Entry entry = outputs.get(output);
+                count(output, entry, false);
+                entry.settled = true;
+                count(output, entry, true);
+                it.remove();
+            }
+        }
+        Coin value = spendableOnly ? settledSpendable : settled;
+        for (TransactionOutput output : unsettled) {
+            if (spendableOnly && !outputs.get(output).signable)
+                continue;
+            Transaction tx = output.getParentTransaction();
+            if (tx.isMature() && DefaultCoinSelector.isSelectable(tx))
+                value = value.add(output.getValue());
+        }
+        return value;
+    }
+
+    /** Returns the outputs that pass the given filters, largest first. */
+    List<TransactionOutput> getCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        update();
+        List<TransactionOutput> candidates = new ArrayList<>(outputs.size());
+        for (Entry entry : byValue) {
+            if (excludeUnsignable && !entry.signable)
+                continue;
+            // Settled outputs are mature by definition.
+            if (excludeImmatureCoinbases && !entry.settled && !entry.output.getParentTransaction().isMature())
+                continue;
+            candidates.add(entry.output);
+        }
+        return candidates;
+    }
+
+    private void update() {
+        Sha256Hash txHash;
+        while ((txHash = changedTransactions.poll()) != null) {
+            Transaction tx = wallet.getTransaction(txHash);
+            if (tx != null)
+                confidenceChanged(tx);
+        }
+        updateSignability();
+    }
+
+    private void updateSignability() {
+        boolean recheckAll = keysRemoved;
+        boolean recheckUnsignable = keysAdded;
+        if (!recheckAll && !recheckUnsignable)
+            return;
+        // Clear the flags first, so keys that are changed meanwhile are picked up next time.
+        keysRemoved = keysAdded = false;
+        for (Map.Entry<TransactionOutput, Entry> mapEntry : outputs.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.signable && !recheckAll)
+                continue;
+            TransactionOutput output = mapEntry.getKey();
+            boolean signableNow = wallet.canSignFor(output.getScriptPubKey());
+            if (signableNow == entry.signable)
+                continue;
+            count(output, entry, false);
+            entry.signable = signableNow;
+            count(output, entry, true);
+        }
+    }
+
+    private void count(TransactionOutput output, Entry entry, boolean add) {
+        Coin value = add ? output.getValue() : output.getValue().negate();
+        estimated = estimated.add(value);
+        if (entry.signable)
+            estimatedSpendable = estimatedSpendable.add(value);
+        if (entry.settled) {
+            settled = settled.add(value);
+            if (entry.signable)
+                settledSpendable = settledSpendable.add(value);
+        }
+    }
+
+    // Mature transactions in the best chain are always selected by the DefaultCoinSelector, and stay that way until
+    // the wallet changes their confidence type in a re-org or when they are double spent.
+    private static boolean isSettled(TransactionOutput output) {
+        Transaction tx = output.getParentTransaction();
+        return tx != null && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING && tx.isMature();
+    }
+}
@@ -41,6 +41,7 @@ import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.PeerFilterProvider;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SigHashContext;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionBag;
@@ -150,15 +151,72 @@ public class Wallet extends BaseTaggableObject
 
     private final Map<Sha256Hash, Transaction> pending;
     private final Map<Sha256Hash, Transaction> unspent;
-    private final Map<Sha256Hash, Transaction> spent;
-    private final Map<Sha256Hash, Transaction> dead;
+    private final DeferredTransactions.TransactionMap spent;
+    private final DeferredTransactions.TransactionMap dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Spent and dead transactions that weren't read from the wallet file yet, see
+    // WalletProtobufSerializer.setLazyLoading(). The spent, dead and transactions maps read them when they're used.
+    private final DeferredTransactions deferredTransactions;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    protected final HashSet<TransactionOutput> myUnspents = new UnspentOutputSet();
+    // The outputs in myUnspents together with running balance totals, so balances needn't be recalculated each time.
+    private final SpendCandidateIndex spendCandidates = new SpendCandidateIndex(this);
+    // The modification count of myUnspents that spendCandidates is up to date with.
+    private int spendCandidatesModCount;
+
+    // A set that counts the changes made to it, so that changes subclasses make to myUnspents are noticed.
+    private static class UnspentOutputSet extends HashSet<TransactionOutput> {
+        int modCount;
+
+        @Override
+        public boolean add(TransactionOutput output) {
+            if (!super.add(output))
+                return false;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!super.remove(o))
+                return false;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            modCount++;
+        }
+
+        @Override
+        public Iterator<TransactionOutput> iterator() {
+            final Iterator<TransactionOutput> it = super.iterator();
+            return new Iterator<TransactionOutput>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public TransactionOutput next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                    modCount++;
+                }
+            };
+        }
+    }
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -222,6 +280,11 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // Transactions that changed since they were last written, for the WalletJournal. Changes of depth only are not
+    // recorded, as the depth follows from the height the transaction appeared at and the last seen block.
+    @GuardedBy("lock") private final Set<Sha256Hash> journalChanges = new HashSet<>();
+    // Hash of the wallet file the journal applies to, or null if the journal must start over with a new wallet file.
+    @GuardedBy("lock") @Nullable private Sha256Hash journalSnapshot;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -358,12 +421,20 @@ public class Wallet extends BaseTaggableObject
         // we're probably being deserialized so leave things alone: the API user can upgrade later.
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
+        // New keys may let us sign for outputs we are already tracking.
+        this.keyChainGroup.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                spendCandidates.keysAdded();
+            }
+        }, Threading.SAME_THREAD);
         watchedScripts = Sets.newHashSet();
+        deferredTransactions = new DeferredTransactions(this);
         unspent = new HashMap<>();
-        spent = new HashMap<>();
+        spent = deferredTransactions.newMap(Pool.SPENT);
         pending = new HashMap<>();
-        dead = new HashMap<>();
-        transactions = new HashMap<>();
+        dead = deferredTransactions.newMap(Pool.DEAD);
+        transactions = deferredTransactions.newMap(null);
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
@@ -377,6 +448,8 @@ public class Wallet extends BaseTaggableObject
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                if (reason == ChangeReason.TYPE)
+                    spendCandidates.confidenceTypeChanged(confidence.getTransactionHash());
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -388,6 +461,8 @@ public class Wallet extends BaseTaggableObject
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null)
+                            markChangedForJournal(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -647,7 +722,10 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            if (removed)
+                spendCandidates.keysRemoved();
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1433,10 +1511,28 @@ public class Wallet extends BaseTaggableObject
      */
     public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
                                       @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+    }
+
+    /**
+     * <p>Sets up the wallet to auto-save itself to the given file, like
+     * {@link #autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}. If {@code journaled} is true, only the
+     * changes since the last save are appended to a {@link WalletJournal} next to the wallet file, so saving takes time
+     * in proportion to the changes rather than the size of the wallet. The journal is merged into the wallet file from
+     * time to time. {@link #loadFromFile(File, WalletExtension...)} reads the wallet file and applies the journal.</p>
+     *
+     * @param f The destination file to save to.
+     * @param delayTime How many time units to wait until saving the wallet on a background thread.
+     * @param timeUnit the unit of measurement for delayTime.
+     * @param eventListener callback to be informed when the auto-save thread does things, or null
+     * @param journaled whether to append changes to a journal instead of writing the whole wallet
+     */
+    public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+                                      @Nullable WalletFiles.Listener eventListener, boolean journaled) {
         lock.lock();
         try {
             checkState(vFileManager == null, "Already auto saving this wallet.");
-            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journaled);
             if (eventListener != null)
                 manager.setListener(eventListener);
             vFileManager = manager;
@@ -1496,11 +1592,62 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             new WalletProtobufSerializer().writeWallet(this, f);
+            // Everything was written, so a journal has to start over from here.
+            setJournalSnapshot(null);
         } finally {
             lock.unlock();
         }
     }
 
+    private void markChangedForJournal(Transaction tx) {
+        if (journalSnapshot == null)
+            return;  // The next journal write starts over anyway.
+        journalChanges.add(tx.getHash());
+        // Spending a transaction changes the spent flags of its outputs.
+        for (TransactionInput input : tx.getInputs())
+            journalChanges.add(input.getOutpoint().getHash());
+    }
+
+    /**
+     * Returns the transactions that changed since the last call, or since the wallet was saved in full. Used by the
+     * {@link WalletJournal}.
+     */
+    List<WalletTransaction> takeJournalChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        List<WalletTransaction> changes = new ArrayList<>(journalChanges.size());
+        for (Sha256Hash hash : journalChanges) {
+            Transaction tx;
+            if ((tx = unspent.get(hash)) != null)
+                changes.add(new WalletTransaction(Pool.UNSPENT, tx));
+            else if ((tx = spent.getRead().get(hash)) != null)
+                changes.add(new WalletTransaction(Pool.SPENT, tx));
+            else if ((tx = pending.get(hash)) != null)
+                changes.add(new WalletTransaction(Pool.PENDING, tx));
+            else if ((tx = dead.getRead().get(hash)) != null)
+                changes.add(new WalletTransaction(Pool.DEAD, tx));
+            // Otherwise it's a transaction spent by one of ours, but not in the wallet.
+        }
+        journalChanges.clear();
+        return changes;
+    }
+
+    /** Returns the hash of the wallet file the {@link WalletJournal} applies to, or null if it must start over. */
+    @Nullable
+    Sha256Hash getJournalSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        return journalSnapshot;
+    }
+
+    /**
+     * Sets the hash of the wallet file the {@link WalletJournal} applies to, when the wallet was just written to or
+     * read from that file. Changes made before are forgotten.
+     */
+    void setJournalSnapshot(@Nullable Sha256Hash snapshot) {
+        checkState(lock.isHeldByCurrentThread());
+        journalSnapshot = snapshot;
+        journalChanges.clear();
+    }
+
     /** Returns the parameters this wallet was created with. */
     public NetworkParameters getParams() {
         return params;
@@ -1515,10 +1662,14 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with a {@link WalletJournal}, the changes in the journal are applied.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists())
+            return WalletJournal.loadFromFile(file, walletExtensions);
         try {
             FileInputStream stream = null;
             try {
@@ -1558,7 +1709,8 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
+            // Transactions that weren't read yet are left alone.
+            Set<Transaction> transactions = getLoadedTransactions();
 
             Set<Sha256Hash> hashes = new HashSet<>();
             for (Transaction tx : transactions) {
@@ -1570,7 +1722,7 @@ public class Wallet extends BaseTaggableObject
                 throw new IllegalStateException("Two transactions with same hash");
             }
 
-            int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
+            int size2 = unspent.size() + spent.getRead().size() + pending.size() + dead.getRead().size();
             if (size1 != size2) {
                 throw new IllegalStateException("Inconsistent wallet sizes: " + size1 + ", " + size2);
             }
@@ -1581,8 +1733,9 @@ public class Wallet extends BaseTaggableObject
                 }
             }
 
-            for (Transaction tx : spent.values()) {
-                if (!isTxConsistent(tx, true)) {
+            for (Transaction tx : spent.getRead().values()) {
+                // Outputs spent by a transaction that wasn't read yet aren't connected.
+                if (!deferredTransactions.isConnectedToDeferred(tx.getHash()) && !isTxConsistent(tx, true)) {
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
             }
@@ -1665,7 +1818,7 @@ public class Wallet extends BaseTaggableObject
                     return false;
                 }
             }
-            receive(tx, block, blockType, relativityOffset);
+            receive(tx, block, blockType, relativityOffset, false);
             return true;
         } finally {
             lock.unlock();
@@ -1831,9 +1984,12 @@ public class Wallet extends BaseTaggableObject
         for (TransactionInput input : tx.getInputs()) {
             outpoints.add(input.getOutpoint());
         }
+        // Deferred transactions are only read if they spend one of them.
+        Collection<Transaction> candidateTxns = candidates instanceof DeferredTransactions.TransactionMap
+                ? ((DeferredTransactions.TransactionMap) candidates).valuesSpending(outpoints) : candidates.values();
         // Now for each pending transaction, see if it shares any outpoints with this tx.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
+        for (Transaction p : candidateTxns) {
             if (p.equals(tx))
                 continue;
             for (TransactionInput input : p.getInputs()) {
@@ -1900,7 +2056,25 @@ public class Wallet extends BaseTaggableObject
         try {
             if (!isTransactionRelevant(tx))
                 return;
-            receive(tx, block, blockType, relativityOffset);
+            receive(tx, block, blockType, relativityOffset, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)} for a block on the best
+     * chain that this wallet already saw the successors of, and that {@link #notifyNewBestBlock(StoredBlock)} won't be
+     * called for. This happens when block filters show an old block to be relevant after its header was added, see
+     * {@link org.bitcoinj.core.CompactFilterClient}. The transaction gets the depth it has at the last block seen.
+     */
+    public void receiveFromPastBlock(Transaction tx, StoredBlock block, int relativityOffset)
+            throws VerificationException {
+        lock.lock();
+        try {
+            if (!isTransactionRelevant(tx))
+                return;
+            receive(tx, checkNotNull(block), BlockChain.NewBlockType.BEST_CHAIN, relativityOffset, true);
         } finally {
             lock.unlock();
         }
@@ -1910,7 +2084,7 @@ public class Wallet extends BaseTaggableObject
     private boolean hardSaveOnNextBlock = false;
 
     private void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
-                         int relativityOffset) throws VerificationException {
+                         int relativityOffset, boolean pastBlock) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
 
@@ -1940,6 +2114,7 @@ public class Wallet extends BaseTaggableObject
             if (tmp != null)
                 tx = tmp;
         }
+        markChangedForJournal(tx);
 
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
@@ -1955,7 +2130,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -1986,17 +2161,21 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
-            if (bestChain) {
+            if (pastBlock) {
+                // The blocks after it were already counted, so set the depth it has now.
+                tx.getConfidence().setDepthInBlocks(Math.max(1, lastBlockSeenHeight - block.getHeight() + 1));
+            } else if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
                 ignoreNextNewBlock.add(txHash);
-
+            }
+            if (bestChain) {
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies, getLoadedTransactions());
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2014,8 +2193,11 @@ public class Wallet extends BaseTaggableObject
 
         // Side chains don't affect confidence.
         if (bestChain) {
-            // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            // Unless it's a past block, notifyNewBestBlock will be invoked next and will then call
+            // maybeQueueOnWalletChanged for us.
+            if (pastBlock)
+                maybeQueueOnWalletChanged();
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -2028,7 +2210,7 @@ public class Wallet extends BaseTaggableObject
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -2102,6 +2284,8 @@ public class Wallet extends BaseTaggableObject
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markChangedForJournal(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -2129,8 +2313,9 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            // This is so that they can update their depth. Transactions that weren't read yet get their depth when
+            // they are read.
+            Set<Transaction> transactions = getLoadedTransactions();
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2146,8 +2331,13 @@ public class Wallet extends BaseTaggableObject
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon()) {
+                            boolean hadBroadcastData = confidence.numBroadcastPeers() > 0
+                                    || confidence.getLastBroadcastedAt() != null;
                             confidence.clearBroadcastBy();
+                            if (hadBroadcastData)
+                                markChangedForJournal(tx);
+                        }
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
@@ -2307,7 +2497,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2330,7 +2520,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2360,7 +2550,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getHash());
                 }
                 deadInput.disconnect();
@@ -2370,7 +2560,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2386,13 +2576,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2405,6 +2595,9 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Outputs spent by transactions that weren't read yet would look unspent.
+        deferredTransactions.readConnected(tx.getHash());
+        markChangedForJournal(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2469,7 +2662,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getHashAsString());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, getLoadedTransactions());
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
                     confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
@@ -2714,7 +2907,7 @@ public class Wallet extends BaseTaggableObject
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
             } else {
-                registration.executor.execute(new Runnable() {
+                registration.executor.execute(new ListenerQueue.CoalescingRunnable(registration.listener, tx) {
                     @Override
                     public void run() {
                         registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
@@ -2731,7 +2924,7 @@ public class Wallet extends BaseTaggableObject
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
-            registration.executor.execute(new Runnable() {
+            registration.executor.execute(new ListenerQueue.CoalescingRunnable(registration.listener, this) {
                 @Override
                 public void run() {
                     registration.listener.onWalletChanged(Wallet.this);
@@ -2830,6 +3023,44 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Returns all transactions that were read, without reading the ones deferred by lazy loading. */
+    private Set<Transaction> getLoadedTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        all.addAll(spent.getRead().values());
+        all.addAll(pending.values());
+        all.addAll(dead.getRead().values());
+        return all;
+    }
+
+    /** Like {@link #getWalletTransactions()}, but without reading the transactions deferred by lazy loading. */
+    Iterable<WalletTransaction> getLoadedWalletTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<WalletTransaction> all = new HashSet<>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, spent.getRead().values());
+        addWalletTransactionsToSet(all, Pool.DEAD, dead.getRead().values());
+        addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+        return all;
+    }
+
+    /** Returns the transactions deferred by lazy loading, see {@link WalletProtobufSerializer#setLazyLoading(boolean)}. */
+    DeferredTransactions getDeferredTransactions() {
+        return deferredTransactions;
+    }
+
+    /** Adds a spent or dead transaction that was deferred by lazy loading and was just read. */
+    void addDeferredTransaction(Pool pool, Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        transactions.put(tx.getHash(), tx);
+        if (pool == Pool.SPENT)
+            checkState(spent.put(tx.getHash(), tx) == null);
+        else
+            checkState(dead.put(tx.getHash(), tx) == null);
+        tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -2857,6 +3088,7 @@ public class Wallet extends BaseTaggableObject
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        markChangedForJournal(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2876,7 +3108,7 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -2999,7 +3231,12 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
+        deferredTransactions.clear();
         myUnspents.clear();
+        spendCandidates.clear();
+        spendCandidatesModCount = unspentsModCount();
+        // The journal can't express removals.
+        journalSnapshot = null;
     }
 
     /**
@@ -3050,14 +3287,15 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        journalSnapshot = null;  // The journal can't express removals.
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3482,6 +3720,15 @@ public class Wallet extends BaseTaggableObject
     public Coin getBalance(BalanceType balanceType) {
         lock.lock();
         try {
+            if (vUTXOProvider == null) {
+                syncSpendCandidates();
+                if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE)
+                    return spendCandidates.getEstimatedBalance(balanceType == BalanceType.ESTIMATED_SPENDABLE);
+                // Other coin selectors may select anything, so they are given all candidates below.
+                if (coinSelector instanceof DefaultCoinSelector
+                        && ((DefaultCoinSelector) coinSelector).selectsAllSelectable())
+                    return spendCandidates.getAvailableBalance(balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            }
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
                 List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
                 CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
@@ -4033,6 +4280,7 @@ public class Wallet extends BaseTaggableObject
             checkState(outputs.size() > 0);
 
             KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+            SigHashContext sigHashContext = new SigHashContext(tx);
 
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
@@ -4046,7 +4294,8 @@ public class Wallet extends BaseTaggableObject
                     // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                     // we sign missing pieces (to check this would require either assuming any signatures are signing
                     // standard output types or a way to get processed signatures out of script execution)
-                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(),
+                            Script.ALL_VERIFY_FLAGS, sigHashContext);
                     log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                     continue;
                 } catch (ScriptException e) {
@@ -4106,14 +4355,8 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
-                }
+                syncSpendCandidates();
+                candidates = spendCandidates.getCandidates(excludeImmatureCoinbases, excludeUnsignable);
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
             }
@@ -4123,6 +4366,41 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private boolean addUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        spendCandidates.add(output);
+        spendCandidatesModCount++;
+        return true;
+    }
+
+    private boolean removeUnspent(TransactionOutput output) {
+        if (!myUnspents.remove(output))
+            return false;
+        spendCandidates.remove(output);
+        spendCandidatesModCount++;
+        return true;
+    }
+
+    private void resetSpendCandidates() {
+        spendCandidates.reset(myUnspents);
+        spendCandidatesModCount = unspentsModCount();
+    }
+
+    private int unspentsModCount() {
+        return ((UnspentOutputSet) myUnspents).modCount;
+    }
+
+    private void syncSpendCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        // Subclasses may modify myUnspents directly, in which case we start over.
+        if (spendCandidatesModCount != unspentsModCount())
+            resetSpendCandidates();
+        // Confidence types we changed but didn't tell listeners about yet.
+        for (Transaction tx : confidenceChanged.keySet())
+            spendCandidates.confidenceChanged(tx);
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -4231,6 +4509,9 @@ public class Wallet extends BaseTaggableObject
      * selector implements a policy of spending transactions that appeared in the best chain and pending transactions
      * that were created by this wallet, but not others. You can override the coin selector for any given send
      * operation by changing {@link SendRequest#coinSelector}.
+     *
+     * <p>The available balance is only worked out without asking the selector if it's a {@link DefaultCoinSelector}
+     * that says so through {@link DefaultCoinSelector#selectsAllSelectable()}.</p>
      */
     public void setCoinSelector(CoinSelector coinSelector) {
         lock.lock();
@@ -4433,7 +4714,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
@@ -4486,7 +4767,7 @@ public class Wallet extends BaseTaggableObject
                 for (TxOffsetPair pair : mapBlockTx.get(block.getHeader().getHash())) {
                     log.info("  tx {}", pair.tx.getHash());
                     try {
-                        receive(pair.tx, block, BlockChain.NewBlockType.BEST_CHAIN, pair.offset);
+                        receive(pair.tx, block, BlockChain.NewBlockType.BEST_CHAIN, pair.offset, false);
                     } catch (ScriptException e) {
                         throw new RuntimeException(e);  // Cannot happen as these blocks were already verified.
                     }
@@ -4494,6 +4775,8 @@ public class Wallet extends BaseTaggableObject
                 notifyNewBestBlock(block);
             }
             isConsistentOrThrow();
+            // Depths changed all over the place, so don't bother updating the spend candidates one by one.
+            resetSpendCandidates();
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
@@ -4546,7 +4829,7 @@ public class Wallet extends BaseTaggableObject
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<>();
         all.addAll(unspent.values());
-        all.addAll(spent.values());
+        all.addAll(spent.getRead().values());
         all.addAll(pending.values());
         for (Transaction tx : all) {
             for (TransactionOutput out : tx.getOutputs()) {
@@ -4653,6 +4936,23 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the output scripts this wallet is interested in, for matching against block filters: the scripts that
+     * pay to its keys, lookahead keys included, and the watched scripts. As block filters also hold the scripts of the
+     * outputs spent by a block, spends from this wallet match as well. See {@link org.bitcoinj.core.CompactFilterClient}.
+     */
+    public List<byte[]> getCompactFilterElements() {
+        keyChainGroupLock.lock();
+        try {
+            List<byte[]> elements = keyChainGroup.getCompactFilterElements();
+            for (Script script : watchedScripts)
+                elements.add(script.getProgram());
+            return elements;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -4831,7 +5131,7 @@ public class Wallet extends BaseTaggableObject
             }
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selector.select(valueNeeded, new ArrayList<>(candidates));
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
@@ -47,6 +47,7 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    @Nullable private final WalletJournal journal;
 
     private volatile Listener vListener;
 
@@ -72,6 +73,15 @@ public class WalletFiles {
      * depending on the urgency of the changes.
      */
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /**
+     * Initialize atomic and optionally delayed writing of the wallet file to disk. If {@code journaled} is true, only
+     * the changes since the last save are appended to a {@link WalletJournal} next to the wallet file, and the whole
+     * wallet is written only when the journal has grown too big.
+     */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journaled) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -83,6 +93,7 @@ public class WalletFiles {
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.journal = journaled ? new WalletJournal(wallet, file) : null;
 
         this.saver = new Callable<Void>() {
             @Override public Void call() throws Exception {
@@ -129,12 +140,20 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        if (journal != null && journal.append()) {
+            watch.stop();
+            log.info("Save to journal completed in {}", watch);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            journal.compact(temp);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
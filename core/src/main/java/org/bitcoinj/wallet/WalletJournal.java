@@ -0,0 +1,385 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An append only journal of wallet changes, kept next to the wallet file. Instead of writing the whole wallet on
+ * every save, only the transactions that changed, the last seen block and, if they changed, the keys and other
+ * wallet data are appended. Saving then takes time in proportion to the changes rather than the size of the wallet.
+ * When the journal grows bigger than the wallet file, the wallet is written in full and the journal starts over.</p>
+ *
+ * <p>The journal starts with the hash of the wallet file it applies to, followed by records of the changes, each with
+ * a checksum. {@link Wallet#loadFromFile(File, WalletExtension...)} reads the wallet file and applies the records, up
+ * to the first torn or corrupt one. A journal that doesn't apply to the wallet file, because the wallet was written
+ * in full afterwards, is ignored.</p>
+ *
+ * <p>Changes of the depth of transactions are not written, as they follow from the height transactions appeared at and
+ * the last seen block. Changes made to transactions outside of the wallet, like setting a memo, are only written when
+ * the wallet is written in full. Use {@link Wallet#autosaveToFile(File, long, java.util.concurrent.TimeUnit, WalletFiles.Listener, boolean)}
+ * to save a wallet with a journal.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final int MAGIC = 0x776a726e;  // "wjrn"
+    private static final int HEADER_SIZE = 4 + Sha256Hash.LENGTH;
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+    // Holds everything but the transactions and the last seen block.
+    private static final byte RECORD_METADATA = 1;
+    // Holds the transactions that changed and the last seen block.
+    private static final byte RECORD_TRANSACTIONS = 2;
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File file;
+
+    // All guarded by the wallet lock. The length is -1 until the journal was checked.
+    private long length = -1;
+    private long walletFileLength;
+    @Nullable private Sha256Hash metadataHash;
+
+    /** Creates a journal for the given wallet, which is saved to the given file. */
+    public WalletJournal(Wallet wallet, File walletFile) {
+        this.wallet = checkNotNull(wallet);
+        this.walletFile = checkNotNull(walletFile);
+        this.file = getJournalFile(walletFile);
+    }
+
+    /** Returns the file of the journal that belongs to the given wallet file. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Appends the changes since the last save to the journal. Returns false, without writing anything, if the wallet
+     * must be written in full using {@link #compact(File)} instead: because the journal doesn't apply to the wallet
+     * file, or has grown bigger than it.
+     */
+    public boolean append() throws IOException {
+        wallet.lock.lock();
+        try {
+            Sha256Hash snapshot = wallet.getJournalSnapshot();
+            if (snapshot == null || (length < 0 && !open(snapshot)) || length > walletFileLength)
+                return false;
+
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            byte[] metadata = metadataToProto(serializer).toByteArray();
+            Sha256Hash newMetadataHash = Sha256Hash.of(metadata);
+            if (!newMetadataHash.equals(metadataHash))
+                writeRecord(records, RECORD_METADATA, metadata);
+            Protos.Wallet.Builder transactions = Protos.Wallet.newBuilder();
+            transactions.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+            for (WalletTransaction wtx : wallet.takeJournalChanges())
+                transactions.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+            Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+            if (lastSeenBlockHash != null) {
+                transactions.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(lastSeenBlockHash));
+                transactions.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+            }
+            if (wallet.getLastBlockSeenTimeSecs() > 0)
+                transactions.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+            writeRecord(records, RECORD_TRANSACTIONS, transactions.build().toByteArray());
+
+            FileOutputStream stream = null;
+            try {
+                stream = new FileOutputStream(file, true);
+                records.writeTo(stream);
+                stream.flush();
+                stream.getFD().sync();
+                stream.close();
+                stream = null;
+            } catch (IOException e) {
+                // The changes we took are lost, and the journal may end with a torn record.
+                wallet.setJournalSnapshot(null);
+                length = -1;
+                throw e;
+            } finally {
+                if (stream != null)
+                    stream.close();
+            }
+            length += records.size();
+            metadataHash = newMetadataHash;
+            log.info("Appended {} transactions to wallet journal, {} bytes", transactions.getTransactionCount(),
+                    records.size());
+            return true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the wallet in full, first to the given temp file which is then renamed to the wallet file, and starts a
+     * new journal.
+     */
+    public void compact(File temp) throws IOException {
+        wallet.lock.lock();
+        try {
+            wallet.saveToFile(temp, walletFile);
+            Sha256Hash snapshot = Sha256Hash.of(walletFile);
+            FileOutputStream stream = new FileOutputStream(file);
+            try {
+                DataOutputStream header = new DataOutputStream(stream);
+                header.writeInt(MAGIC);
+                header.write(snapshot.getBytes());
+                header.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            length = HEADER_SIZE;
+            walletFileLength = walletFile.length();
+            metadataHash = Sha256Hash.of(metadataToProto(new WalletProtobufSerializer()).toByteArray());
+            wallet.setJournalSnapshot(snapshot);
+            log.info("Started new wallet journal after writing {} bytes", walletFileLength);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the wallet from the given file and applies the journal next to it, if it applies to the wallet file.
+     * Saving the wallet to the same file with a journal will then append to that journal.
+     */
+    public static Wallet loadFromFile(File walletFile, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            MessageDigest digest = Sha256Hash.newDigest();
+            Protos.Wallet walletProto;
+            InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)),
+                    digest);
+            try {
+                walletProto = WalletProtobufSerializer.parseToProto(stream);
+                // Make sure the whole file was hashed.
+                byte[] buffer = new byte[4096];
+                while (stream.read(buffer) != -1) {
+                    // Just hashing.
+                }
+            } finally {
+                stream.close();
+            }
+            Sha256Hash snapshot = Sha256Hash.wrap(digest.digest());
+            List<Record> records = new ArrayList<>();
+            File file = getJournalFile(walletFile);
+            boolean applies = readRecords(file, snapshot, records) >= 0;
+            if (applies)
+                walletProto = replay(walletProto, records);
+            else
+                log.info("Ignoring wallet journal {} as it doesn't apply to the wallet file", file);
+
+            final String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            Wallet wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            if (applies) {
+                wallet.lock.lock();
+                try {
+                    wallet.setJournalSnapshot(snapshot);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet file or journal", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse wallet journal", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse wallet journal", e);
+        }
+    }
+
+    /** Applies the given journal records to the wallet file they belong to. */
+    static Protos.Wallet replay(Protos.Wallet walletProto, List<Record> records) throws IOException {
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction tx : walletProto.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        Protos.Wallet.Builder builder = walletProto.toBuilder().clearTransaction();
+        for (Record record : records) {
+            Protos.Wallet proto = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(record.data));
+            if (record.type == RECORD_METADATA) {
+                Protos.Wallet.Builder metadata = proto.toBuilder();
+                copyLastSeenBlock(builder, metadata);
+                builder = metadata;
+            } else if (record.type == RECORD_TRANSACTIONS) {
+                for (Protos.Transaction tx : proto.getTransactionList())
+                    transactions.put(tx.getHash(), tx);
+                copyLastSeenBlock(proto, builder);
+            }
+        }
+        // The depth of transactions changes with every block, but isn't journaled.
+        int lastSeenBlockHeight = builder.getLastSeenBlockHeight();
+        for (Protos.Transaction tx : transactions.values()) {
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (builder.hasLastSeenBlockHeight() && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && confidence.hasAppearedAtHeight()) {
+                int depth = lastSeenBlockHeight - confidence.getAppearedAtHeight() + 1;
+                if (depth != confidence.getDepth())
+                    tx = tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+            }
+            builder.addTransaction(tx);
+        }
+        return builder.build();
+    }
+
+    private static void copyLastSeenBlock(Protos.WalletOrBuilder from, Protos.Wallet.Builder to) {
+        if (from.hasLastSeenBlockHash())
+            to.setLastSeenBlockHash(from.getLastSeenBlockHash());
+        else
+            to.clearLastSeenBlockHash();
+        if (from.hasLastSeenBlockHeight())
+            to.setLastSeenBlockHeight(from.getLastSeenBlockHeight());
+        else
+            to.clearLastSeenBlockHeight();
+        if (from.hasLastSeenBlockTimeSecs())
+            to.setLastSeenBlockTimeSecs(from.getLastSeenBlockTimeSecs());
+        else
+            to.clearLastSeenBlockTimeSecs();
+    }
+
+    private Protos.Wallet metadataToProto(WalletProtobufSerializer serializer) {
+        return serializer.walletToProtoWithoutTransactions(wallet)
+                .clearLastSeenBlockHash()
+                .clearLastSeenBlockHeight()
+                .clearLastSeenBlockTimeSecs()
+                .build();
+    }
+
+    // Checks that the journal applies to the given wallet file, and cuts off a torn record at its end.
+    private boolean open(Sha256Hash snapshot) throws IOException {
+        long validLength = readRecords(file, snapshot, null);
+        if (validLength < 0)
+            return false;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() > validLength) {
+                log.warn("Wallet journal {} ends with {} bytes of a torn record, cutting them off", file,
+                        raf.length() - validLength);
+                raf.setLength(validLength);
+            }
+        } finally {
+            raf.close();
+        }
+        length = validLength;
+        walletFileLength = walletFile.length();
+        metadataHash = null;  // Written again with the next changes.
+        return true;
+    }
+
+    static class Record {
+        final byte type;
+        final byte[] data;
+
+        Record(byte type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte type, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        DataOutputStream stream = new DataOutputStream(records);
+        stream.writeByte(type);
+        stream.writeInt(data.length);
+        stream.writeInt((int) crc.getValue());
+        stream.write(data);
+    }
+
+    /**
+     * Reads the records of the given journal, up to the first torn or corrupt record, into the given list if not null.
+     * Returns the length of the valid part of the journal, or -1 if there is no journal that applies to the wallet file
+     * with the given hash.
+     */
+    private static long readRecords(File file, Sha256Hash snapshot, @Nullable List<Record> records) throws IOException {
+        if (!file.exists())
+            return -1;
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            try {
+                if (stream.readInt() != MAGIC)
+                    return -1;
+                stream.readFully(hash);
+            } catch (EOFException e) {
+                return -1;
+            }
+            if (!snapshot.equals(Sha256Hash.wrap(hash)))
+                return -1;
+            long length = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] data;
+                byte type;
+                int checksum;
+                try {
+                    type = stream.readByte();
+                    int dataLength = stream.readInt();
+                    checksum = stream.readInt();
+                    if (dataLength < 0 || dataLength > WalletProtobufSerializer.WALLET_SIZE_LIMIT)
+                        return length;
+                    data = new byte[dataLength];
+                    stream.readFully(data);
+                } catch (EOFException e) {
+                    return length;
+                }
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum)
+                    return length;
+                if (records != null)
+                    records.add(new Record(type, data));
+                length += RECORD_HEADER_SIZE + data.length;
+            }
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -86,13 +86,14 @@ public class WalletProtobufSerializer {
     /** Current version used for serializing wallets. A version higher than this is considered from the future. */
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
-    private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private boolean lazyLoading = false;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -144,6 +145,16 @@ public class WalletProtobufSerializer {
         this.walletWriteBufferSize = walletWriteBufferSize;
     }
 
+    /**
+     * If this property is set to true, spent and dead transactions that aren't connected to an unspent or pending
+     * transaction are not read when the wallet is loaded, but only when they are first used, for example by
+     * {@link Wallet#getTransaction(Sha256Hash)}. Keys, unspent outputs and the balance are available straight away,
+     * which makes loading wallets with a long history a lot faster. Iterating over all transactions reads them all.
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -173,17 +184,32 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = walletToProtoWithoutTransactions(wallet);
+        wallet.lock.lock();
+        try {
+            for (WalletTransaction wtx : wallet.getLoadedWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
+            // Transactions that weren't read yet are written as they were read from the wallet file.
+            wallet.getDeferredTransactions().writeTo(walletBuilder, wallet.getLastBlockSeenHeight());
+        } finally {
+            wallet.lock.unlock();
+        }
+        return walletBuilder.build();
+    }
+
+    /**
+     * Converts everything but the transactions of the given wallet to the object representation of the protocol
+     * buffers. Used by the {@link WalletJournal}, which writes transactions only when they change.
+     */
+    Protos.Wallet.Builder walletToProtoWithoutTransactions(Wallet wallet) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
-
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
         for (Script script : wallet.getWatchedScripts()) {
@@ -237,7 +263,7 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
@@ -250,7 +276,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -528,14 +554,21 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
+            List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+            DeferredTransactions deferred = null;
+            if (lazyLoading) {
+                deferred = wallet.getDeferredTransactions();
+                txProtos = deferTransactions(txProtos, deferred);
+            }
+
             // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            for (Protos.Transaction txProto : txProtos) {
                 readTransaction(txProto, wallet.getParams());
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (Protos.Transaction txProto : txProtos) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, deferred);
                 wallet.addWalletTransaction(wtx);
             }
 
@@ -623,6 +656,86 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
+    /**
+     * Defers reading the spent and dead transactions that aren't connected to an unspent or pending transaction, and
+     * returns the transactions that must be read now.
+     */
+    private List<Protos.Transaction> deferTransactions(List<Protos.Transaction> txProtos, DeferredTransactions deferred) {
+        Map<ByteString, Protos.Transaction> candidates = new HashMap<>();
+        for (Protos.Transaction txProto : txProtos) {
+            Protos.Transaction.Pool pool = txProto.getPool();
+            if (pool == Protos.Transaction.Pool.SPENT || pool == Protos.Transaction.Pool.DEAD)
+                candidates.put(txProto.getHash(), txProto);
+        }
+        // Unspent and pending transactions are read together with the transactions they are connected to, and dead
+        // transactions together with the transactions that overrode them.
+        Set<ByteString> read = new HashSet<>();
+        Deque<Protos.Transaction> work = new ArrayDeque<>();
+        for (Protos.Transaction txProto : txProtos) {
+            if (candidates.containsKey(txProto.getHash()))
+                continue;
+            read.add(txProto.getHash());
+            for (Protos.TransactionOutput output : txProto.getTransactionOutputList())
+                if (output.hasSpentByTransactionHash() && candidates.containsKey(output.getSpentByTransactionHash()))
+                    work.add(candidates.get(output.getSpentByTransactionHash()));
+        }
+        for (Protos.Transaction txProto : candidates.values())
+            for (Protos.TransactionOutput output : txProto.getTransactionOutputList())
+                if (output.hasSpentByTransactionHash() && read.contains(output.getSpentByTransactionHash()))
+                    work.add(txProto);
+        while (!work.isEmpty()) {
+            Protos.Transaction txProto = work.poll();
+            if (!read.add(txProto.getHash()))
+                continue;
+            ByteString overriding = txProto.getConfidence().getOverridingTransaction();
+            if (txProto.getConfidence().hasOverridingTransaction() && candidates.containsKey(overriding))
+                work.add(candidates.get(overriding));
+        }
+
+        List<Protos.Transaction> readNow = new ArrayList<>(read.size());
+        for (Protos.Transaction txProto : txProtos) {
+            if (read.contains(txProto.getHash())) {
+                readNow.add(txProto);
+            } else {
+                Sha256Hash hash = byteStringToHash(txProto.getHash());
+                deferred.add(txProto.getPool() == Protos.Transaction.Pool.SPENT ? WalletTransaction.Pool.SPENT
+                        : WalletTransaction.Pool.DEAD, txProto);
+                List<Protos.TransactionOutput> outputs = txProto.getTransactionOutputList();
+                for (int i = 0; i < outputs.size(); i++) {
+                    Protos.TransactionOutput output = outputs.get(i);
+                    if (output.hasSpentByTransactionHash())
+                        deferred.addConnection(hash, i, byteStringToHash(output.getSpentByTransactionHash()),
+                                output.getSpentByTransactionIndex());
+                }
+            }
+        }
+        log.info("Deferred reading {} of {} transactions", txProtos.size() - readNow.size(), txProtos.size());
+        return readNow;
+    }
+
+    /** Reads a transaction that was deferred by {@link #setLazyLoading(boolean)}, without its confidence. */
+    Transaction readDeferredTransaction(NetworkParameters params, Protos.Transaction txProto)
+            throws UnreadableWalletException {
+        readTransaction(txProto, params);
+        return txMap.remove(txProto.getHash());
+    }
+
+    /** Reads the confidence of a transaction that was deferred by {@link #setLazyLoading(boolean)}. */
+    void readDeferredConfidence(Wallet wallet, Transaction tx, Protos.Transaction txProto)
+            throws UnreadableWalletException {
+        if (!txProto.hasConfidence())
+            return;
+        Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+        if (confidenceProto.hasOverridingTransaction()) {
+            ByteString overriding = confidenceProto.getOverridingTransaction();
+            Transaction overridingTransaction = wallet.getTransaction(byteStringToHash(overriding));
+            if (overridingTransaction != null)
+                txMap.put(overriding, overridingTransaction);
+        }
+        readConfidence(wallet.getParams(), tx, confidenceProto, tx.getConfidence());
+        txMap.clear();
+    }
+
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
@@ -708,7 +821,8 @@ public class WalletProtobufSerializer {
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        @Nullable DeferredTransactions deferred) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -733,6 +847,13 @@ public class WalletProtobufSerializer {
             if (transactionOutput.hasSpentByTransactionHash()) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
+                if (spendingTx == null && deferred != null
+                        && deferred.contains(byteStringToHash(spentByTransactionHash), null)) {
+                    // Connected when the spending transaction is read.
+                    deferred.addConnection(tx.getHash(), i, byteStringToHash(spentByTransactionHash),
+                            transactionOutput.getSpentByTransactionIndex());
+                    continue;
+                }
                 if (spendingTx == null) {
                     throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
                             tx.getHashAsString(), byteStringToHash(spentByTransactionHash)));
@@ -201,6 +201,34 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testDeserializePayloadInPlace() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBuffer buffer = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(buffer);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(buffer);
+        byte[] payload = Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, buffer.position(), TRANSACTION_MESSAGE_BYTES.length);
+        Transaction tx = (Transaction) serializer.deserializePayload(header, payload);
+        assertEquals(serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES)), tx);
+
+        // Only part of the payload arrived yet.
+        ByteBuffer partial = ByteBuffer.wrap(payload, 0, payload.length - 1);
+        try {
+            serializer.deserializePayload(header, partial);
+            fail();
+        } catch (BufferUnderflowException e) {
+            assertEquals(0, partial.position());
+        }
+
+        payload[10]++;
+        try {
+            serializer.deserializePayload(header, payload);
+            fail();
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().contains("Checksum"));
+        }
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
@@ -0,0 +1,262 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.AbstractPeerDataEventListener;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.testing.InboundMessageQueuer;
+import org.bitcoinj.testing.TestWithPeerGroup;
+import org.bitcoinj.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class BlockDownloadPipelineTest extends TestWithPeerGroup {
+    private BlockDownloadPipeline pipeline;
+    private List<Sha256Hash> downloaded;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public BlockDownloadPipelineTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        peerGroup.enableParallelBlockDownload(10);
+        peerGroup.start();
+        pipeline = peerGroup.getBlockDownloadPipeline();
+        downloaded = Collections.synchronizedList(new ArrayList<Sha256Hash>());
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+        super.tearDown();
+    }
+
+    private void startDownload(InboundMessageQueuer headersPeer) throws Exception {
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+                downloaded.add(block.getHash());
+            }
+        });
+        assertTrue(outbound(headersPeer) instanceof GetHeadersMessage);
+    }
+
+    private List<Block> makeBlocks(int count) throws Exception {
+        List<Block> blocks = new ArrayList<>();
+        Block block = FakeTxBuilder.createFakeBlock(blockStore, 0).block;
+        blocks.add(block);
+        for (int i = 1; i < count; i++) {
+            block = FakeTxBuilder.makeSolvedTestBlock(block);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private HeadersMessage headersOf(List<Block> blocks) {
+        List<Block> headers = new ArrayList<>();
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        return new HeadersMessage(UNITTEST, headers);
+    }
+
+    private List<Sha256Hash> requested(InboundMessageQueuer p) throws Exception {
+        Message message = outbound(p);
+        assertTrue(String.valueOf(message), message instanceof GetDataMessage);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (InventoryItem item : ((GetDataMessage) message).getItems()) {
+            assertEquals(InventoryItem.Type.Block, item.type);
+            hashes.add(item.hash);
+        }
+        return hashes;
+    }
+
+    private NotFoundMessage notFound(Block block) {
+        return new NotFoundMessage(UNITTEST, Collections.singletonList(
+                new InventoryItem(InventoryItem.Type.Block, block.getHash())));
+    }
+
+    @Test
+    public void connectsInOrder() throws Exception {
+        InboundMessageQueuer p1 = connectPeer(1);
+        startDownload(p1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        List<Block> blocks = makeBlocks(6);
+
+        // Requests are spread round robin over the peers, in chain order.
+        inbound(p1, headersOf(blocks));
+        assertEquals(Arrays.asList(blocks.get(0).getHash(), blocks.get(3).getHash()), requested(p1));
+        assertEquals(Arrays.asList(blocks.get(1).getHash(), blocks.get(4).getHash()), requested(p2));
+        assertEquals(Arrays.asList(blocks.get(2).getHash(), blocks.get(5).getHash()), requested(p3));
+        assertEquals(6, pipeline.getBlocksInFlight());
+
+        // Blocks arriving in reverse are held back until the first one is there.
+        InboundMessageQueuer[] senders = { p1, p2, p3 };
+        for (int i = 5; i > 0; i--) {
+            inbound(senders[i % 3], blocks.get(i));
+            pingAndWait(senders[i % 3]);
+        }
+        assertEquals(0, blockChain.getBestChainHeight());
+        assertTrue(pipeline.isSyncing());
+        inbound(p1, blocks.get(0));
+        pingAndWait(p1);
+        assertEquals(6, blockChain.getBestChainHeight());
+        assertFalse(pipeline.isSyncing());
+        Threading.waitForUserCode();
+        List<Sha256Hash> expected = new ArrayList<>();
+        for (Block block : blocks)
+            expected.add(block.getHash());
+        assertEquals(expected, downloaded);
+    }
+
+    @Test
+    public void stalledBlockIsRequestedFromOtherPeer() throws Exception {
+        InboundMessageQueuer p1 = connectPeer(1);
+        startDownload(p1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(3);
+
+        inbound(p1, headersOf(blocks));
+        assertEquals(Arrays.asList(blocks.get(0).getHash(), blocks.get(2).getHash()), requested(p1));
+        assertEquals(Collections.singletonList(blocks.get(1).getHash()), requested(p2));
+
+        // Nothing happens before the timeout.
+        pipeline.checkForStalls();
+        assertNull(outbound(p2));
+        // After it, the block holding up the chain is requested from the other peer, the rest stays where it is.
+        Utils.rollMockClockMillis(BlockDownloadPipeline.STALL_TIMEOUT_MSEC);
+        pipeline.checkForStalls();
+        assertEquals(Collections.singletonList(blocks.get(0).getHash()), requested(p2));
+        assertNull(outbound(p1));
+
+        // A late answer from the stalled peer is not ours any more.
+        inbound(p2, blocks.get(0));
+        inbound(p2, blocks.get(1));
+        inbound(p1, blocks.get(2));
+        pingAndWait(p2);
+        pingAndWait(p1);
+        assertEquals(3, blockChain.getBestChainHeight());
+        assertFalse(pipeline.isSyncing());
+        assertEquals(0, pipeline.getBlocksInFlight());
+    }
+
+    @Test
+    public void notFoundIsRequestedFromOtherPeer() throws Exception {
+        InboundMessageQueuer p1 = connectPeer(1);
+        startDownload(p1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(4);
+
+        inbound(p1, headersOf(blocks));
+        assertEquals(Arrays.asList(blocks.get(0).getHash(), blocks.get(2).getHash()), requested(p1));
+        assertEquals(Arrays.asList(blocks.get(1).getHash(), blocks.get(3).getHash()), requested(p2));
+
+        // Only the missing block moves to the other peer, p2 keeps its other request.
+        inbound(p2, notFound(blocks.get(1)));
+        pingAndWait(p2);
+        assertEquals(Collections.singletonList(blocks.get(1).getHash()), requested(p1));
+        assertEquals(4, pipeline.getBlocksInFlight());
+
+        inbound(p2, blocks.get(3));
+        pingAndWait(p2);
+        for (int i = 0; i < 3; i++)
+            inbound(p1, blocks.get(i));
+        pingAndWait(p1);
+        assertEquals(4, blockChain.getBestChainHeight());
+        assertFalse(pipeline.isSyncing());
+    }
+
+    @Test
+    public void notFoundEverywhereIsRetried() throws Exception {
+        InboundMessageQueuer p1 = connectPeer(1);
+        startDownload(p1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(3);
+
+        inbound(p1, headersOf(blocks));
+        assertEquals(Arrays.asList(blocks.get(0).getHash(), blocks.get(2).getHash()), requested(p1));
+        assertEquals(Collections.singletonList(blocks.get(1).getHash()), requested(p2));
+
+        inbound(p2, notFound(blocks.get(1)));
+        pingAndWait(p2);
+        assertEquals(Collections.singletonList(blocks.get(1).getHash()), requested(p1));
+        // Nobody else has it, so it's left alone for now.
+        inbound(p1, notFound(blocks.get(1)));
+        pingAndWait(p1);
+        assertNull(outbound(p1));
+        assertNull(outbound(p2));
+        assertEquals(2, pipeline.getBlocksInFlight());
+        inbound(p1, blocks.get(0));
+        inbound(p1, blocks.get(2));
+        pingAndWait(p1);
+        assertEquals(1, blockChain.getBestChainHeight());
+
+        // Once the peers had some time to catch up, they are asked again, starting with the least loaded one.
+        Utils.rollMockClockMillis(BlockDownloadPipeline.STALL_TIMEOUT_MSEC);
+        pipeline.checkForStalls();
+        assertEquals(Collections.singletonList(blocks.get(1).getHash()), requested(p2));
+
+        inbound(p2, blocks.get(1));
+        pingAndWait(p2);
+        assertEquals(3, blockChain.getBestChainHeight());
+        assertFalse(pipeline.isSyncing());
+    }
+
+    @Test
+    public void disconnectedPeerRequestsAreReassigned() throws Exception {
+        InboundMessageQueuer p1 = connectPeer(1);
+        startDownload(p1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(4);
+
+        inbound(p1, headersOf(blocks));
+        requested(p1);
+        requested(p2);
+        pipeline.removePeer(peerOf(p2));
+        assertEquals(Arrays.asList(blocks.get(1).getHash(), blocks.get(3).getHash()), requested(p1));
+
+        for (Block block : blocks)
+            inbound(p1, block);
+        pingAndWait(p1);
+        assertEquals(4, blockChain.getBestChainHeight());
+        assertFalse(pipeline.isSyncing());
+    }
+}
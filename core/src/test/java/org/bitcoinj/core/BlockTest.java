@@ -130,6 +130,17 @@ public class BlockTest {
         assertEquals(reparsed, header);
     }
 
+    @Test
+    public void testHashWithoutCachedHeaderBytes() throws Exception {
+        // Setting a field drops the cached header bytes, so the hash has to be calculated from the fields.
+        Sha256Hash hash = block700000.getHash();
+        block700000.setNonce(block700000.getNonce());
+        assertEquals(hash, block700000.getHash());
+        Block header = block700000.cloneAsHeader();
+        header.setTime(header.getTimeSeconds());
+        assertEquals(hash, header.getHash());
+    }
+
     @Test
     public void testBitcoinSerialization() throws Exception {
         // We have to be able to reserialize everything exactly as we found it for hashing to work. This test also
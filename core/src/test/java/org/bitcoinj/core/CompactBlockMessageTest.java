@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class CompactBlockMessageTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        ECKey key = new ECKey();
+        Transaction[] txns = new Transaction[5];
+        for (int i = 0; i < txns.length; i++)
+            txns[i] = FakeTxBuilder.createFakeTx(UNITTEST, COIN.multiply(i + 1), key);
+        block = FakeTxBuilder.makeSolvedTestBlock(UNITTEST.getGenesisBlock(), txns);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Message> T roundTrip(T message) throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(UNITTEST, false);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return (T) serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+
+    @Test
+    public void sipHash() throws Exception {
+        // Test vector from the SipHash reference implementation, key 00..0f and message 00..0e.
+        byte[] message = new byte[15];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) i;
+        assertEquals(0xa129ca6149be45e5L, SipHash.hash(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, message));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        CompactBlockMessage message = new CompactBlockMessage(UNITTEST, block, 12345);
+        CompactBlockMessage parsed = roundTrip(message);
+        assertEquals(block.getHash(), parsed.getHash());
+        assertEquals(12345, parsed.getNonce());
+        assertEquals(6, parsed.getTransactionCount());
+        assertArrayEquals(message.getShortIds(), parsed.getShortIds());
+        assertEquals(1, parsed.getPrefilledTransactions().size());
+        assertEquals(0, parsed.getPrefilledTransactions().get(0).index);
+        assertEquals(block.getTransactions().get(0), parsed.getPrefilledTransactions().get(0).tx);
+        for (long id : parsed.getShortIds())
+            assertEquals(0, id >>> 48);
+    }
+
+    @Test
+    public void rebuildFromKnownTransactions() throws Exception {
+        CompactBlockMessage message = new CompactBlockMessage(UNITTEST, block, 1);
+        List<Transaction> known = new ArrayList<>(block.getTransactions().subList(1, 6));
+        Collections.shuffle(known);
+        known.add(FakeTxBuilder.createFakeTx(UNITTEST));
+        PartiallyDownloadedBlock partial = new PartiallyDownloadedBlock(message, known);
+        assertTrue(partial.isComplete());
+        Block rebuilt = partial.getBlock();
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertEquals(block.getTransactions(), rebuilt.getTransactions());
+    }
+
+    @Test
+    public void fillMissingTransactions() throws Exception {
+        CompactBlockMessage message = new CompactBlockMessage(UNITTEST, block, 2);
+        List<Transaction> txns = block.getTransactions();
+        PartiallyDownloadedBlock partial = new PartiallyDownloadedBlock(message,
+                Arrays.asList(txns.get(1), txns.get(3), txns.get(5)));
+        assertFalse(partial.isComplete());
+        assertEquals(Arrays.asList(2, 4), partial.getMissingIndexes());
+
+        // Ask for the missing transactions, and answer like the peer would.
+        GetBlockTransactionsMessage request = roundTrip(new GetBlockTransactionsMessage(UNITTEST, block.getHash(),
+                partial.getMissingIndexes()));
+        assertEquals(block.getHash(), request.getBlockHash());
+        List<Transaction> answer = new ArrayList<>();
+        for (int index : request.getIndexes())
+            answer.add(txns.get(index));
+        BlockTransactionsMessage response = roundTrip(new BlockTransactionsMessage(UNITTEST, request.getBlockHash(),
+                answer));
+
+        Block rebuilt = partial.fill(response.getTransactions());
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertEquals(txns, rebuilt.getTransactions());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void wrongTransactionsAreRejected() throws Exception {
+        CompactBlockMessage message = new CompactBlockMessage(UNITTEST, block, 3);
+        PartiallyDownloadedBlock partial = new PartiallyDownloadedBlock(message,
+                Collections.<Transaction>emptyList());
+        List<Transaction> answer = new ArrayList<>(block.getTransactions().subList(1, 6));
+        Collections.swap(answer, 0, 1);
+        partial.fill(answer);
+    }
+}
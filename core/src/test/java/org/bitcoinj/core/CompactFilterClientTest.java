@@ -0,0 +1,366 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.store.FilterHeaderStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.testing.InboundMessageQueuer;
+import org.bitcoinj.testing.TestWithPeerGroup;
+import org.bitcoinj.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class CompactFilterClientTest extends TestWithPeerGroup {
+    private FilterHeaderStore store;
+    private CompactFilterClient client;
+    private Address walletAddress;
+    // The chain, starting with the genesis block, its filters and filter headers.
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<GolombCodedSet> filters = new ArrayList<>();
+    private final List<Sha256Hash> filterHeaders = new ArrayList<>();
+    // Heights of the blocks the wallet got transactions from, in the order it got them.
+    private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+    private final BlockingQueue<Peer> disconnectedPeers = new LinkedBlockingQueue<>();
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public CompactFilterClientTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        // A key from before the genesis block, so the scan starts there.
+        ECKey key = new ECKey();
+        key.setCreationTimeSeconds(0);
+        wallet.importKey(key);
+        walletAddress = LegacyAddress.fromKey(UNITTEST, key);
+
+        File file = File.createTempFile("filterheaders", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new FilterHeaderStore(file);
+        peerGroup.enableCompactFilters(store);
+        client = peerGroup.getCompactFilterClient();
+        peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                disconnectedPeers.add(peer);
+            }
+        });
+        blockChain.addTransactionReceivedListener(new TransactionReceivedInBlockListener() {
+            @Override
+            public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                         int relativityOffset) {
+                if (delivered.isEmpty() || delivered.get(delivered.size() - 1) != block.getHeight())
+                    delivered.add(block.getHeight());
+            }
+
+            @Override
+            public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                                      BlockChain.NewBlockType blockType, int relativityOffset) {
+                return false;
+            }
+        });
+        peerGroup.start();
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+        super.tearDown();
+        try {
+            store.close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Builds a chain of the given length after the genesis block and adds its headers to our chain. The blocks at the
+    // given heights pay to the wallet.
+    private void buildChain(int length, Integer... walletHeights) throws Exception {
+        Block block = UNITTEST.getGenesisBlock();
+        addBlock(block);
+        Address other = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        for (int height = 1; height <= length; height++) {
+            block = FakeTxBuilder.makeSolvedTestBlock(block,
+                    Arrays.asList(walletHeights).contains(height) ? walletAddress : other);
+            addBlock(block);
+            assertTrue(blockChain.add(block.cloneAsHeader()));
+        }
+    }
+
+    private void addBlock(Block block) {
+        List<byte[]> scripts = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            for (TransactionOutput output : tx.getOutputs())
+                scripts.add(output.getScriptBytes());
+        GolombCodedSet filter = GolombCodedSet.build(block.getHash(), scripts);
+        Sha256Hash previous = filterHeaders.isEmpty() ? Sha256Hash.ZERO_HASH : filterHeaders.get(filterHeaders.size() - 1);
+        blocks.add(block);
+        filters.add(filter);
+        filterHeaders.add(filter.getHeader(previous));
+    }
+
+    private CompactFilterHeadersMessage filterHeadersMessage(Sha256Hash previous) {
+        List<Sha256Hash> filterHashes = new ArrayList<>();
+        for (GolombCodedSet filter : filters)
+            filterHashes.add(filter.getFilterHash());
+        return new CompactFilterHeadersMessage(UNITTEST, GetCompactFiltersMessage.BASIC_FILTER,
+                blocks.get(blocks.size() - 1).getHash(), previous, filterHashes);
+    }
+
+    private CompactFilterMessage filterMessage(int height) {
+        return new CompactFilterMessage(UNITTEST, blocks.get(height).getHash(), filters.get(height));
+    }
+
+    // Connects a peer that serves block filters, but doesn't do Bloom filtering.
+    private InboundMessageQueuer connectFilterPeer(int id) throws Exception {
+        VersionMessage version = new VersionMessage(UNITTEST, blocks.size() - 1);
+        version.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS;
+        version.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p = connectPeerWithoutVersionExchange(id);
+        p.sendMessage(version);
+        p.sendMessage(new VersionAck());
+        assertTrue(p.nextMessageBlocking() instanceof VersionMessage);
+        assertTrue(p.nextMessageBlocking() instanceof VersionAck);
+        p.peer.getVersionHandshakeFuture().get();
+        return p;
+    }
+
+    // Returns the next message of the given type the peer sent us, skipping others.
+    private <T extends Message> T next(InboundMessageQueuer p, Class<T> type) throws Exception {
+        while (true) {
+            Message m = p.inboundMessages.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for " + type.getSimpleName(), m);
+            if (m.getClass() == type)
+                return type.cast(m);
+        }
+    }
+
+    private void assertNothingSent(InboundMessageQueuer p, Class<? extends Message> type) throws Exception {
+        pingAndWait(p);
+        Message m;
+        while ((m = p.nextMessage()) != null)
+            assertNotEquals(type, m.getClass());
+    }
+
+    private void assertBlockRequested(InboundMessageQueuer p, int height) throws Exception {
+        GetDataMessage getdata = next(p, GetDataMessage.class);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(blocks.get(height).getHash(), getdata.getItems().get(0).hash);
+    }
+
+    // Answers the filter headers and filters request of the given peer.
+    private void sendHeadersAndFilters(InboundMessageQueuer p) throws Exception {
+        next(p, GetCompactFilterHeadersMessage.class);
+        inbound(p, filterHeadersMessage(Sha256Hash.ZERO_HASH));
+        GetCompactFiltersMessage request = next(p, GetCompactFiltersMessage.class);
+        assertEquals(0, request.getStartHeight());
+        for (int height = 0; height < blocks.size(); height++)
+            inbound(p, filterMessage(height));
+    }
+
+    @Test
+    public void scanDeliversMatchedBlocksInOrder() throws Exception {
+        buildChain(4, 1, 3);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+
+        GetCompactFilterHeadersMessage headersRequest = next(p1, GetCompactFilterHeadersMessage.class);
+        assertEquals(0, headersRequest.getStartHeight());
+        assertEquals(blocks.get(4).getHash(), headersRequest.getStopHash());
+        inbound(p1, filterHeadersMessage(Sha256Hash.ZERO_HASH));
+        GetCompactFiltersMessage filtersRequest = next(p1, GetCompactFiltersMessage.class);
+        assertEquals(0, filtersRequest.getStartHeight());
+        assertEquals(blocks.get(4).getHash(), filtersRequest.getStopHash());
+        for (int height = 0; height <= 4; height++)
+            inbound(p1, filterMessage(height));
+        assertBlockRequested(p1, 1);
+        assertBlockRequested(p1, 3);
+        assertEquals(4, store.getHeight());
+        assertEquals(filterHeaders.get(4), store.getFilterHeader(4));
+
+        // The later block has to wait for the earlier one.
+        inbound(p1, blocks.get(3));
+        pingAndWait(p1);
+        assertEquals(0, store.getScannedHeight());
+        assertTrue(delivered.isEmpty());
+        inbound(p1, blocks.get(1));
+        pingAndWait(p1);
+        assertEquals(4, store.getScannedHeight());
+        assertEquals(Arrays.asList(1, 3), delivered);
+        assertEquals(2, client.getFiltersMatched());
+        assertEquals(3, client.getFiltersNotMatched());
+        assertNotNull(wallet.getTransaction(blocks.get(1).getTransactions().get(1).getHash()));
+    }
+
+    @Test
+    public void rescannedTransactionsHaveTheirDepth() throws Exception {
+        buildChain(4, 1, 3);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+        sendHeadersAndFilters(p1);
+        assertBlockRequested(p1, 1);
+        assertBlockRequested(p1, 3);
+        inbound(p1, blocks.get(1));
+        inbound(p1, blocks.get(3));
+        pingAndWait(p1);
+        assertEquals(4, store.getScannedHeight());
+
+        // The wallet saw the headers up to height 4 before it got the blocks.
+        Transaction tx1 = wallet.getTransaction(blocks.get(1).getTransactions().get(1).getHash());
+        Transaction tx3 = wallet.getTransaction(blocks.get(3).getTransactions().get(1).getHash());
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, tx1.getConfidence().getConfidenceType());
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(2, tx3.getConfidence().getDepthInBlocks());
+        assertEquals(blocks.get(1).getTransactions().get(1).getOutput(0).getValue()
+                .add(blocks.get(3).getTransactions().get(1).getOutput(0).getValue()), wallet.getBalance());
+
+        // And the next block counts for them too.
+        Block next = FakeTxBuilder.makeSolvedTestBlock(blocks.get(4));
+        assertTrue(blockChain.add(next.cloneAsHeader()));
+        assertEquals(5, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(3, tx3.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void filterHeadersMustConnect() throws Exception {
+        buildChain(2);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+        InboundMessageQueuer p2 = connectFilterPeer(2);
+        next(p1, GetCompactFilterHeadersMessage.class);
+        // The filter header before the genesis block must be zero.
+        inbound(p1, filterHeadersMessage(Sha256Hash.of(new byte[] { 1 })));
+        assertEquals(p1.peer, disconnectedPeers.poll(10, TimeUnit.SECONDS));
+        assertTrue(store.isEmpty());
+        // The other peer is asked instead.
+        assertEquals(0, next(p2, GetCompactFilterHeadersMessage.class).getStartHeight());
+    }
+
+    @Test
+    public void filterMustMatchFilterHeader() throws Exception {
+        buildChain(2);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+        InboundMessageQueuer p2 = connectFilterPeer(2);
+        next(p1, GetCompactFilterHeadersMessage.class);
+        inbound(p1, filterHeadersMessage(Sha256Hash.ZERO_HASH));
+        next(p1, GetCompactFiltersMessage.class);
+        inbound(p1, filterMessage(0));
+        GolombCodedSet wrong = GolombCodedSet.build(blocks.get(1).getHash(),
+                Collections.singletonList(new byte[] { 0x51 }));
+        inbound(p1, new CompactFilterMessage(UNITTEST, blocks.get(1).getHash(), wrong));
+        assertEquals(p1.peer, disconnectedPeers.poll(10, TimeUnit.SECONDS));
+        // The rest of the range is requested from the other peer.
+        GetCompactFiltersMessage request = next(p2, GetCompactFiltersMessage.class);
+        assertEquals(1, request.getStartHeight());
+        assertEquals(blocks.get(2).getHash(), request.getStopHash());
+    }
+
+    @Test
+    public void notFoundBlockIsRequestedFromOtherPeer() throws Exception {
+        buildChain(2, 1);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+        InboundMessageQueuer p2 = connectFilterPeer(2);
+        sendHeadersAndFilters(p1);
+        // Blocks are requested from the peers in turn.
+        assertBlockRequested(p2, 1);
+        inbound(p2, new NotFoundMessage(UNITTEST, Collections.singletonList(
+                new InventoryItem(InventoryItem.Type.Block, blocks.get(1).getHash()))));
+        assertBlockRequested(p1, 1);
+        inbound(p1, blocks.get(1));
+        pingAndWait(p1);
+        assertEquals(2, store.getScannedHeight());
+        assertEquals(Collections.singletonList(1), delivered);
+    }
+
+    @Test
+    public void stalledRequestsMoveToOtherPeer() throws Exception {
+        buildChain(2, 1);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+        InboundMessageQueuer p2 = connectFilterPeer(2);
+
+        // p1 doesn't answer the filter headers request.
+        next(p1, GetCompactFilterHeadersMessage.class);
+        client.checkForStalls();
+        assertNothingSent(p2, GetCompactFilterHeadersMessage.class);
+        Utils.rollMockClockMillis(CompactFilterClient.STALL_TIMEOUT_MSEC);
+        client.checkForStalls();
+        // So p2 is asked, and gets the filters too while p1 is avoided.
+        sendHeadersAndFilters(p2);
+        assertBlockRequested(p2, 1);
+
+        // p2 doesn't send the block.
+        Utils.rollMockClockMillis(CompactFilterClient.STALL_TIMEOUT_MSEC);
+        client.checkForStalls();
+        assertBlockRequested(p1, 1);
+        inbound(p1, blocks.get(1));
+        pingAndWait(p1);
+        assertEquals(2, store.getScannedHeight());
+        // A late answer changes nothing.
+        inbound(p2, blocks.get(1));
+        pingAndWait(p2);
+        assertEquals(Collections.singletonList(1), delivered);
+        assertEquals(1, client.getFiltersMatched());
+    }
+
+    @Test
+    public void stalledFiltersMoveToOtherPeer() throws Exception {
+        buildChain(2);
+        InboundMessageQueuer p1 = connectFilterPeer(1);
+        InboundMessageQueuer p2 = connectFilterPeer(2);
+        next(p1, GetCompactFilterHeadersMessage.class);
+        inbound(p1, filterHeadersMessage(Sha256Hash.ZERO_HASH));
+        next(p1, GetCompactFiltersMessage.class);
+        inbound(p1, filterMessage(0));
+        pingAndWait(p1);
+
+        Utils.rollMockClockMillis(CompactFilterClient.STALL_TIMEOUT_MSEC);
+        client.checkForStalls();
+        GetCompactFiltersMessage request = next(p2, GetCompactFiltersMessage.class);
+        assertEquals(1, request.getStartHeight());
+        inbound(p2, filterMessage(1));
+        inbound(p2, filterMessage(2));
+        pingAndWait(p2);
+        assertEquals(2, store.getScannedHeight());
+        assertEquals(3, client.getFiltersNotMatched());
+    }
+}
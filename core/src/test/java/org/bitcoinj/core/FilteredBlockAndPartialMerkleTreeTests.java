@@ -107,6 +107,36 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
         assertTrue(txns.contains(tx2.getHash()));
     }
 
+    @Test
+    public void createFilteredBlockInParallel() throws Exception {
+        ECKey key = new ECKey();
+        List<Transaction> txns = new ArrayList<>();
+        for (int i = 0; i < BloomFilter.PARALLEL_THRESHOLD; i++)
+            txns.add(FakeTxBuilder.createFakeTx(UNITTEST, Coin.CENT, LegacyAddress.fromKey(UNITTEST, new ECKey())));
+        // A P2PK payment, which adds its outpoint to the filter, and a spend of it further down the block, which only
+        // matches because of that.
+        Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, key);
+        Transaction spend = new Transaction(UNITTEST);
+        spend.addInput(payment.getOutput(0));
+        spend.addOutput(Coin.COIN, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        txns.add(10, payment);
+        txns.add(200, spend);
+        Block block = FakeTxBuilder.makeSolvedTestBlock(UNITTEST.getGenesisBlock(),
+                txns.toArray(new Transaction[txns.size()]));
+
+        BloomFilter filter = new BloomFilter(4, 0.001, 1);
+        filter.insert(key);
+        BloomFilter parallelFilter = new BloomFilter(UNITTEST, filter.bitcoinSerialize());
+        FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+        FilteredBlock parallelFilteredBlock = parallelFilter.applyAndUpdate(block, true);
+        assertEquals(filter, parallelFilter);
+        assertEquals(filteredBlock.getTransactionHashes(), parallelFilteredBlock.getTransactionHashes());
+        assertEquals(filteredBlock.getAssociatedTransactions().keySet(),
+                parallelFilteredBlock.getAssociatedTransactions().keySet());
+        assertTrue(parallelFilteredBlock.getTransactionHashes().contains(payment.getHash()));
+        assertTrue(parallelFilteredBlock.getTransactionHashes().contains(spend.getHash()));
+    }
+
     private Sha256Hash numAsHash(int num) {
         byte[] bits = new byte[32];
         bits[0] = (byte) num;
@@ -0,0 +1,116 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class GolombCodedSetTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    // Testnet genesis block, from the BIP 158 test vectors.
+    private static final Sha256Hash BLOCK_HASH = Sha256Hash.wrap(
+            "000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943");
+    private static final byte[] SCRIPT = HEX.decode("4104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f"
+            + "61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac");
+
+    @Test
+    public void testVector() throws Exception {
+        GolombCodedSet filter = GolombCodedSet.build(BLOCK_HASH, Collections.singletonList(SCRIPT));
+        assertEquals("019dfca8", HEX.encode(filter.getEncoded()));
+        assertEquals("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750",
+                filter.getHeader(Sha256Hash.ZERO_HASH).toString());
+        GolombCodedSet parsed = new GolombCodedSet(BLOCK_HASH, HEX.decode("019dfca8"));
+        assertEquals(1, parsed.size());
+        assertTrue(parsed.matches(SCRIPT));
+        assertFalse(parsed.matches(new byte[] { 0x51 }));
+    }
+
+    @Test
+    public void buildAndMatch() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] item = new byte[25];
+            random.nextBytes(item);
+            items.add(item);
+        }
+        GolombCodedSet filter = new GolombCodedSet(BLOCK_HASH,
+                GolombCodedSet.build(BLOCK_HASH, items).getEncoded());
+        assertEquals(100, filter.size());
+        for (byte[] item : items)
+            assertTrue(filter.matches(item));
+        List<byte[]> others = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] item = new byte[25];
+            random.nextBytes(item);
+            others.add(item);
+        }
+        // False positives happen once in M, so none should turn up here.
+        assertFalse(filter.matchesAny(others));
+        others.add(items.get(50));
+        assertTrue(filter.matchesAny(others));
+        assertFalse(GolombCodedSet.build(BLOCK_HASH, Collections.<byte[]>emptyList()).matches(SCRIPT));
+    }
+
+    @Test
+    public void filterMessageRoundTrip() throws Exception {
+        GolombCodedSet filter = GolombCodedSet.build(BLOCK_HASH, Collections.singletonList(SCRIPT));
+        CompactFilterMessage message = new CompactFilterMessage(UNITTEST, BLOCK_HASH, filter);
+        CompactFilterMessage parsed = roundTrip(message);
+        assertEquals(BLOCK_HASH, parsed.getBlockHash());
+        assertEquals(filter.getFilterHash(), parsed.getFilterHash());
+        assertTrue(parsed.getFilter().matches(SCRIPT));
+    }
+
+    @Test
+    public void filterHeadersChain() throws Exception {
+        List<Sha256Hash> filterHashes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            filterHashes.add(Sha256Hash.of(new byte[] { (byte) i }));
+        Sha256Hash previous = Sha256Hash.of(new byte[] { 9 });
+        CompactFilterHeadersMessage message = new CompactFilterHeadersMessage(UNITTEST,
+                GetCompactFiltersMessage.BASIC_FILTER, BLOCK_HASH, previous, filterHashes);
+        CompactFilterHeadersMessage parsed = roundTrip(message);
+        assertEquals(BLOCK_HASH, parsed.getStopHash());
+        assertEquals(previous, parsed.getPreviousFilterHeader());
+        List<Sha256Hash> headers = parsed.getFilterHeaders();
+        assertEquals(3, headers.size());
+        for (int i = 0; i < 3; i++) {
+            previous = GolombCodedSet.headerFor(filterHashes.get(i), previous);
+            assertEquals(previous, headers.get(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Message> T roundTrip(T message) throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(UNITTEST, false);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return (T) serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+}
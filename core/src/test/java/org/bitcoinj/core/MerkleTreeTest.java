@@ -0,0 +1,81 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static List<Sha256Hash> randomHashes(int count) {
+        Random random = new Random(count);
+        List<Sha256Hash> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            hashes.add(Sha256Hash.wrap(bytes));
+        }
+        return hashes;
+    }
+
+    // Builds the tree node by node, pairing the last node of an odd level with itself.
+    private static Sha256Hash simpleRoot(List<Sha256Hash> level) {
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2)
+                next.add(MerkleTree.combine(level.get(i), level.get(Math.min(i + 1, level.size() - 1))));
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    @Test
+    public void combine() throws Exception {
+        Sha256Hash left = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash right = Sha256Hash.of(new byte[] { 2 });
+        byte[] expected = Sha256Hash.hashTwice(left.getReversedBytes(), 0, 32, right.getReversedBytes(), 0, 32);
+        assertEquals(Sha256Hash.wrapReversed(expected), MerkleTree.combine(left, right));
+    }
+
+    @Test
+    public void rootOfHashes() throws Exception {
+        // Includes sizes that are hashed in parallel.
+        for (int count : new int[] { 1, 2, 3, 5, 8, 255, MerkleTree.PARALLEL_THRESHOLD - 1,
+                MerkleTree.PARALLEL_THRESHOLD + 1, 3 * MerkleTree.PARALLEL_THRESHOLD }) {
+            List<Sha256Hash> hashes = randomHashes(count);
+            assertEquals("count " + count, simpleRoot(hashes), MerkleTree.rootOfHashes(hashes));
+        }
+    }
+
+    @Test
+    public void subtreeAtRightEdge() throws Exception {
+        List<Sha256Hash> hashes = randomHashes(5);
+        // The subtree of height 2 over t5 is built as 4-4 over t5-t5.
+        Sha256Hash four = MerkleTree.combine(hashes.get(4), hashes.get(4));
+        assertEquals(MerkleTree.combine(four, four), MerkleTree.rootOfHashes(hashes, 4, 5, 2));
+        assertEquals(simpleRoot(hashes.subList(0, 4)), MerkleTree.rootOfHashes(hashes, 0, 4, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void subtreeTooSmall() throws Exception {
+        MerkleTree.rootOfHashes(randomHashes(5), 0, 5, 2);
+    }
+}
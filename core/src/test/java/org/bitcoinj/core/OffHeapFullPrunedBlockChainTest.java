@@ -0,0 +1,177 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.OffHeapFullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * An off-heap implementation of the FullPrunedBlockStoreTest
+ */
+public class OffHeapFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private File file;
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        if (file != null)
+            file.delete();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        try {
+            file = File.createTempFile("offheap-blockstore", null);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        file.delete();
+        file.deleteOnExit();
+        return new OffHeapFullPrunedBlockStore(params, file, blockCount);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, createStore always starts with a new file.
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        OffHeapFullPrunedBlockStore offHeapStore = (OffHeapFullPrunedBlockStore) createStore(PARAMS, 10);
+        store = offHeapStore;
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int height = 1; height <= 20; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(),
+                    height);
+            chain.add(rollingBlock);
+        }
+        StoredBlock head = store.getVerifiedChainHead();
+        long outputs = offHeapStore.getUnspentOutputCount();
+        assertEquals(20, outputs);
+        Sha256Hash coinbase = rollingBlock.getTransactions().get(0).getHash();
+        UTXO output = store.getTransactionOutput(coinbase, 0);
+        store.close();
+
+        // Reopen, after a write that was interrupted half way.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(1000);
+        raf.writeInt(0);
+        raf.write(new byte[10]);
+        raf.close();
+        offHeapStore = new OffHeapFullPrunedBlockStore(PARAMS, file, 10);
+        store = offHeapStore;
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(head, store.getChainHead());
+        assertEquals(outputs, offHeapStore.getUnspentOutputCount());
+        UTXO reloaded = store.getTransactionOutput(coinbase, 0);
+        assertEquals(output, reloaded);
+        assertEquals(output.getValue(), reloaded.getValue());
+        assertEquals(output.getScript(), reloaded.getScript());
+        assertEquals(output.getHeight(), reloaded.getHeight());
+        assertTrue(reloaded.isCoinbase());
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+        // Undo blocks deeper than the full store depth were pruned.
+        StoredBlock deep = head;
+        while (deep.getHeight() > 5)
+            deep = deep.getPrev(store);
+        assertNull(store.getUndoBlock(deep.getHeader().getHash()));
+
+        // Compaction keeps the same state in a smaller file.
+        long sizeBefore = file.length();
+        offHeapStore.compact();
+        assertTrue(file.length() < sizeBefore);
+        store.close();
+        offHeapStore = new OffHeapFullPrunedBlockStore(PARAMS, file, 10);
+        store = offHeapStore;
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(outputs, offHeapStore.getUnspentOutputCount());
+        assertEquals(output, store.getTransactionOutput(coinbase, 0));
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+    }
+
+    @Test
+    public void abortedBatchIsNotPersisted() throws Exception {
+        OffHeapFullPrunedBlockStore offHeapStore = (OffHeapFullPrunedBlockStore) createStore(PARAMS, 10);
+        store = offHeapStore;
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        UTXO out = new UTXO(hash, 3, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey())));
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(hash, 3));
+        assertTrue(store.hasUnspentOutputs(hash, 4));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 3));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        UTXO other = new UTXO(hash, 5, Coin.CENT, 1, false,
+                ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey())));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(other);
+        assertNull(store.getTransactionOutput(hash, 3));
+        assertEquals(other, store.getTransactionOutput(hash, 5));
+        store.abortDatabaseBatchWrite();
+        store.close();
+
+        store = new OffHeapFullPrunedBlockStore(PARAMS, file, 10);
+        assertEquals(out, store.getTransactionOutput(hash, 3));
+        assertNull(store.getTransactionOutput(hash, 5));
+    }
+
+    @Test
+    public void openOutputsOfNativeSegwitAddresses() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 2 });
+        UTXO legacy = new UTXO(hash, 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, key)));
+        UTXO segwit = new UTXO(hash, 1, Coin.CENT, 1, false,
+                ScriptBuilder.createOutputScript(SegwitAddress.fromKey(PARAMS, key)));
+        UTXO other = new UTXO(hash, 2, Coin.CENT, 1, false,
+                ScriptBuilder.createOutputScript(SegwitAddress.fromKey(PARAMS, new ECKey())));
+        store.addUnspentTransactionOutput(legacy);
+        store.addUnspentTransactionOutput(segwit);
+        store.addUnspentTransactionOutput(other);
+
+        Map<Long, String> found = new HashMap<>();
+        for (UTXO output : store.getOpenTransactionOutputs(Collections.singletonList(key)))
+            found.put(output.getIndex(), output.getAddress());
+        assertEquals(2, found.size());
+        assertEquals(LegacyAddress.fromKey(PARAMS, key).toString(), found.get(0L));
+        assertEquals(SegwitAddress.fromKey(PARAMS, key).toString(), found.get(1L));
+    }
+}
@@ -133,6 +133,43 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(peerGroup.removePreMessageReceivedEventListener(preMessageReceivedListener));
     }
 
+    @Test
+    public void listenerQueueSharedByConnectedPeers() throws Exception {
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        // Listener queues run when the test asks them to.
+        final BlockingQueue<Runnable> executorTasks = new LinkedBlockingQueue<>();
+        Threading.useListenerQueues(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executorTasks.add(command);
+            }
+        }, 100);
+        try {
+            final List<Peer> txPeers = new ArrayList<>();
+            peerGroup.addOnTransactionBroadcastListener(new OnTransactionBroadcastListener() {
+                @Override
+                public void onTransaction(Peer peer, Transaction t) {
+                    txPeers.add(peer);
+                }
+            });
+            Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+            inbound(p1, FakeTxBuilder.createFakeTx(UNITTEST, COIN, address));
+            pingAndWait(p1);
+            inbound(p2, FakeTxBuilder.createFakeTx(UNITTEST, CENT, address));
+            pingAndWait(p2);
+            // Events from both peers wait in the one queue of the listener, so it doesn't run twice at the same time.
+            assertEquals(1, executorTasks.size());
+            executorTasks.take().run();
+            assertTrue(executorTasks.isEmpty());
+            assertEquals(Arrays.asList(peerOf(p1), peerOf(p2)), txPeers);
+        } finally {
+            Threading.useUserThreadForListeners();
+        }
+    }
+
     @Test
     public void peerDiscoveryPolling() throws InterruptedException {
         // Check that if peer discovery fails, we keep trying until we have some nodes to talk with.
@@ -345,6 +382,45 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        // Check that headers come from the download peer, blocks are spread across peers and connected in order.
+        peerGroup.enableParallelBlockDownload(10);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+
+        Block b1 = FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block;
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertNull(outbound(p2));
+
+        inbound(p1, new HeadersMessage(UNITTEST, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        GetDataMessage getdata1 = (GetDataMessage) outbound(p1);
+        GetDataMessage getdata2 = (GetDataMessage) outbound(p2);
+        assertEquals(2, getdata1.getItems().size());
+        assertEquals(b1.getHash(), getdata1.getItems().get(0).hash);
+        assertEquals(b3.getHash(), getdata1.getItems().get(1).hash);
+        assertEquals(1, getdata2.getItems().size());
+        assertEquals(b2.getHash(), getdata2.getItems().get(0).hash);
+
+        // b2 arrives first and has to wait for b1.
+        inbound(p2, b2);
+        pingAndWait(p2);
+        assertEquals(0, blockChain.getBestChainHeight());
+        assertTrue(peerGroup.getBlockDownloadPipeline().isSyncing());
+        inbound(p1, b1);
+        inbound(p1, b3);
+        pingAndWait(p1);
+        assertEquals(3, blockChain.getBestChainHeight());
+        assertFalse(peerGroup.getBlockDownloadPipeline().isSyncing());
+        assertEquals(0, peerGroup.getBlockDownloadPipeline().getBlocksInFlight());
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -638,9 +714,9 @@ public class PeerGroupTest extends TestWithPeerGroup {
     }
 
     @Test
-    public void testBloomResendOnNewKey() throws Exception {
-        // Check that when we add a new key to the wallet, the Bloom filter is re-calculated and re-sent but only once
-        // we exceed the lookahead threshold.
+    public void testBloomAddOnNewKey() throws Exception {
+        // Check that when we add a new key to the wallet, the Bloom filter is re-calculated and the new elements are
+        // added to the filter of the peers, but only once we exceed the lookahead threshold.
         wallet.setKeyChainGroupLookaheadSize(5);
         wallet.setKeyChainGroupLookaheadThreshold(4);
         peerGroup.start();
@@ -655,15 +731,18 @@ public class PeerGroupTest extends TestWithPeerGroup {
             key = wallet.freshReceiveKey();
         }
         peerGroup.waitForJobQueue();
-        BloomFilter bf, f2 = null;
-        while ((bf = (BloomFilter) outbound(p1)) != null) {
-            assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
-            f2 = bf;
+        // Apply the elements to a copy of the filter, like the remote peer would.
+        BloomFilter f2 = new BloomFilter(UNITTEST, f1.bitcoinSerialize());
+        Message m;
+        int added = 0;
+        while ((m = outbound(p1)) instanceof FilterAddMessage) {
+            f2.insert(((FilterAddMessage) m).getData());
+            added++;
         }
-        assertNotNull(key);
-        assertNotNull(f2);
+        assertEquals(MemoryPoolMessage.class, m.getClass());
         assertNull(outbound(p1));
-        // Check the last filter received.
+        assertNotNull(key);
+        assertTrue(added > 0);
         assertNotEquals(f1, f2);
         assertTrue(f2.contains(key.getPubKey()));
         assertTrue(f2.contains(key.getPubKeyHash()));
@@ -671,6 +750,26 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void testBloomResendWhenFull() throws Exception {
+        // When more elements are added than the filter was sized for, the whole filter is calculated and sent again.
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        BloomFilter f1 = p1.lastReceivedFilter;
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 60; i++)
+            keys.add(new ECKey());
+        wallet.importKeys(keys);
+        peerGroup.waitForJobQueue();
+        BloomFilter f2 = assertNextMessageIs(p1, BloomFilter.class);
+        assertNextMessageIs(p1, MemoryPoolMessage.class);
+        assertNull(outbound(p1));
+        assertNotEquals(f1, f2);
+        for (ECKey key : keys)
+            assertTrue(f2.contains(key.getPubKeyHash()));
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
@@ -823,11 +922,11 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(Coin.FIFTY_COINS.multiply(3), wallet.getBalance());
         assertEquals(exhaustionPoint.getPrevBlockHash(), blockChain.getChainHead().getHeader().getHash());
 
-        // Await the new filter.
+        // Await the new keys.
         peerGroup.waitForJobQueue();
-        BloomFilter newFilter = assertNextMessageIs(p1, BloomFilter.class);
+        BloomFilter newFilter = new BloomFilter(UNITTEST, filter.bitcoinSerialize());
+        assertTrue(applyFilterAdds(p1, newFilter) instanceof MemoryPoolMessage);
         assertNotEquals(filter, newFilter);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
         Ping ping = assertNextMessageIs(p1, Ping.class);
         inbound(p1, new Pong(ping.getNonce()));
 
@@ -841,8 +940,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // It happened again.
         peerGroup.waitForJobQueue();
-        newFilter = assertNextMessageIs(p1, BloomFilter.class);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
+        assertTrue(applyFilterAdds(p1, newFilter) instanceof MemoryPoolMessage);
         inbound(p1, new Pong(assertNextMessageIs(p1, Ping.class).getNonce()));
         assertNextMessageIs(p1, GetDataMessage.class);
         newBlocks = blocks.subList(6, blocks.size());
@@ -855,6 +953,14 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    // Adds the elements of the "filteradd" messages sent to the peer to the filter, and returns the next message.
+    private Message applyFilterAdds(InboundMessageQueuer p1, BloomFilter filter) throws Exception {
+        Message m;
+        while ((m = waitForOutbound(p1)) instanceof FilterAddMessage)
+            filter.insert(((FilterAddMessage) m).getData());
+        return m;
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
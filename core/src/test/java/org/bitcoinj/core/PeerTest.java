@@ -47,6 +47,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -453,6 +454,171 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(b, b2);
     }
 
+    private CompactBlockRelay connectWithCompactBlocks() throws Exception {
+        CompactBlockRelay relay = new CompactBlockRelay(UNITTEST, 100);
+        peer.setCompactBlockRelay(relay);
+        connectWithVersion(UNITTEST.getProtocolVersionNum(NetworkParameters.ProtocolVersion.COMPACT_BLOCKS),
+                VersionMessage.NODE_NETWORK);
+        inbound(writeTarget, new SendCompactBlocksMessage(UNITTEST, true, CompactBlockMessage.VERSION));
+        pingAndWait(writeTarget);
+        assertTrue(peer.isCompactBlocksSupported());
+        return relay;
+    }
+
+    private void assertBlockRequested(Block block) throws Exception {
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(InventoryItem.Type.Block, getdata.getItems().get(0).type);
+        assertEquals(block.getHash(), getdata.getItems().get(0).hash);
+    }
+
+    private void assertChainHead(Block block) {
+        assertEquals(block.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void compactBlockRoundTrip() throws Exception {
+        CompactBlockRelay relay = connectWithCompactBlocks();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Transaction t1 = createFakeTx(UNITTEST, COIN, address);
+        Transaction t2 = createFakeTx(UNITTEST, CENT, address);
+        // Besides the coinbase and the two transactions, the block has a payment added by makeSolvedTestBlock.
+        Block b2 = makeSolvedTestBlock(b1, t1, t2);
+        // The two transactions were relayed to us, that payment wasn't.
+        inbound(writeTarget, t1);
+        inbound(writeTarget, t2);
+        pingAndWait(writeTarget);
+        assertEquals(2, relay.getTransactionCount());
+
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, b2, 1));
+        GetBlockTransactionsMessage request = (GetBlockTransactionsMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), request.getBlockHash());
+        assertEquals(Collections.singletonList(1), request.getIndexes());
+        inbound(writeTarget, new BlockTransactionsMessage(UNITTEST, b2.getHash(),
+                Collections.singletonList(b2.getTransactions().get(1))));
+        pingAndWait(writeTarget);
+        assertChainHead(b2);
+        assertEquals(1, relay.getBlocksWithRoundTrip());
+        assertEquals(0, relay.getBlocksFailed());
+        // The transactions of the block won't be in another one.
+        assertEquals(0, relay.getTransactionCount());
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void compactBlockBadResponse() throws Exception {
+        CompactBlockRelay relay = connectWithCompactBlocks();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Transaction t1 = createFakeTx(UNITTEST, COIN, address);
+        Transaction t2 = createFakeTx(UNITTEST, CENT, address);
+        Block b2 = makeSolvedTestBlock(b1, t1, t2);
+        relay.addTransaction(t1);
+        relay.addTransaction(t2);
+
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, b2, 2));
+        assertTrue(outbound(writeTarget) instanceof GetBlockTransactionsMessage);
+        // The peer answers with a transaction that doesn't belong there, so the full block is downloaded instead.
+        inbound(writeTarget, new BlockTransactionsMessage(UNITTEST, b2.getHash(), Collections.singletonList(t1)));
+        assertBlockRequested(b2);
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertChainHead(b2);
+        assertEquals(1, relay.getBlocksFailed());
+        assertEquals(0, relay.getBlocksWithRoundTrip());
+    }
+
+    @Test
+    public void compactBlockNoResponse() throws Exception {
+        CompactBlockRelay relay = connectWithCompactBlocks();
+        Utils.setMockClock();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Block b2 = makeSolvedTestBlock(b1, createFakeTx(UNITTEST, COIN, address), createFakeTx(UNITTEST, CENT, address));
+
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, b2, 6));
+        assertTrue(outbound(writeTarget) instanceof GetBlockTransactionsMessage);
+        // The peer never answers. Until the deadline passes we keep waiting.
+        peer.ping();
+        assertTrue(outbound(writeTarget) instanceof Ping);
+        Utils.rollMockClock(60);
+        // Then the next ping gives up on the transactions and downloads the full block instead.
+        peer.ping();
+        assertBlockRequested(b2);
+        assertTrue(outbound(writeTarget) instanceof Ping);
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertChainHead(b2);
+        assertEquals(1, relay.getBlocksFailed());
+        assertEquals(0, relay.getBlocksWithRoundTrip());
+    }
+
+    @Test
+    public void compactBlockNotFound() throws Exception {
+        CompactBlockRelay relay = connectWithCompactBlocks();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Block b2 = makeSolvedTestBlock(b1, createFakeTx(UNITTEST, COIN, address), createFakeTx(UNITTEST, CENT, address));
+
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, b2, 7));
+        assertTrue(outbound(writeTarget) instanceof GetBlockTransactionsMessage);
+        // The peer doesn't have the transactions any more, so the full block is downloaded instead.
+        NotFoundMessage notFound = new NotFoundMessage(UNITTEST);
+        notFound.addItem(new InventoryItem(InventoryItem.Type.Block, b2.getHash()));
+        inbound(writeTarget, notFound);
+        assertBlockRequested(b2);
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertChainHead(b2);
+        assertEquals(1, relay.getBlocksFailed());
+    }
+
+    @Test
+    public void compactBlockShortIdCollision() throws Exception {
+        CompactBlockRelay relay = connectWithCompactBlocks();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Block b2 = makeSolvedTestBlock(b1, createFakeTx(UNITTEST, COIN, address), createFakeTx(UNITTEST, CENT, address));
+
+        // Give the second transaction the short ID of the first. The short IDs follow the header, nonce and count.
+        byte[] payload = new CompactBlockMessage(UNITTEST, b2, 3).bitcoinSerialize();
+        int offset = Block.HEADER_SIZE + 8 + 1;
+        System.arraycopy(payload, offset, payload, offset + CompactBlockMessage.SHORT_ID_LENGTH,
+                CompactBlockMessage.SHORT_ID_LENGTH);
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, payload));
+        assertBlockRequested(b2);
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        assertChainHead(b2);
+        assertEquals(1, relay.getBlocksFailed());
+    }
+
+    @Test
+    public void compactBlockWithUnknownParent() throws Exception {
+        CompactBlockRelay relay = connectWithCompactBlocks();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Block b2 = makeSolvedTestBlock(b1, createFakeTx(UNITTEST, COIN, address), createFakeTx(UNITTEST, CENT, address));
+        Block b3 = makeSolvedTestBlock(b2, createFakeTx(UNITTEST, COIN, address), createFakeTx(UNITTEST, CENT, address));
+
+        // A block we have already is ignored.
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, b1, 4));
+        assertNull(outbound(writeTarget));
+        // We are behind, so the block is downloaded in full, like any other orphan.
+        inbound(writeTarget, new CompactBlockMessage(UNITTEST, b3, 5));
+        assertBlockRequested(b3);
+        assertChainHead(b1);
+        assertEquals(0, relay.getBlocksFailed());
+        assertEquals(0, relay.getBlocksWithRoundTrip() + relay.getBlocksWithoutRoundTrip());
+    }
+
     @Test
     public void fastCatchup() throws Exception {
         connect();
@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Sha256BackendTest {
+    private static void checkBackend(Sha256Backend backend) throws Exception {
+        Random random = new Random(42);
+        // Covers the special cased lengths, and inputs that need one or two padding blocks.
+        for (int length = 0; length <= 200; length++) {
+            byte[] input = new byte[length + 3];
+            random.nextBytes(input);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(input, 3, length);
+            byte[] expected = digest.digest();
+            byte[] expectedTwice = digest.digest(expected);
+
+            byte[] output = new byte[Sha256Hash.LENGTH + 1];
+            backend.hash(input, 3, length, output, 1);
+            assertArrayEquals("length " + length, expected, Arrays.copyOfRange(output, 1, output.length));
+            backend.hashTwice(input, 3, length, output, 1);
+            assertArrayEquals("length " + length, expectedTwice, Arrays.copyOfRange(output, 1, output.length));
+            int split = length / 3;
+            backend.hashTwice(input, 3, split, input, 3 + split, length - split, output, 1);
+            assertArrayEquals("length " + length, expectedTwice, Arrays.copyOfRange(output, 1, output.length));
+
+            // The output may overlap the input, like when hashing a level of a Merkle tree in place.
+            if (length >= Sha256Hash.LENGTH) {
+                backend.hashTwice(input, 3, length, input, 3);
+                assertArrayEquals("length " + length, expectedTwice, Arrays.copyOfRange(input, 3, 35));
+            }
+        }
+    }
+
+    @Test
+    public void pureJava() throws Exception {
+        checkBackend(new PureJavaSha256Backend());
+    }
+
+    @Test
+    public void jca() throws Exception {
+        checkBackend(new JcaSha256Backend());
+    }
+
+    @Test
+    public void jcaRecoversFromBadRange() throws Exception {
+        Sha256Backend backend = new JcaSha256Backend();
+        byte[] input = "abc".getBytes("US-ASCII");
+        byte[] output = new byte[Sha256Hash.LENGTH];
+        try {
+            // The first range is fine and gets fed to the digest before the second one is rejected.
+            backend.hashTwice(input, 0, input.length, input, 2, 5, output, 0);
+            fail();
+        } catch (RuntimeException e) {
+            // Expected.
+        }
+        try {
+            backend.hash(input, 0, input.length, new byte[Sha256Hash.LENGTH - 1], 0);
+            fail();
+        } catch (RuntimeException e) {
+            // Expected.
+        }
+        backend.hash(input, 0, input.length, output, 0);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", Utils.HEX.encode(output));
+    }
+
+    @Test
+    public void setBackend() throws Exception {
+        Sha256Backend previous = Sha256Hash.getBackend();
+        try {
+            Sha256Hash.setBackend(new PureJavaSha256Backend());
+            // The hash of the genesis block header.
+            byte[] header = Utils.HEX.decode("0100000000000000000000000000000000000000000000000000000000000000000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a29ab5f49ffff001d1dac2b7c");
+            assertEquals("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f",
+                    Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header)).toString());
+        } finally {
+            Sha256Hash.setBackend(previous);
+        }
+    }
+}
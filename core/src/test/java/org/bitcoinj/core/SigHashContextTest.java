@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SigHashContextTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final byte[] SIGHASH_TYPES = {
+            (byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x81, (byte) 0x82, (byte) 0x83
+    };
+
+    private ECKey key;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        key = new ECKey();
+        Address address = LegacyAddress.fromKey(UNITTEST, key);
+        tx = new Transaction(UNITTEST);
+        for (int i = 0; i < 4; i++) {
+            Transaction prevTx = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, address);
+            tx.addInput(prevTx.getOutput(0)).setSequenceNumber(i);
+        }
+        tx.addOutput(Coin.CENT, address);
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.setLockTime(1234);
+    }
+
+    @Test
+    public void reusedContextMatchesFreshContext() {
+        byte[] script = ScriptBuilder.createOutputScript(key).getProgram();
+        SigHashContext context = new SigHashContext(tx);
+        // Go backwards as well as forwards, to exercise resetting the cached prefix.
+        int[] order = { 3, 0, 1, 2, 1, 3 };
+        for (int index : order) {
+            for (byte type : SIGHASH_TYPES) {
+                Sha256Hash expected = new SigHashContext(tx).hashForSignature(index, script, type);
+                assertEquals(expected, context.hashForSignature(index, script, type));
+            }
+        }
+    }
+
+    @Test
+    public void inputScriptsAreNotCovered() {
+        byte[] script = ScriptBuilder.createOutputScript(key).getProgram();
+        SigHashContext context = new SigHashContext(tx);
+        Sha256Hash before = context.hashForSignature(2, script, SigHash.ALL, false);
+        tx.getInput(1).setScriptSig(new ScriptBuilder().data(new byte[72]).build());
+        assertEquals(before, context.hashForSignature(2, script, SigHash.ALL, false));
+        assertEquals(before, new SigHashContext(tx).hashForSignature(2, script, SigHash.ALL, false));
+    }
+
+    @Test
+    public void sigHashSingleBug() {
+        byte[] script = ScriptBuilder.createOutputScript(key).getProgram();
+        Sha256Hash hash = new SigHashContext(tx).hashForSignature(3, script, SigHash.SINGLE, false);
+        assertEquals(Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000"), hash);
+    }
+
+    @Test
+    public void signedInputsCorrectlySpend() throws Exception {
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction spend = new Transaction(UNITTEST);
+        spend.addOutput(Coin.CENT, LegacyAddress.fromKey(UNITTEST, key));
+        spend.addOutput(Coin.CENT, LegacyAddress.fromKey(UNITTEST, key));
+        SigHash[] modes = { SigHash.ALL, SigHash.NONE, SigHash.SINGLE };
+        for (SigHash mode : modes) {
+            for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                Transaction prevTx = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, LegacyAddress.fromKey(UNITTEST, key));
+                spend.addSignedInput(prevTx.getOutput(0).getOutPointFor(), scriptPubKey, key, mode, anyoneCanPay);
+            }
+        }
+        // Adding inputs breaks the signatures of all earlier inputs that are not signed with SIGHASH_ANYONECANPAY,
+        // so only those are expected to still verify. The last one uses SIGHASH_SINGLE without a matching output.
+        SigHashContext context = new SigHashContext(spend);
+        for (int i = 1; i < spend.getInputs().size(); i += 2)
+            spend.getInput(i).getScriptSig().correctlySpends(spend, i, scriptPubKey, Script.ALL_VERIFY_FLAGS, context);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void contextOfOtherTransaction() {
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction other = new Transaction(UNITTEST, tx.bitcoinSerialize());
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS,
+                new SigHashContext(other));
+    }
+}
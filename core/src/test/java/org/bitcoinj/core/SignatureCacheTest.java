@@ -0,0 +1,78 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.ECKey.ECDSASignature;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache cache;
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECDSASignature signature;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new SignatureCache(10, 10);
+        key = new ECKey();
+        hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        signature = key.sign(hash);
+    }
+
+    @Test
+    public void validSignatureIsRemembered() {
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertEquals(1, cache.size());
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidSignatureIsNotRemembered() {
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 4, 5, 6 });
+        assertFalse(cache.verify(otherHash.getBytes(), signature, key.getPubKey()));
+        assertFalse(cache.verify(hash.getBytes(), signature, new ECKey().getPubKey()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void swappedSignatureComponents() {
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+        ECDSASignature swapped = new ECDSASignature(signature.s, signature.r);
+        assertFalse(cache.verify(hash.getBytes(), swapped, key.getPubKey()));
+    }
+
+    @Test
+    public void clear() {
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(cache.verify(hash.getBytes(), signature, key.getPubKey()));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            assertTrue(cache.verify(hash.getBytes(), key.sign(hash), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.primitives.Longs;
+
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Date;
@@ -51,6 +53,18 @@ public class UtilsTest {
         assertEquals(0x0600c0deL, Utils.encodeCompactBits(new BigInteger("c0de000000", 16)));
     }
 
+    @Test
+    public void multiplyHighUnsigned() {
+        BigInteger two64 = BigInteger.ONE.shiftLeft(64);
+        long[] values = { 0, 1, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE, Long.MIN_VALUE, -1, 0x123456789ABCDEF0L };
+        for (long x : values) {
+            for (long y : values) {
+                BigInteger product = new BigInteger(1, Longs.toByteArray(x)).multiply(new BigInteger(1, Longs.toByteArray(y)));
+                assertEquals(product.divide(two64).longValue(), Utils.multiplyHighUnsigned(x, y));
+            }
+        }
+    }
+
     @Test
     public void dateTimeFormat() {
         assertEquals("2014-11-16T10:54:33Z", Utils.dateTimeFormat(1416135273781L));
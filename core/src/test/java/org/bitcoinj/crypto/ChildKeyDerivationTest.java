@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.bouncycastle.crypto.params.*;
 
+import java.util.List;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -189,6 +191,28 @@ public class ChildKeyDerivationTest {
         assertEquals(key3.getPubKeyPoint(), pubkey3.getPubKeyPoint());
     }
 
+    @Test
+    public void batchDerivation() throws Exception {
+        DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey key2 = HDKeyDerivation.deriveChildKey(key1, ChildNumber.ZERO_HARDENED);
+        DeterministicKey pubkey2 = key2.dropPrivateBytes().dropParent();
+        // Small batches are derived on the calling thread, large ones on several threads.
+        for (int count : new int[] { 5, HDKeyDerivation.PARALLEL_THRESHOLD + 5 }) {
+            for (DeterministicKey parent : new DeterministicKey[] { key2, pubkey2 }) {
+                List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeys(parent, 3, count);
+                assertEquals(count, keys.size());
+                for (int i = 0; i < count; i++) {
+                    DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, 3 + i);
+                    DeterministicKey key = keys.get(i);
+                    assertEquals(expected, key);
+                    assertEquals(expected.getPath(), key.getPath());
+                    assertArrayEquals(expected.getChainCode(), key.getChainCode());
+                    assertEquals(parent.isPubKeyOnly(), key.isPubKeyOnly());
+                }
+            }
+        }
+    }
+
     @Test
     public void testSerializationMainAndTestNetworks() {
         DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ScriptExecutionCacheTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private ScriptExecutionCache cache;
+    private ECKey key;
+    private Script scriptPubKey;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        cache = new ScriptExecutionCache(10);
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, key));
+        Transaction prevTx = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, LegacyAddress.fromKey(UNITTEST, key));
+        tx = new Transaction(UNITTEST);
+        tx.addOutput(Coin.CENT, new ECKey());
+        tx.addSignedInput(prevTx.getOutput(0).getOutPointFor(), scriptPubKey, key);
+    }
+
+    @Test
+    public void successIsRemembered() {
+        assertFalse(cache.contains(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        cache.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, new SigHashContext(tx));
+        assertTrue(cache.contains(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        assertEquals(1, cache.size());
+        // Different flags are a different entry.
+        Set<VerifyFlag> flags = EnumSet.of(VerifyFlag.P2SH);
+        assertFalse(cache.contains(tx, 0, scriptPubKey, flags));
+    }
+
+    @Test
+    public void failureIsNotRemembered() {
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[71]).data(key.getPubKey()).build());
+        try {
+            cache.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, new SigHashContext(tx));
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertFalse(cache.contains(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void changedScriptSigIsNotCovered() {
+        cache.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, new SigHashContext(tx));
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[71]).data(key.getPubKey()).build());
+        assertFalse(cache.contains(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+    }
+
+    @Test
+    public void otherScriptPubKeyIsNotCovered() {
+        cache.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS, new SigHashContext(tx));
+        Script other = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        assertFalse(cache.contains(tx, 0, other, Script.ALL_VERIFY_FLAGS));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FilterHeaderStoreTest {
+    private File file;
+    private FilterHeaderStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("filterheaderstore", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new FilterHeaderStore(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private static Sha256Hash blockHash(int height) {
+        return Sha256Hash.of(("block " + height).getBytes());
+    }
+
+    private static Sha256Hash filterHeader(int height) {
+        return Sha256Hash.of(("filter header " + height).getBytes());
+    }
+
+    // Stores the entries from the base height up to and including the given height.
+    private void fill(int baseHeight, int height) throws Exception {
+        store.initialize(baseHeight, blockHash(baseHeight), filterHeader(baseHeight));
+        for (int i = baseHeight + 1; i <= height; i++)
+            store.add(blockHash(i), filterHeader(i));
+    }
+
+    @Test
+    public void basics() throws Exception {
+        assertTrue(store.isEmpty());
+        assertNull(store.getBlockHash(0));
+        fill(99, 110);
+        assertFalse(store.isEmpty());
+        assertEquals(99, store.getBaseHeight());
+        assertEquals(110, store.getHeight());
+        assertEquals(99, store.getScannedHeight());
+        for (int i = 99; i <= 110; i++) {
+            assertEquals(blockHash(i), store.getBlockHash(i));
+            assertEquals(filterHeader(i), store.getFilterHeader(i));
+        }
+        assertNull(store.getBlockHash(98));
+        assertNull(store.getFilterHeader(111));
+    }
+
+    @Test
+    public void beforeGenesis() throws Exception {
+        store.initialize(-1, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH);
+        store.add(blockHash(0), filterHeader(0));
+        assertEquals(-1, store.getBaseHeight());
+        assertEquals(0, store.getHeight());
+        assertEquals(Sha256Hash.ZERO_HASH, store.getFilterHeader(-1));
+        assertEquals(filterHeader(0), store.getFilterHeader(0));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        fill(10, 20);
+        store.setScannedHeight(15);
+        store.close();
+        store = new FilterHeaderStore(file);
+        assertEquals(10, store.getBaseHeight());
+        assertEquals(20, store.getHeight());
+        assertEquals(15, store.getScannedHeight());
+        assertEquals(blockHash(20), store.getBlockHash(20));
+        assertEquals(filterHeader(10), store.getFilterHeader(10));
+        // The scan continues where it stopped.
+        store.add(blockHash(21), filterHeader(21));
+        assertEquals(21, store.getHeight());
+    }
+
+    @Test
+    public void truncate() throws Exception {
+        fill(10, 20);
+        store.setScannedHeight(18);
+        store.truncate(15);
+        assertEquals(15, store.getHeight());
+        assertEquals(15, store.getScannedHeight());
+        assertNull(store.getBlockHash(16));
+        // Headers of the new chain go after the split point.
+        store.add(blockHash(100), filterHeader(100));
+        assertEquals(blockHash(100), store.getBlockHash(16));
+        // Truncating above the last entry does nothing.
+        store.truncate(30);
+        assertEquals(16, store.getHeight());
+        store.close();
+        store = new FilterHeaderStore(file);
+        assertEquals(16, store.getHeight());
+        assertEquals(15, store.getScannedHeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncateBelowBase() throws Exception {
+        fill(10, 20);
+        store.truncate(9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scannedHeightOutOfRange() throws Exception {
+        fill(10, 20);
+        store.setScannedHeight(21);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void initializeTwice() throws Exception {
+        fill(10, 10);
+        store.initialize(10, blockHash(10), filterHeader(10));
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void notAStore() throws Exception {
+        store.close();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("something else".getBytes());
+        out.close();
+        store = new FilterHeaderStore(file);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderChainBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private File blockStoreFile;
+    private Address to;
+
+    @Before
+    public void setup() throws Exception {
+        blockStoreFile = File.createTempFile("headerchain", null);
+        blockStoreFile.delete();
+        blockStoreFile.deleteOnExit();
+        to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    }
+
+    private List<StoredBlock> extend(BlockStore store, StoredBlock from, int blocks) throws Exception {
+        List<StoredBlock> added = new ArrayList<>();
+        StoredBlock prev = from;
+        for (int i = 0; i < blocks; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            added.add(block);
+            prev = block;
+        }
+        return added;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        HeaderChainBlockStore store = new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock(), genesis.getHeader());
+        assertEquals(0, genesis.getHeight());
+        assertEquals(genesis, store.getByHeight(0));
+
+        List<StoredBlock> chain = extend(store, genesis, 100);
+        StoredBlock head = chain.get(chain.size() - 1);
+        store.setChainHead(head);
+        store.close();
+
+        // Check we can get everything back out again if we rebuild the store object.
+        store = new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        assertEquals(head, store.getChainHead());
+        assertEquals(genesis, store.getByHeight(0));
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.getByHeight(block.getHeight()));
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertNull(store.getByHeight(101));
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+        // Ancestors of blocks of the best chain are looked up by height.
+        assertEquals(chain.get(9), head.getAncestor(10, store));
+        store.close();
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        HeaderChainBlockStore store = new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 10);
+        store.setChainHead(chain.get(9));
+        List<StoredBlock> fork = extend(store, chain.get(4), 7);
+        // A block that isn't part of the best chain can be found by hash, but not by height.
+        assertEquals(fork.get(0), store.get(fork.get(0).getHeader().getHash()));
+        assertEquals(chain.get(5), store.getByHeight(6));
+
+        store.setChainHead(fork.get(6));
+        assertEquals(fork.get(6), store.getChainHead());
+        assertEquals(chain.get(4), store.getByHeight(5));
+        for (StoredBlock block : fork)
+            assertEquals(block, store.getByHeight(block.getHeight()));
+        // The blocks of the old chain are still around.
+        assertEquals(chain.get(9), store.get(chain.get(9).getHeader().getHash()));
+
+        // And back again.
+        List<StoredBlock> longer = extend(store, chain.get(9), 3);
+        store.setChainHead(longer.get(2));
+        assertEquals(chain.get(5), store.getByHeight(6));
+        assertEquals(longer.get(0), store.getByHeight(11));
+        assertNull(store.getByHeight(14));
+        store.close();
+    }
+
+    @Test
+    public void startsOverAtCheckpoint() throws Exception {
+        HeaderChainBlockStore store = new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        List<StoredBlock> chain = extend(new MemoryBlockStore(UNITTEST), store.getChainHead(), 20);
+        StoredBlock checkpoint = chain.get(14);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        assertNull(store.getByHeight(0));
+        assertEquals(checkpoint, store.getByHeight(15));
+        store.put(chain.get(15));
+        store.setChainHead(chain.get(15));
+        store.close();
+
+        store = new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        assertEquals(chain.get(15), store.getChainHead());
+        assertEquals(checkpoint, store.get(checkpoint.getHeader().getHash()));
+        assertNull(store.getByHeight(14));
+        store.close();
+    }
+
+    @Test
+    public void refusesChainHeadThatDoesNotConnect() throws Exception {
+        HeaderChainBlockStore store = new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = extend(store, genesis, 5);
+        store.setChainHead(chain.get(4));
+        // A fork whose blocks the store never got, like ones evicted from the side blocks.
+        List<StoredBlock> fork = extend(new MemoryBlockStore(UNITTEST), genesis, 8);
+        store.put(fork.get(7));
+        try {
+            store.setChainHead(fork.get(7));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertEquals(chain.get(4), store.getChainHead());
+        assertEquals(genesis, store.getByHeight(0));
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void twoStores_onSameFile() throws Exception {
+        new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+        new HeaderChainBlockStore(UNITTEST, blockStoreFile);
+    }
+}
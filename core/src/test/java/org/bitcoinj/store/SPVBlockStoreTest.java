@@ -18,6 +18,7 @@
 package org.bitcoinj.store;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.File;
 
@@ -109,6 +110,43 @@ public class SPVBlockStoreTest {
         assertEquals(SPVBlockStore.getFileSize(20), blockStoreFile.length());
     }
 
+    @Test
+    public void ringBufferWrapsAround() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        StoredBlock[] blocks = new StoredBlock[25];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+        }
+        store.setChainHead(blocks[blocks.length - 1]);
+        store.close();
+
+        // Only the last 10 headers are left in the ring, and the index must be rebuilt from it.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        for (int i = 0; i < blocks.length; i++) {
+            StoredBlock block = store.get(blocks[i].getHeader().getHash());
+            if (i < blocks.length - 10)
+                assertNull(block);
+            else
+                assertEquals(blocks[i], block);
+        }
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+
+        // Keep overwriting the oldest headers.
+        StoredBlock next = blocks[blocks.length - 1].build(
+                blocks[blocks.length - 1].getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(next);
+        assertEquals(next, store.get(next.getHeader().getHash()));
+        store.close();
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertNull(store.get(blocks[blocks.length - 10].getHeader().getHash()));
+        assertEquals(blocks[blocks.length - 9], store.get(blocks[blocks.length - 9].getHeader().getHash()));
+        assertEquals(next, store.get(next.getHeader().getHash()));
+        store.close();
+    }
+
     @Test(expected = BlockStoreException.class)
     public void twoStores_sequentially_shrink() throws Exception {
         SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 20, true);
@@ -0,0 +1,110 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SkipListBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final int CHAIN_LENGTH = 300;
+
+    private int reads;
+    private MemoryBlockStore memoryStore;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        memoryStore = new MemoryBlockStore(UNITTEST) {
+            @Override
+            public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+                reads++;
+                return super.get(hash);
+            }
+        };
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        chain = new ArrayList<>();
+        chain.add(memoryStore.getChainHead());
+        for (int i = 1; i < CHAIN_LENGTH; i++) {
+            StoredBlock prev = chain.get(i - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            memoryStore.put(block);
+            chain.add(block);
+        }
+    }
+
+    @Test
+    public void ancestorsOfIndexedBlocks() throws Exception {
+        SkipListBlockStore store = new SkipListBlockStore(memoryStore);
+        for (StoredBlock block : chain)
+            store.add(block);
+        reads = 0;
+        for (int from = 0; from < CHAIN_LENGTH; from += 7)
+            for (int height = 0; height <= from; height++)
+                assertEquals(chain.get(height), chain.get(from).getAncestor(height, store));
+        // Everything was found in memory.
+        assertEquals(0, reads);
+    }
+
+    @Test
+    public void ancestorsBeforeIndexedBlocks() throws Exception {
+        // Like after a restart, only the blocks from the chain head onwards are indexed.
+        SkipListBlockStore store = new SkipListBlockStore(memoryStore);
+        for (int i = 200; i < CHAIN_LENGTH; i++)
+            store.add(chain.get(i));
+        reads = 0;
+        assertEquals(chain.get(200), chain.get(CHAIN_LENGTH - 1).getAncestor(200, store));
+        assertEquals(0, reads);
+        assertEquals(chain.get(0), chain.get(CHAIN_LENGTH - 1).getAncestor(0, store));
+        assertEquals(200, reads);
+        // Without a skip list the block store is read once per block.
+        reads = 0;
+        assertEquals(chain.get(100), chain.get(CHAIN_LENGTH - 1).getAncestor(100, memoryStore));
+        assertEquals(CHAIN_LENGTH - 1 - 100, reads);
+    }
+
+    @Test
+    public void evictedBlocks() throws Exception {
+        SkipListBlockStore store = new SkipListBlockStore(memoryStore, 50);
+        for (StoredBlock block : chain)
+            store.put(block);
+        for (int height = 0; height < CHAIN_LENGTH; height++)
+            assertEquals(chain.get(height), chain.get(CHAIN_LENGTH - 1).getAncestor(height, store));
+    }
+
+    @Test
+    public void skipHeights() throws Exception {
+        for (int height = 2; height < 100000; height++) {
+            int skipHeight = SkipListBlockStore.getSkipHeight(height);
+            assertTrue(skipHeight >= 0 && skipHeight < height);
+        }
+        assertEquals(0, SkipListBlockStore.getSkipHeight(1 << 20));
+        assertEquals(1 << 20, SkipListBlockStore.getSkipHeight(3 << 19));
+    }
+}
@@ -28,6 +28,7 @@ import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.Purpose;
 import org.bitcoinj.core.TransactionConfidence;
@@ -320,6 +321,44 @@ public class WalletProtobufSerializerTest {
         assertEquals(1, rebornConfidence1.getDepthInBlocks());
     }
 
+    @Test
+    public void lazyLoading() throws Exception {
+        // t1 pays us and is spent by t2, which pays someone else. Both are spent, so they're read when used.
+        MemoryBlockStore blockStore = new MemoryBlockStore(UNITTEST);
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, LegacyAddress.fromKey(UNITTEST, new ECKey()));
+        Transaction t3 = createFakeTx(UNITTEST, CENT, myAddress);
+        for (Transaction tx : new Transaction[] { t1, t2, t3 }) {
+            StoredBlock block = FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx).storedBlock;
+            myWallet.receiveFromBlock(tx, block, BlockChain.NewBlockType.BEST_CHAIN, 0);
+            myWallet.notifyNewBestBlock(block);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLazyLoading(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(CENT, wallet1.getBalance());
+        assertEquals(1, wallet1.getPoolSize(Pool.UNSPENT));
+        assertEquals(2, wallet1.getPoolSize(Pool.SPENT));
+        assertTrue(wallet1.isConsistent());
+        // Transactions that weren't read yet are saved as they were.
+        assertEquals(3, new WalletProtobufSerializer().walletToProto(wallet1).getTransactionCount());
+
+        Transaction t2copy = wallet1.getTransaction(t2.getHash());
+        Transaction t1copy = t2copy.getInput(0).getConnectedTransaction();
+        assertEquals(t1.getHash(), t1copy.getHash());
+        assertSame(t2copy.getInput(0), t1copy.getOutput(0).getSpentBy());
+        assertEquals(3, t1copy.getConfidence().getDepthInBlocks());
+        assertEquals(2, t2copy.getConfidence().getDepthInBlocks());
+        assertEquals(2, wallet1.getPoolSize(Pool.SPENT));
+        assertEquals(3, wallet1.getTransactions(true).size());
+        assertTrue(wallet1.isConsistent());
+    }
+
     private static Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         new WalletProtobufSerializer().writeWallet(wallet, output);
@@ -0,0 +1,80 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private List<File> files;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(MAINNET));
+        files = Collections.singletonList(
+                new File(getClass().getResource("/org/bitcoinj/core/first-100k-blocks.dat").getFile()));
+    }
+
+    private List<Sha256Hash> load(BlockFileLoader loader) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (Block block : loader) {
+            if (!hashes.isEmpty())
+                assertEquals(hashes.get(hashes.size() - 1), block.getPrevBlockHash());
+            hashes.add(block.getHash());
+        }
+        return hashes;
+    }
+
+    @Test
+    public void sequential() throws Exception {
+        List<Sha256Hash> hashes = load(new BlockFileLoader(MAINNET, files));
+        assertEquals(439, hashes.size());
+        assertEquals(MAINNET.getGenesisBlock().getHash(), hashes.get(0));
+    }
+
+    @Test
+    public void parallelKeepsFileOrder() throws Exception {
+        List<Sha256Hash> expected = load(new BlockFileLoader(MAINNET, files));
+        BlockFileLoader loader = new BlockFileLoader(MAINNET, files, 3);
+        assertEquals(expected, load(loader));
+        assertFalse(loader.hasNext());
+    }
+
+    @Test
+    public void closeStopsEarly() throws Exception {
+        BlockFileLoader loader = new BlockFileLoader(MAINNET, files, 3);
+        assertEquals(MAINNET.getGenesisBlock().getHash(), loader.next().getHash());
+        assertTrue(loader.hasNext());
+        loader.close();
+        assertFalse(loader.hasNext());
+        loader.close();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ListenerQueueTest {
+    // Runs tasks when asked to, so the test controls when listeners run.
+    private final Queue<Runnable> executorTasks = new LinkedList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            executorTasks.add(command);
+        }
+    };
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Threading.useListenerQueues(executor, 2);
+    }
+
+    @After
+    public void tearDown() {
+        Threading.useUserThreadForListeners();
+    }
+
+    private Runnable event(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(name);
+            }
+        };
+    }
+
+    private Runnable coalescingEvent(final String name) {
+        return new ListenerQueue.CoalescingRunnable(this, name) {
+            @Override
+            public void run() {
+                events.add(name);
+            }
+        };
+    }
+
+    private void runExecutor() {
+        Runnable task;
+        while ((task = executorTasks.poll()) != null)
+            task.run();
+    }
+
+    @Test
+    public void ordersAndCoalescesEvents() {
+        ListenerRegistration<Object> registration = new ListenerRegistration<>(new Object(), Threading.USER_THREAD);
+        ListenerQueue queue = (ListenerQueue) registration.executor;
+        queue.execute(coalescingEvent("a"));
+        queue.execute(event("b"));
+        queue.execute(coalescingEvent("a"));
+        queue.execute(coalescingEvent("c"));
+        // The queue runs on the executor once, however many events it has.
+        assertEquals(1, executorTasks.size());
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(1, queue.getOverflowCount());
+        runExecutor();
+        assertEquals(0, queue.getDepth());
+        assertEquals(3, queue.getMaxDepth());
+        // Once it ran, the same event is queued again.
+        queue.execute(coalescingEvent("a"));
+        runExecutor();
+        assertEquals(Arrays.asList("a", "b", "c", "a"), events);
+    }
+
+    @Test
+    public void queuePerListener() {
+        ListenerRegistration<Object> slow = new ListenerRegistration<>(new Object(), Threading.USER_THREAD);
+        ListenerRegistration<Object> fast = new ListenerRegistration<>(new Object(), Threading.USER_THREAD);
+        assertNotSame(slow.executor, fast.executor);
+        assertTrue(Threading.getListenerQueues().contains(slow.executor));
+        // Other executors are used as they are.
+        assertSame(Threading.SAME_THREAD,
+                new ListenerRegistration<>(new Object(), Threading.SAME_THREAD).executor);
+
+        slow.executor.execute(event("slow"));
+        fast.executor.execute(event("fast"));
+        // The event of the fast listener runs before the slow one is done.
+        executorTasks.poll();
+        executorTasks.poll().run();
+        assertEquals(Arrays.asList("fast"), events);
+    }
+}
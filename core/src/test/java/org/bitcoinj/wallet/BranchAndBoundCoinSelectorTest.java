@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+    }
+
+    private List<TransactionOutput> outputs(Coin... values) {
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (Coin value : values) {
+            Transaction tx = new Transaction(UNITTEST);
+            outputs.add(tx.addOutput(value, address));
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        }
+        return outputs;
+    }
+
+    @Test
+    public void exactMatchNeedsNoChange() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(3), COIN.multiply(2), COIN);
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(4), candidates);
+        assertEquals(COIN.multiply(4), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+        assertTrue(selection.gathered.contains(candidates.get(1)));
+        assertTrue(selection.gathered.contains(candidates.get(3)));
+    }
+
+    @Test
+    public void matchWithinCostOfChange() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.add(SATOSHI.multiply(300)));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN, candidates);
+        assertEquals(COIN.add(SATOSHI.multiply(300)), selection.valueGathered);
+        // With no tolerance the knapsack solver picks the output that leaves enough change.
+        selection = new BranchAndBoundCoinSelector(ZERO).select(COIN, candidates);
+        assertEquals(COIN.multiply(5), selection.valueGathered);
+    }
+
+    @Test
+    public void knapsackPicksSmallerOutputs() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(50), COIN.multiply(3), COIN.multiply(3),
+                COIN.multiply(3));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(5), candidates);
+        assertEquals(COIN.multiply(6), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void orderDoesNotMatter() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN, COIN.multiply(2), COIN.multiply(7), CENT, COIN.multiply(4));
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        CoinSelection selection = selector.select(COIN.multiply(6), candidates);
+        Collections.sort(candidates, BranchAndBoundCoinSelector.LARGEST_FIRST);
+        assertEquals(COIN.multiply(7), candidates.get(0).getValue());
+        assertEquals(CENT, candidates.get(4).getValue());
+        CoinSelection sortedSelection = selector.select(COIN.multiply(6), candidates);
+        assertEquals(COIN.multiply(6), selection.valueGathered);
+        assertEquals(selection.valueGathered, sortedSelection.valueGathered);
+        assertEquals(new ArrayList<>(selection.gathered), new ArrayList<>(sortedSelection.gathered));
+    }
+
+    @Test
+    public void notEnoughMoney() throws Exception {
+        List<TransactionOutput> candidates = outputs(COIN, COIN);
+        Transaction pending = new Transaction(UNITTEST);
+        candidates.add(pending.addOutput(COIN.multiply(10), address));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(3), candidates);
+        // The pending transaction wasn't sent by us, so it can't be used.
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+}
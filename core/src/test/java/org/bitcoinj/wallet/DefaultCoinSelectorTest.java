@@ -21,6 +21,7 @@ import org.bitcoinj.params.*;
 import org.bitcoinj.testing.*;
 import org.junit.*;
 
+import java.math.BigInteger;
 import java.net.*;
 import java.util.*;
 
@@ -109,6 +110,72 @@ public class DefaultCoinSelectorTest extends TestWithWallet {
         assertEquals(t3.getOutput(0), candidates.get(2));
     }
 
+    @Test
+    public void pendingOutputsSortLast() throws Exception {
+        Transaction confirmed = new Transaction(UNITTEST);
+        confirmed.addOutput(COIN.multiply(50), myAddress);
+        confirmed.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        confirmed.getConfidence().setDepthInBlocks(1000);
+        Transaction smallPending = new Transaction(UNITTEST);
+        smallPending.addOutput(COIN, myAddress);
+        smallPending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        Transaction largePending = new Transaction(UNITTEST);
+        largePending.addOutput(COIN.multiply(50), myAddress);
+        largePending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+
+        ArrayList<TransactionOutput> candidates = new ArrayList<>();
+        candidates.add(largePending.getOutput(0));
+        candidates.add(smallPending.getOutput(0));
+        candidates.add(confirmed.getOutput(0));
+        DefaultCoinSelector.sortOutputs(candidates);
+        assertEquals(confirmed.getOutput(0), candidates.get(0));
+        assertEquals(smallPending.getOutput(0), candidates.get(1));
+        assertEquals(largePending.getOutput(0), candidates.get(2));
+    }
+
+    @Test
+    public void sortOutputsAgreesWithBigInteger() throws Exception {
+        // Values and depths large enough for value * depth to exceed 64 bits, few enough of them for ties.
+        Random random = new Random(42);
+        long[] values = { 1, 5460, COIN.value, NetworkParameters.MAX_MONEY.value / 3, NetworkParameters.MAX_MONEY.value };
+        int[] depths = { -1, 1, 6, 100000, 10000000, Integer.MAX_VALUE };
+        ArrayList<TransactionOutput> outputs = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Transaction tx = new Transaction(UNITTEST);
+            tx.addOutput(Coin.valueOf(values[random.nextInt(values.length)]), myAddress);
+            // Makes the hash and so the confidence of each transaction unique.
+            tx.addOutput(Coin.valueOf(i + 1), myAddress);
+            int depth = depths[random.nextInt(depths.length)];
+            if (depth < 0) {
+                tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+            } else {
+                tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+                tx.getConfidence().setDepthInBlocks(depth);
+            }
+            outputs.add(tx.getOutput(0));
+        }
+
+        ArrayList<TransactionOutput> expected = new ArrayList<>(outputs);
+        // The sort order from before the sort keys, with the coin-depth as a BigInteger.
+        Collections.sort(expected, new Comparator<TransactionOutput>() {
+            @Override
+            public int compare(TransactionOutput a, TransactionOutput b) {
+                BigInteger aCoinDepth = BigInteger.valueOf(a.getValue().value)
+                        .multiply(BigInteger.valueOf(a.getParentTransactionDepthInBlocks()));
+                BigInteger bCoinDepth = BigInteger.valueOf(b.getValue().value)
+                        .multiply(BigInteger.valueOf(b.getParentTransactionDepthInBlocks()));
+                int c1 = bCoinDepth.compareTo(aCoinDepth);
+                if (c1 != 0) return c1;
+                int c2 = b.getValue().compareTo(a.getValue());
+                if (c2 != 0) return c2;
+                return a.getParentTransactionHash().toBigInteger().compareTo(b.getParentTransactionHash().toBigInteger());
+            }
+        });
+        ArrayList<TransactionOutput> actual = new ArrayList<>(outputs);
+        DefaultCoinSelector.sortOutputs(actual);
+        assertEquals(expected, actual);
+    }
+
     @Test
     public void identicalInputs() throws Exception {
         // Add four outputs to a transaction with same value and destination. Select them all.
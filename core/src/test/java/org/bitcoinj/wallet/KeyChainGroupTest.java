@@ -35,8 +35,12 @@ import org.junit.Test;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -172,6 +176,28 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void findKeyAfterChanges() throws Exception {
+        ECKey a = new ECKey();
+        group.importKeys(a);
+        assertEquals(a, group.findKeyFromPubHash(a.getPubKeyHash()));
+        group.removeImportedKey(a);
+        assertNull(group.findKeyFromPubHash(a.getPubKeyHash()));
+        assertFalse(group.hasKey(a));
+
+        // Keys issued past the lookahead are found too.
+        ECKey b = null;
+        for (int i = 0; i < LOOKAHEAD_SIZE * 3; i++)
+            b = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(b, group.findKeyFromPubKey(b.getPubKey()));
+
+        // After encryption, the encrypted keys are found.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        group.encrypt(scrypt, scrypt.deriveKey("password"));
+        ECKey encrypted = group.findKeyFromPubHash(b.getPubKeyHash());
+        assertTrue(encrypted.isEncrypted());
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
@@ -414,6 +440,41 @@ public class KeyChainGroupTest {
         assertNull(ran.get());
     }
 
+    @Test
+    public void listenerQueueSharedByChains() throws Exception {
+        // Listener queues run when the test asks them to.
+        final BlockingQueue<Runnable> executorTasks = new LinkedBlockingQueue<>();
+        Threading.useListenerQueues(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executorTasks.add(command);
+            }
+        }, 100);
+        try {
+            final List<ECKey> added = new ArrayList<>();
+            group.addEventListener(new KeyChainEventListener() {
+                @Override
+                public void onKeysAdded(List<ECKey> keys) {
+                    added.addAll(keys);
+                }
+            }, Threading.USER_THREAD);
+            ECKey key1 = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+            ECKey key2 = new ECKey();
+            group.importKeys(key2);
+            group.createAndActivateNewHDChain();
+            ECKey key3 = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+            // Events from the basic chain and both HD chains wait in the one queue of the listener, so it doesn't run
+            // twice at the same time.
+            assertEquals(1, executorTasks.size());
+            executorTasks.take().run();
+            assertTrue(executorTasks.isEmpty());
+            assertTrue(added.indexOf(key1) < added.indexOf(key2));
+            assertTrue(added.indexOf(key2) < added.indexOf(key3));
+        } finally {
+            Threading.useUserThreadForListeners();
+        }
+    }
+
     @Test
     public void serialization() throws Exception {
         int initialKeys = INITIAL_KEYS + group.getActiveKeyChain().getAccountPath().size() - 1;
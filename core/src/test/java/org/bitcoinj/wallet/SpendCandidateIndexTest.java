@@ -0,0 +1,83 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class SpendCandidateIndexTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private Wallet wallet;
+    private SpendCandidateIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        wallet = new Wallet(UNITTEST);
+        index = new SpendCandidateIndex(wallet);
+    }
+
+    @Test
+    public void largestFirst() throws Exception {
+        Address address = LegacyAddress.fromKey(UNITTEST, wallet.freshReceiveKey());
+        Transaction tx = new Transaction(UNITTEST);
+        TransactionOutput small = tx.addOutput(CENT, address);
+        TransactionOutput large = tx.addOutput(COIN, address);
+        TransactionOutput medium = new Transaction(UNITTEST).addOutput(COIN.divide(2), address);
+        index.reset(Arrays.asList(small, large, medium));
+        assertEquals(Arrays.asList(large, medium, small), index.getCandidates(false, false));
+        assertEquals(COIN.add(COIN.divide(2)).add(CENT), index.getEstimatedBalance(true));
+    }
+
+    @Test
+    public void parentlessOutputsOfSameValue() throws Exception {
+        TransactionOutput a = new TransactionOutput(UNITTEST, null, COIN, new ECKey());
+        TransactionOutput b = new TransactionOutput(UNITTEST, null, COIN, new ECKey());
+        index.add(a);
+        index.add(b);
+        assertEquals(2, index.size());
+        List<TransactionOutput> candidates = index.getCandidates(false, false);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(a) && candidates.contains(b));
+        index.remove(a);
+        assertEquals(Arrays.asList(b), index.getCandidates(false, false));
+        assertEquals(COIN, index.getEstimatedBalance(false));
+    }
+
+    @Test
+    public void copiesOfTransaction() throws Exception {
+        Address address = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addOutput(COIN, address);
+        Transaction copy = new Transaction(UNITTEST, tx.bitcoinSerialize());
+        assertEquals(tx.getHash(), copy.getHash());
+        index.add(tx.getOutput(0));
+        index.add(copy.getOutput(0));
+        assertEquals(2, index.getCandidates(false, false).size());
+        index.remove(copy.getOutput(0));
+        assertEquals(Arrays.asList(tx.getOutput(0)), index.getCandidates(false, false));
+    }
+}
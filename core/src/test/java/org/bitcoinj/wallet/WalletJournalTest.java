@@ -0,0 +1,117 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private WalletJournal journal;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        journal = new WalletJournal(wallet, file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+        WalletJournal.getJournalFile(file).delete();
+    }
+
+    private void compact() throws Exception {
+        journal.compact(File.createTempFile("wallet", null, file.getParentFile()));
+    }
+
+    @Test
+    public void appendsChangesOnly() throws Exception {
+        // There is no journal for the wallet file yet.
+        assertFalse(journal.append());
+        compact();
+        Sha256Hash walletFileHash = Sha256Hash.of(file);
+
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        wallet.freshReceiveKey();
+        assertTrue(journal.append());
+        assertEquals(walletFileHash, Sha256Hash.of(file));
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(COIN.add(CENT), loaded.getBalance());
+        assertEquals(2, loaded.getTransactions(false).size());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+        assertEquals(wallet.getActiveKeyChain().getIssuedReceiveKeys().size(),
+                loaded.getActiveKeyChain().getIssuedReceiveKeys().size());
+        // The depth isn't journaled, but follows from the last seen block.
+        assertEquals(2, loaded.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(1, loaded.getTransaction(tx2.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void cutsOffTornRecord() throws Exception {
+        compact();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertTrue(journal.append());
+        long length = WalletJournal.getJournalFile(file).length();
+        FileOutputStream stream = new FileOutputStream(WalletJournal.getJournalFile(file), true);
+        stream.write(new byte[] { 2, 0, 0, 1, 0, 42 });
+        stream.close();
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(COIN, loaded.getBalance());
+        WalletJournal loadedJournal = new WalletJournal(loaded, file);
+        sendMoneyToWallet(loaded, AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, myAddress);
+        assertTrue(loadedJournal.append());
+        assertTrue(WalletJournal.getJournalFile(file).length() > length);
+        assertEquals(COIN.add(CENT), Wallet.loadFromFile(file).getBalance());
+    }
+
+    @Test
+    public void startsOverAfterFullSave() throws Exception {
+        compact();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertTrue(journal.append());
+        // Saving in full makes the journal stale, so it's ignored.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        wallet.saveToFile(file);
+        assertFalse(journal.append());
+        assertEquals(COIN.add(CENT), Wallet.loadFromFile(file).getBalance());
+
+        compact();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertTrue(journal.append());
+        assertEquals(COIN.multiply(2).add(CENT), Wallet.loadFromFile(file).getBalance());
+    }
+}
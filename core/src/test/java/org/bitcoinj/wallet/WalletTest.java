@@ -567,6 +567,78 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void balanceAfterUnspentsSwapped() throws Exception {
+        // Subclasses may change myUnspents directly. Swapping one output for another keeps its size the same.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        TransactionOutput output = wallet.myUnspents.iterator().next();
+        Transaction tx = new Transaction(UNITTEST);
+        TransactionOutput other = tx.addOutput(COIN.multiply(2), myAddress);
+        wallet.myUnspents.remove(output);
+        wallet.myUnspents.add(other);
+        assertEquals(COIN.multiply(2), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(Collections.singletonList(other), wallet.calculateAllSpendCandidates(false, false));
+    }
+
+    @Test
+    public void relayedTransactionsDontReadDeferred() throws Exception {
+        // t1 pays us and is spent by t2, which pays someone else. Both are deferred when the wallet is loaded lazily.
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, OTHER_ADDRESS);
+        Transaction t3 = createFakeTx(UNITTEST, CENT, myAddress);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t1);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t2);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t3);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLazyLoading(true);
+        Wallet wallet1 = serializer.readWallet(UNITTEST, null, new WalletProtobufSerializer().walletToProto(wallet));
+        DeferredTransactions deferred = wallet1.getDeferredTransactions();
+        assertEquals(2, deferred.size(null));
+
+        // Neither a transaction that doesn't concern us, nor one spending our unspent output reads them.
+        assertFalse(wallet1.isPendingTransactionRelevant(createFakeTx(UNITTEST, COIN, OTHER_ADDRESS)));
+        Transaction spend = new Transaction(UNITTEST);
+        spend.addInput(t3.getOutput(0));
+        spend.addOutput(CENT, OTHER_ADDRESS);
+        assertTrue(wallet1.isPendingTransactionRelevant(spend));
+        wallet1.receiveFromBlock(createFakeTx(UNITTEST, COIN, OTHER_ADDRESS),
+                createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(2, deferred.size(null));
+
+        // A double spend of t2 is found, reading it.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(t1.getOutput(0));
+        doubleSpend.addOutput(COIN, OTHER_ADDRESS);
+        assertTrue(wallet1.isPendingTransactionRelevant(doubleSpend));
+        assertEquals(0, deferred.size(null));
+        assertTrue(wallet1.isConsistent());
+    }
+
+    @Test
+    public void spendableBalanceFollowsKeys() throws Exception {
+        ECKey key = new ECKey();
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, key));
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, CENT, LegacyAddress.fromKey(UNITTEST, key));
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(0, wallet.calculateAllSpendCandidates(true, true).size());
+
+        wallet.importKey(key);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(1, wallet.calculateAllSpendCandidates(true, true).size());
+
+        assertTrue(wallet.removeKey(key));
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -1579,6 +1651,20 @@ public class WalletTest extends TestWithWallet {
         assertEquals(b3.getHash(), wallet.getLastBlockSeenHash());
     }
 
+    @Test
+    public void blockBelowLastSeenHeightCountedOnce() throws Exception {
+        // The wallet is ahead of the chain, as when the wallet was saved but the block store wasn't. The chain logs a
+        // height mismatch and goes on, so blocks below the wallet's last seen height arrive through the normal path.
+        wallet.setLastBlockSeenHeight(5);
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        Block b1 = makeSolvedTestBlock(blockStore.getChainHead().getHeader(), t1);
+        chain.add(b1);
+        Transaction tx = wallet.getTransaction(t1.getHash());
+        assertEquals(1, tx.getConfidence().getDepthInBlocks());
+        chain.add(makeSolvedTestBlock(b1));
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void pubkeyOnlyScripts() throws Exception {
         // Verify that we support outputs like OP_PUBKEY and the corresponding inputs.
@@ -65,9 +65,12 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        // Parse blocks ahead on the other cores, while this thread adds them to the chain.
+        int parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        try (BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList(),
+                parserThreads)) {
+            for (Block block : loader)
+                chain.add(block);
+        }
     }
 }